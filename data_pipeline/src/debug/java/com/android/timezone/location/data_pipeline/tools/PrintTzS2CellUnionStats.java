@@ -49,11 +49,13 @@ public final class PrintTzS2CellUnionStats {
      * <p>Arguments:
      * <ol>
      *     <li>The input directory containing {@link TzS2CellUnion} files</li>
+     *     <li>Optionally, the {@link ProtoStorageFormat} name of the input, e.g. TEXT</li>
      * </ol>
      */
     public static void main(String[] args) throws Exception {
         File inputDir = new File(args[0]);
-        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat storageFormat = args.length > 1
+                ? ProtoStorageFormat.valueOf(args[1]) : Types.DEFAULT_PROTO_STORAGE_FORMAT;
 
         new PrintTzS2CellUnionStats(inputDir, storageFormat).printS2CellStats();
     }
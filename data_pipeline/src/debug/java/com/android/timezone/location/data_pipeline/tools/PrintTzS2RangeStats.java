@@ -45,11 +45,13 @@ public final class PrintTzS2RangeStats {
      * <p>Arguments:
      * <ol>
      *     <li>The input directory containing {@link TzS2Ranges} files</li>
+     *     <li>Optionally, the {@link ProtoStorageFormat} name of the input, e.g. TEXT</li>
      * </ol>
      */
     public static void main(String[] args) throws Exception {
         File inputFile = new File(args[0]);
-        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat storageFormat = args.length > 1
+                ? ProtoStorageFormat.valueOf(args[1]) : Types.DEFAULT_PROTO_STORAGE_FORMAT;
 
         new PrintTzS2RangeStats(inputFile, storageFormat).printMergedRangeCounts();
     }
@@ -20,6 +20,9 @@ import com.android.libcore.timezone.util.Errors;
 import com.android.timezone.location.common.LicenseSupport;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.NamedFuture;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 import com.android.timezone.tzids.TimeZoneIds;
 
 import com.beust.jcommander.JCommander;
@@ -32,15 +35,25 @@ import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An executable class that takes a directory of {@link TzS2Polygons} files and maps time zone IDs
  * to the ones preferred on Android, combining as necessary. The resulting {@link TzS2Polygons} are
  * written to a new directory. See {@link #main(String[])} for usage.
+ *
+ * <p>Only the time zone IDs of the input files are read up front, so that the inputs can be
+ * grouped by canonical time zone ID. Each group is then combined and written once, and groups are
+ * processed in parallel.
  */
 public class CanonicalizeTzS2Polygons {
 
@@ -76,18 +89,25 @@ public class CanonicalizeTzS2Polygons {
 
     private final ProtoStorageFormat mProtoFormat;
 
+    private final ExecutorService mExecutorService;
+
     private CanonicalizeTzS2Polygons(
             File inputDir, File tzIdsFile, Instant replacementThreshold,
-            File outputDir, ProtoStorageFormat protoFormat) {
+            File outputDir, ProtoStorageFormat protoFormat, ExecutorService executorService) {
         mInputDir = Objects.requireNonNull(inputDir);
         mTzIdsFile = Objects.requireNonNull(tzIdsFile);
         mReplacementThreshold = replacementThreshold;
         mOutputDir = Objects.requireNonNull(outputDir);
         mProtoFormat = Objects.requireNonNull(protoFormat);
+        mExecutorService = Objects.requireNonNull(executorService);
     }
 
     private static class Arguments {
 
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--input",
                 description = "The input directory containing TzS2Polygons files",
                 required = true,
@@ -112,6 +132,17 @@ public class CanonicalizeTzS2Polygons {
                 converter = FileConverter.class)
         File outputDir;
 
+        @Parameter(names = "--num-threads",
+                description = "The number of threads to use. The output is the same regardless of"
+                        + " the number of threads")
+        int numThreads = 1;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+
         Instant replacementThreshold() {
             return Instant.parse(replacementThreshold);
         }
@@ -131,14 +162,25 @@ public class CanonicalizeTzS2Polygons {
         File tzIdsFile = arguments.tzIdsFile;
         Instant replacementThreshold = arguments.replacementThreshold();
         File outputDir = arguments.outputDir;
-        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat storageFormat = arguments.storageFormat;
 
         outputDir.getParentFile().mkdirs();
 
+        ExecutorService executorService = Executors.newFixedThreadPool(arguments.numThreads);
         CanonicalizeTzS2Polygons converter = new CanonicalizeTzS2Polygons(
-                inputDir, tzIdsFile, replacementThreshold, outputDir, storageFormat);
+                inputDir, tzIdsFile, replacementThreshold, outputDir, storageFormat,
+                executorService);
 
-        converter.execute();
+        try {
+            StepMetrics.startStep(CanonicalizeTzS2Polygons.class.getSimpleName());
+            converter.execute();
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            StepMetrics.finishRun(arguments.metricsFile);
+        } finally {
+            executorService.shutdown();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        }
     }
 
     private void execute() throws Exception {
@@ -149,10 +191,43 @@ public class CanonicalizeTzS2Polygons {
             TimeZoneIds timeZoneIds = TimeZoneIds.load(mTzIdsFile);
 
             List<File> inputFiles = TzS2Polygons.listFiles(mInputDir, mProtoFormat);
-            for (File inputFile : inputFiles) {
+            List<String> tzIds = loadTzIds(inputFiles);
+
+            // Canonical IDs are looked up in input file order on this thread, so errors are
+            // reported in a deterministic order. Within a group, files are kept in input file
+            // order so the combined polygons are too.
+            Map<String, List<File>> inputFilesByCanonicalTzId = new LinkedHashMap<>();
+            for (int i = 0; i < inputFiles.size(); i++) {
+                File inputFile = inputFiles.get(i);
                 errors.pushScope(inputFile.getName());
-                processFile(timeZoneIds, inputFile, errors);
+                String canonicalTzId =
+                        getCanonicalTzId(timeZoneIds, mReplacementThreshold, tzIds.get(i), errors);
                 errors.popScope();
+                if (canonicalTzId == null) {
+                    // Skip processing this file: the error will be reported later.
+                    continue;
+                }
+                inputFilesByCanonicalTzId.computeIfAbsent(canonicalTzId, x -> new ArrayList<>())
+                        .add(inputFile);
+            }
+
+            List<NamedFuture<Void>> futures = new ArrayList<>();
+            for (Map.Entry<String, List<File>> entry : inputFilesByCanonicalTzId.entrySet()) {
+                String canonicalTzId = entry.getKey();
+                List<File> groupInputFiles = entry.getValue();
+                Future<Void> future = mExecutorService.submit(() -> {
+                    processGroup(canonicalTzId, groupInputFiles);
+                    return null;
+                });
+                futures.add(new NamedFuture<>(canonicalTzId, future));
+            }
+            for (NamedFuture<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(
+                            "Processing " + future.getName() + " failed", e);
+                }
             }
         } finally {
             System.err.println("Errors encountered:");
@@ -162,50 +237,78 @@ public class CanonicalizeTzS2Polygons {
         System.out.println("Stage completed successfully");
     }
 
-    private void processFile(TimeZoneIds timeZoneIds, File inputFile, Errors errors)
-            throws IOException {
-        System.out.println("Reading " + inputFile);
-
-        TzS2Polygons inputTzS2Polygons = TzS2Polygons.load(inputFile, mProtoFormat);
+    /**
+     * Loads the time zone IDs of the files using the executor service. The result is in the same
+     * order as the files.
+     */
+    private List<String> loadTzIds(List<File> inputFiles) throws InterruptedException {
+        List<NamedFuture<String>> futures = new ArrayList<>();
+        for (File inputFile : inputFiles) {
+            Future<String> future =
+                    mExecutorService.submit(() -> TzS2Polygons.loadTzId(inputFile, mProtoFormat));
+            futures.add(new NamedFuture<>(inputFile.getName(), future));
+        }
 
-        String timeZoneId = inputTzS2Polygons.tzId;
-        String canonicalTzId;
-        if (COUNTRY_MAPPED_EXCEPTIONS.contains(timeZoneId)) {
-            canonicalTzId = timeZoneId;
-        } else {
-            String countryIsoCode = timeZoneIds.getCountryCodeForZoneId(timeZoneId);
-            if (countryIsoCode == null) {
-                errors.addError(timeZoneId + " is not mapped to a country");
-                // Skip processing this file: the error will be reported later.
-                return;
+        List<String> result = new ArrayList<>(futures.size());
+        for (NamedFuture<String> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Loading " + future.getName() + " failed", e);
             }
+        }
+        return result;
+    }
 
-            // We cannot tell from TzS2Polygons which country the source data expected the zone to
-            // to be mapped to, so unfortunately  we cannot confirm countryIsoCode that Android maps
-            // the zone ID to is "correct". It seems unlikely that it would be wildly wrong.
-            // The worst that will happen if the geo boundary for a zone ID spans countries (or is
-            // simply for the "wrong" country) is that the region picker on Android will not select
-            // the region expected by the user (assuming the geo boundary and the mapping to a zone
-            // ID is otherwise correct).
-            Map<String, String> countryTzIdsMap =
-                    timeZoneIds.getCountryIdMap(countryIsoCode, mReplacementThreshold);
-            canonicalTzId = countryTzIdsMap.get(timeZoneId);
+    /**
+     * Combines the polygons of the input files for a canonical time zone ID, in order, and stores
+     * them in a single output file.
+     */
+    private void processGroup(String canonicalTzId, List<File> inputFiles) throws IOException {
+        StepMetrics.sampleQueueDepth(mExecutorService);
+        StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+        List<S2Polygon> combinedS2Polygons = new ArrayList<>();
+        for (File inputFile : inputFiles) {
+            System.out.println("Reading " + inputFile);
+            combinedS2Polygons.addAll(TzS2Polygons.load(inputFile, mProtoFormat).s2PolygonList);
         }
 
         String fileSuffix = TzS2Polygons.getFileSuffix(mProtoFormat);
         File outputFile = TzIds.createFile(mOutputDir, canonicalTzId, fileSuffix);
-        TzS2Polygons tzS2Polygons;
-        if (outputFile.exists()) {
-            System.out.println("Extending " + outputFile);
-            TzS2Polygons oldOutputPolygons = TzS2Polygons.load(outputFile, mProtoFormat);
-            List<S2Polygon> combinedS2Polygons =
-                    new ArrayList<>(oldOutputPolygons.s2PolygonList);
-            combinedS2Polygons.addAll(inputTzS2Polygons.s2PolygonList);
-            tzS2Polygons = new TzS2Polygons(canonicalTzId, combinedS2Polygons);
-        } else {
-            System.out.println("Creating " + outputFile);
-            tzS2Polygons = new TzS2Polygons(canonicalTzId, inputTzS2Polygons.s2PolygonList);
-        }
+        System.out.println("Creating " + outputFile + " from " + inputFiles.size() + " file(s)");
+        TzS2Polygons tzS2Polygons = new TzS2Polygons(canonicalTzId, combinedS2Polygons);
         TzS2Polygons.store(tzS2Polygons, outputFile, mProtoFormat, LicenseSupport.License.ODBL);
+        zoneTimer.finish(canonicalTzId);
+    }
+
+    /**
+     * Returns the time zone ID preferred on Android for {@code timeZoneId}, or {@code null} if
+     * there isn't one, in which case an error is added to {@code errors}.
+     */
+    static String getCanonicalTzId(TimeZoneIds timeZoneIds, Instant replacementThreshold,
+            String timeZoneId, Errors errors) {
+        if (COUNTRY_MAPPED_EXCEPTIONS.contains(timeZoneId)) {
+            return timeZoneId;
+        }
+        String countryIsoCode = timeZoneIds.getCountryCodeForZoneId(timeZoneId);
+        if (countryIsoCode == null) {
+            errors.addError(timeZoneId + " is not mapped to a country");
+            return null;
+        }
+
+        // We cannot tell from TzS2Polygons which country the source data expected the zone to
+        // to be mapped to, so unfortunately  we cannot confirm countryIsoCode that Android maps
+        // the zone ID to is "correct". It seems unlikely that it would be wildly wrong.
+        // The worst that will happen if the geo boundary for a zone ID spans countries (or is
+        // simply for the "wrong" country) is that the region picker on Android will not select
+        // the region expected by the user (assuming the geo boundary and the mapping to a zone
+        // ID is otherwise correct).
+        Map<String, String> countryTzIdsMap =
+                timeZoneIds.getCountryIdMap(countryIsoCode, replacementThreshold);
+        String canonicalTzId = countryTzIdsMap.get(timeZoneId);
+        if (canonicalTzId == null) {
+            errors.addError(timeZoneId + " has no preferred ID for " + countryIsoCode);
+        }
+        return canonicalTzId;
     }
 }
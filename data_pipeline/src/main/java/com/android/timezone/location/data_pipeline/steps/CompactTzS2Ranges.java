@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.common.LicenseSupport;
+import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2LatLng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An executable class that takes the merged {@link TzS2Ranges} file produced by
+ * {@link MergeTzS2Ranges} and writes a smaller one for {@link CreateTzS2ProtoDataFile} or
+ * {@link TzS2RangesToTzS2File}. It is an optional step between steps 5 and 6 of the pipeline.
+ *
+ * <p>Adjacent ranges with the same time zone IDs are joined, which loses nothing. Optionally,
+ * slivers, i.e. ranges of at most a maximum number of cells, are then absorbed into an adjacent
+ * range, which changes the time zone IDs of the sliver's cells. Many slivers exist only because of
+ * noise in the zones' boundaries, and each one costs an entry in the tzs2 data file. Slivers are
+ * absorbed smallest first for as long as the total number of cells changed is within an error
+ * budget. A report of the cells, and their approximate area, each time zone ID loses and gains is
+ * produced.
+ *
+ * <p>See {@link #main(String[])} for usage.
+ */
+public final class CompactTzS2Ranges {
+
+    private final File mInputFile;
+
+    private final ProtoStorageFormat mProtoStorageFormat;
+
+    private final File mOutputFile;
+
+    private final long mMaxSliverCells;
+
+    private final long mErrorBudgetCells;
+
+    private final File mReportFile;
+
+    private CompactTzS2Ranges(File inputFile, ProtoStorageFormat protoStorageFormat,
+            File outputFile, long maxSliverCells, long errorBudgetCells, File reportFile) {
+        this.mInputFile = Objects.requireNonNull(inputFile);
+        this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        this.mOutputFile = Objects.requireNonNull(outputFile);
+        if (maxSliverCells < 0) {
+            throw new IllegalArgumentException("Bad maxSliverCells=" + maxSliverCells);
+        }
+        this.mMaxSliverCells = maxSliverCells;
+        if (errorBudgetCells < 0) {
+            throw new IllegalArgumentException("Bad errorBudgetCells=" + errorBudgetCells);
+        }
+        this.mErrorBudgetCells = errorBudgetCells;
+        // May be null.
+        this.mReportFile = reportFile;
+    }
+
+    private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
+        @Parameter(names = "--input-file",
+                description = "The input merged TzS2Ranges file",
+                required = true,
+                converter = FileConverter.class)
+        File inputFile;
+
+        @Parameter(names = "--output-file",
+                description = "The compacted TzS2Ranges file to produce",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+
+        @Parameter(names = "--max-sliver-cells",
+                description = "Ranges of at most this many cells may be absorbed into an adjacent"
+                        + " range. 0 only joins adjacent ranges with the same time zone IDs")
+        long maxSliverCells = 0;
+
+        @Parameter(names = "--error-budget-cells",
+                description = "The maximum total number of cells whose time zone IDs may be"
+                        + " changed by absorbing slivers")
+        long errorBudgetCells = 0;
+
+        @Parameter(names = "--report-file",
+                description = "Also write the report of the cells each time zone ID loses and"
+                        + " gains to this file",
+                converter = FileConverter.class)
+        File reportFile;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+    }
+
+    /**
+     * See {@link CompactTzS2Ranges} for the purpose of this class.
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        arguments.outputFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        CompactTzS2Ranges compactor = new CompactTzS2Ranges(arguments.inputFile,
+                arguments.storageFormat, arguments.outputFile, arguments.maxSliverCells,
+                arguments.errorBudgetCells, arguments.reportFile);
+        StepMetrics.startStep(CompactTzS2Ranges.class.getSimpleName());
+        compactor.execute();
+        StepMetrics.finishStep();
+        System.out.println("Proto I/O: " + IoStats.getSummary());
+        StepMetrics.finishRun(arguments.metricsFile);
+    }
+
+    private void execute() throws IOException {
+        System.out.println("Reading " + mInputFile + " ...");
+        PackedTzS2Ranges inputRanges =
+                PackedTzS2Ranges.load(mInputFile, mProtoStorageFormat, new TzIdSets());
+
+        Result result = compact(inputRanges, mMaxSliverCells, mErrorBudgetCells);
+        StepMetrics.addRangeCount(result.ranges.size());
+
+        LicenseSupport.copyLicenseFile(mInputFile.getAbsoluteFile().getParentFile(),
+                mOutputFile.getAbsoluteFile().getParentFile());
+        System.out.println("Writing " + mOutputFile + " ...");
+        result.ranges.store(mOutputFile, mProtoStorageFormat, License.ODBL);
+
+        List<String> reportLines = createReport(inputRanges, result);
+        System.out.println("Report:");
+        reportLines.forEach(System.out::println);
+        if (mReportFile != null) {
+            Files.write(mReportFile.toPath(), reportLines, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** The result of {@link #compact(PackedTzS2Ranges, long, long)}. */
+    static final class Result {
+
+        /** The compacted ranges. */
+        final PackedTzS2Ranges ranges;
+
+        /** The number of ranges removed by joining ranges with the same time zone IDs. */
+        final int joinedRangeCount;
+
+        /** The number of slivers absorbed into an adjacent range. */
+        final int absorbedRangeCount;
+
+        /** The number of cells whose time zone IDs were changed. */
+        final long changedCellCount;
+
+        /** The number of cells each time zone ID is no longer associated with. */
+        final Map<String, Long> lostCellsByTzId;
+
+        /** The number of cells each time zone ID is newly associated with. */
+        final Map<String, Long> gainedCellsByTzId;
+
+        Result(PackedTzS2Ranges ranges, int joinedRangeCount, int absorbedRangeCount,
+                long changedCellCount, Map<String, Long> lostCellsByTzId,
+                Map<String, Long> gainedCellsByTzId) {
+            this.ranges = ranges;
+            this.joinedRangeCount = joinedRangeCount;
+            this.absorbedRangeCount = absorbedRangeCount;
+            this.changedCellCount = changedCellCount;
+            this.lostCellsByTzId = lostCellsByTzId;
+            this.gainedCellsByTzId = gainedCellsByTzId;
+        }
+    }
+
+    /**
+     * Compacts {@code inputRanges}, see {@link CompactTzS2Ranges}. Ranges of at most
+     * {@code maxSliverCells} cells are absorbed into an adjacent range while no more than
+     * {@code errorBudgetCells} cells in total are changed. The result shares the input's
+     * {@link TzIdSets}.
+     *
+     * <p>A sliver is absorbed into the adjacent range whose time zone IDs lack the fewest of the
+     * sliver's, then that has the fewest the sliver lacks, then the larger one. A range that has
+     * absorbed a sliver is not itself absorbed, so each cell changes at most once and the changes
+     * reported are relative to the input.
+     */
+    static Result compact(PackedTzS2Ranges inputRanges, long maxSliverCells,
+            long errorBudgetCells) {
+        TzIdSets tzIdSets = inputRanges.getTzIdSets();
+        int inputSize = inputRanges.size();
+
+        // Join adjacent ranges with the same time zone IDs into a doubly-linked list.
+        long[] startCellIds = new long[inputSize];
+        long[] endCellIds = new long[inputSize];
+        int[] tzIdSetIds = new int[inputSize];
+        int size = 0;
+        for (int i = 0; i < inputSize; i++) {
+            long startCellId = inputRanges.getStartCellId(i);
+            int tzIdSetId = inputRanges.getTzIdSetId(i);
+            if (size > 0 && endCellIds[size - 1] == startCellId
+                    && tzIdSetIds[size - 1] == tzIdSetId) {
+                endCellIds[size - 1] = inputRanges.getEndCellId(i);
+            } else {
+                startCellIds[size] = startCellId;
+                endCellIds[size] = inputRanges.getEndCellId(i);
+                tzIdSetIds[size] = tzIdSetId;
+                size++;
+            }
+        }
+        int joinedRangeCount = inputSize - size;
+        int[] previous = new int[size];
+        int[] next = new int[size];
+        for (int i = 0; i < size; i++) {
+            previous[i] = i - 1;
+            next[i] = i + 1 < size ? i + 1 : -1;
+        }
+        boolean[] removed = new boolean[size];
+        boolean[] grown = new boolean[size];
+
+        long cellSize = size == 0 ? 0 : Long.lowestOneBit(startCellIds[0]) << 1;
+        long[] cellCounts = new long[size];
+        for (int i = 0; i < size; i++) {
+            cellCounts[i] = Long.divideUnsigned(endCellIds[i] - startCellIds[i], cellSize);
+        }
+        // The queue is ordered by the initial cell counts, which do not change while ranges are
+        // queued. A queued range that grows is skipped when it is polled, and the others still
+        // have their initial cell counts.
+        long[] initialCellCounts = cellCounts.clone();
+        PriorityQueue<Integer> slivers = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(i -> initialCellCounts[i])
+                        .thenComparingInt(i -> i));
+        for (int i = 0; i < size; i++) {
+            if (cellCounts[i] <= maxSliverCells) {
+                slivers.add(i);
+            }
+        }
+
+        int absorbedRangeCount = 0;
+        long changedCellCount = 0;
+        Map<String, Long> lostCellsByTzId = new TreeMap<>();
+        Map<String, Long> gainedCellsByTzId = new TreeMap<>();
+        while (!slivers.isEmpty()) {
+            int sliver = slivers.poll();
+            if (removed[sliver] || grown[sliver]) {
+                continue;
+            }
+            if (cellCounts[sliver] > errorBudgetCells - changedCellCount) {
+                // Slivers are in size order, so no later sliver fits either.
+                break;
+            }
+            int before = previous[sliver];
+            if (before != -1 && endCellIds[before] != startCellIds[sliver]) {
+                before = -1;
+            }
+            int after = next[sliver];
+            if (after != -1 && startCellIds[after] != endCellIds[sliver]) {
+                after = -1;
+            }
+            if (before == -1 && after == -1) {
+                // Absorbing a range into a gap would add cells to a time zone ID.
+                continue;
+            }
+            int target;
+            if (before == -1) {
+                target = after;
+            } else if (after == -1) {
+                target = before;
+            } else {
+                target = compareTargets(tzIdSets, tzIdSetIds[sliver], cellCounts,
+                        tzIdSetIds, before, after) <= 0 ? before : after;
+            }
+
+            List<String> sliverTzIds = tzIdSets.get(tzIdSetIds[sliver]);
+            List<String> targetTzIds = tzIdSets.get(tzIdSetIds[target]);
+            addCellCounts(lostCellsByTzId, sliverTzIds, targetTzIds, cellCounts[sliver]);
+            addCellCounts(gainedCellsByTzId, targetTzIds, sliverTzIds, cellCounts[sliver]);
+            changedCellCount += cellCounts[sliver];
+            absorbedRangeCount++;
+
+            if (target == before) {
+                endCellIds[target] = endCellIds[sliver];
+            } else {
+                startCellIds[target] = startCellIds[sliver];
+            }
+            cellCounts[target] += cellCounts[sliver];
+            grown[target] = true;
+            unlink(sliver, previous, next, removed);
+
+            // The range on the other side of the sliver may now join the target.
+            int other = target == before ? after : before;
+            if (other != -1 && tzIdSetIds[other] == tzIdSetIds[target]) {
+                if (target == before) {
+                    endCellIds[target] = endCellIds[other];
+                } else {
+                    startCellIds[target] = startCellIds[other];
+                }
+                cellCounts[target] += cellCounts[other];
+                unlink(other, previous, next, removed);
+                joinedRangeCount++;
+            }
+        }
+
+        PackedTzS2Ranges ranges = new PackedTzS2Ranges(tzIdSets, size - absorbedRangeCount);
+        for (int i = 0; i < size; i++) {
+            if (!removed[i]) {
+                ranges.add(startCellIds[i], endCellIds[i], tzIdSetIds[i]);
+            }
+        }
+        ranges.trimToSize();
+        return new Result(ranges, joinedRangeCount, absorbedRangeCount, changedCellCount,
+                lostCellsByTzId, gainedCellsByTzId);
+    }
+
+    /**
+     * Compares two ranges adjacent to a sliver with time zone ID set ID {@code sliverTzIdSetId}
+     * as a range to absorb it. Returns a negative number if {@code range1} is the better one.
+     */
+    private static int compareTargets(TzIdSets tzIdSets, int sliverTzIdSetId, long[] cellCounts,
+            int[] tzIdSetIds, int range1, int range2) {
+        List<String> sliverTzIds = tzIdSets.get(sliverTzIdSetId);
+        List<String> tzIds1 = tzIdSets.get(tzIdSetIds[range1]);
+        List<String> tzIds2 = tzIdSets.get(tzIdSetIds[range2]);
+        int result = Integer.compare(countMissing(sliverTzIds, tzIds1),
+                countMissing(sliverTzIds, tzIds2));
+        if (result == 0) {
+            result = Integer.compare(countMissing(tzIds1, sliverTzIds),
+                    countMissing(tzIds2, sliverTzIds));
+        }
+        if (result == 0) {
+            result = Long.compare(cellCounts[range2], cellCounts[range1]);
+        }
+        return result;
+    }
+
+    /** Returns the number of {@code tzIds} that are not in {@code otherTzIds}. */
+    private static int countMissing(List<String> tzIds, List<String> otherTzIds) {
+        int count = 0;
+        for (String tzId : tzIds) {
+            if (!otherTzIds.contains(tzId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Adds {@code cellCount} to the count of each of {@code tzIds} not in {@code otherTzIds}. */
+    private static void addCellCounts(Map<String, Long> cellCountsByTzId, List<String> tzIds,
+            List<String> otherTzIds, long cellCount) {
+        for (String tzId : tzIds) {
+            if (!otherTzIds.contains(tzId)) {
+                cellCountsByTzId.merge(tzId, cellCount, Long::sum);
+            }
+        }
+    }
+
+    private static void unlink(int i, int[] previous, int[] next, boolean[] removed) {
+        if (previous[i] != -1) {
+            next[previous[i]] = next[i];
+        }
+        if (next[i] != -1) {
+            previous[next[i]] = previous[i];
+        }
+        removed[i] = true;
+    }
+
+    /**
+     * Returns the lines of a report of how many ranges were removed and of the cells, and their
+     * approximate area, each time zone ID lost and gained.
+     */
+    private List<String> createReport(PackedTzS2Ranges inputRanges, Result result) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Ranges: %d in, %d out, %d joined, %d slivers"
+                        + " absorbed",
+                inputRanges.size(), result.ranges.size(), result.joinedRangeCount,
+                result.absorbedRangeCount));
+        if (inputRanges.size() == 0) {
+            return lines;
+        }
+        double cellAreaKm2 = getAverageCellAreaKm2(inputRanges.getS2Level());
+        lines.add(String.format(Locale.ROOT, "Changed cells: %d of a budget of %d (%.1f km2),"
+                        + " max sliver cells %d",
+                result.changedCellCount, mErrorBudgetCells,
+                result.changedCellCount * cellAreaKm2, mMaxSliverCells));
+        Set<String> changedTzIds = new TreeSet<>(result.lostCellsByTzId.keySet());
+        changedTzIds.addAll(result.gainedCellsByTzId.keySet());
+        for (String tzId : changedTzIds) {
+            long lostCells = result.lostCellsByTzId.getOrDefault(tzId, 0L);
+            long gainedCells = result.gainedCellsByTzId.getOrDefault(tzId, 0L);
+            lines.add(String.format(Locale.ROOT, "%s: lost %d cells (%.1f km2), gained %d cells"
+                            + " (%.1f km2)",
+                    tzId, lostCells, lostCells * cellAreaKm2, gainedCells,
+                    gainedCells * cellAreaKm2));
+        }
+        return lines;
+    }
+
+    /** Returns the average area of the cells at {@code s2Level} on the Earth in km2. */
+    private static double getAverageCellAreaKm2(int s2Level) {
+        double earthRadiusKm = S2LatLng.EARTH_RADIUS_METERS / 1000;
+        return S2Cell.averageArea(s2Level) * earthRadiusKm * earthRadiusKm;
+    }
+}
@@ -19,24 +19,32 @@ package com.android.timezone.location.data_pipeline.steps;
 import com.android.timezone.location.common.LicenseSupport;
 import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
-import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 import com.android.timezone.location.tools.proto.GeotzProtos;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.util.HashMap;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An executable class that takes a {@link TzS2Ranges} files and converts it into a
  * {@link GeotzProtos.TimeZones} text proto needed by the Android tzs2 data file generator.
+ * Alternatively, the output can be written as a stream of length-delimited binary protos, which
+ * the generator can read without holding all the ranges in memory (see geotz_protos.proto).
+ * With --streaming, the input is read twice, once for the time zone ID sets and once for the
+ * ranges, so that the ranges are never all held in memory here either.
  * See {@link #main(String[])} for usage.
  */
 public final class CreateTzS2ProtoDataFile {
@@ -49,16 +57,26 @@ public final class CreateTzS2ProtoDataFile {
 
     private final ProtoStorageFormat mOutputProtoFormat;
 
+    private final boolean mDelimitedOutput;
+
+    private final boolean mStreaming;
+
     private CreateTzS2ProtoDataFile(
             File inputFile, ProtoStorageFormat inputProtoFormat, File outputFile,
-            ProtoStorageFormat outputProtoFormat) {
+            ProtoStorageFormat outputProtoFormat, boolean delimitedOutput, boolean streaming) {
         this.mInputFile = Objects.requireNonNull(inputFile);
         this.mInputProtoFormat = Objects.requireNonNull(inputProtoFormat);
         this.mOutputFile = Objects.requireNonNull(outputFile);
         this.mOutputProtoFormat = Objects.requireNonNull(outputProtoFormat);
+        this.mDelimitedOutput = delimitedOutput;
+        this.mStreaming = streaming;
     }
 
     private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--input-file",
                 description = "The input TzS2Ranges file to parse",
                 required = true,
@@ -71,6 +89,21 @@ public final class CreateTzS2ProtoDataFile {
                 converter = FileConverter.class)
         File outputFile;
 
+        @Parameter(names = "--delimited-output",
+                description = "Write a stream of length-delimited binary protos instead of a text"
+                        + " proto")
+        boolean delimitedOutput;
+
+        @Parameter(names = "--streaming",
+                description = "Read the input twice instead of holding all the ranges in memory."
+                        + " The output is the same")
+        boolean streaming;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts to this file",
+                converter = FileConverter.class)
+        File metricsFile;
     }
 
     /**
@@ -80,6 +113,9 @@ public final class CreateTzS2ProtoDataFile {
      * <ol>
      *     <li>The input {@link TzS2Ranges} file to parse</li>
      *     <li>The output file to produce</li>
+     *     <li>Optionally, --delimited-output to write length-delimited binary protos</li>
+     *     <li>Optionally, --streaming to avoid holding all the ranges in memory</li>
+     *     <li>Optionally, --metrics-file to store a JSON report of the step's metrics</li>
      * </ol>
      */
     public static void main(String[] args) throws Exception {
@@ -89,7 +125,7 @@ public final class CreateTzS2ProtoDataFile {
                 .build()
                 .parse(args);
         File inputFile = arguments.inputFile;
-        ProtoStorageFormat inputStorageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat inputStorageFormat = arguments.storageFormat;
 
         File outputFile = arguments.outputFile;
         // This is currently assumed by the tool that reads the file.
@@ -98,45 +134,153 @@ public final class CreateTzS2ProtoDataFile {
         outputFile.getParentFile().mkdirs();
 
         CreateTzS2ProtoDataFile converter = new CreateTzS2ProtoDataFile(
-                inputFile, inputStorageFormat, outputFile, outputStorageFormat);
+                inputFile, inputStorageFormat, outputFile, outputStorageFormat,
+                arguments.delimitedOutput, arguments.streaming);
 
-        converter.execute();
+        StepMetrics.startStep(CreateTzS2ProtoDataFile.class.getSimpleName());
+        if (arguments.streaming) {
+            converter.executeStreaming();
+        } else {
+            converter.execute();
+        }
+        StepMetrics.finishStep();
+        System.out.println("Proto I/O: " + IoStats.getSummary());
+        StepMetrics.finishRun(arguments.metricsFile);
     }
 
     private void execute() throws Exception {
         System.out.println("Reading " + mInputFile + " ...");
-        TzS2Ranges tzS2Ranges = TzS2Ranges.load(mInputFile, mInputProtoFormat);
+        PackedTzS2Ranges tzS2Ranges =
+                PackedTzS2Ranges.load(mInputFile, mInputProtoFormat, new TzIdSets());
+        StepMetrics.addRangeCount(tzS2Ranges.size());
         System.out.println("Converting...");
         GeotzProtos.TimeZones tzS2DataInput = createTimeZonesProto(tzS2Ranges);
         LicenseSupport.copyLicenseFile(mInputFile.getParentFile(), mOutputFile.getParentFile());
         System.out.println("Writing " + mOutputFile + " ...");
-        mOutputProtoFormat.store(tzS2DataInput, mOutputFile, License.ODBL);
+        if (mDelimitedOutput) {
+            storeDelimited(tzS2DataInput, mOutputFile);
+        } else {
+            mOutputProtoFormat.store(tzS2DataInput, mOutputFile, License.ODBL);
+        }
+    }
+
+    private void executeStreaming() throws IOException {
+        StepMetrics.addRangeCount(convertStreaming(mInputFile, mInputProtoFormat, mOutputFile,
+                mOutputProtoFormat, mDelimitedOutput));
+    }
+
+    /**
+     * Converts {@code inputFile} to {@code outputFile} as {@link #main(String[])} does with
+     * --streaming, and returns the number of ranges converted.
+     */
+    static long convertStreaming(File inputFile, ProtoStorageFormat inputProtoFormat,
+            File outputFile, ProtoStorageFormat outputProtoFormat, boolean delimitedOutput)
+            throws IOException {
+        System.out.println("Reading time zone ID sets from " + inputFile + " ...");
+        // A new TzIdSets assigns IDs in the order sets are first used by the ranges, which is the
+        // order createTimeZonesProto() numbers them in, so IDs can be used as indexes directly.
+        TzIdSets tzIdSets = new TzIdSets();
+        long[] rangeCount = new long[1];
+        TzS2Ranges.forEachRange(inputFile, inputProtoFormat, (startCellId, endCellId, tzIds) -> {
+            tzIdSets.intern(tzIds);
+            rangeCount[0]++;
+        });
+        GeotzProtos.TimeZones.Builder headerBuilder = GeotzProtos.TimeZones.newBuilder();
+        for (int id = 0; id < tzIdSets.size(); id++) {
+            headerBuilder.addTimeZoneIdSets(GeotzProtos.TimeZoneIdSet.newBuilder()
+                    .addAllTimeZoneIds(tzIdSets.get(id))
+                    .build());
+        }
+        GeotzProtos.TimeZones header = headerBuilder.build();
+        LicenseSupport.copyLicenseFile(inputFile.getAbsoluteFile().getParentFile(),
+                outputFile.getAbsoluteFile().getParentFile());
+
+        System.out.println("Writing " + outputFile + " ...");
+        GeotzProtos.S2Range.Builder rangeBuilder = GeotzProtos.S2Range.newBuilder();
+        if (delimitedOutput) {
+            try (OutputStream outputStream =
+                         new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                header.writeDelimitedTo(outputStream);
+                TzS2Ranges.forEachRange(inputFile, inputProtoFormat,
+                        (startCellId, endCellId, tzIds) -> rangeBuilder
+                                .setStartCellId(startCellId)
+                                .setEndCellId(endCellId)
+                                .setTimeZoneIdSetIndex(tzIdSets.intern(tzIds))
+                                .build()
+                                .writeDelimitedTo(outputStream));
+            }
+        } else {
+            // The time zone ID sets are stored before the ranges, so writing the header and then
+            // each range as a part produces the same file as storing the whole message.
+            try (Types.PartWriter writer =
+                         outputProtoFormat.openPartWriter(outputFile, License.ODBL)) {
+                writer.write(header);
+                TzS2Ranges.forEachRange(inputFile, inputProtoFormat,
+                        (startCellId, endCellId, tzIds) -> writer.write(
+                                GeotzProtos.TimeZones.newBuilder()
+                                        .addRanges(rangeBuilder
+                                                .setStartCellId(startCellId)
+                                                .setEndCellId(endCellId)
+                                                .setTimeZoneIdSetIndex(tzIdSets.intern(tzIds)))
+                                        .build()));
+            }
+        }
+        return rangeCount[0];
     }
 
-    private static GeotzProtos.TimeZones createTimeZonesProto(TzS2Ranges ranges) {
-        AtomicInteger nextId = new AtomicInteger(0);
-        // TODO Switch to bimap.
-        Map<List<String>, Integer> idBySet = new HashMap<>();
-        Map<Integer, List<String>> setById = new HashMap<>();
+    /**
+     * Writes the {@link GeotzProtos.TimeZones} as a stream of length-delimited protos: a
+     * {@link GeotzProtos.TimeZones} containing only the time zone ID sets, followed by each
+     * {@link GeotzProtos.S2Range} in order.
+     */
+    static void storeDelimited(GeotzProtos.TimeZones timeZones, File outputFile)
+            throws IOException {
+        try (OutputStream outputStream =
+                     new BufferedOutputStream(new FileOutputStream(outputFile))) {
+            GeotzProtos.TimeZones.newBuilder()
+                    .addAllTimeZoneIdSets(timeZones.getTimeZoneIdSetsList())
+                    .build()
+                    .writeDelimitedTo(outputStream);
+            for (GeotzProtos.S2Range range : timeZones.getRangesList()) {
+                range.writeDelimitedTo(outputStream);
+            }
+        }
+    }
+
+    /**
+     * Converts ranges to the proto form needed by the tzs2 data file generator. Time zone ID sets
+     * are numbered in the order they are first used by the ranges.
+     */
+    static GeotzProtos.TimeZones createTimeZonesProto(PackedTzS2Ranges ranges) {
+        TzIdSets tzIdSets = ranges.getTzIdSets();
+        // The output index of each TzIdSets ID, or -1 if it has not been used yet.
+        int[] indexById = new int[tzIdSets.size()];
+        Arrays.fill(indexById, -1);
+        List<Integer> idByIndex = new ArrayList<>();
         GeotzProtos.TimeZones.Builder builder = GeotzProtos.TimeZones.newBuilder();
-        for (TzS2Range range : ranges.getAll()) {
-            int id = idBySet.computeIfAbsent(range.tzIds, x -> nextId.getAndIncrement());
-            setById.put(id, range.tzIds);
-
-            builder.addRanges(GeotzProtos.S2Range.newBuilder()
-                    .setStartCellId(range.rangeStart.id())
-                    .setEndCellId(range.rangeEnd.id())
-                    .setTimeZoneIdSetIndex(id)
+        GeotzProtos.S2Range.Builder rangeBuilder = GeotzProtos.S2Range.newBuilder();
+        for (int i = 0; i < ranges.size(); i++) {
+            int id = ranges.getTzIdSetId(i);
+            int index = indexById[id];
+            if (index == -1) {
+                index = idByIndex.size();
+                indexById[id] = index;
+                idByIndex.add(id);
+            }
+
+            builder.addRanges(rangeBuilder
+                    .setStartCellId(ranges.getStartCellId(i))
+                    .setEndCellId(ranges.getEndCellId(i))
+                    .setTimeZoneIdSetIndex(index)
                     .build());
         }
 
-        int totalIds = setById.size();
-        for (int i = 0; i < totalIds; i++) {
+        for (int id : idByIndex) {
             GeotzProtos.TimeZoneIdSet tzIdSet = GeotzProtos.TimeZoneIdSet.newBuilder()
-                    .addAllTimeZoneIds(setById.get(i))
+                    .addAllTimeZoneIds(tzIdSets.get(id))
                     .build();
             builder.addTimeZoneIdSets(tzIdSet);
         }
         return builder.build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.geojson.Feature;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the features of a geojson FeatureCollection one at a time, so that only the feature being
+ * read needs to be held in memory. The input can be a geojson file or a zip file containing a
+ * single geojson file, e.g. the timezones.geojson.zip produced by the
+ * external/timezone-boundary-builder project, which is read without unzipping it to disk.
+ */
+final class GeoJsonFeatureReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final ObjectMapper mObjectMapper;
+
+    private final Closeable mSource;
+
+    private final JsonParser mParser;
+
+    private boolean mEndOfFeatures;
+
+    private int mFeatureCount;
+
+    private GeoJsonFeatureReader(ObjectMapper objectMapper, Closeable source, JsonParser parser) {
+        mObjectMapper = Objects.requireNonNull(objectMapper);
+        mSource = Objects.requireNonNull(source);
+        mParser = Objects.requireNonNull(parser);
+    }
+
+    /**
+     * Opens a geojson file, or a zip file containing a geojson file, and positions the reader at
+     * the first feature.
+     */
+    static GeoJsonFeatureReader open(File file) throws IOException {
+        Closeable source;
+        InputStream inputStream;
+        if (file.getName().endsWith(".zip")) {
+            ZipFile zipFile = new ZipFile(file);
+            source = zipFile;
+            try {
+                inputStream = zipFile.getInputStream(findGeoJsonEntry(zipFile));
+            } catch (IOException | RuntimeException e) {
+                zipFile.close();
+                throw e;
+            }
+        } else {
+            inputStream = new FileInputStream(file);
+            source = inputStream;
+        }
+
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            JsonParser parser = objectMapper.getFactory().createParser(
+                    new BufferedInputStream(inputStream, BUFFER_SIZE));
+            GeoJsonFeatureReader reader = new GeoJsonFeatureReader(objectMapper, source, parser);
+            reader.moveToFeatures(file);
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a {@link FeatureSummary} for each feature in the file, in file order. Feature
+     * geometry is counted and hashed without being parsed into objects, so this is much cheaper
+     * than reading the features.
+     */
+    static List<FeatureSummary> readSummaries(File file) throws IOException {
+        List<FeatureSummary> summaries = new ArrayList<>();
+        try (GeoJsonFeatureReader reader = open(file)) {
+            FeatureSummary summary;
+            while ((summary = reader.nextSummary()) != null) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    /** Returns the time zone ID of a feature. */
+    static String getTzId(Feature feature) {
+        return (String) feature.getProperties().get("tzid");
+    }
+
+    /** Returns the next feature, or {@code null} if there are no more features. */
+    Feature next() throws IOException {
+        if (!moveToNextFeature()) {
+            return null;
+        }
+        Feature feature = mObjectMapper.readValue(mParser, Feature.class);
+        mFeatureCount++;
+        return feature;
+    }
+
+    /**
+     * Skips the next feature without parsing it. Returns {@code false} if there are no more
+     * features.
+     */
+    boolean skip() throws IOException {
+        if (!moveToNextFeature()) {
+            return false;
+        }
+        mParser.skipChildren();
+        mFeatureCount++;
+        return true;
+    }
+
+    /** Returns the number of features read or skipped so far. */
+    int getFeatureCount() {
+        return mFeatureCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mParser.close();
+        } finally {
+            mSource.close();
+        }
+    }
+
+    private FeatureSummary nextSummary() throws IOException {
+        if (!moveToNextFeature()) {
+            return null;
+        }
+        Hasher hasher = Hashing.sha256().newHasher();
+        String tzId = null;
+        int vertexCount = 0;
+        while (nextToken(hasher) == JsonToken.FIELD_NAME) {
+            String fieldName = mParser.getCurrentName();
+            JsonToken valueToken = nextToken(hasher);
+            if (valueToken != JsonToken.START_OBJECT) {
+                skipChildren(hasher);
+                continue;
+            }
+            while (nextToken(hasher) == JsonToken.FIELD_NAME) {
+                String childName = mParser.getCurrentName();
+                JsonToken childToken = nextToken(hasher);
+                if (fieldName.equals("properties") && childName.equals("tzid")) {
+                    tzId = mParser.getValueAsString();
+                } else if (fieldName.equals("geometry") && childName.equals("coordinates")
+                        && childToken == JsonToken.START_ARRAY) {
+                    vertexCount += countPositions(hasher);
+                } else {
+                    skipChildren(hasher);
+                }
+            }
+        }
+        if (tzId == null) {
+            throw new IOException("Feature without a tzid at " + mParser.getCurrentLocation());
+        }
+        mFeatureCount++;
+        return new FeatureSummary(tzId, vertexCount, hasher.hash());
+    }
+
+    /**
+     * Counts the positions in the (possibly nested) coordinates array that the parser is at the
+     * start of, leaving the parser at the end of the array. A position is an array of numbers.
+     */
+    private int countPositions(Hasher hasher) throws IOException {
+        JsonToken token = nextToken(hasher);
+        if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+            while (nextToken(hasher) != JsonToken.END_ARRAY) {
+                skipChildren(hasher);
+            }
+            return 1;
+        }
+        int count = 0;
+        for (; token != JsonToken.END_ARRAY; token = nextToken(hasher)) {
+            if (token == JsonToken.START_ARRAY) {
+                count += countPositions(hasher);
+            } else {
+                skipChildren(hasher);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves to the next token and adds it to {@code hasher}. Field names and values are hashed as
+     * they appear in the file, so the hash does not depend on white space but changes with any
+     * change to the content.
+     */
+    private JsonToken nextToken(Hasher hasher) throws IOException {
+        JsonToken token = mParser.nextToken();
+        if (token == null) {
+            throw new IOException("Unexpected end of input");
+        }
+        hasher.putInt(token.id());
+        if (token == JsonToken.FIELD_NAME || token.isScalarValue()) {
+            char[] text = mParser.getTextCharacters();
+            int length = mParser.getTextLength();
+            hasher.putInt(length)
+                    .putUnencodedChars(CharBuffer.wrap(text, mParser.getTextOffset(), length));
+        }
+        return token;
+    }
+
+    /** As {@link JsonParser#skipChildren()}, but adds the skipped tokens to {@code hasher}. */
+    private void skipChildren(Hasher hasher) throws IOException {
+        JsonToken token = mParser.currentToken();
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            token = nextToken(hasher);
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Advances to the start of the next feature object. Returns {@code false} if the end of the
+     * features array has been reached.
+     */
+    private boolean moveToNextFeature() throws IOException {
+        if (mEndOfFeatures) {
+            return false;
+        }
+        JsonToken token = mParser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            mEndOfFeatures = true;
+            return false;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a feature object, found " + token + " at "
+                    + mParser.getCurrentLocation());
+        }
+        return true;
+    }
+
+    /** Advances to the start of the top-level "features" array. */
+    private void moveToFeatures(File file) throws IOException {
+        if (mParser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException(file + " does not contain a JSON object");
+        }
+        while (mParser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = mParser.getCurrentName();
+            JsonToken valueToken = mParser.nextToken();
+            if (fieldName.equals("features")) {
+                if (valueToken != JsonToken.START_ARRAY) {
+                    throw new IOException(file + ": features is not an array");
+                }
+                return;
+            }
+            mParser.skipChildren();
+        }
+        throw new IOException(file + " does not contain a features array");
+    }
+
+    private static ZipEntry findGeoJsonEntry(ZipFile zipFile) throws IOException {
+        ZipEntry geoJsonEntry = null;
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            String name = entry.getName();
+            if (name.endsWith(".json") || name.endsWith(".geojson")) {
+                if (geoJsonEntry != null) {
+                    throw new IOException(zipFile.getName() + " contains more than one geojson"
+                            + " file: " + geoJsonEntry.getName() + ", " + name);
+                }
+                geoJsonEntry = entry;
+            }
+        }
+        if (geoJsonEntry == null) {
+            throw new IOException(zipFile.getName() + " does not contain a geojson file");
+        }
+        return geoJsonEntry;
+    }
+
+    /** Information about a feature that can be read without parsing the feature's geometry. */
+    static final class FeatureSummary {
+
+        /** The time zone ID of the feature. */
+        final String tzId;
+
+        /**
+         * The number of vertices in the feature's geometry, including the repeated closing vertex
+         * of each loop. The cost of converting a feature is roughly proportional to this.
+         */
+        final int vertexCount;
+
+        /**
+         * A hash of the feature's content, including its properties. Features with the same hash
+         * produce the same output.
+         */
+        final HashCode contentHash;
+
+        FeatureSummary(String tzId, int vertexCount, HashCode contentHash) {
+            this.tzId = Objects.requireNonNull(tzId);
+            this.vertexCount = vertexCount;
+            this.contentHash = Objects.requireNonNull(contentHash);
+        }
+    }
+}
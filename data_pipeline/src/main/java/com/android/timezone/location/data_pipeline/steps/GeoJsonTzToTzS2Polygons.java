@@ -20,50 +20,58 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.timezone.location.common.LicenseSupport;
 import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.GeoJsonFeatureReader.FeatureSummary;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
-import com.android.timezone.location.data_pipeline.util.NamedFuture;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.geometry.S2LatLng;
 import com.google.common.geometry.S2Loop;
 import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
 import org.geojson.Feature;
-import org.geojson.FeatureCollection;
 import org.geojson.Geometry;
 import org.geojson.LngLatAlt;
 import org.geojson.MultiPolygon;
 import org.geojson.Polygon;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * An executable class that takes a geojson file produced by the external/timezone-boundary-builder
  * project and converts all the time zone polygons into {@link Types.TzS2Polygons}, one per time
  * zone ID encountered. The resulting files can be discovered using
  * {@link TzS2Polygons#listFiles(File, ProtoStorageFormat)} and loaded individually using
- * {@link TzS2Polygons#load(File, ProtoStorageFormat)}. See {@link #main(String[])} for usage.
+ * {@link TzS2Polygons#load(File, ProtoStorageFormat)}.
+ *
+ * <p>When a {@link StepCache} is used, zones whose geojson feature has not changed since an
+ * earlier run are copied from the cache instead of being converted. See {@link #main(String[])}
+ * for usage.
  */
 public final class GeoJsonTzToTzS2Polygons {
 
@@ -77,21 +85,41 @@ public final class GeoJsonTzToTzS2Polygons {
 
     private final Set<String> mTzIds;
 
+    private final int mThreadCount;
+
+    private final int mMaxReadAheadFeatures;
+
+    private final StepCache mStepCache;
+
     private GeoJsonTzToTzS2Polygons(
-            File inputFile, ExecutorService executorService, File outputDir,
+            File inputFile, ExecutorService executorService, int threadCount, File outputDir,
             ProtoStorageFormat protoStorageFormat,
-            Set<String> tzIds) {
+            Set<String> tzIds, int maxReadAheadFeatures, StepCache stepCache) {
         this.mInputFile = Objects.requireNonNull(inputFile);
         this.mExecutorService = Objects.requireNonNull(executorService);
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount=" + threadCount);
+        }
+        this.mThreadCount = threadCount;
         this.mOutputDir = Objects.requireNonNull(outputDir);
         this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
         this.mTzIds = Objects.requireNonNull(tzIds);
+        if (maxReadAheadFeatures < 1) {
+            throw new IllegalArgumentException("maxReadAheadFeatures=" + maxReadAheadFeatures);
+        }
+        this.mMaxReadAheadFeatures = maxReadAheadFeatures;
+        // May be null.
+        this.mStepCache = stepCache;
     }
 
     private static class Arguments {
 
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--geo-json",
-                description = "The input geojson file to parse",
+                description = "The input geojson file to parse, or a zip file containing it",
                 required = true,
                 converter = FileConverter.class)
         File geoJsonFile;
@@ -111,6 +139,18 @@ public final class GeoJsonTzToTzS2Polygons {
                 description = "Comma separated list of time zones to build S2Polygons for")
         String tzIds;
 
+        @Parameter(names = "--cache-dir",
+                description = "A directory to cache the output of each zone in, so that later"
+                        + " runs can skip the zones that have not changed",
+                converter = FileConverter.class)
+        File cacheDir;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+
         Set<String> tzIds() {
             return tzIds == null
                     ? ImmutableSet.of()
@@ -134,17 +174,28 @@ public final class GeoJsonTzToTzS2Polygons {
         int threads = arguments.numThreads;
         File outputDir = arguments.outputDir;
         Set<String> tzIds = arguments.tzIds();
-        ProtoStorageFormat protoStorageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat protoStorageFormat = arguments.storageFormat;
 
         outputDir.mkdirs();
 
+        StepCache stepCache = arguments.cacheDir == null
+                ? null : StepCache.open(arguments.cacheDir, GeoJsonTzToTzS2Polygons.class);
+
         ExecutorService executorService = Executors.newFixedThreadPool(threads);
 
         GeoJsonTzToTzS2Polygons converter = new GeoJsonTzToTzS2Polygons(
-                inputFile, executorService, outputDir, protoStorageFormat, tzIds);
+                inputFile, executorService, threads, outputDir, protoStorageFormat, tzIds,
+                getMaxReadAheadFeatures(threads), stepCache);
 
         try {
+            StepMetrics.startStep(GeoJsonTzToTzS2Polygons.class.getSimpleName());
             converter.execute();
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            if (stepCache != null) {
+                System.out.println("Step cache: " + stepCache.getSummary());
+            }
+            StepMetrics.finishRun(arguments.metricsFile);
         } finally {
             System.out.println("Waiting for shutdown");
             executorService.shutdown();
@@ -152,52 +203,278 @@ public final class GeoJsonTzToTzS2Polygons {
         }
     }
 
-    private void execute() throws Exception {
-        FeatureCollection featureCollection = loadFeatures(mInputFile);
+    /**
+     * Returns the number of features that may be read ahead of the workers. Enough to keep every
+     * worker busy while the next feature is parsed, and small enough to bound memory usage.
+     */
+    static int getMaxReadAheadFeatures(int threads) {
+        return threads * 2;
+    }
 
+    private void execute() throws Exception {
         LicenseSupport.copyLicenseFile(mInputFile.getParentFile(), mOutputDir);
 
         if (!mTzIds.isEmpty()) {
             System.out.println("Building polygons for " + mTzIds);
         }
 
-        List<Feature> features = featureCollection.getFeatures();
-        List<NamedFuture<TzS2Polygons>> futures = new ArrayList<>(features.size());
-        for (Feature feature : features) {
-            String tzId = (String) feature.getProperties().get("tzid");
+        // A cheap first pass finds the size of every feature without parsing its geometry.
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<FeatureSummary> summaries = GeoJsonFeatureReader.readSummaries(mInputFile);
+        List<Integer> selectedIndices = new ArrayList<>();
+        Set<String> knownTzIds = new HashSet<>();
+        for (int i = 0; i < summaries.size(); i++) {
+            String tzId = summaries.get(i).tzId;
             if (!mTzIds.isEmpty() && !mTzIds.contains(tzId)) {
                 continue;
             }
-            System.out.println("Submitting " + tzId + " ...");
-            Future<TzS2Polygons> future = mExecutorService.submit(() -> processFeature(feature));
-            NamedFuture<TzS2Polygons> namedFuture = new NamedFuture<>(tzId, future);
-            futures.add(namedFuture);
+            if (!knownTzIds.add(tzId)) {
+                throw new IllegalStateException("Multiple entries found for: " + tzId);
+            }
+            selectedIndices.add(i);
+        }
+        System.out.println("Features summarized: " + summaries.size() + ", selected: "
+                + selectedIndices.size() + " in " + stopwatch.elapsed());
+
+        if (mStepCache != null) {
+            // Features are only read for the zones that are not in the cache.
+            List<Integer> uncachedIndices = new ArrayList<>();
+            for (int i : selectedIndices) {
+                FeatureSummary summary = summaries.get(i);
+                if (!mStepCache.restore(getCacheKey(summary), getOutputFile(summary.tzId))) {
+                    uncachedIndices.add(i);
+                }
+            }
+            System.out.println("Restored " + (selectedIndices.size() - uncachedIndices.size())
+                    + " zones from the step cache in " + stopwatch.elapsed());
+            selectedIndices = uncachedIndices;
         }
 
-        Set<String> knownTzIds = new HashSet<>(features.size());
-        for (NamedFuture<TzS2Polygons> future : futures) {
-            try {
-                if (!future.isDone()) {
-                    System.out.println("Waiting for " + future.getName());
+        // Conversion time is roughly proportional to the number of vertices, and a large zone
+        // started late would keep one worker busy long after the others have finished. The
+        // largest features are read and started first, then the remaining features are read in
+        // file order. While all workers are busy, features are read ahead and the largest is
+        // started when a worker becomes free. Each worker stores its own output, so only a
+        // bounded number of features and polygons are held in memory at once.
+        Set<Integer> largestIndices = selectedIndices.stream()
+                .sorted(Comparator.comparing((Integer i) -> summaries.get(i).vertexCount)
+                        .reversed())
+                .limit(mMaxReadAheadFeatures)
+                .collect(Collectors.toSet());
+        Scheduler scheduler = new Scheduler();
+        readFeatures(largestIndices, summaries, scheduler::addWithoutStarting);
+        Set<Integer> remainingIndices = new HashSet<>(selectedIndices);
+        remainingIndices.removeAll(largestIndices);
+        readFeatures(remainingIndices, summaries, scheduler::add);
+        List<ZoneTiming> zoneTimings = scheduler.finish();
+
+        System.out.println("Converted " + zoneTimings.size() + " zones in "
+                + stopwatch.elapsed());
+        printSlowestZones(zoneTimings);
+    }
+
+    /** Reads the features with the specified indices and passes them to {@code consumer}. */
+    private void readFeatures(Set<Integer> indices, List<FeatureSummary> summaries,
+            FeatureConsumer consumer) throws IOException, InterruptedException {
+        if (indices.isEmpty()) {
+            return;
+        }
+        int readCount = 0;
+        try (GeoJsonFeatureReader reader = GeoJsonFeatureReader.open(mInputFile)) {
+            for (int i = 0; readCount < indices.size(); i++) {
+                if (!indices.contains(i)) {
+                    if (!reader.skip()) {
+                        throw new IllegalStateException(mInputFile + " has changed");
+                    }
+                    continue;
+                }
+                Feature feature = reader.next();
+                if (feature == null) {
+                    throw new IllegalStateException(mInputFile + " has changed");
                 }
-                TzS2Polygons tzPolygons = future.get();
-                String tzId = tzPolygons.tzId;
-                if (knownTzIds.contains(tzId)) {
-                    throw new IllegalStateException("Multiple entries found for: " + tzId);
+                FeatureSummary summary = summaries.get(i);
+                if (!summary.tzId.equals(GeoJsonFeatureReader.getTzId(feature))) {
+                    throw new IllegalStateException(mInputFile + " has changed");
                 }
-                knownTzIds.add(tzId);
+                consumer.accept(new ScheduledFeature(feature, summary, i));
+                readCount++;
+            }
+        }
+    }
+
+    private interface FeatureConsumer {
+        void accept(ScheduledFeature scheduledFeature) throws InterruptedException;
+    }
+
+    /**
+     * Starts feature conversions on the executor, largest first, while bounding the number of
+     * features read ahead of the workers. Only accessed from the main thread.
+     */
+    private final class Scheduler {
+
+        private final CompletionService<ZoneTiming> mCompletionService =
+                new ExecutorCompletionService<>(mExecutorService);
+
+        private final PriorityQueue<ScheduledFeature> mReadAheadFeatures = new PriorityQueue<>();
+
+        private final List<ZoneTiming> mZoneTimings = new ArrayList<>();
+
+        private int mRunningCount;
+
+        /**
+         * Adds a feature that has been read. Blocks while the read-ahead limit is reached and all
+         * workers are busy.
+         */
+        void add(ScheduledFeature scheduledFeature) throws InterruptedException {
+            mReadAheadFeatures.add(scheduledFeature);
+
+            Future<ZoneTiming> completed;
+            while ((completed = mCompletionService.poll()) != null) {
+                processResult(completed);
+            }
+            if (mReadAheadFeatures.size() >= mMaxReadAheadFeatures
+                    && mRunningCount == mThreadCount) {
+                processResult(mCompletionService.take());
+            }
+            submitWhileWorkersFree();
+        }
 
-                String fileSuffix = TzS2Polygons.getFileSuffix(mProtoStorageFormat);
-                File outputFile = TzIds.createFile(mOutputDir, tzPolygons.tzId, fileSuffix);
-                TzS2Polygons.store(tzPolygons, outputFile, mProtoStorageFormat, License.ODBL);
-            } catch (InterruptedException | ExecutionException e) {
+        /**
+         * Adds a feature that has been read without starting any conversions, so that the
+         * largest of several features can be started first. The caller must not add more than the
+         * read-ahead limit this way.
+         */
+        void addWithoutStarting(ScheduledFeature scheduledFeature) {
+            mReadAheadFeatures.add(scheduledFeature);
+        }
+
+        /** Waits for all features to be converted and returns their timings. */
+        List<ZoneTiming> finish() throws InterruptedException {
+            submitWhileWorkersFree();
+            while (mRunningCount > 0) {
+                processResult(mCompletionService.take());
+                submitWhileWorkersFree();
+            }
+            return mZoneTimings;
+        }
+
+        private void submitWhileWorkersFree() {
+            while (mRunningCount < mThreadCount && !mReadAheadFeatures.isEmpty()) {
+                ScheduledFeature scheduledFeature = mReadAheadFeatures.remove();
+                System.out.println("Submitting " + scheduledFeature.mSummary.tzId + " ("
+                        + scheduledFeature.mSummary.vertexCount + " vertices) ...");
+                Feature feature = scheduledFeature.mFeature;
+                FeatureSummary summary = scheduledFeature.mSummary;
+                mCompletionService.submit(() -> processAndStoreFeature(feature, summary));
+                mRunningCount++;
+            }
+        }
+
+        private void processResult(Future<ZoneTiming> future) throws InterruptedException {
+            mRunningCount--;
+            try {
+                ZoneTiming zoneTiming = future.get();
+                mZoneTimings.add(zoneTiming);
+                System.out.println("[" + mZoneTimings.size() + "] Stored " + zoneTiming);
+            } catch (ExecutionException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private static TzS2Polygons processFeature(Feature feature) {
-        String tzId = (String) feature.getProperties().get("tzid");
+    private ZoneTiming processAndStoreFeature(Feature feature, FeatureSummary summary)
+            throws IOException {
+        StepMetrics.sampleQueueDepth(mExecutorService);
+        StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        TzS2Polygons tzPolygons = processFeature(feature);
+        Duration conversionDuration = stopwatch.elapsed();
+        File outputFile = getOutputFile(tzPolygons.tzId);
+        TzS2Polygons.store(tzPolygons, outputFile, mProtoStorageFormat, License.ODBL);
+        if (mStepCache != null) {
+            mStepCache.store(getCacheKey(summary), outputFile);
+        }
+        zoneTimer.finish(tzPolygons.tzId);
+        return new ZoneTiming(tzPolygons.tzId, summary.vertexCount, conversionDuration,
+                stopwatch.elapsed().minus(conversionDuration));
+    }
+
+    private File getOutputFile(String tzId) {
+        return TzIds.createFile(mOutputDir, tzId, TzS2Polygons.getFileSuffix(mProtoStorageFormat));
+    }
+
+    /** Returns the key of the output for a feature in the step cache. */
+    private String getCacheKey(FeatureSummary summary) {
+        return mStepCache.createKey(summary.contentHash, mProtoStorageFormat);
+    }
+
+    private static void printSlowestZones(List<ZoneTiming> zoneTimings) {
+        final int count = 10;
+        System.out.println("Slowest zones:");
+        zoneTimings.stream()
+                .sorted(Comparator.comparing(ZoneTiming::getTotalDuration).reversed())
+                .limit(count)
+                .forEach(x -> System.out.println("  " + x));
+    }
+
+    /**
+     * A feature waiting to be converted. Orders features with the most vertices first, then in
+     * file order.
+     */
+    private static final class ScheduledFeature implements Comparable<ScheduledFeature> {
+
+        private final Feature mFeature;
+
+        private final FeatureSummary mSummary;
+
+        private final int mIndex;
+
+        ScheduledFeature(Feature feature, FeatureSummary summary, int index) {
+            mFeature = Objects.requireNonNull(feature);
+            mSummary = Objects.requireNonNull(summary);
+            mIndex = index;
+        }
+
+        @Override
+        public int compareTo(ScheduledFeature other) {
+            int result = Integer.compare(other.mSummary.vertexCount, mSummary.vertexCount);
+            return result != 0 ? result : Integer.compare(mIndex, other.mIndex);
+        }
+    }
+
+    /** How long the conversion of a single zone took. */
+    private static final class ZoneTiming {
+
+        private final String mTzId;
+
+        private final int mVertexCount;
+
+        private final Duration mConversionDuration;
+
+        private final Duration mStoreDuration;
+
+        ZoneTiming(String tzId, int vertexCount, Duration conversionDuration,
+                Duration storeDuration) {
+            mTzId = Objects.requireNonNull(tzId);
+            mVertexCount = vertexCount;
+            mConversionDuration = Objects.requireNonNull(conversionDuration);
+            mStoreDuration = Objects.requireNonNull(storeDuration);
+        }
+
+        Duration getTotalDuration() {
+            return mConversionDuration.plus(mStoreDuration);
+        }
+
+        @Override
+        public String toString() {
+            return mTzId + ": " + mVertexCount + " vertices, converted in " + mConversionDuration
+                    + ", stored in " + mStoreDuration;
+        }
+    }
+
+    /** Converts a geojson feature for a single time zone ID to {@link TzS2Polygons}. */
+    static TzS2Polygons processFeature(Feature feature) {
+        String tzId = GeoJsonFeatureReader.getTzId(feature);
         System.out.println("Converting " + tzId + " to S2 geometry...");
         Geometry geometry = (Geometry) feature.getGeometry();
         List<Polygon> polygons;
@@ -225,17 +502,6 @@ public final class GeoJsonTzToTzS2Polygons {
         return new TzS2Polygons(tzId, s2PolygonList);
     }
 
-    private static FeatureCollection loadFeatures(File file) throws IOException {
-        FeatureCollection featureCollection;
-        final int bufferSize = 256 * 1024;
-        try (InputStream inputStream = new BufferedInputStream(
-                new FileInputStream(file), bufferSize)) {
-            featureCollection = new ObjectMapper().readValue(inputStream, FeatureCollection.class);
-            System.out.println("Features read: " + featureCollection.getFeatures().size());
-        }
-        return featureCollection;
-    }
-
     private static S2Polygon createS2Polygon(Polygon polygon) {
         List<S2Loop> s2Loops = new ArrayList<>();
         for (List<LngLatAlt> loop : polygon.getCoordinates()) {
@@ -19,24 +19,22 @@ package com.android.timezone.location.data_pipeline.steps;
 import com.android.timezone.location.common.LicenseSupport;
 import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
-import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.NamedFuture;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
+import com.google.common.collect.Lists;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -47,9 +45,24 @@ import java.util.concurrent.TimeUnit;
  * An executable class that takes a set of {@link TzS2Ranges} files (usually expected to have a
  * single associated time zone ID) and merges them into a single {@link TzS2Ranges}.
  * See {@link #main(String[])} for usage.
+ *
+ * <p>By default all the input ranges are loaded into memory and merged in a single pass. With a
+ * memory budget, ranges are merged out-of-core instead: each input file, which is already sorted,
+ * is spilled to a compact binary run file in the working dir (see {@link RangeRunFile}), and the
+ * runs are merged through bounded buffers, in several passes if there are too many runs to merge
+ * at once within the budget. Only the {@link TzIdSets} and the buffers are held in memory.
  */
 public final class MergeTzS2Ranges {
 
+    /** The smallest buffer used to read or write a run file. */
+    private static final int MIN_RUN_BUFFER_SIZE = 16 * 1024;
+
+    /** The largest buffer used to read or write a run file. Larger buffers gain little. */
+    private static final int MAX_RUN_BUFFER_SIZE = 1024 * 1024;
+
+    /** The buffer used to write each input file's run file. */
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
     private final File mInputDir;
 
     private final ExecutorService mExecutorService;
@@ -60,18 +73,26 @@ public final class MergeTzS2Ranges {
 
     private final ProtoStorageFormat mProtoStorageFormat;
 
+    /** The memory budget for out-of-core merging, or 0 to merge in memory. */
+    private final long mMemoryBudgetBytes;
+
     private MergeTzS2Ranges(
             File inputDir, ExecutorService executorService, File workingDir, File outputFile,
-            ProtoStorageFormat protoStorageFormat) {
+            ProtoStorageFormat protoStorageFormat, long memoryBudgetBytes) {
         this.mInputDir = Objects.requireNonNull(inputDir);
         this.mExecutorService = Objects.requireNonNull(executorService);
         this.mWorkingDir = Objects.requireNonNull(workingDir);
         this.mOutputFile = Objects.requireNonNull(outputFile);
         this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        this.mMemoryBudgetBytes = memoryBudgetBytes;
     }
 
     private static class Arguments {
 
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--input",
                 description = "The input directory containing the TzS2Ranges files",
                 required = true,
@@ -84,7 +105,8 @@ public final class MergeTzS2Ranges {
         int numThreads;
 
         @Parameter(names = "--working-dir",
-                description = "A working dir(for storage of intermediate files)",
+                description = "A working dir. Run files are stored in it when merging with"
+                        + " --memory-budget-mb",
                 required = true,
                 converter = FileConverter.class)
         File workingDir;
@@ -95,6 +117,17 @@ public final class MergeTzS2Ranges {
                 converter = FileConverter.class)
         File outputFile;
 
+        @Parameter(names = "--memory-budget-mb",
+                description = "Merge out-of-core, spilling ranges to run files in the working dir"
+                        + " and keeping merge buffers within approximately this many MB. 0 (the"
+                        + " default) merges in memory")
+        int memoryBudgetMb;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts to this file",
+                converter = FileConverter.class)
+        File metricsFile;
     }
 
     /**
@@ -110,15 +143,25 @@ public final class MergeTzS2Ranges {
         int threads = arguments.numThreads;
         File workingDir = arguments.workingDir;
         File outputFile = arguments.outputFile;
-        ProtoStorageFormat protoStorageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat protoStorageFormat = arguments.storageFormat;
+        if (arguments.memoryBudgetMb < 0) {
+            throw new IllegalArgumentException(
+                    "Bad --memory-budget-mb: " + arguments.memoryBudgetMb);
+        }
+        long memoryBudgetBytes = arguments.memoryBudgetMb * 1024L * 1024L;
 
         ExecutorService executorService = Executors.newFixedThreadPool(threads);
 
         MergeTzS2Ranges converter = new MergeTzS2Ranges(
-                inputDir, executorService, workingDir, outputFile, protoStorageFormat);
+                inputDir, executorService, workingDir, outputFile, protoStorageFormat,
+                memoryBudgetBytes);
 
         try {
+            StepMetrics.startStep(MergeTzS2Ranges.class.getSimpleName());
             converter.execute();
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            StepMetrics.finishRun(arguments.metricsFile);
         } finally {
             System.out.println("Waiting for shutdown");
             executorService.shutdown();
@@ -128,170 +171,350 @@ public final class MergeTzS2Ranges {
 
     private void execute() throws Exception {
         LicenseSupport.copyLicenseFile(mInputDir, mWorkingDir);
+        LicenseSupport.copyLicenseFile(mInputDir, mOutputFile.getParentFile());
 
         List<File> tzS2RangeFiles = TzS2Ranges.listFiles(mInputDir, mProtoStorageFormat);
-        File combinedFile = createCombinedTzS2Ranges(tzS2RangeFiles);
-        Files.copy(combinedFile.toPath(), mOutputFile.toPath(),
-                StandardCopyOption.REPLACE_EXISTING);
+        if (mMemoryBudgetBytes > 0) {
+            executeOutOfCore(tzS2RangeFiles);
+        } else {
+            executeInMemory(tzS2RangeFiles);
+        }
         System.out.println("Output file: " + mOutputFile);
-        LicenseSupport.copyLicenseFile(mInputDir, mOutputFile.getParentFile());
+    }
+
+    private void executeInMemory(List<File> tzS2RangeFiles) throws Exception {
+        TzIdSets tzIdSets = new TzIdSets();
+        List<PackedTzS2Ranges> inputRanges = loadAll(tzS2RangeFiles, tzIdSets);
+        try (TzS2Ranges.RangeWriter writer =
+                TzS2Ranges.RangeWriter.open(mOutputFile, mProtoStorageFormat, License.ODBL)) {
+            int rangeCount = mergeRanges(inputRanges, (startCellId, endCellId, tzIdSetId) ->
+                    writer.write(startCellId, endCellId, tzIdSets.get(tzIdSetId)));
+            System.out.println("Merged " + tzS2RangeFiles.size() + " files into " + rangeCount
+                    + " ranges");
+            StepMetrics.addRangeCount(rangeCount);
+        }
+    }
+
+    private void executeOutOfCore(List<File> tzS2RangeFiles) throws Exception {
+        File runDir = new File(mWorkingDir, "runs");
+        if (!runDir.exists() && !runDir.mkdirs()) {
+            throw new IOException("Unable to create " + runDir);
+        }
+        TzIdSets tzIdSets = new TzIdSets();
+        // Each input file is already sorted, so each becomes a run without needing to be sorted.
+        List<File> runFiles = spillAll(tzS2RangeFiles, tzIdSets, runDir);
+
+        // Leave a buffer for the output of each merge.
+        long maxBuffers = mMemoryBudgetBytes / MIN_RUN_BUFFER_SIZE;
+        int maxRunsPerMerge = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBuffers - 1));
+        int pass = 0;
+        while (runFiles.size() > maxRunsPerMerge) {
+            pass++;
+            List<File> nextRunFiles = new ArrayList<>();
+            for (List<File> group : Lists.partition(runFiles, maxRunsPerMerge)) {
+                if (group.size() == 1) {
+                    nextRunFiles.add(group.get(0));
+                    continue;
+                }
+                File runFile = new File(runDir, "pass" + pass + "_" + nextRunFiles.size() + ".run");
+                int bufferSize = getRunBufferSize(group.size());
+                try (RangeRunFile.Writer writer = RangeRunFile.Writer.open(runFile, bufferSize)) {
+                    mergeRunFiles(group, tzIdSets, bufferSize, writer);
+                }
+                deleteFiles(group);
+                nextRunFiles.add(runFile);
+            }
+            System.out.println("Merge pass " + pass + ": merged " + runFiles.size() + " runs into "
+                    + nextRunFiles.size());
+            runFiles = nextRunFiles;
+        }
+
+        try (TzS2Ranges.RangeWriter writer =
+                TzS2Ranges.RangeWriter.open(mOutputFile, mProtoStorageFormat, License.ODBL)) {
+            int rangeCount = mergeRunFiles(runFiles, tzIdSets, getRunBufferSize(runFiles.size()),
+                    (startCellId, endCellId, tzIdSetId) ->
+                            writer.write(startCellId, endCellId, tzIdSets.get(tzIdSetId)));
+            System.out.println("Merged " + tzS2RangeFiles.size() + " files into " + rangeCount
+                    + " ranges in " + (pass + 1) + " passes");
+            StepMetrics.addRangeCount(rangeCount);
+        }
+        deleteFiles(runFiles);
     }
 
     /**
-     * Combines all input ranges into a single list, assumes they start out sorted. The output will
-     * be sorted.
+     * Returns the size of the buffer to use for each of {@code runCount} run files being merged,
+     * and for the merge output, so that together they are within the memory budget.
      */
-    private File createCombinedTzS2Ranges(List<File> tzS2RangeFiles) {
-        // This method is implemented as a parallel merge sort. All input files are added to the
-        // workQueue. Pairs of files are taken off the work queue and submitted to the
-        // executorService. When the result of merging the pairs is available, that result is
-        // added back to the workQueue. When there's no work in progress and there's a single
-        // result, then we're done.
-
-        ArrayDeque<File> workQueue = new ArrayDeque<>();
-        for (File tzS2RangesFile : tzS2RangeFiles) {
-            workQueue.addLast(tzS2RangesFile);
-        }
+    private int getRunBufferSize(int runCount) {
+        long bufferSize = mMemoryBudgetBytes / (runCount + 1);
+        return (int) Math.max(MIN_RUN_BUFFER_SIZE, Math.min(MAX_RUN_BUFFER_SIZE, bufferSize));
+    }
 
-        // Keep a counter to generate unique IDs for intermediate files.
-        int intermediateFileCounter = 0;
-        LinkedList<Future<File>> resultFutureList = new LinkedList<>();
-        while (!(workQueue.size() == 1 && resultFutureList.isEmpty())) {
-            // While workQueue.size() > 1 files to process, grab pairs of files and submit them to
-            // the executorService. Put the result future on the resultFutureList.
-            while (workQueue.size() > 1) {
-                File leftFile = workQueue.removeFirst();
-                File rightFile = workQueue.removeFirst();
-                int fileNumber = intermediateFileCounter++;
-                File mergedFile = new File(
-                        mWorkingDir, fileNumber + TzS2Ranges.getFileSuffix(mProtoStorageFormat));
-                System.out.println("Left=" + leftFile.getName()
-                        + ", right=" + rightFile.getName()
-                        + ", mergedFile=" + mergedFile.getName());
-                Future<File> resultFuture = mExecutorService.submit(
-                        () -> mergeRangeLists(leftFile, rightFile, mergedFile));
-                resultFutureList.addLast(resultFuture);
+    /**
+     * Spills the files to run files in {@code runDir} using the executor service. The result is in
+     * the same order as the files.
+     */
+    private List<File> spillAll(List<File> tzS2RangeFiles, TzIdSets tzIdSets, File runDir)
+            throws InterruptedException {
+        List<NamedFuture<File>> futures = new ArrayList<>();
+        for (File tzS2RangeFile : tzS2RangeFiles) {
+            File runFile = new File(runDir, tzS2RangeFile.getName() + ".run");
+            Future<File> future = mExecutorService.submit(
+                    () -> spill(tzS2RangeFile, tzIdSets, runFile));
+            futures.add(new NamedFuture<>(tzS2RangeFile.getName(), future));
+        }
+        StepMetrics.sampleQueueDepth(mExecutorService);
+
+        List<File> result = new ArrayList<>(futures.size());
+        for (NamedFuture<File> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Spilling " + future.getName() + " failed", e);
             }
+        }
+        return result;
+    }
 
-            if (!resultFutureList.isEmpty()) {
-                boolean foundResult = false;
-                Iterator<Future<File>> resultIterator = resultFutureList.iterator();
-                while (resultIterator.hasNext()) {
-                    // Check the resultFutureList to see if any of the futures are done. If so,
-                    // the result will may mean more work to do, so we add the result to the
-                    // workQueue.
-                    Future<File> resultFuture = resultIterator.next();
-                    if (resultFuture.isDone()) {
-                        foundResult = true;
-                        File result;
-                        try {
-                            result = resultFuture.get();
-                        } catch (InterruptedException | ExecutionException e) {
-                            throw new IllegalStateException(e);
-                        }
-                        resultIterator.remove();
-                        workQueue.add(result);
-                    }
-                }
-                if (!foundResult) {
-                    // If no results were ready, wait for a while to avoid a tight loop.
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        throw new IllegalStateException(e);
-                    }
+    private File spill(File tzS2RangeFile, TzIdSets tzIdSets, File runFile) throws IOException {
+        try (RangeRunFile.Writer writer = RangeRunFile.Writer.open(runFile, SPILL_BUFFER_SIZE)) {
+            TzS2Ranges.forEachRange(tzS2RangeFile, mProtoStorageFormat,
+                    (startCellId, endCellId, tzIds) ->
+                            writer.accept(startCellId, endCellId, tzIdSets.intern(tzIds)));
+        }
+        return runFile;
+    }
+
+    /**
+     * Merges run files written with {@code tzIdSets}, reading each through a buffer of
+     * {@code bufferSize} bytes. See {@link #mergeCursors(List, TzIdSets, RangeConsumer)}.
+     */
+    private static int mergeRunFiles(List<File> runFiles, TzIdSets tzIdSets, int bufferSize,
+            RangeConsumer consumer) throws IOException {
+        List<RangeRunFile.Reader> readers = new ArrayList<>(runFiles.size());
+        try {
+            for (File runFile : runFiles) {
+                if (RangeRunFile.getRangeCount(runFile) > 0) {
+                    readers.add(RangeRunFile.Reader.open(runFile, bufferSize));
                 }
             }
+            return mergeCursors(readers, tzIdSets, consumer);
+        } finally {
+            for (RangeRunFile.Reader reader : readers) {
+                reader.close();
+            }
         }
+    }
 
-        return workQueue.removeFirst();
+    private static void deleteFiles(List<File> files) throws IOException {
+        for (File file : files) {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+
+    /** Loads the files using the executor service. The result is in the same order as the files. */
+    private List<PackedTzS2Ranges> loadAll(List<File> tzS2RangeFiles, TzIdSets tzIdSets)
+            throws InterruptedException {
+        List<NamedFuture<PackedTzS2Ranges>> futures = new ArrayList<>();
+        for (File tzS2RangeFile : tzS2RangeFiles) {
+            Future<PackedTzS2Ranges> future = mExecutorService.submit(
+                    () -> PackedTzS2Ranges.load(tzS2RangeFile, mProtoStorageFormat, tzIdSets));
+            futures.add(new NamedFuture<>(tzS2RangeFile.getName(), future));
+        }
+        StepMetrics.sampleQueueDepth(mExecutorService);
+
+        List<PackedTzS2Ranges> result = new ArrayList<>(futures.size());
+        for (NamedFuture<PackedTzS2Ranges> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Loading " + future.getName() + " failed", e);
+            }
+        }
+        return result;
+    }
+
+    /** Receives merged ranges. */
+    interface RangeConsumer {
+
+        void accept(long startCellId, long endCellId, int tzIdSetId) throws IOException;
     }
 
     /**
-     * A modified merge sort for two lists of ranges. Ranges that overlap are combined and split
-     * into up to three sub-ranges as needed.
+     * Merges sorted {@link PackedTzS2Ranges} that share a {@link TzIdSets} and returns the
+     * result. See {@link #mergeRanges(List, RangeConsumer)}.
      */
-    private File mergeRangeLists(File leftFile, File rightFile, File outputFile)
+    static PackedTzS2Ranges mergeRanges(List<PackedTzS2Ranges> inputs) {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No ranges to merge");
+        }
+        // Usually ranges are only split where zones overlap, so the result is a similar size to
+        // the inputs combined.
+        int capacity = 0;
+        for (PackedTzS2Ranges input : inputs) {
+            capacity += input.size();
+        }
+        PackedTzS2Ranges result = new PackedTzS2Ranges(inputs.get(0).getTzIdSets(), capacity);
+        try {
+            mergeRanges(inputs, result::add);
+        } catch (IOException e) {
+            // PackedTzS2Ranges.add() does not throw IOException.
+            throw new AssertionError(e);
+        }
+        result.trimToSize();
+        return result;
+    }
+
+    /**
+     * Merges any number of sorted {@link PackedTzS2Ranges} that share a {@link TzIdSets} in a
+     * single pass, passing the merged ranges to {@code consumer} in order. Returns the number of
+     * ranges passed. See {@link #mergeCursors(List, TzIdSets, RangeConsumer)}.
+     */
+    static int mergeRanges(List<PackedTzS2Ranges> inputs, RangeConsumer consumer)
             throws IOException {
-        TzS2Ranges left = TzS2Ranges.load(leftFile, mProtoStorageFormat);
-        TzS2Ranges right = TzS2Ranges.load(rightFile, mProtoStorageFormat);
-        List<TzS2Range> outputList = new ArrayList<>(left.size() + right.size());
-        int i = 0;
-        int j = 0;
-        while (i < left.size() && j < right.size()) {
-            TzS2Range leftEntry = left.get(i);
-            TzS2Range rightEntry = right.get(j);
-            if (leftEntry.rangeEnd.lessOrEquals(rightEntry.rangeStart)) {
-                outputList.add(leftEntry);
-                i++;
-            } else if (rightEntry.rangeEnd.lessOrEquals(leftEntry.rangeStart)) {
-                outputList.add(rightEntry);
-                j++;
-            } else {
-                // Two ranges overlap. Merge them.
-
-                // Trim off any leading part that doesn't match.
-                if (leftEntry.rangeStart.lessThan(rightEntry.rangeStart)) {
-                    TzS2Range leftLead = new TzS2Range(leftEntry.tzIds, leftEntry.rangeStart,
-                            rightEntry.rangeStart);
-                    outputList.add(leftLead);
-                    leftEntry = new TzS2Range(leftEntry.tzIds, rightEntry.rangeStart,
-                            leftEntry.rangeEnd);
-                } else if (rightEntry.rangeStart.lessThan(leftEntry.rangeStart)) {
-                    TzS2Range rightLead = new TzS2Range(rightEntry.tzIds, rightEntry.rangeStart,
-                            leftEntry.rangeStart);
-                    outputList.add(rightLead);
-                    rightEntry = new TzS2Range(rightEntry.tzIds, leftEntry.rangeStart,
-                            rightEntry.rangeEnd);
+        TzIdSets tzIdSets = null;
+        List<RangeCursor> cursors = new ArrayList<>(inputs.size());
+        for (PackedTzS2Ranges input : inputs) {
+            if (tzIdSets == null) {
+                tzIdSets = input.getTzIdSets();
+            } else if (tzIdSets != input.getTzIdSets()) {
+                throw new IllegalArgumentException("Inputs must share a TzIdSets");
+            }
+            if (input.size() > 0) {
+                cursors.add(new PackedRangeCursor(input));
+            }
+        }
+        return mergeCursors(cursors, tzIdSets, consumer);
+    }
+
+    /**
+     * Merges the sorted ranges of any number of cursors, each positioned at its first range and
+     * referring to time zone IDs in {@code tzIdSets}, in a single pass, passing the merged ranges
+     * to {@code consumer} in order. Returns the number of ranges passed. Ranges are split at every
+     * input range's start and end. Input ranges that don't overlap others are passed unchanged,
+     * and overlapping parts have the sorted, combined time zone IDs of all the ranges that overlap
+     * them, see {@link TzIdSets#merge(int, int)}. The result does not depend on the order of the
+     * inputs, so ranges can also be merged incrementally, e.g. in pairs or in several passes.
+     *
+     * <p>The merge is a sweep over the cell IDs using two priority queues of cursors, one per
+     * input: cursors waiting for their current range to start, ordered by range start, and cursors
+     * whose current range covers the sweep position, ordered by range end.
+     */
+    static int mergeCursors(List<? extends RangeCursor> cursors, TzIdSets tzIdSets,
+            RangeConsumer consumer) throws IOException {
+        int queueCapacity = Math.max(1, cursors.size());
+        PriorityQueue<RangeCursor> pending = new PriorityQueue<>(queueCapacity,
+                (x, y) -> Long.compareUnsigned(x.getStartCellId(), y.getStartCellId()));
+        PriorityQueue<RangeCursor> active = new PriorityQueue<>(queueCapacity,
+                (x, y) -> Long.compareUnsigned(x.getEndCellId(), y.getEndCellId()));
+        pending.addAll(cursors);
+
+        int rangeCount = 0;
+        long position = 0;
+        while (!pending.isEmpty() || !active.isEmpty()) {
+            if (active.isEmpty()) {
+                RangeCursor cursor = pending.poll();
+                // -1 is the largest unsigned value.
+                long limit = pending.isEmpty() ? -1 : pending.peek().getStartCellId();
+                // Most ranges don't overlap any others: pass the cursor's ranges on unchanged while
+                // they end before any other range starts.
+                boolean hasNext = true;
+                while (hasNext && Long.compareUnsigned(cursor.getEndCellId(), limit) <= 0) {
+                    consumer.accept(cursor.getStartCellId(), cursor.getEndCellId(),
+                            cursor.getTzIdSetId());
+                    rangeCount++;
+                    hasNext = cursor.moveToNext();
+                }
+                if (!hasNext) {
+                    continue;
+                }
+                if (Long.compareUnsigned(cursor.getStartCellId(), limit) > 0) {
+                    pending.add(cursor);
+                    continue;
                 }
+                // The cursor's range overlaps or starts with the next range to start.
+                position = cursor.getStartCellId();
+                active.add(cursor);
+            }
+            while (!pending.isEmpty() && pending.peek().getStartCellId() == position) {
+                active.add(pending.poll());
+            }
+
+            // The next position is the first place a range ends or starts.
+            long nextPosition = active.peek().getEndCellId();
+            if (!pending.isEmpty()
+                    && Long.compareUnsigned(pending.peek().getStartCellId(), nextPosition) < 0) {
+                nextPosition = pending.peek().getStartCellId();
+            }
 
-                // Now deal with the parts that overlap.
-                List<String> combinedTzIds = new ArrayList<>(
-                        leftEntry.tzIds.size() + rightEntry.tzIds.size());
-                combinedTzIds.addAll(leftEntry.tzIds);
-                combinedTzIds.addAll(rightEntry.tzIds);
-
-                // Sort the combinedTzIds to ensure the output is deterministic.
-                Collections.sort(combinedTzIds);
-
-                if (leftEntry.rangeEnd.lessThan(rightEntry.rangeEnd)) {
-                    // Consume the left entry entirely. Replace the right with whatever remains.
-                    i++;
-                    outputList.add(new TzS2Range(combinedTzIds, leftEntry.rangeStart,
-                            leftEntry.rangeEnd));
-                    right.replace(j, new TzS2Range(rightEntry.tzIds, leftEntry.rangeEnd,
-                            rightEntry.rangeEnd));
-                } else if (rightEntry.rangeEnd.lessThan(leftEntry.rangeEnd)) {
-                    // Consume the right entry entirely. Replace the left with whatever remains.
-                    j++;
-                    outputList.add(new TzS2Range(combinedTzIds, rightEntry.rangeStart,
-                            rightEntry.rangeEnd));
-                    left.replace(i, new TzS2Range(leftEntry.tzIds, rightEntry.rangeEnd,
-                            leftEntry.rangeEnd));
-                } else {
-                    // Identical ranges: Consume both.
-                    i++;
-                    j++;
-                    outputList.add(new TzS2Range(combinedTzIds, leftEntry.rangeStart,
-                            leftEntry.rangeEnd));
+            int tzIdSetId;
+            if (active.size() == 1) {
+                tzIdSetId = active.peek().getTzIdSetId();
+            } else {
+                tzIdSetId = -1;
+                for (RangeCursor cursor : active) {
+                    tzIdSetId = tzIdSetId == -1 ? cursor.getTzIdSetId()
+                            : tzIdSets.merge(tzIdSetId, cursor.getTzIdSetId());
                 }
             }
+            consumer.accept(position, nextPosition, tzIdSetId);
+            rangeCount++;
+            position = nextPosition;
+
+            while (!active.isEmpty() && active.peek().getEndCellId() == position) {
+                RangeCursor cursor = active.poll();
+                if (cursor.moveToNext()) {
+                    pending.add(cursor);
+                }
+            }
+        }
+        return rangeCount;
+    }
+
+    /** A position in a sorted list of ranges being merged. */
+    interface RangeCursor {
+
+        long getStartCellId();
+
+        long getEndCellId();
+
+        int getTzIdSetId();
+
+        /** Moves to the next range. Returns {@code false} if there are no more ranges. */
+        boolean moveToNext() throws IOException;
+    }
+
+    /** A position in a {@link PackedTzS2Ranges}. */
+    private static final class PackedRangeCursor implements RangeCursor {
+
+        private final PackedTzS2Ranges mRanges;
+
+        private int mIndex;
+
+        PackedRangeCursor(PackedTzS2Ranges ranges) {
+            this.mRanges = Objects.requireNonNull(ranges);
         }
 
-        // Copy any left entries remaining.
-        while (i < left.size()) {
-            outputList.add(left.get(i));
-            i++;
+        @Override
+        public long getStartCellId() {
+            return mRanges.getStartCellId(mIndex);
         }
 
-        // Copy any right entries remaining.
-        while (j < right.size()) {
-            outputList.add(right.get(j));
-            j++;
+        @Override
+        public long getEndCellId() {
+            return mRanges.getEndCellId(mIndex);
         }
 
-        TzS2Ranges outputRanges = new TzS2Ranges(outputList);
-        TzS2Ranges.store(outputRanges, outputFile, mProtoStorageFormat, License.ODBL);
-        return outputFile;
+        @Override
+        public int getTzIdSetId() {
+            return mRanges.getTzIdSetId(mIndex);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mIndex < mRanges.size();
+        }
     }
 }
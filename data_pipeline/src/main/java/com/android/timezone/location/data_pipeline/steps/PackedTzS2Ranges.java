@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.google.common.geometry.S2CellId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * A compact, sorted list of ranges with the same meaning as {@link TzS2Ranges}. Ranges are held
+ * in parallel primitive arrays and refer to their time zone IDs by an ID from a {@link TzIdSets},
+ * which takes 20 bytes per range instead of the objects held for each {@link TzS2Range}. Ranges
+ * must be added in order and must not overlap.
+ */
+public final class PackedTzS2Ranges {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final TzIdSets mTzIdSets;
+
+    private long[] mStartCellIds;
+
+    private long[] mEndCellIds;
+
+    private int[] mTzIdSetIds;
+
+    private int mSize;
+
+    /** Creates an empty instance that refers to time zone IDs in {@code tzIdSets}. */
+    public PackedTzS2Ranges(TzIdSets tzIdSets) {
+        this(tzIdSets, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty instance that refers to time zone IDs in {@code tzIdSets} with space for
+     * {@code capacity} ranges before it needs to grow.
+     */
+    public PackedTzS2Ranges(TzIdSets tzIdSets, int capacity) {
+        this.mTzIdSets = Objects.requireNonNull(tzIdSets);
+        this.mStartCellIds = new long[capacity];
+        this.mEndCellIds = new long[capacity];
+        this.mTzIdSetIds = new int[capacity];
+    }
+
+    /** Returns the {@link TzIdSets} that the time zone ID set IDs of the ranges refer to. */
+    public TzIdSets getTzIdSets() {
+        return mTzIdSets;
+    }
+
+    /**
+     * Adds a range from {@code startCellId} (inclusive) to {@code endCellId} (exclusive). If the
+     * range is invalid, the cell IDs are from different levels or the range starts before the end
+     * of the previous range, this method throws an {@link IllegalArgumentException}.
+     */
+    public void add(long startCellId, long endCellId, int tzIdSetId) {
+        if (Long.lowestOneBit(startCellId) != Long.lowestOneBit(endCellId)) {
+            throw new IllegalArgumentException("Levels differ: startCellId="
+                    + new S2CellId(startCellId) + ", endCellId=" + new S2CellId(endCellId));
+        }
+        if (Long.compareUnsigned(startCellId, endCellId) >= 0) {
+            throw new IllegalArgumentException("Range start (" + new S2CellId(startCellId)
+                    + ") >= range end (" + new S2CellId(endCellId) + ")");
+        }
+        if (mSize > 0 && Long.compareUnsigned(startCellId, mEndCellIds[mSize - 1]) < 0) {
+            throw new IllegalArgumentException("Range start (" + new S2CellId(startCellId)
+                    + ") < previous range end (" + new S2CellId(mEndCellIds[mSize - 1]) + ")");
+        }
+        if (tzIdSetId < 0) {
+            throw new IllegalArgumentException("Bad tzIdSetId=" + tzIdSetId);
+        }
+        if (mSize == mStartCellIds.length) {
+            setCapacity(Math.max(INITIAL_CAPACITY, mSize + (mSize >> 1)));
+        }
+        mStartCellIds[mSize] = startCellId;
+        mEndCellIds[mSize] = endCellId;
+        mTzIdSetIds[mSize] = tzIdSetId;
+        mSize++;
+    }
+
+    /** Releases any unused capacity. Call when no more ranges will be added. */
+    public void trimToSize() {
+        if (mStartCellIds.length != mSize) {
+            setCapacity(mSize);
+        }
+    }
+
+    /** Returns the number of ranges. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the start cell ID (inclusive) of the range at the specified index. */
+    public long getStartCellId(int i) {
+        checkIndex(i);
+        return mStartCellIds[i];
+    }
+
+    /** Returns the end cell ID (exclusive) of the range at the specified index. */
+    public long getEndCellId(int i) {
+        checkIndex(i);
+        return mEndCellIds[i];
+    }
+
+    /** Returns the {@link TzIdSets} ID of the time zone IDs of the range at the specified index. */
+    public int getTzIdSetId(int i) {
+        checkIndex(i);
+        return mTzIdSetIds[i];
+    }
+
+    /** Returns the time zone IDs of the range at the specified index. */
+    public List<String> getTzIds(int i) {
+        return mTzIdSets.get(getTzIdSetId(i));
+    }
+
+    /**
+     * Returns the S2 level of the ranges' cell IDs. There must be at least one range.
+     */
+    public int getS2Level() {
+        checkIndex(0);
+        return new S2CellId(mStartCellIds[0]).level();
+    }
+
+    /**
+     * Returns the equivalent ranges at the coarser {@code s2Level}, as if the zones had been
+     * covered at that level. A coarse cell is associated with every time zone ID of the ranges
+     * that overlap it, so cells that zones partially cover become multi-zone. The result shares
+     * this instance's {@link TzIdSets}.
+     *
+     * <p>The ranges are split by time zone ID, coarsened separately and merged again, see
+     * {@link MergeTzS2Ranges#mergeRanges(List)}, so a coarse cell's time zone IDs are the
+     * sorted IDs of the zones overlapping it, without duplicates.
+     */
+    public PackedTzS2Ranges coarsen(int s2Level) {
+        if (mSize == 0) {
+            return new PackedTzS2Ranges(mTzIdSets);
+        }
+        int currentS2Level = getS2Level();
+        if (s2Level < 0 || s2Level > currentS2Level) {
+            throw new IllegalArgumentException("Bad s2Level=" + s2Level
+                    + ", must be in the range 0 to " + currentS2Level);
+        }
+        long currentLsb = S2CellId.lowestOnBitForLevel(currentS2Level);
+        long lsb = S2CellId.lowestOnBitForLevel(s2Level);
+
+        // The coarsened ranges of each time zone ID. Ranges of the same ID never overlap, so
+        // their coarsened ranges are in order, but may overlap or touch and are joined.
+        Map<String, PackedTzS2Ranges> rangesByTzId = new TreeMap<>();
+        Map<String, long[]> openRangeByTzId = new HashMap<>();
+        for (int i = 0; i < mSize; i++) {
+            // The parent of the first cell in the range, and the cell after the parent of the
+            // last cell in the range, see S2CellId.parent() and S2CellId.next().
+            long startCellId = (mStartCellIds[i] & -lsb) | lsb;
+            long lastCellId = mEndCellIds[i] - (currentLsb << 1);
+            long endCellId = ((lastCellId & -lsb) | lsb) + (lsb << 1);
+            for (String tzId : getTzIds(i)) {
+                long[] openRange = openRangeByTzId.get(tzId);
+                if (openRange == null) {
+                    openRangeByTzId.put(tzId, new long[] { startCellId, endCellId });
+                } else if (Long.compareUnsigned(startCellId, openRange[1]) <= 0) {
+                    if (Long.compareUnsigned(endCellId, openRange[1]) > 0) {
+                        openRange[1] = endCellId;
+                    }
+                } else {
+                    addCoarsenedRange(rangesByTzId, tzId, openRange);
+                    openRange[0] = startCellId;
+                    openRange[1] = endCellId;
+                }
+            }
+        }
+        for (Map.Entry<String, long[]> entry : openRangeByTzId.entrySet()) {
+            addCoarsenedRange(rangesByTzId, entry.getKey(), entry.getValue());
+        }
+        return MergeTzS2Ranges.mergeRanges(new ArrayList<>(rangesByTzId.values()));
+    }
+
+    private void addCoarsenedRange(
+            Map<String, PackedTzS2Ranges> rangesByTzId, String tzId, long[] range) {
+        PackedTzS2Ranges ranges = rangesByTzId.computeIfAbsent(
+                tzId, x -> new PackedTzS2Ranges(mTzIdSets));
+        ranges.add(range[0], range[1], mTzIdSets.intern(Collections.singletonList(tzId)));
+    }
+
+    /** Returns the ranges as a {@link TzS2Ranges}. */
+    public TzS2Ranges toTzS2Ranges() {
+        List<TzS2Range> ranges = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            ranges.add(new TzS2Range(getTzIds(i),
+                    new S2CellId(mStartCellIds[i]), new S2CellId(mEndCellIds[i])));
+        }
+        return new TzS2Ranges(ranges);
+    }
+
+    /**
+     * Loads a {@link TzS2Ranges} file in the specified format, interning the time zone IDs in
+     * {@code tzIdSets}. Ranges are read one at a time when possible, see
+     * {@link TzS2Ranges#forEachRange}.
+     */
+    public static PackedTzS2Ranges load(File inputFile, ProtoStorageFormat storageFormat,
+            TzIdSets tzIdSets) {
+        PackedTzS2Ranges ranges = new PackedTzS2Ranges(tzIdSets);
+        try {
+            TzS2Ranges.forEachRange(inputFile, storageFormat,
+                    (startCellId, endCellId, tzIds) ->
+                            ranges.add(startCellId, endCellId, tzIdSets.intern(tzIds)));
+        } catch (IOException e) {
+            throw new RuntimeException("Failure while reading " + inputFile, e);
+        }
+        ranges.trimToSize();
+        return ranges;
+    }
+
+    /**
+     * Stores the ranges in {@code outputFile} in the specified format as a {@link TzS2Ranges},
+     * adding license information to the header when possible and checking the target directory
+     * contains the necessary LICENSE file.
+     */
+    public void store(File outputFile, ProtoStorageFormat storageFormat, License license)
+            throws IOException {
+        try (TzS2Ranges.RangeWriter writer =
+                TzS2Ranges.RangeWriter.open(outputFile, storageFormat, license)) {
+            for (int i = 0; i < mSize; i++) {
+                writer.write(mStartCellIds[i], mEndCellIds[i], getTzIds(i));
+            }
+        }
+    }
+
+    private void setCapacity(int capacity) {
+        mStartCellIds = Arrays.copyOf(mStartCellIds, capacity);
+        mEndCellIds = Arrays.copyOf(mEndCellIds, capacity);
+        mTzIdSetIds = Arrays.copyOf(mTzIdSetIds, capacity);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("i=" + i + ", size=" + mSize);
+        }
+    }
+}
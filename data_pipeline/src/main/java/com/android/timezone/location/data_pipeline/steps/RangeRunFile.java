@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.data_pipeline.steps.MergeTzS2Ranges.RangeConsumer;
+import com.android.timezone.location.data_pipeline.steps.MergeTzS2Ranges.RangeCursor;
+import com.google.common.geometry.S2CellId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * A file of sorted ranges spilled to disk by {@link MergeTzS2Ranges} when merging more ranges
+ * than fit in memory. Each range is stored as its start cell ID, end cell ID and {@link TzIdSets}
+ * ID in {@link #RECORD_SIZE} bytes, so a run file is only meaningful alongside the
+ * {@link TzIdSets} used to write it.
+ */
+final class RangeRunFile {
+
+    /** The size in bytes of each stored range. */
+    static final int RECORD_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private RangeRunFile() {
+    }
+
+    /** Returns the number of ranges stored in {@code file}. */
+    static long getRangeCount(File file) throws IOException {
+        long length = file.length();
+        if (length % RECORD_SIZE != 0) {
+            throw new IOException(file + " has a bad length: " + length);
+        }
+        return length / RECORD_SIZE;
+    }
+
+    /**
+     * Writes ranges to a run file. Ranges must be written in order, otherwise {@link #accept}
+     * throws an {@link IllegalArgumentException}.
+     */
+    static final class Writer implements RangeConsumer, Closeable {
+
+        private final DataOutputStream mOutputStream;
+
+        private boolean mEmpty = true;
+
+        private long mPreviousEndCellId;
+
+        private Writer(DataOutputStream outputStream) {
+            this.mOutputStream = Objects.requireNonNull(outputStream);
+        }
+
+        /** Creates or replaces {@code file}, buffering {@code bufferSize} bytes at a time. */
+        static Writer open(File file, int bufferSize) throws IOException {
+            return new Writer(new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), bufferSize)));
+        }
+
+        @Override
+        public void accept(long startCellId, long endCellId, int tzIdSetId) throws IOException {
+            if (Long.compareUnsigned(startCellId, endCellId) >= 0 || (!mEmpty
+                    && Long.compareUnsigned(startCellId, mPreviousEndCellId) < 0)) {
+                throw new IllegalArgumentException("Range out of order: startCellId="
+                        + new S2CellId(startCellId) + ", endCellId=" + new S2CellId(endCellId));
+            }
+            mEmpty = false;
+            mPreviousEndCellId = endCellId;
+            mOutputStream.writeLong(startCellId);
+            mOutputStream.writeLong(endCellId);
+            mOutputStream.writeInt(tzIdSetId);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutputStream.close();
+        }
+    }
+
+    /**
+     * Reads the ranges of a run file in order, buffering {@code bufferSize} bytes at a time, so
+     * the memory needed to read a run does not depend on its length.
+     */
+    static final class Reader implements RangeCursor, Closeable {
+
+        private final DataInputStream mInputStream;
+
+        private long mRemaining;
+
+        private long mStartCellId;
+
+        private long mEndCellId;
+
+        private int mTzIdSetId;
+
+        private Reader(DataInputStream inputStream, long rangeCount) {
+            this.mInputStream = Objects.requireNonNull(inputStream);
+            this.mRemaining = rangeCount;
+        }
+
+        /**
+         * Opens a run file and positions the reader at its first range. The file must not be
+         * empty, see {@link #getRangeCount(File)}.
+         */
+        static Reader open(File file, int bufferSize) throws IOException {
+            long rangeCount = getRangeCount(file);
+            if (rangeCount == 0) {
+                throw new IllegalArgumentException(file + " is empty");
+            }
+            Reader reader = new Reader(new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), bufferSize)), rangeCount);
+            try {
+                reader.moveToNext();
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            }
+            return reader;
+        }
+
+        @Override
+        public long getStartCellId() {
+            return mStartCellId;
+        }
+
+        @Override
+        public long getEndCellId() {
+            return mEndCellId;
+        }
+
+        @Override
+        public int getTzIdSetId() {
+            return mTzIdSetId;
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if (mRemaining == 0) {
+                return false;
+            }
+            mStartCellId = mInputStream.readLong();
+            mEndCellId = mInputStream.readLong();
+            mTzIdSetId = mInputStream.readInt();
+            mRemaining--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.android.libcore.timezone.util.Errors;
+import com.android.timezone.location.common.LicenseSupport;
+import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
+import com.android.timezone.location.tools.proto.GeotzProtos;
+import com.android.timezone.tzids.TimeZoneIds;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2Polygon;
+import org.geojson.Feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * An executable class that runs steps 1 to 6 of the data pipeline in a single JVM, i.e. it does
+ * the work of {@link GeoJsonTzToTzS2Polygons}, {@link CanonicalizeTzS2Polygons},
+ * {@link TzS2PolygonsToTzS2CellUnions}, {@link TzS2CellUnionsToTzS2Ranges},
+ * {@link MergeTzS2Ranges} and {@link CreateTzS2ProtoDataFile}. The output is the same as the
+ * output of {@link CreateTzS2ProtoDataFile} when the steps are run individually.
+ *
+ * <p>{@link TzS2Polygons}, {@link TzS2CellUnion} and {@link PackedTzS2Ranges} are passed between
+ * steps in memory. Intermediate files are only written if an intermediates directory is specified,
+ * which can be useful for debugging. The merged ranges, the output of {@link MergeTzS2Ranges}, can
+ * also be written to a file of their own so that later steps can read them.
+ *
+ * <p>Work is pipelined per time zone: as soon as all the geojson features for a canonical time
+ * zone ID have been converted, the zone moves on to covering and range generation without
+ * waiting for other zones. Ranges are merged as they become available.
+ *
+ * <p>See {@link #main(String[])} for usage.
+ */
+public final class RunDataPipeline {
+
+    private final File mGeoJsonFile;
+
+    private final File mTzIdsFile;
+
+    private final Instant mReplacementThreshold;
+
+    private final int mS2Level;
+
+    private final ExecutorService mExecutorService;
+
+    private final File mOutputFile;
+
+    private final boolean mDelimitedOutput;
+
+    private final File mIntermediatesDir;
+
+    private final File mMergedRangesFile;
+
+    private final ProtoStorageFormat mProtoStorageFormat;
+
+    private final Set<String> mRestrictToTzIds;
+
+    private final int mMaxInFlightFeatures;
+
+    /** The time zone ID sets referenced by all the ranges created. */
+    private final TzIdSets mTzIdSets = new TzIdSets();
+
+    private RunDataPipeline(File geoJsonFile, File tzIdsFile, Instant replacementThreshold,
+            int s2Level, ExecutorService executorService, File outputFile,
+            boolean delimitedOutput, File intermediatesDir, File mergedRangesFile,
+            ProtoStorageFormat protoStorageFormat, Set<String> restrictToTzIds,
+            int maxInFlightFeatures) {
+        this.mGeoJsonFile = Objects.requireNonNull(geoJsonFile);
+        this.mTzIdsFile = Objects.requireNonNull(tzIdsFile);
+        this.mReplacementThreshold = Objects.requireNonNull(replacementThreshold);
+        if (s2Level < 1 || s2Level > S2CellId.MAX_LEVEL) {
+            throw new IllegalArgumentException("Bad S2 level=" + s2Level);
+        }
+        this.mS2Level = s2Level;
+        this.mExecutorService = Objects.requireNonNull(executorService);
+        this.mOutputFile = Objects.requireNonNull(outputFile);
+        this.mDelimitedOutput = delimitedOutput;
+        // May be null.
+        this.mIntermediatesDir = intermediatesDir;
+        // May be null.
+        this.mMergedRangesFile = mergedRangesFile;
+        this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        this.mRestrictToTzIds = Objects.requireNonNull(restrictToTzIds);
+        if (maxInFlightFeatures < 1) {
+            throw new IllegalArgumentException("maxInFlightFeatures=" + maxInFlightFeatures);
+        }
+        this.mMaxInFlightFeatures = maxInFlightFeatures;
+    }
+
+    private static class Arguments {
+
+        @Parameter(names = "--storage-format",
+                description = "The format of the intermediate proto files to write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
+        @Parameter(names = "--geo-json",
+                description = "The input geojson file to parse, or a zip file containing it",
+                required = true,
+                converter = FileConverter.class)
+        File geoJsonFile;
+
+        @Parameter(names = "--tz-ids",
+                description = "The input TzIds prototxt file",
+                required = true,
+                converter = FileConverter.class)
+        File tzIdsFile;
+
+        @Parameter(names = "--replacement-threshold",
+                description = "The ISO 8601 format date/time to use when generating time zone"
+                        + " ID replacements",
+                required = true)
+        String replacementThreshold;
+
+        @Parameter(names = "--s2-level",
+                description = "The S2 level of the ranges to produce",
+                required = true)
+        int s2Level;
+
+        @Parameter(names = "--num-threads",
+                description = "The number of threads to use",
+                required = true)
+        int numThreads;
+
+        @Parameter(names = "--output-file",
+                description = "The output file to produce, the same as the output of"
+                        + " CreateTzS2ProtoDataFile",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+
+        @Parameter(names = "--delimited-output",
+                description = "Write a stream of length-delimited binary protos instead of a text"
+                        + " proto")
+        boolean delimitedOutput;
+
+        @Parameter(names = "--intermediates-dir",
+                description = "A directory to write the intermediate files of each step to, for"
+                        + " debugging. The directory layout matches run-data-pipeline.sh",
+                converter = FileConverter.class)
+        File intermediatesDir;
+
+        @Parameter(names = "--merged-ranges-file",
+                description = "A file to also write the merged ranges to, the same as the output"
+                        + " of MergeTzS2Ranges. Defaults to a file in the intermediates dir, if"
+                        + " there is one",
+                converter = FileConverter.class)
+        File mergedRangesFile;
+
+        @Parameter(names = "--restrict-to-tz-ids",
+                description = "Comma separated list of time zones from the geojson file to"
+                        + " process")
+        String restrictToTzIds;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+
+        Instant replacementThreshold() {
+            return Instant.parse(replacementThreshold);
+        }
+
+        Set<String> restrictToTzIds() {
+            return restrictToTzIds == null
+                    ? ImmutableSet.of()
+                    : Arrays.stream(restrictToTzIds.split(","))
+                            .filter(tzId -> !tzId.isEmpty())
+                            .collect(toImmutableSet());
+        }
+    }
+
+    /**
+     * See {@link RunDataPipeline} for the purpose of this class.
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        File outputFile = arguments.outputFile;
+        outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        File intermediatesDir = arguments.intermediatesDir;
+        if (intermediatesDir != null) {
+            intermediatesDir.mkdirs();
+        }
+        File mergedRangesFile = arguments.mergedRangesFile;
+        if (mergedRangesFile == null && intermediatesDir != null) {
+            mergedRangesFile = getDefaultMergedRangesFile(
+                    intermediatesDir, arguments.s2Level, arguments.storageFormat);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(arguments.numThreads);
+        RunDataPipeline pipeline = new RunDataPipeline(arguments.geoJsonFile,
+                arguments.tzIdsFile, arguments.replacementThreshold(), arguments.s2Level,
+                executorService, outputFile, arguments.delimitedOutput, intermediatesDir,
+                mergedRangesFile, arguments.storageFormat, arguments.restrictToTzIds(),
+                GeoJsonTzToTzS2Polygons.getMaxReadAheadFeatures(arguments.numThreads));
+        try {
+            StepMetrics.startStep(RunDataPipeline.class.getSimpleName());
+            pipeline.execute();
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            StepMetrics.finishRun(arguments.metricsFile);
+        } finally {
+            System.out.println("Waiting for shutdown");
+            executorService.shutdownNow();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void execute() throws Exception {
+        Stopwatch totalStopwatch = Stopwatch.createStarted();
+
+        // Only the time zone IDs are read up front so that it is known when all the features for
+        // a canonical zone have been converted. Features are read again one at a time below.
+        List<String> geoJsonTzIds = GeoJsonFeatureReader.readSummaries(mGeoJsonFile).stream()
+                .map(x -> x.tzId)
+                .collect(Collectors.toList());
+        TimeZoneIds timeZoneIds = TimeZoneIds.load(mTzIdsFile);
+        System.out.println("Inputs loaded in " + totalStopwatch.elapsed());
+
+        // Map every feature to its canonical time zone ID up front so that zones can be combined
+        // as soon as all their features have been converted.
+        Map<String, CanonicalZone> zonesByCanonicalTzId = new TreeMap<>();
+        Map<String, CanonicalZone> zonesBySourceTzId = new HashMap<>();
+        Errors errors = new Errors();
+        String polygonsFileSuffix = TzS2Polygons.getFileSuffix(mProtoStorageFormat);
+        for (String tzId : geoJsonTzIds) {
+            if (!mRestrictToTzIds.isEmpty() && !mRestrictToTzIds.contains(tzId)) {
+                continue;
+            }
+            if (zonesBySourceTzId.containsKey(tzId)) {
+                throw new IllegalStateException("Multiple entries found for: " + tzId);
+            }
+            String canonicalTzId = CanonicalizeTzS2Polygons.getCanonicalTzId(
+                    timeZoneIds, mReplacementThreshold, tzId, errors);
+            if (canonicalTzId == null) {
+                continue;
+            }
+            CanonicalZone zone = zonesByCanonicalTzId.computeIfAbsent(canonicalTzId,
+                    x -> new CanonicalZone(x, polygonsFileSuffix));
+            zone.addSourceTzId(tzId);
+            zonesBySourceTzId.put(tzId, zone);
+        }
+        if (errors.hasError()) {
+            System.err.println("Errors encountered:");
+            System.err.println(errors.asString());
+            errors.throwIfError("Errors encountered.");
+        }
+        System.out.println("Processing " + zonesBySourceTzId.size() + " features for "
+                + zonesByCanonicalTzId.size() + " time zones");
+
+        createIntermediateDirs();
+
+        // Features are submitted as they are read. Reading stops while the maximum number of
+        // features are being converted, which bounds the memory used by parsed features.
+        TaskTracker taskTracker = new TaskTracker(mExecutorService, mTzIdSets);
+        try (GeoJsonFeatureReader reader = GeoJsonFeatureReader.open(mGeoJsonFile)) {
+            Feature feature;
+            while ((feature = reader.next()) != null) {
+                CanonicalZone zone = zonesBySourceTzId.get(GeoJsonFeatureReader.getTzId(feature));
+                if (zone == null) {
+                    continue;
+                }
+                while (taskTracker.getFeatureTaskCount() >= mMaxInFlightFeatures) {
+                    taskTracker.processNextResult();
+                }
+                Feature featureToProcess = feature;
+                taskTracker.submitFeatureTask(() -> processFeature(featureToProcess, zone));
+            }
+        }
+        while (taskTracker.hasOutstandingTasks()) {
+            taskTracker.processNextResult();
+        }
+        PackedTzS2Ranges mergedRanges = taskTracker.getMergedRanges();
+        StepMetrics.addRangeCount(mergedRanges.size());
+        System.out.println("Ranges merged at " + totalStopwatch.elapsed());
+        if (mMergedRangesFile != null) {
+            File mergedDir = mMergedRangesFile.getAbsoluteFile().getParentFile();
+            mergedDir.mkdirs();
+            LicenseSupport.copyLicenseFile(
+                    mGeoJsonFile.getAbsoluteFile().getParentFile(), mergedDir);
+            mergedRanges.store(mMergedRangesFile, mProtoStorageFormat, License.ODBL);
+        }
+
+        GeotzProtos.TimeZones tzS2DataInput =
+                CreateTzS2ProtoDataFile.createTimeZonesProto(mergedRanges);
+        File outputDir = mOutputFile.getAbsoluteFile().getParentFile();
+        LicenseSupport.copyLicenseFile(mGeoJsonFile.getAbsoluteFile().getParentFile(), outputDir);
+        System.out.println("Writing " + mOutputFile + " ...");
+        if (mDelimitedOutput) {
+            CreateTzS2ProtoDataFile.storeDelimited(tzS2DataInput, mOutputFile);
+        } else {
+            // This is currently assumed by the tool that reads the file.
+            ProtoStorageFormat.TEXT.store(tzS2DataInput, mOutputFile, License.ODBL);
+        }
+        System.out.println("Pipeline completed in " + totalStopwatch.elapsed());
+    }
+
+    /**
+     * Converts a single geojson feature. If it is the last feature needed for its canonical zone,
+     * the zone is covered and converted to ranges, which are returned. Otherwise, {@code null} is
+     * returned.
+     *
+     * <p>The metrics of a feature that does not complete its zone are recorded under the
+     * feature's own time zone ID.
+     */
+    private PackedTzS2Ranges processFeature(Feature feature, CanonicalZone zone)
+            throws IOException {
+        StepMetrics.sampleQueueDepth(mExecutorService);
+        StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+        TzS2Polygons tzS2Polygons = GeoJsonTzToTzS2Polygons.processFeature(feature);
+        storeIntermediate(tzS2Polygons, "tzs2polygons");
+
+        TzS2Polygons canonicalTzS2Polygons = zone.addTzS2Polygons(tzS2Polygons);
+        if (canonicalTzS2Polygons == null) {
+            zoneTimer.finish(tzS2Polygons.tzId);
+            return null;
+        }
+        storeIntermediate(canonicalTzS2Polygons, "canonicalized_tzs2polygons");
+
+        TzS2CellUnion tzS2CellUnion = TzS2PolygonsToTzS2CellUnions.createTzS2CellUnion(
+                canonicalTzS2Polygons, mS2Level);
+        if (mIntermediatesDir != null) {
+            File outputFile = TzIds.createFile(getIntermediateDir("tzs2cellunions_l" + mS2Level),
+                    tzS2CellUnion.tzId, TzS2CellUnion.getFileSuffix(mProtoStorageFormat));
+            TzS2CellUnion.store(tzS2CellUnion, outputFile, mProtoStorageFormat, License.ODBL);
+        }
+
+        PackedTzS2Ranges tzS2Ranges =
+                TzS2CellUnionsToTzS2Ranges.createTzS2Ranges(tzS2CellUnion, mS2Level, mTzIdSets);
+        if (mIntermediatesDir != null) {
+            File outputFile = TzIds.createFile(getIntermediateDir("tzs2ranges_l" + mS2Level),
+                    tzS2CellUnion.tzId, TzS2Ranges.getFileSuffix(mProtoStorageFormat));
+            tzS2Ranges.store(outputFile, mProtoStorageFormat, License.ODBL);
+        }
+        zoneTimer.setCellCount(tzS2CellUnion.s2CellUnion.size());
+        zoneTimer.setRangeCount(tzS2Ranges.size());
+        zoneTimer.finish(tzS2CellUnion.tzId);
+        return tzS2Ranges;
+    }
+
+    private void storeIntermediate(TzS2Polygons tzS2Polygons, String dirName) throws IOException {
+        if (mIntermediatesDir != null) {
+            File outputFile = TzIds.createFile(getIntermediateDir(dirName), tzS2Polygons.tzId,
+                    TzS2Polygons.getFileSuffix(mProtoStorageFormat));
+            TzS2Polygons.store(tzS2Polygons, outputFile, mProtoStorageFormat, License.ODBL);
+        }
+    }
+
+    private void createIntermediateDirs() throws IOException {
+        if (mIntermediatesDir == null) {
+            return;
+        }
+        File licenseDir = mGeoJsonFile.getAbsoluteFile().getParentFile();
+        String[] dirNames = {
+                "tzs2polygons",
+                "canonicalized_tzs2polygons",
+                "tzs2cellunions_l" + mS2Level,
+                "tzs2ranges_l" + mS2Level,
+                "mergedtzs2ranges_l" + mS2Level,
+        };
+        for (String dirName : dirNames) {
+            File dir = getIntermediateDir(dirName);
+            dir.mkdirs();
+            LicenseSupport.copyLicenseFile(licenseDir, dir);
+        }
+    }
+
+    /**
+     * Returns the file in {@code intermediatesDir} that run-data-pipeline.sh stores the output of
+     * {@link MergeTzS2Ranges} in.
+     */
+    private static File getDefaultMergedRangesFile(File intermediatesDir, int s2Level,
+            ProtoStorageFormat storageFormat) {
+        File mergedDir = new File(intermediatesDir, "mergedtzs2ranges_l" + s2Level);
+        return new File(mergedDir, "mergedtzs2ranges" + s2Level + storageFormat.getTypeSuffix());
+    }
+
+    private File getIntermediateDir(String dirName) {
+        return new File(mIntermediatesDir, dirName);
+    }
+
+    private static <V> V getResult(Future<V> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Tracks the feature conversion tasks and the merge tasks. Ranges are merged as they become
+     * available: the merge result does not depend on the order ranges are merged in.
+     */
+    private static final class TaskTracker {
+
+        private final CompletionService<PackedTzS2Ranges> mCompletionService;
+
+        private final Set<Future<PackedTzS2Ranges>> mFeatureFutures = new HashSet<>();
+
+        private final Deque<PackedTzS2Ranges> mMergeQueue = new ArrayDeque<>();
+
+        private final TzIdSets mTzIdSets;
+
+        private int mOutstandingTaskCount;
+
+        TaskTracker(ExecutorService executorService, TzIdSets tzIdSets) {
+            mCompletionService = new ExecutorCompletionService<>(executorService);
+            mTzIdSets = Objects.requireNonNull(tzIdSets);
+        }
+
+        /**
+         * Submits a feature conversion task. The task returns the ranges for the feature's zone,
+         * or {@code null} if the zone is waiting for other features.
+         */
+        void submitFeatureTask(Callable<PackedTzS2Ranges> task) {
+            mFeatureFutures.add(mCompletionService.submit(task));
+            mOutstandingTaskCount++;
+        }
+
+        /** Returns the number of feature conversion tasks that have not been processed. */
+        int getFeatureTaskCount() {
+            return mFeatureFutures.size();
+        }
+
+        boolean hasOutstandingTasks() {
+            return mOutstandingTaskCount > 0;
+        }
+
+        /**
+         * Waits for the next task to complete and processes its result, submitting a merge task
+         * if there are two sets of ranges waiting to be merged.
+         */
+        void processNextResult() throws InterruptedException {
+            Future<PackedTzS2Ranges> future = mCompletionService.take();
+            mFeatureFutures.remove(future);
+            mOutstandingTaskCount--;
+            PackedTzS2Ranges tzS2Ranges = getResult(future);
+            if (tzS2Ranges == null) {
+                return;
+            }
+            mMergeQueue.addLast(tzS2Ranges);
+            if (mMergeQueue.size() > 1) {
+                List<PackedTzS2Ranges> pair =
+                        Arrays.asList(mMergeQueue.removeFirst(), mMergeQueue.removeFirst());
+                mCompletionService.submit(() -> MergeTzS2Ranges.mergeRanges(pair));
+                mOutstandingTaskCount++;
+            }
+        }
+
+        /** Returns the result of merging all ranges. Call when all tasks have been processed. */
+        PackedTzS2Ranges getMergedRanges() {
+            if (mOutstandingTaskCount != 0 || mMergeQueue.size() > 1) {
+                throw new IllegalStateException("Tasks are outstanding");
+            }
+            return mMergeQueue.isEmpty()
+                    ? new PackedTzS2Ranges(mTzIdSets) : mMergeQueue.getFirst();
+        }
+    }
+
+    /**
+     * Collects the {@link TzS2Polygons} for the time zone IDs that map to a canonical time zone
+     * ID. Polygons are combined in the same order as {@link CanonicalizeTzS2Polygons} would
+     * combine them.
+     */
+    private static final class CanonicalZone {
+
+        private final String mCanonicalTzId;
+
+        private final String mFileSuffix;
+
+        private final List<String> mSourceTzIds = new ArrayList<>();
+
+        private final Map<String, TzS2Polygons> mTzS2PolygonsBySourceTzId = new HashMap<>();
+
+        CanonicalZone(String canonicalTzId, String fileSuffix) {
+            mCanonicalTzId = Objects.requireNonNull(canonicalTzId);
+            mFileSuffix = Objects.requireNonNull(fileSuffix);
+        }
+
+        void addSourceTzId(String tzId) {
+            mSourceTzIds.add(tzId);
+        }
+
+        /**
+         * Adds the polygons for one of the source time zone IDs. Returns the combined
+         * {@link TzS2Polygons} once the polygons for all source time zone IDs have been added,
+         * {@code null} before then.
+         */
+        synchronized TzS2Polygons addTzS2Polygons(TzS2Polygons tzS2Polygons) {
+            mTzS2PolygonsBySourceTzId.put(tzS2Polygons.tzId, tzS2Polygons);
+            if (mTzS2PolygonsBySourceTzId.size() < mSourceTzIds.size()) {
+                return null;
+            }
+
+            // CanonicalizeTzS2Polygons processes files in file name order.
+            List<String> orderedSourceTzIds = new ArrayList<>(mSourceTzIds);
+            orderedSourceTzIds.sort(Comparator.comparing(this::getFileName));
+            List<S2Polygon> combinedS2Polygons = new ArrayList<>();
+            for (String sourceTzId : orderedSourceTzIds) {
+                combinedS2Polygons.addAll(mTzS2PolygonsBySourceTzId.get(sourceTzId).s2PolygonList);
+            }
+            // Release the source polygons.
+            mTzS2PolygonsBySourceTzId.clear();
+            return new TzS2Polygons(mCanonicalTzId, combinedS2Polygons);
+        }
+
+        private String getFileName(String tzId) {
+            return TzIds.fileNameSafe(tzId) + mFileSuffix;
+        }
+    }
+}
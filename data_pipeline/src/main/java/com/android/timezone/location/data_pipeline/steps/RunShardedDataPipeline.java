@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.common.LicenseSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.tools.CreateTzS2File;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
+import com.beust.jcommander.converters.FileConverter;
+import com.google.common.base.Stopwatch;
+import com.google.common.geometry.S2CellId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * An executable class that does the work of steps 3 to 7 of the pipeline, from canonicalized
+ * {@link TzS2Polygons} files to the tzs2 data file, in several local worker processes. Each worker
+ * runs {@link TzS2PolygonsToShardedTzS2Ranges} for a share of the S2 cells at a shard level, and
+ * needs only the memory for its share of the ranges.
+ *
+ * <p>Shard cells do not overlap and their cell ID ranges are in cell ID order, so the merged
+ * ranges of the shards are concatenated in shard order and passed straight to the tzs2 data file
+ * writer, see {@link CreateTzS2File#writeTzS2File}. Only the ranges of one shard are held in
+ * memory at a time. Ranges that were split at shard boundaries are joined again, so the output is
+ * the same as when the steps are run individually.
+ *
+ * <p>See {@link #main(String[])} for usage.
+ */
+public final class RunShardedDataPipeline {
+
+    private final File mInputDir;
+
+    private final ProtoStorageFormat mProtoStorageFormat;
+
+    private final int mS2Level;
+
+    private final int mShardS2Level;
+
+    private final int mProcessCount;
+
+    private final int mWorkerMaxHeapMb;
+
+    private final File mWorkingDir;
+
+    private final File mOutputFile;
+
+    private final CreateTzS2File.WriterOptions mWriterOptions;
+
+    private final boolean mWorkerMetrics;
+
+    private RunShardedDataPipeline(File inputDir, ProtoStorageFormat protoStorageFormat,
+            int s2Level, int shardS2Level, int processCount, int workerMaxHeapMb,
+            File workingDir, File outputFile, CreateTzS2File.WriterOptions writerOptions,
+            boolean workerMetrics) {
+        this.mInputDir = Objects.requireNonNull(inputDir);
+        this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        if (s2Level < 1 || s2Level > S2CellId.MAX_LEVEL) {
+            throw new IllegalArgumentException("Bad S2 level=" + s2Level);
+        }
+        this.mS2Level = s2Level;
+        if (shardS2Level < 0 || shardS2Level >= s2Level) {
+            throw new IllegalArgumentException("Bad shard S2 level=" + shardS2Level
+                    + ", must be in the range 0 to " + (s2Level - 1));
+        }
+        this.mShardS2Level = shardS2Level;
+        if (processCount < 1) {
+            throw new IllegalArgumentException("processCount=" + processCount);
+        }
+        this.mProcessCount = processCount;
+        if (workerMaxHeapMb < 0) {
+            throw new IllegalArgumentException("workerMaxHeapMb=" + workerMaxHeapMb);
+        }
+        this.mWorkerMaxHeapMb = workerMaxHeapMb;
+        this.mWorkingDir = Objects.requireNonNull(workingDir);
+        this.mOutputFile = Objects.requireNonNull(outputFile);
+        this.mWriterOptions = Objects.requireNonNull(writerOptions);
+        this.mWorkerMetrics = workerMetrics;
+    }
+
+    private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
+        @Parameter(names = "--input",
+                description = "The input directory containing the canonicalized TzS2Polygons"
+                        + " files",
+                required = true,
+                converter = FileConverter.class)
+        File inputDir;
+
+        @Parameter(names = "--s2-level",
+                description = "The S2 level of the ranges to produce",
+                required = true)
+        int s2Level;
+
+        @Parameter(names = "--shard-s2-level",
+                description = "The S2 level of the shard cells. 0 shards by face. Higher levels"
+                        + " give more, smaller shards, which balance better between processes")
+        int shardS2Level = 0;
+
+        @Parameter(names = "--num-processes",
+                description = "The number of worker processes to run at once",
+                required = true)
+        int numProcesses;
+
+        @Parameter(names = "--worker-max-heap-mb",
+                description = "The maximum heap size of each worker process. 0 uses the JVM"
+                        + " default")
+        int workerMaxHeapMb = 0;
+
+        @Parameter(names = "--working-dir",
+                description = "A directory to store the shard files and worker logs in",
+                required = true,
+                converter = FileConverter.class)
+        File workingDir;
+
+        @Parameter(names = "--output-file",
+                description = "The tzs2 data file to produce",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the pipeline's timing, memory, I/O and"
+                        + " counts to this file. Each worker writes its own report, including"
+                        + " per zone metrics, to the working dir",
+                converter = FileConverter.class)
+        File metricsFile;
+
+        @ParametersDelegate
+        CreateTzS2File.WriterOptions writerOptions = new CreateTzS2File.WriterOptions();
+    }
+
+    /**
+     * See {@link RunShardedDataPipeline} for the purpose of this class.
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        arguments.workingDir.mkdirs();
+        arguments.outputFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        RunShardedDataPipeline pipeline = new RunShardedDataPipeline(arguments.inputDir,
+                arguments.storageFormat, arguments.s2Level, arguments.shardS2Level,
+                arguments.numProcesses, arguments.workerMaxHeapMb, arguments.workingDir,
+                arguments.outputFile, arguments.writerOptions, arguments.metricsFile != null);
+        StepMetrics.startStep(RunShardedDataPipeline.class.getSimpleName());
+        pipeline.execute();
+        StepMetrics.finishStep();
+        System.out.println("Proto I/O: " + IoStats.getSummary());
+        StepMetrics.finishRun(arguments.metricsFile);
+    }
+
+    private void execute() throws IOException, InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        // Shard files left by an earlier run would be mistaken for output.
+        File shardsDir = getShardsDir();
+        if (shardsDir.exists()) {
+            for (File shardFile : TzS2Ranges.listFiles(shardsDir, mProtoStorageFormat)) {
+                Files.delete(shardFile.toPath());
+            }
+            Files.deleteIfExists(new File(shardsDir, LicenseSupport.LICENSE_FILE_NAME).toPath());
+        }
+        // The workers share the shards dir, so the license is copied once for all of them.
+        shardsDir.mkdirs();
+        LicenseSupport.copyLicenseFile(mInputDir, shardsDir);
+        runWorkers();
+        System.out.println("Workers completed in " + stopwatch.elapsed());
+
+        LicenseSupport.copyLicenseFile(mInputDir, mOutputFile.getAbsoluteFile().getParentFile());
+        System.out.println("Writing " + mOutputFile + " ...");
+        CreateTzS2File.writeTzS2File(
+                () -> new ShardRangeIterator(), mS2Level, mOutputFile, mWriterOptions);
+        System.out.println("Pipeline completed in " + stopwatch.elapsed());
+    }
+
+    /**
+     * Runs a worker process for each process index and waits for them all to finish. Each worker
+     * runs in a new JVM with the class path of this one and logs to its own file in the working
+     * dir. Workers are checked in the order they exit, so the first failure is reported, and the
+     * remaining workers are destroyed, without waiting for workers that are still running.
+     */
+    private void runWorkers() throws IOException, InterruptedException {
+        String javaCommand = new File(System.getProperty("java.home"), "bin/java").getPath();
+        String classPath = System.getProperty("java.class.path");
+
+        List<Process> processes = new ArrayList<>();
+        List<File> logFiles = new ArrayList<>();
+        BlockingQueue<Integer> exitedProcessIndexes = new LinkedBlockingQueue<>();
+        try {
+            for (int processIndex = 0; processIndex < mProcessCount; processIndex++) {
+                List<String> command = new ArrayList<>();
+                command.add(javaCommand);
+                if (mWorkerMaxHeapMb > 0) {
+                    command.add("-Xmx" + mWorkerMaxHeapMb + "m");
+                }
+                command.addAll(Arrays.asList(
+                        "-cp", classPath,
+                        TzS2PolygonsToShardedTzS2Ranges.class.getName(),
+                        "--storage-format", mProtoStorageFormat.name(),
+                        "--input", mInputDir.getAbsolutePath(),
+                        "--s2-level", Integer.toString(mS2Level),
+                        "--shard-s2-level", Integer.toString(mShardS2Level),
+                        "--process-index", Integer.toString(processIndex),
+                        "--process-count", Integer.toString(mProcessCount),
+                        "--output", getShardsDir().getAbsolutePath()));
+                if (mWorkerMetrics) {
+                    File metricsFile =
+                            new File(mWorkingDir, "worker" + processIndex + "_metrics.json");
+                    command.addAll(Arrays.asList("--metrics-file", metricsFile.getAbsolutePath()));
+                }
+                File logFile = new File(mWorkingDir, "worker" + processIndex + ".log");
+                System.out.println("Starting worker " + processIndex + ", logging to " + logFile);
+                Process process = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(logFile)
+                        .start();
+                processes.add(process);
+                logFiles.add(logFile);
+                int exitedProcessIndex = processIndex;
+                process.onExit().thenRun(() -> exitedProcessIndexes.add(exitedProcessIndex));
+            }
+
+            for (int i = 0; i < processes.size(); i++) {
+                int processIndex = exitedProcessIndexes.take();
+                int exitCode = processes.get(processIndex).exitValue();
+                if (exitCode != 0) {
+                    throw new IllegalStateException("Worker " + processIndex + " failed with"
+                            + " exit code " + exitCode + ", see " + logFiles.get(processIndex));
+                }
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private File getShardsDir() {
+        return new File(mWorkingDir, "shards");
+    }
+
+    /**
+     * Iterates over the merged ranges of all the shards in cell ID order, loading one shard at a
+     * time. Adjacent ranges with the same time zone IDs are joined: they are the parts of a range
+     * that crossed a shard boundary.
+     */
+    private final class ShardRangeIterator implements Iterator<TzS2Range> {
+
+        /** Shared by all the shards so that equal time zone ID sets have equal IDs. */
+        private final TzIdSets mTzIdSets = new TzIdSets();
+
+        private final S2CellId mEndShard = S2CellId.end(mShardS2Level);
+
+        private S2CellId mNextShard = S2CellId.begin(mShardS2Level);
+
+        private PackedTzS2Ranges mShardRanges = new PackedTzS2Ranges(mTzIdSets);
+
+        private int mShardRangeIndex;
+
+        @Override
+        public boolean hasNext() {
+            if (mShardRangeIndex < mShardRanges.size()) {
+                return true;
+            }
+            while (!mNextShard.equals(mEndShard)) {
+                File shardFile = TzS2PolygonsToShardedTzS2Ranges.getShardFile(
+                        getShardsDir(), mNextShard, mProtoStorageFormat);
+                mNextShard = mNextShard.next();
+                if (shardFile.exists()) {
+                    mShardRanges = PackedTzS2Ranges.load(shardFile, mProtoStorageFormat, mTzIdSets);
+                    mShardRangeIndex = 0;
+                    if (mShardRanges.size() > 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public TzS2Range next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long startCellId = mShardRanges.getStartCellId(mShardRangeIndex);
+            long endCellId = mShardRanges.getEndCellId(mShardRangeIndex);
+            int tzIdSetId = mShardRanges.getTzIdSetId(mShardRangeIndex);
+            mShardRangeIndex++;
+            while (hasNext()
+                    && mShardRanges.getStartCellId(mShardRangeIndex) == endCellId
+                    && mShardRanges.getTzIdSetId(mShardRangeIndex) == tzIdSetId) {
+                endCellId = mShardRanges.getEndCellId(mShardRangeIndex);
+                mShardRangeIndex++;
+            }
+            return new TzS2Range(startCellId, endCellId, mTzIdSets.get(tzIdSetId));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A content-addressed cache of the per-zone output files of a pipeline step, so that a run can
+ * skip the zones whose input has not changed since an earlier run. Each entry is keyed by a
+ * SHA-256 hash of everything the output depends on: the step's code, see
+ * {@link #getToolVersion(Class)}, the step's options and the zone's input. Cached files are copied
+ * into place, so the output is the same as when the zone is processed.
+ *
+ * <p>Entries are never removed. The cache directory can be deleted at any time. This class is
+ * thread-safe.
+ */
+final class StepCache {
+
+    /** Changes when the way keys are created changes, so that old entries are not used. */
+    private static final int KEY_VERSION = 1;
+
+    private final File mCacheDir;
+
+    private final String mToolVersion;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private StepCache(File cacheDir, String toolVersion) {
+        mCacheDir = Objects.requireNonNull(cacheDir);
+        mToolVersion = Objects.requireNonNull(toolVersion);
+    }
+
+    /**
+     * Opens the cache for {@code stepClass} in a subdirectory of {@code cacheDir}, creating it if
+     * necessary.
+     */
+    static StepCache open(File cacheDir, Class<?> stepClass) throws IOException {
+        File stepCacheDir = new File(cacheDir, stepClass.getSimpleName());
+        stepCacheDir.mkdirs();
+        if (!stepCacheDir.isDirectory()) {
+            throw new IOException("Unable to create " + stepCacheDir);
+        }
+        return new StepCache(stepCacheDir, getToolVersion(stepClass));
+    }
+
+    /** Returns a hash of the contents of {@code file}. */
+    static HashCode hashFile(File file) throws IOException {
+        return MoreFiles.asByteSource(file.toPath()).hash(Hashing.sha256());
+    }
+
+    /**
+     * Returns the key of the output for the input with hash {@code inputHash}, produced with
+     * {@code options}. Options are compared using their string form.
+     */
+    String createKey(HashCode inputHash, Object... options) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putInt(KEY_VERSION)
+                .putString(mToolVersion, StandardCharsets.UTF_8)
+                .putBytes(inputHash.asBytes());
+        for (Object option : options) {
+            String optionString = String.valueOf(option);
+            hasher.putInt(optionString.length()).putString(optionString, StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Copies the entry with {@code key} to {@code outputFile} if there is one. Returns {@code true}
+     * on a hit, {@code false} if the output must be created.
+     */
+    boolean restore(String key, File outputFile) throws IOException {
+        File entryFile = new File(mCacheDir, key);
+        if (!entryFile.exists()) {
+            mMissCount.incrementAndGet();
+            return false;
+        }
+        Files.copy(entryFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        mHitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Adds a copy of {@code outputFile} as the entry with {@code key}. The entry appears
+     * atomically, so a run that is interrupted or that shares the cache never sees a partial
+     * entry.
+     */
+    void store(String key, File outputFile) throws IOException {
+        Path tempFile = Files.createTempFile(mCacheDir.toPath(), key, ".tmp");
+        try {
+            Files.copy(outputFile.toPath(), tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, new File(mCacheDir, key).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /** Returns a human-readable summary of the cache hits and misses so far. */
+    String getSummary() {
+        return mCacheDir + ": " + mHitCount.get() + " hits, " + mMissCount.get() + " misses";
+    }
+
+    /**
+     * Returns a hash identifying the code of {@code stepClass}. When the class is loaded from a
+     * jar, e.g. a step's binary, which contains all its dependencies, the whole jar is hashed, so
+     * any change to the code invalidates the cache. Otherwise, e.g. in tests, only the class file
+     * of {@code stepClass} is hashed.
+     */
+    static String getToolVersion(Class<?> stepClass) throws IOException {
+        URL location = stepClass.getProtectionDomain().getCodeSource().getLocation();
+        File codeSourceFile;
+        try {
+            codeSourceFile = new File(location.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Unsupported code source: " + location, e);
+        }
+        if (codeSourceFile.isFile()) {
+            return hashFile(codeSourceFile).toString();
+        }
+        String classFileName = stepClass.getSimpleName() + ".class";
+        try (InputStream inputStream = stepClass.getResourceAsStream(classFileName)) {
+            if (inputStream == null) {
+                throw new IOException("Unable to find " + classFileName);
+            }
+            return Hashing.sha256().hashBytes(ByteStreams.toByteArray(inputStream)).toString();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.data_pipeline.steps.Types.Pair;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A manifest of the zones that a pipeline step has completed in its output directory, so that a
+ * step that is interrupted, e.g. by a crash, running out of memory or the machine being preempted,
+ * can be restarted without processing those zones again.
+ *
+ * <p>Each zone's output is written to a temporary file, see {@link #createTempFile(File)}, which is
+ * renamed into place by {@link #commit(File, HashCode, String, File, File)}, so an output file is
+ * never partial. A line is then appended to the manifest with the names and hashes of the zone's
+ * input and output files. The manifest starts with a line identifying the step's code and
+ * options, so a manifest written by other code or with other options is not used.
+ *
+ * <p>When resuming, a zone is only skipped if the manifest has a line for its input file with the
+ * same input hash and its output file is present with the recorded hash. A partial last line, left
+ * when the step was interrupted while appending it, is ignored. Once every zone has been
+ * processed, {@link #deleteStaleOutputFiles(String)} deletes the output files left by earlier runs
+ * for zones that are no longer in the input. This class is thread-safe.
+ */
+final class StepCheckpoint {
+
+    /** The name of the manifest file in the output directory. */
+    static final String MANIFEST_FILE_NAME = "checkpoint_manifest.txt";
+
+    /** Changes when the manifest format changes, so that old manifests are not used. */
+    private static final int MANIFEST_VERSION = 1;
+
+    private static final String TEMP_FILE_SUFFIX = ".checkpoint_tmp";
+
+    private static final String SEPARATOR = "\t";
+
+    private final File mOutputDir;
+
+    /** The zones completed by earlier runs, by input file name. */
+    private final Map<String, Entry> mEarlierEntries;
+
+    /** Guarded by this. */
+    private final FileOutputStream mManifestOutputStream;
+
+    private final AtomicInteger mSkippedCount = new AtomicInteger();
+
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+
+    private final AtomicInteger mDeletedCount = new AtomicInteger();
+
+    /** The names of the output files of the zones resumed or completed by this run. */
+    private final Set<String> mOutputFileNames = ConcurrentHashMap.newKeySet();
+
+    private StepCheckpoint(File outputDir, Map<String, Entry> earlierEntries,
+            FileOutputStream manifestOutputStream) {
+        mOutputDir = Objects.requireNonNull(outputDir);
+        mEarlierEntries = Objects.requireNonNull(earlierEntries);
+        mManifestOutputStream = Objects.requireNonNull(manifestOutputStream);
+    }
+
+    /**
+     * Opens the manifest of {@code stepClass} in {@code outputDir}. If {@code resume} is
+     * {@code true}, the zones recorded by an earlier run of the same code with the same
+     * {@code options} can be skipped. Otherwise, or if there is no such manifest, a new one is
+     * started. Temporary files left by an interrupted run are deleted.
+     */
+    static StepCheckpoint open(File outputDir, Class<?> stepClass, boolean resume,
+            Object... options) throws IOException {
+        String header = createHeader(stepClass, options);
+        File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+        Map<String, Entry> earlierEntries = new LinkedHashMap<>();
+        if (resume && manifestFile.exists()) {
+            List<String> lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        // A zone that was processed again has a later line.
+                        earlierEntries.put(entry.mInputFileName, entry);
+                    }
+                }
+            } else {
+                System.out.println("Not resuming from " + manifestFile + ": it was written by"
+                        + " other code or with other options");
+            }
+        }
+
+        File[] tempFiles = outputDir.listFiles((dir, name) -> name.endsWith(TEMP_FILE_SUFFIX));
+        if (tempFiles != null) {
+            for (File tempFile : tempFiles) {
+                Files.delete(tempFile.toPath());
+            }
+        }
+
+        // The manifest is rewritten so that lines are not appended to a partial last line.
+        List<String> lines = new ArrayList<>();
+        lines.add(header);
+        for (Entry entry : earlierEntries.values()) {
+            lines.add(entry.toLine());
+        }
+        File tempManifestFile = createTempFile(manifestFile);
+        Files.write(tempManifestFile.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tempManifestFile.toPath(), manifestFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Checkpointing to " + manifestFile + ", " + earlierEntries.size()
+                + " zones completed by earlier runs");
+        return new StepCheckpoint(
+                outputDir, earlierEntries, new FileOutputStream(manifestFile, true));
+    }
+
+    /**
+     * Returns the time zone ID and output file of the zone for {@code inputFile} if an earlier run
+     * completed it and its output is still valid, or {@code null} if the zone must be processed.
+     * {@code inputHash} is the hash of {@code inputFile}, see {@link StepCache#hashFile(File)}.
+     */
+    Pair<String, File> getCompletedZone(File inputFile, HashCode inputHash) throws IOException {
+        Entry entry = mEarlierEntries.get(inputFile.getName());
+        if (entry == null || !entry.mInputHash.equals(inputHash.toString())) {
+            return null;
+        }
+        File outputFile = new File(mOutputDir, entry.mOutputFileName);
+        if (!outputFile.isFile()
+                || !StepCache.hashFile(outputFile).toString().equals(entry.mOutputHash)) {
+            System.out.println("Not resuming " + entry.mTzId + ": " + outputFile
+                    + " is missing or has changed");
+            return null;
+        }
+        mSkippedCount.incrementAndGet();
+        mOutputFileNames.add(outputFile.getName());
+        System.out.println("Resumed " + outputFile + " from the checkpoint");
+        return new Pair<>(entry.mTzId, outputFile);
+    }
+
+    /**
+     * Returns the temporary file to write {@code outputFile} to before it is committed. Files
+     * with its suffix are not listed as output by the steps.
+     */
+    static File createTempFile(File outputFile) {
+        return new File(outputFile.getPath() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Renames {@code tempFile} to {@code outputFile}, and records the zone for {@code inputFile},
+     * which has {@code inputHash} and time zone ID {@code tzId}, as complete.
+     */
+    void commit(File inputFile, HashCode inputHash, String tzId, File tempFile, File outputFile)
+            throws IOException {
+        HashCode outputHash = StepCache.hashFile(tempFile);
+        Files.move(tempFile.toPath(), outputFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Entry entry = new Entry(inputFile.getName(), inputHash.toString(), tzId,
+                outputFile.getName(), outputHash.toString());
+        byte[] lineBytes = (entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            mManifestOutputStream.write(lineBytes);
+            // The line must survive the machine going away, not just the process.
+            mManifestOutputStream.getFD().sync();
+        }
+        mOutputFileNames.add(outputFile.getName());
+        mCompletedCount.incrementAndGet();
+    }
+
+    /**
+     * Deletes the files in the output directory with {@code outputFileSuffix} that are not the
+     * output of a zone resumed or completed by this run, e.g. those of zones removed from the
+     * input since an earlier run, so that the next step only reads the current zones. Must only be
+     * called once every zone has been processed.
+     */
+    void deleteStaleOutputFiles(String outputFileSuffix) throws IOException {
+        File[] staleFiles = mOutputDir.listFiles((dir, name) -> name.endsWith(outputFileSuffix)
+                && !mOutputFileNames.contains(name));
+        if (staleFiles != null) {
+            for (File staleFile : staleFiles) {
+                System.out.println("Deleting " + staleFile + ": it is not the output of a zone"
+                        + " in the input");
+                Files.delete(staleFile.toPath());
+                mDeletedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** Closes the manifest. */
+    synchronized void close() throws IOException {
+        mManifestOutputStream.close();
+    }
+
+    /**
+     * Returns a human-readable summary of the zones resumed and completed, and the stale output
+     * files deleted, so far.
+     */
+    String getSummary() {
+        return mSkippedCount.get() + " zones resumed, " + mCompletedCount.get() + " completed, "
+                + mDeletedCount.get() + " stale output files deleted";
+    }
+
+    private static String createHeader(Class<?> stepClass, Object... options) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putString(StepCache.getToolVersion(stepClass), StandardCharsets.UTF_8);
+        for (Object option : options) {
+            String optionString = String.valueOf(option);
+            hasher.putInt(optionString.length()).putString(optionString, StandardCharsets.UTF_8);
+        }
+        return "checkpoint" + SEPARATOR + MANIFEST_VERSION + SEPARATOR + stepClass.getSimpleName()
+                + SEPARATOR + hasher.hash();
+    }
+
+    /** A manifest line: a zone that has been completed. */
+    private static final class Entry {
+
+        /** The length of a hex SHA-256 hash. */
+        private static final int HASH_LENGTH = 64;
+
+        final String mInputFileName;
+
+        final String mInputHash;
+
+        final String mTzId;
+
+        final String mOutputFileName;
+
+        final String mOutputHash;
+
+        Entry(String inputFileName, String inputHash, String tzId, String outputFileName,
+                String outputHash) {
+            mInputFileName = inputFileName;
+            mInputHash = inputHash;
+            mTzId = tzId;
+            mOutputFileName = outputFileName;
+            mOutputHash = outputHash;
+        }
+
+        /**
+         * Parses a manifest line, returning {@code null} if it is not complete. Each line ends
+         * with a hash, so a line cut short is always detected.
+         */
+        static Entry parse(String line) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != 5
+                    || fields[1].length() != HASH_LENGTH
+                    || fields[4].length() != HASH_LENGTH) {
+                return null;
+            }
+            return new Entry(fields[0], fields[1], fields[2], fields[3], fields[4]);
+        }
+
+        String toLine() {
+            return String.join(SEPARATOR,
+                    mInputFileName, mInputHash, mTzId, mOutputFileName, mOutputHash);
+        }
+    }
+}
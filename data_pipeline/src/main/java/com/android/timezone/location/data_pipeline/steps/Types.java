@@ -20,14 +20,24 @@ import static java.util.stream.Collectors.toList;
 
 import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.proto.S2Protos;
+import com.android.timezone.location.data_pipeline.util.IoStats;
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
 import com.google.common.geometry.S2Loop;
 import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.WireFormat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -35,24 +45,38 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /** A set of shared types for use in the reference time zone geolocation data pipeline. */
 public final class Types {
 
-    public static final ProtoStorageFormat DEFAULT_PROTO_STORAGE_FORMAT = ProtoStorageFormat.TEXT;
+    public static final ProtoStorageFormat DEFAULT_PROTO_STORAGE_FORMAT =
+            ProtoStorageFormat.BINARY;
+
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
 
     private Types() {
     }
 
-    /** The two proto storage formats supported. */
+    /**
+     * The proto storage formats supported. {@link #TEXT} is the slowest and largest, but is useful
+     * for debugging. Time spent loading and storing protos is recorded in {@link IoStats}.
+     */
     public enum ProtoStorageFormat {
         TEXT(".prototxt"),
-        BINARY(".proto");
+        BINARY(".proto"),
+        /** Binary protos compressed using gzip. */
+        BINARY_GZIP(".proto.gz");
 
         private final String mSuffix;
 
@@ -68,13 +92,17 @@ public final class Types {
             // Require the LICENSE file to be present.
             license.checkLicensePresentInDir(outputFile.getParentFile());
 
+            long startNanos = System.nanoTime();
             if (this == TEXT) {
                 storeProtoAsText(message, outputFile, license);
             } else if (this == BINARY) {
-                storeProtoAsBinary(message, outputFile);
+                storeProtoAsBinary(message, outputFile, false /* gzip */);
+            } else if (this == BINARY_GZIP) {
+                storeProtoAsBinary(message, outputFile, true /* gzip */);
             } else {
                 throw new IllegalArgumentException();
             }
+            IoStats.recordWrite(System.nanoTime() - startNanos, outputFile.length());
         }
 
         /**
@@ -82,10 +110,125 @@ public final class Types {
          * {@code builder}.
          */
         public void load(Message.Builder builder, File inputFile) throws IOException {
+            long startNanos = System.nanoTime();
+            if (this == TEXT) {
+                loadProtoAsText(builder, inputFile);
+            } else if (this == BINARY) {
+                loadProtoAsBinary(builder, inputFile, false /* gzip */);
+            } else if (this == BINARY_GZIP) {
+                loadProtoAsBinary(builder, inputFile, true /* gzip */);
+            } else {
+                throw new IllegalArgumentException();
+            }
+            IoStats.recordRead(System.nanoTime() - startNanos, inputFile.length());
+        }
+
+        /**
+         * Loads the values of the repeated message field {@code field} of a message stored in
+         * this format in {@code inputFile}, passing them to {@code consumer} in order. Other fields
+         * are ignored. {@code builder} must be a builder for the message. With the binary formats
+         * the values are read one at a time, so the message is never held in memory as a whole.
+         */
+        public void loadRepeatedField(File inputFile, Message.Builder builder,
+                FieldDescriptor field, MessageConsumer consumer) throws IOException {
+            try (RepeatedFieldReader reader = openRepeatedFieldReader(inputFile, builder, field)) {
+                Message value;
+                while ((value = reader.next()) != null) {
+                    consumer.accept(value);
+                }
+            }
+        }
+
+        /**
+         * Opens {@code inputFile}, which stores a message in this format, to read the values of
+         * the repeated message field {@code field} one at a time, like
+         * {@link #loadRepeatedField}, but with the caller asking for each value. {@code builder}
+         * must be a builder for the message.
+         */
+        public RepeatedFieldReader openRepeatedFieldReader(File inputFile,
+                Message.Builder builder, FieldDescriptor field) throws IOException {
+            long startNanos = System.nanoTime();
+            RepeatedFieldReader reader;
+            if (this == TEXT) {
+                loadProtoAsText(builder, inputFile);
+                reader = new RepeatedFieldReader(inputFile, builder, field, null, null);
+            } else if (this == BINARY || this == BINARY_GZIP) {
+                InputStream inputStream = openBinaryInputStream(inputFile, this == BINARY_GZIP);
+                reader = new RepeatedFieldReader(inputFile, builder, field, inputStream,
+                        CodedInputStream.newInstance(inputStream));
+            } else {
+                throw new IllegalArgumentException();
+            }
+            reader.mReadNanos += System.nanoTime() - startNanos;
+            return reader;
+        }
+
+        /**
+         * Loads the value of the singular string field {@code field} of a message stored in this
+         * format in {@code inputFile}. {@code builder} must be a builder for the message. With the
+         * binary formats, reading stops at the first value of the field, so when the field is
+         * stored before any large fields only a small part of the file is read. Returns the
+         * field's default value if it is not present.
+         */
+        public String loadStringField(File inputFile, Message.Builder builder,
+                FieldDescriptor field) throws IOException {
+            long startNanos = System.nanoTime();
+            String value = null;
+            long bytesRead;
             if (this == TEXT) {
                 loadProtoAsText(builder, inputFile);
+                value = (String) builder.getField(field);
+                bytesRead = inputFile.length();
+            } else if (this == BINARY || this == BINARY_GZIP) {
+                try (InputStream inputStream =
+                             openBinaryInputStream(inputFile, this == BINARY_GZIP)) {
+                    CodedInputStream codedInputStream = CodedInputStream.newInstance(inputStream);
+                    int tag;
+                    while (value == null && (tag = codedInputStream.readTag()) != 0) {
+                        if (WireFormat.getTagFieldNumber(tag) == field.getNumber()) {
+                            value = codedInputStream.readStringRequireUtf8();
+                        } else {
+                            codedInputStream.skipField(tag);
+                        }
+                    }
+                    // Uncompressed bytes for BINARY_GZIP, which is close enough for the stats.
+                    bytesRead = codedInputStream.getTotalBytesRead();
+                }
+                if (value == null) {
+                    value = (String) field.getDefaultValue();
+                }
+            } else {
+                throw new IllegalArgumentException();
+            }
+            IoStats.recordRead(System.nanoTime() - startNanos, bytesRead);
+            return value;
+        }
+
+        /**
+         * Opens {@code outputFile} to store a message in this format in parts, see
+         * {@link PartWriter}. Also checks for a LICENSE file and adds a header to the file if
+         * possible.
+         */
+        public PartWriter openPartWriter(File outputFile, License license) throws IOException {
+            // Require the LICENSE file to be present.
+            license.checkLicensePresentInDir(outputFile.getParentFile());
+
+            if (this == TEXT) {
+                Writer writer = new BufferedWriter(new FileWriter(outputFile), IO_BUFFER_SIZE);
+                try {
+                    // Add the license text header.
+                    writer.append(license.getTextProtoHeader());
+                } catch (IOException e) {
+                    writer.close();
+                    throw e;
+                }
+                return new PartWriter(outputFile, writer, null);
             } else if (this == BINARY) {
-                loadProtoAsBinary(builder, inputFile);
+                return new PartWriter(outputFile, null, new BufferedOutputStream(
+                        new FileOutputStream(outputFile), IO_BUFFER_SIZE));
+            } else if (this == BINARY_GZIP) {
+                return new PartWriter(outputFile, null,
+                        new GZIPOutputStream(new FileOutputStream(outputFile), IO_BUFFER_SIZE));
             } else {
                 throw new IllegalArgumentException();
             }
@@ -98,21 +241,28 @@ public final class Types {
 
         private static void loadProtoAsText(Message.Builder builder, File inputFile)
                 throws IOException {
-            try (FileReader reader = new FileReader(inputFile)) {
+            try (Reader reader = new BufferedReader(new FileReader(inputFile), IO_BUFFER_SIZE)) {
                 TextFormat.getParser().merge(reader, builder);
             }
         }
 
-        private static void loadProtoAsBinary(Message.Builder builder, File inputFile)
-                throws IOException {
-            try (FileInputStream inputStream = new FileInputStream(inputFile)) {
+        private static void loadProtoAsBinary(Message.Builder builder, File inputFile,
+                boolean gzip) throws IOException {
+            try (InputStream inputStream = openBinaryInputStream(inputFile, gzip)) {
                 builder.mergeFrom(inputStream);
             }
         }
 
+        private static InputStream openBinaryInputStream(File inputFile, boolean gzip)
+                throws IOException {
+            return gzip
+                    ? new GZIPInputStream(new FileInputStream(inputFile), IO_BUFFER_SIZE)
+                    : new BufferedInputStream(new FileInputStream(inputFile), IO_BUFFER_SIZE);
+        }
+
         private static void storeProtoAsText(Message message, File outputFile, License license)
                 throws IOException {
-            try (FileWriter writer = new FileWriter(outputFile)) {
+            try (Writer writer = new BufferedWriter(new FileWriter(outputFile), IO_BUFFER_SIZE)) {
                 // Add the license text header.
                 writer.append(license.getTextProtoHeader());
 
@@ -120,11 +270,140 @@ public final class Types {
             }
         }
 
-        private static void storeProtoAsBinary(Message message, File outputFile)
+        private static void storeProtoAsBinary(Message message, File outputFile, boolean gzip)
                 throws IOException {
-            try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile)) {
-                fileOutputStream.write(message.toByteArray());
+            try (OutputStream outputStream = gzip
+                    ? new GZIPOutputStream(new FileOutputStream(outputFile), IO_BUFFER_SIZE)
+                    : new BufferedOutputStream(new FileOutputStream(outputFile),
+                            IO_BUFFER_SIZE)) {
+                message.writeTo(outputStream);
+            }
+        }
+    }
+
+    /**
+     * Reads the values of a repeated message field one at a time. Obtain instances using
+     * {@link ProtoStorageFormat#openRepeatedFieldReader(File, Message.Builder, FieldDescriptor)}.
+     * With the binary formats the values are read from the file as they are asked for, so the
+     * message is never held in memory as a whole.
+     */
+    public static final class RepeatedFieldReader implements Closeable {
+
+        private final File mInputFile;
+
+        /** For {@link ProtoStorageFormat#TEXT}, holds the whole message. */
+        private final Message.Builder mBuilder;
+
+        private final FieldDescriptor mField;
+
+        /** {@code null} for {@link ProtoStorageFormat#TEXT}. */
+        private final InputStream mInputStream;
+
+        /** {@code null} for {@link ProtoStorageFormat#TEXT}. */
+        private final CodedInputStream mCodedInputStream;
+
+        /** The index of the next value, for {@link ProtoStorageFormat#TEXT}. */
+        private int mNextIndex;
+
+        private long mReadNanos;
+
+        private RepeatedFieldReader(File inputFile, Message.Builder builder, FieldDescriptor field,
+                InputStream inputStream, CodedInputStream codedInputStream) {
+            this.mInputFile = Objects.requireNonNull(inputFile);
+            this.mBuilder = Objects.requireNonNull(builder);
+            this.mField = Objects.requireNonNull(field);
+            this.mInputStream = inputStream;
+            this.mCodedInputStream = codedInputStream;
+        }
+
+        /** Returns the next value of the field, or {@code null} if there are no more. */
+        public Message next() throws IOException {
+            long startNanos = System.nanoTime();
+            try {
+                if (mCodedInputStream == null) {
+                    return mNextIndex < mBuilder.getRepeatedFieldCount(mField)
+                            ? (Message) mBuilder.getRepeatedField(mField, mNextIndex++)
+                            : null;
+                }
+                int tag;
+                while ((tag = mCodedInputStream.readTag()) != 0) {
+                    if (WireFormat.getTagFieldNumber(tag) != mField.getNumber()) {
+                        mCodedInputStream.skipField(tag);
+                        continue;
+                    }
+                    Message.Builder valueBuilder = mBuilder.newBuilderForField(mField);
+                    mCodedInputStream.readMessage(
+                            valueBuilder, ExtensionRegistryLite.getEmptyRegistry());
+                    // Only the size of the current value is relevant to the size limit.
+                    mCodedInputStream.resetSizeCounter();
+                    return valueBuilder.build();
+                }
+                return null;
+            } finally {
+                mReadNanos += System.nanoTime() - startNanos;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mInputStream != null) {
+                mInputStream.close();
+            }
+            IoStats.recordRead(mReadNanos, mInputFile.length());
+        }
+    }
+
+    /** Receives messages read by {@link ProtoStorageFormat#loadRepeatedField}. */
+    public interface MessageConsumer {
+
+        void accept(Message message) throws IOException;
+    }
+
+    /**
+     * Stores a message in parts so that the whole message need not be held in memory. The message
+     * stored is the one obtained by merging the parts in order, i.e. the values of repeated fields
+     * are concatenated. The file content is the same as when storing the merged message using
+     * {@link ProtoStorageFormat#store(Message, File, License)}, because both the text and binary
+     * proto formats store the fields of a message one after the other. Obtain instances using
+     * {@link ProtoStorageFormat#openPartWriter(File, License)}.
+     */
+    public static final class PartWriter implements Closeable {
+
+        private final File mOutputFile;
+
+        private final Writer mWriter;
+
+        private final OutputStream mOutputStream;
+
+        private long mWriteNanos;
+
+        private PartWriter(File outputFile, Writer writer, OutputStream outputStream) {
+            this.mOutputFile = Objects.requireNonNull(outputFile);
+            this.mWriter = writer;
+            this.mOutputStream = outputStream;
+        }
+
+        /** Writes the next part of the message. */
+        public void write(Message part) throws IOException {
+            long startNanos = System.nanoTime();
+            if (mWriter != null) {
+                TextFormat.print(part, mWriter);
+            } else {
+                part.writeTo(mOutputStream);
             }
+            mWriteNanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long startNanos = System.nanoTime();
+            if (mWriter != null) {
+                mWriter.close();
+            } else {
+                mOutputStream.close();
+            }
+            mWriteNanos += System.nanoTime() - startNanos;
+            IoStats.recordWrite(mWriteNanos, mOutputFile.length());
         }
     }
 
@@ -275,6 +554,18 @@ public final class Types {
             return TzS2Polygons.FILE_NAME_CONTENT_IDENTIFIER + storageFormat.getTypeSuffix();
         }
 
+        /**
+         * Loads only the time zone ID of the {@link TzS2Polygons} in {@code inputFile} in the
+         * specified format. This is much cheaper than {@link #load(File, ProtoStorageFormat)}
+         * with the binary formats, see {@link ProtoStorageFormat#loadStringField}.
+         */
+        public static String loadTzId(File inputFile, ProtoStorageFormat storageFormat)
+                throws IOException {
+            return storageFormat.loadStringField(inputFile, S2Protos.TzS2Polygons.newBuilder(),
+                    S2Protos.TzS2Polygons.getDescriptor().findFieldByNumber(
+                            S2Protos.TzS2Polygons.TZID_FIELD_NUMBER));
+        }
+
         /** Loads the {@code inputFile} in the specified format as a {@link TzS2Polygons}. */
         public static TzS2Polygons load(File inputFile, ProtoStorageFormat storageFormat)
                 throws IOException {
@@ -365,6 +656,17 @@ public final class Types {
             storageFormat.store(message, outputFile, license);
         }
 
+        /**
+         * Loads only the time zone ID of the {@link TzS2CellUnion} in {@code inputFile} in the
+         * specified format, see {@link TzS2Polygons#loadTzId(File, ProtoStorageFormat)}.
+         */
+        public static String loadTzId(File inputFile, ProtoStorageFormat storageFormat)
+                throws IOException {
+            return storageFormat.loadStringField(inputFile, S2Protos.TzS2CellUnion.newBuilder(),
+                    S2Protos.TzS2CellUnion.getDescriptor().findFieldByNumber(
+                            S2Protos.TzS2CellUnion.TZID_FIELD_NUMBER));
+        }
+
         /** Loads the {@code inputFile} in the specified format as a {@link TzS2CellUnion}. */
         public static TzS2CellUnion load(File file, ProtoStorageFormat storageFormat) {
             S2Protos.TzS2CellUnion.Builder builder = S2Protos.TzS2CellUnion.newBuilder();
@@ -402,6 +704,9 @@ public final class Types {
 
         private static final String FILE_NAME_CONTENT_IDENTIFIER = "_tzs2ranges";
 
+        private static final FieldDescriptor RANGES_FIELD = S2Protos.TzS2Ranges.getDescriptor()
+                .findFieldByNumber(S2Protos.TzS2Ranges.RANGES_FIELD_NUMBER);
+
         private final List<TzS2Range> mValues;
 
         public TzS2Ranges(List<TzS2Range> values) {
@@ -502,6 +807,81 @@ public final class Types {
         public static String getFileSuffix(ProtoStorageFormat storageFormat) {
             return FILE_NAME_CONTENT_IDENTIFIER + storageFormat.getTypeSuffix();
         }
+
+        /**
+         * Reads the ranges in {@code inputFile} in the specified format one at a time, passing
+         * them to {@code consumer} in order, so that the ranges need not be held in memory. See
+         * {@link ProtoStorageFormat#loadRepeatedField}.
+         */
+        public static void forEachRange(File inputFile, ProtoStorageFormat storageFormat,
+                RangeConsumer consumer) throws IOException {
+            storageFormat.loadRepeatedField(inputFile, S2Protos.TzS2Ranges.newBuilder(),
+                    RANGES_FIELD, message -> {
+                        S2Protos.TzS2Range range = (S2Protos.TzS2Range) message;
+                        consumer.accept(range.getStartCellId(), range.getEndCellId(),
+                                range.getValuesList());
+                    });
+        }
+
+        /**
+         * Opens {@code inputFile} in the specified format to read its ranges one at a time, like
+         * {@link #forEachRange}, but with the caller asking for each range. The reader's values
+         * are {@link S2Protos.TzS2Range}s.
+         */
+        public static RepeatedFieldReader openRangeReader(File inputFile,
+                ProtoStorageFormat storageFormat) throws IOException {
+            return storageFormat.openRepeatedFieldReader(
+                    inputFile, S2Protos.TzS2Ranges.newBuilder(), RANGES_FIELD);
+        }
+
+        /** Receives ranges read by {@link #forEachRange}. */
+        public interface RangeConsumer {
+
+            void accept(long startCellId, long endCellId, List<String> tzIds) throws IOException;
+        }
+
+        /**
+         * Stores a {@link TzS2Ranges} one {@link TzS2Range} at a time, so that the ranges need not
+         * be held in memory. The file can be loaded with
+         * {@link TzS2Ranges#load(File, ProtoStorageFormat)}.
+         */
+        public static final class RangeWriter implements Closeable {
+
+            private final PartWriter mPartWriter;
+
+            private RangeWriter(PartWriter partWriter) {
+                this.mPartWriter = Objects.requireNonNull(partWriter);
+            }
+
+            /**
+             * Opens {@code outputFile} for writing in the specified format, adding license
+             * information to the header when possible and checking the target directory contains
+             * the necessary LICENSE file.
+             */
+            public static RangeWriter open(File outputFile, ProtoStorageFormat storageFormat,
+                    License license) throws IOException {
+                return new RangeWriter(storageFormat.openPartWriter(outputFile, license));
+            }
+
+            /**
+             * Writes the next range, from {@code startCellId} (inclusive) to {@code endCellId}
+             * (exclusive).
+             */
+            public void write(long startCellId, long endCellId, List<String> tzIds)
+                    throws IOException {
+                mPartWriter.write(S2Protos.TzS2Ranges.newBuilder()
+                        .addRanges(S2Protos.TzS2Range.newBuilder()
+                                .setStartCellId(startCellId)
+                                .setEndCellId(endCellId)
+                                .addAllValues(tzIds))
+                        .build());
+            }
+
+            @Override
+            public void close() throws IOException {
+                mPartWriter.close();
+            }
+        }
     }
 
     /**
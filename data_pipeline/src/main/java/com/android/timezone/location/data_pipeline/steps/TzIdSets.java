@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary of the time zone ID lists referenced by ranges, so that each distinct list is only
+ * held once and ranges can refer to lists by an int ID, see {@link PackedTzS2Ranges}. IDs are
+ * assigned in the order lists are first interned, starting at zero. This class is thread-safe.
+ */
+public final class TzIdSets {
+
+    private final List<List<String>> mTzIdSets = new ArrayList<>();
+
+    private final Map<List<String>, Integer> mIdsByTzIdSet = new HashMap<>();
+
+    /** The results of {@link #merge(int, int)}, keyed by the pair of IDs merged. */
+    private final Map<Long, Integer> mMergedIds = new ConcurrentHashMap<>();
+
+    /** Returns the ID of {@code tzIds}, assigning a new ID if it has not been interned before. */
+    public synchronized int intern(List<String> tzIds) {
+        Integer id = mIdsByTzIdSet.get(tzIds);
+        if (id == null) {
+            List<String> tzIdSet = Collections.unmodifiableList(new ArrayList<>(tzIds));
+            id = mTzIdSets.size();
+            mTzIdSets.add(tzIdSet);
+            mIdsByTzIdSet.put(tzIdSet, id);
+        }
+        return id;
+    }
+
+    /** Returns the time zone IDs with the specified ID. */
+    public synchronized List<String> get(int id) {
+        return mTzIdSets.get(id);
+    }
+
+    /** Returns the number of IDs assigned. */
+    public synchronized int size() {
+        return mTzIdSets.size();
+    }
+
+    /**
+     * Returns the ID of the sorted, combined time zone IDs of {@code id1} and {@code id2}, as used
+     * for overlapping ranges. Results are remembered, so merging the same pair again is a lookup.
+     */
+    public int merge(int id1, int id2) {
+        // The result does not depend on the order of the IDs, so both orders share a key.
+        long key = id1 <= id2
+                ? ((long) id1 << Integer.SIZE) | id2
+                : ((long) id2 << Integer.SIZE) | id1;
+        Integer mergedId = mMergedIds.get(key);
+        if (mergedId == null) {
+            List<String> tzIds1 = get(id1);
+            List<String> tzIds2 = get(id2);
+            List<String> combinedTzIds = new ArrayList<>(tzIds1.size() + tzIds2.size());
+            combinedTzIds.addAll(tzIds1);
+            combinedTzIds.addAll(tzIds2);
+
+            // Sort the combinedTzIds to ensure the output is deterministic.
+            Collections.sort(combinedTzIds);
+            mergedId = intern(combinedTzIds);
+            mMergedIds.put(key, mergedId);
+        }
+        return mergedId;
+    }
+}
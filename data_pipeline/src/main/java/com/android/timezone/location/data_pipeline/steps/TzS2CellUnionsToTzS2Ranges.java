@@ -21,9 +21,10 @@ import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.Types.Pair;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
-import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
 import com.android.timezone.location.data_pipeline.util.NamedFuture;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
@@ -48,7 +49,9 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * An executable class that takes a set of {@link TzS2CellUnion} files and produces
- * {@link TzS2Ranges} files, one per input file. See {@link #main(String[])} for usage.
+ * {@link TzS2Ranges} files, one per input file. When a {@link StepCache} is used, the output for
+ * an input file that has not changed since an earlier run is copied from the cache instead of
+ * being created. See {@link #main(String[])} for usage.
  */
 public final class TzS2CellUnionsToTzS2Ranges {
 
@@ -62,9 +65,11 @@ public final class TzS2CellUnionsToTzS2Ranges {
 
     private final ProtoStorageFormat mProtoStorageFormat;
 
+    private final StepCache mStepCache;
+
     private TzS2CellUnionsToTzS2Ranges(
             File inputDir, ExecutorService executorService, File outputDir, int s2Level,
-            ProtoStorageFormat protoStorageFormat) {
+            ProtoStorageFormat protoStorageFormat, StepCache stepCache) {
         this.mInputDir = Objects.requireNonNull(inputDir);
         this.mExecutorService = Objects.requireNonNull(executorService);
         this.mOutputDir = Objects.requireNonNull(outputDir);
@@ -73,9 +78,15 @@ public final class TzS2CellUnionsToTzS2Ranges {
         }
         this.mS2Level = s2Level;
         this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        // May be null.
+        this.mStepCache = stepCache;
     }
 
     private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--input",
                 description = "The input directory containing the TzS2CellUnion files",
                 required = true,
@@ -99,6 +110,17 @@ public final class TzS2CellUnionsToTzS2Ranges {
                 required = true)
         int s2Level;
 
+        @Parameter(names = "--cache-dir",
+                description = "A directory to cache the output of each zone in, so that later"
+                        + " runs can skip the zones that have not changed",
+                converter = FileConverter.class)
+        File cacheDir;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
     }
 
     /**
@@ -114,17 +136,27 @@ public final class TzS2CellUnionsToTzS2Ranges {
         int threads = arguments.numThreads;
         File outputDir = arguments.outputDir;
         int s2Level = arguments.s2Level;
-        ProtoStorageFormat protoStorageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat protoStorageFormat = arguments.storageFormat;
 
         outputDir.mkdirs();
 
+        StepCache stepCache = arguments.cacheDir == null
+                ? null : StepCache.open(arguments.cacheDir, TzS2CellUnionsToTzS2Ranges.class);
+
         ExecutorService executorService = Executors.newFixedThreadPool(threads);
         TzS2CellUnionsToTzS2Ranges converter =
                 new TzS2CellUnionsToTzS2Ranges(inputDir, executorService, outputDir, s2Level,
-                        protoStorageFormat);
+                        protoStorageFormat, stepCache);
 
         try {
+            StepMetrics.startStep(TzS2CellUnionsToTzS2Ranges.class.getSimpleName());
             converter.execute();
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            if (stepCache != null) {
+                System.out.println("Step cache: " + stepCache.getSummary());
+            }
+            StepMetrics.finishRun(arguments.metricsFile);
         } finally {
             System.out.println("Waiting for shutdown");
             executorService.shutdown();
@@ -163,71 +195,99 @@ public final class TzS2CellUnionsToTzS2Ranges {
     }
 
     private Pair<String, File> processFile(File tzS2CellUnionFile) throws IOException {
+        StepMetrics.sampleQueueDepth(mExecutorService);
+        StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+        String cacheKey = null;
+        if (mStepCache != null) {
+            cacheKey = mStepCache.createKey(
+                    StepCache.hashFile(tzS2CellUnionFile), mProtoStorageFormat, mS2Level);
+            String tzId = TzS2CellUnion.loadTzId(tzS2CellUnionFile, mProtoStorageFormat);
+            File outputFile = getOutputFile(tzId);
+            if (mStepCache.restore(cacheKey, outputFile)) {
+                System.out.println("Restored " + outputFile + " from the step cache");
+                zoneTimer.finish(tzId);
+                return new Pair<>(tzId, outputFile);
+            }
+        }
+
         TzS2CellUnion tzS2CellUnion = TzS2CellUnion.load(tzS2CellUnionFile, mProtoStorageFormat);
-        TzS2Ranges tzS2Ranges = createTzS2Ranges(tzS2CellUnion, mS2Level);
+        PackedTzS2Ranges tzS2Ranges = createTzS2Ranges(tzS2CellUnion, mS2Level, new TzIdSets());
 
-        File outputFile = TzIds.createFile(
-                mOutputDir, tzS2CellUnion.tzId, TzS2Ranges.getFileSuffix(mProtoStorageFormat));
-        TzS2Ranges.store(tzS2Ranges, outputFile, mProtoStorageFormat, License.ODBL);
+        File outputFile = getOutputFile(tzS2CellUnion.tzId);
+        tzS2Ranges.store(outputFile, mProtoStorageFormat, License.ODBL);
+        if (cacheKey != null) {
+            mStepCache.store(cacheKey, outputFile);
+        }
+        zoneTimer.setCellCount(tzS2CellUnion.s2CellUnion.size());
+        zoneTimer.setRangeCount(tzS2Ranges.size());
+        zoneTimer.finish(tzS2CellUnion.tzId);
         return new Pair<>(tzS2CellUnion.tzId, outputFile);
     }
 
-    private static TzS2Ranges createTzS2Ranges(TzS2CellUnion tzS2CellUnion, int s2Level) {
+    private File getOutputFile(String tzId) {
+        return TzIds.createFile(mOutputDir, tzId, TzS2Ranges.getFileSuffix(mProtoStorageFormat));
+    }
+
+    /**
+     * Converts a {@link TzS2CellUnion} to sorted ranges at {@code s2Level}. The time zone ID is
+     * interned in {@code tzIdSets}.
+     */
+    static PackedTzS2Ranges createTzS2Ranges(
+            TzS2CellUnion tzS2CellUnion, int s2Level, TzIdSets tzIdSets) {
         Stopwatch stopwatch = Stopwatch.createStarted();
 
         String tzId = tzS2CellUnion.tzId;
-        List<String> tzIds = Collections.singletonList(tzId);
-        List<TzS2Range> ranges = new ArrayList<>();
+        int tzIdSetId = tzIdSets.intern(Collections.singletonList(tzId));
+        PackedTzS2Ranges ranges = new PackedTzS2Ranges(tzIdSets);
 
         S2CellUnion s2CellUnion = tzS2CellUnion.s2CellUnion;
         ArrayList<S2CellId> cellIds = s2CellUnion.cellIds();
 
         if (cellIds.size() > 0) {
-            S2CellId rangeStart = null;
-            S2CellId rangeEnd = null;
+            long levelLowestOnBit = S2CellId.lowestOnBitForLevel(s2Level);
+            long rangeStart = 0;
+            long rangeEnd = 0;
             for (int i = 0; i < cellIds.size(); i++) {
                 S2CellId currentS2CellId = cellIds.get(i);
                 checkCellIdIsAtLevel(currentS2CellId, s2Level);
 
-                Pair<S2CellId, S2CellId> currentRangeStartAndEnd =
-                        createRangeStartAndEnd(currentS2CellId, s2Level);
-                S2CellId currentS2CellRangeStart = currentRangeStartAndEnd.a;
-                S2CellId currentS2CellRangeEnd = currentRangeStartAndEnd.b;
+                // The same as childBegin(s2Level) / childEnd(s2Level) without creating objects.
+                long currentS2CellRangeStart =
+                        currentS2CellId.id() - currentS2CellId.lowestOnBit() + levelLowestOnBit;
+                long currentS2CellRangeEnd =
+                        currentS2CellId.id() + currentS2CellId.lowestOnBit() + levelLowestOnBit;
+                checkRangeEnd(currentS2CellId, s2Level, currentS2CellRangeEnd);
 
-                if (rangeStart == null) {
+                if (i == 0) {
                     // First time round the loop initialize rangeStart / rangeEnd only.
                     rangeStart = currentS2CellRangeStart;
-                } else if (rangeEnd.id() != currentS2CellRangeStart.id()) {
+                } else if (rangeEnd != currentS2CellRangeStart) {
                     // If there's a gap between cellIds, store the range we have so far and start a
                     // new range.
-                    ranges.add(new TzS2Range(tzIds, rangeStart, rangeEnd));
+                    ranges.add(rangeStart, rangeEnd, tzIdSetId);
                     rangeStart = currentS2CellRangeStart;
                 }
                 rangeEnd = currentS2CellRangeEnd;
             }
-            ranges.add(new TzS2Range(tzIds, rangeStart, rangeEnd));
+            ranges.add(rangeStart, rangeEnd, tzIdSetId);
         }
+        ranges.trimToSize();
 
         // Sorting the ranges is not necessary. As the input is sorted , it will already be sorted.
 
         System.out.printf("Created %s S2Ranges for %s in %s...\n",
                 ranges.size(), tzId, stopwatch.elapsed());
-        return new TzS2Ranges(ranges);
+        return ranges;
     }
 
-    private static Pair<S2CellId, S2CellId> createRangeStartAndEnd(
-            S2CellId s2CellId, int s2Level) {
-        S2CellId firstS2CellRangeStart = s2CellId.childBegin(s2Level);
-        S2CellId firstS2CellRangeEnd = s2CellId.childEnd(s2Level);
-
-        if (firstS2CellRangeEnd.face() < firstS2CellRangeStart.face()
-                || !firstS2CellRangeEnd.isValid()) {
+    private static void checkRangeEnd(S2CellId s2CellId, int s2Level, long rangeEnd) {
+        S2CellId firstS2CellRangeEnd = new S2CellId(rangeEnd);
+        if (firstS2CellRangeEnd.face() < s2CellId.face() || !firstS2CellRangeEnd.isValid()) {
             // Fix this if it becomes an issue.
             throw new IllegalStateException("firstS2CellId=" + s2CellId
                     + ", childEnd(" + s2Level + ") produced an unsupported"
                     + " value=" + firstS2CellRangeEnd);
         }
-        return new Pair<>(firstS2CellRangeStart, firstS2CellRangeEnd);
     }
 
     private static void checkCellIdIsAtLevel(S2CellId cellId, int s2Level) {
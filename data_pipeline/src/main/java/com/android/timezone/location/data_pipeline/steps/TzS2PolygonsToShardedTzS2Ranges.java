@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+import com.google.common.base.Stopwatch;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An executable class that does the work of {@link TzS2PolygonsToTzS2CellUnions},
+ * {@link TzS2CellUnionsToTzS2Ranges} and {@link MergeTzS2Ranges} for some of the shards of the
+ * sphere, so that the work can be split between processes, see {@link RunShardedDataPipeline}.
+ *
+ * <p>The shards are the S2 cells at a shard S2 level, e.g. the six faces at level 0. Shards are
+ * numbered in cell ID order and are assigned to processes round-robin, so each process gets
+ * shards from all over the sphere. Every zone's polygons are covered restricted to each of the
+ * process's shards that they intersect, which gives the same cells as covering the polygons whole.
+ * The ranges of each shard are merged and stored in a {@link TzS2Ranges} file, see
+ * {@link #getShardFile(File, S2CellId, ProtoStorageFormat)}. No file is stored for shards without
+ * ranges. Several processes share the output directory, so the input's LICENSE file is not copied
+ * to it: that is left to the caller.
+ *
+ * <p>See {@link #main(String[])} for usage.
+ */
+public final class TzS2PolygonsToShardedTzS2Ranges {
+
+    private final File mInputDir;
+
+    private final ProtoStorageFormat mProtoStorageFormat;
+
+    private final int mS2Level;
+
+    private final int mShardS2Level;
+
+    private final int mProcessIndex;
+
+    private final int mProcessCount;
+
+    private final File mOutputDir;
+
+    private TzS2PolygonsToShardedTzS2Ranges(File inputDir, ProtoStorageFormat protoStorageFormat,
+            int s2Level, int shardS2Level, int processIndex, int processCount, File outputDir) {
+        this.mInputDir = Objects.requireNonNull(inputDir);
+        this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        if (s2Level < 1 || s2Level > S2CellId.MAX_LEVEL) {
+            throw new IllegalArgumentException("Bad S2 level=" + s2Level);
+        }
+        this.mS2Level = s2Level;
+        if (shardS2Level < 0 || shardS2Level >= s2Level) {
+            throw new IllegalArgumentException("Bad shard S2 level=" + shardS2Level
+                    + ", must be in the range 0 to " + (s2Level - 1));
+        }
+        this.mShardS2Level = shardS2Level;
+        if (processCount < 1 || processIndex < 0 || processIndex >= processCount) {
+            throw new IllegalArgumentException(
+                    "processIndex=" + processIndex + ", processCount=" + processCount);
+        }
+        this.mProcessIndex = processIndex;
+        this.mProcessCount = processCount;
+        this.mOutputDir = Objects.requireNonNull(outputDir);
+    }
+
+    private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
+        @Parameter(names = "--input",
+                description = "The input directory containing the canonicalized TzS2Polygons"
+                        + " files",
+                required = true,
+                converter = FileConverter.class)
+        File inputDir;
+
+        @Parameter(names = "--s2-level",
+                description = "The S2 level of the ranges to produce",
+                required = true)
+        int s2Level;
+
+        @Parameter(names = "--shard-s2-level",
+                description = "The S2 level of the shard cells. 0 shards by face",
+                required = true)
+        int shardS2Level;
+
+        @Parameter(names = "--process-index",
+                description = "The index of this process, from 0 to --process-count - 1",
+                required = true)
+        int processIndex;
+
+        @Parameter(names = "--process-count",
+                description = "The number of processes the shards are divided between",
+                required = true)
+        int processCount;
+
+        @Parameter(names = "--output",
+                description = "The output directory to store the shards' TzS2Ranges files in",
+                required = true,
+                converter = FileConverter.class)
+        File outputDir;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+    }
+
+    /**
+     * See {@link TzS2PolygonsToShardedTzS2Ranges} for the purpose of this class.
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        arguments.outputDir.mkdirs();
+
+        TzS2PolygonsToShardedTzS2Ranges converter = new TzS2PolygonsToShardedTzS2Ranges(
+                arguments.inputDir, arguments.storageFormat, arguments.s2Level,
+                arguments.shardS2Level, arguments.processIndex, arguments.processCount,
+                arguments.outputDir);
+        StepMetrics.startStep(TzS2PolygonsToShardedTzS2Ranges.class.getSimpleName());
+        converter.execute();
+        StepMetrics.finishStep();
+        System.out.println("Proto I/O: " + IoStats.getSummary());
+        StepMetrics.finishRun(arguments.metricsFile);
+    }
+
+    private void execute() throws IOException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Set<S2CellId> shards = new HashSet<>(
+                getProcessShards(mShardS2Level, mProcessIndex, mProcessCount));
+        System.out.println("Process " + mProcessIndex + " of " + mProcessCount + " has "
+                + shards.size() + " shards at level " + mShardS2Level);
+
+        // All ranges share a TzIdSets so they can be merged.
+        TzIdSets tzIdSets = new TzIdSets();
+        Map<S2CellId, List<PackedTzS2Ranges>> rangesByShard = new TreeMap<>();
+        Set<String> knownTzIds = new HashSet<>();
+        for (File inputFile : TzS2Polygons.listFiles(mInputDir, mProtoStorageFormat)) {
+            StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+            TzS2Polygons tzS2Polygons = TzS2Polygons.load(inputFile, mProtoStorageFormat);
+            String tzId = tzS2Polygons.tzId;
+            if (!knownTzIds.add(tzId)) {
+                throw new IllegalStateException("Multiple entries found for: " + tzId);
+            }
+
+            // The cells of the zone's covering in each of this process's shards.
+            Map<S2CellId, ArrayList<S2CellId>> cellIdsByShard = new HashMap<>();
+            for (S2Polygon s2Polygon : tzS2Polygons.s2PolygonList) {
+                for (S2CellId shard : TzS2PolygonsToTzS2CellUnions.getIntersectingCells(
+                        s2Polygon, mShardS2Level)) {
+                    if (!shards.contains(shard)) {
+                        continue;
+                    }
+                    cellIdsByShard.computeIfAbsent(shard, x -> new ArrayList<>())
+                            .addAll(TzS2PolygonsToTzS2CellUnions.coverPolygonInCell(
+                                    tzId, s2Polygon, shard, mS2Level));
+                }
+            }
+            long cellCount = 0;
+            long rangeCount = 0;
+            for (Map.Entry<S2CellId, ArrayList<S2CellId>> entry : cellIdsByShard.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                S2CellUnion s2CellUnion = new S2CellUnion();
+                s2CellUnion.initFromCellIds(entry.getValue());
+                PackedTzS2Ranges zoneRanges = TzS2CellUnionsToTzS2Ranges.createTzS2Ranges(
+                        new TzS2CellUnion(tzId, s2CellUnion), mS2Level, tzIdSets);
+                rangesByShard.computeIfAbsent(entry.getKey(), x -> new ArrayList<>())
+                        .add(zoneRanges);
+                cellCount += s2CellUnion.size();
+                rangeCount += zoneRanges.size();
+            }
+            zoneTimer.setCellCount(cellCount);
+            zoneTimer.setRangeCount(rangeCount);
+            zoneTimer.finish(tzId);
+            System.out.println("Covered " + tzId + " in " + cellIdsByShard.size()
+                    + " shards, " + stopwatch.elapsed());
+        }
+
+        for (Map.Entry<S2CellId, List<PackedTzS2Ranges>> entry : rangesByShard.entrySet()) {
+            PackedTzS2Ranges shardRanges = MergeTzS2Ranges.mergeRanges(entry.getValue());
+            File shardFile = getShardFile(mOutputDir, entry.getKey(), mProtoStorageFormat);
+            System.out.println("Storing " + shardRanges.size() + " ranges in " + shardFile);
+            shardRanges.store(shardFile, mProtoStorageFormat, License.ODBL);
+        }
+        System.out.println("Stored " + rangesByShard.size() + " shards in " + stopwatch.elapsed());
+    }
+
+    /**
+     * Returns the shards at {@code shardS2Level} assigned to the process with index
+     * {@code processIndex}, in cell ID order.
+     */
+    static List<S2CellId> getProcessShards(int shardS2Level, int processIndex, int processCount) {
+        List<S2CellId> shards = new ArrayList<>();
+        int shardIndex = 0;
+        S2CellId end = S2CellId.end(shardS2Level);
+        for (S2CellId shard = S2CellId.begin(shardS2Level); !shard.equals(end);
+                shard = shard.next()) {
+            if (shardIndex % processCount == processIndex) {
+                shards.add(shard);
+            }
+            shardIndex++;
+        }
+        return shards;
+    }
+
+    /** Returns the file that the merged ranges of {@code shard} are stored in. */
+    static File getShardFile(File dir, S2CellId shard, ProtoStorageFormat storageFormat) {
+        return new File(dir, "shard_" + shard.toToken() + TzS2Ranges.getFileSuffix(storageFormat));
+    }
+}
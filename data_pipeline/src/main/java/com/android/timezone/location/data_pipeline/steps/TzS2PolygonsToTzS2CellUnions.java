@@ -22,16 +22,26 @@ import com.android.timezone.location.data_pipeline.steps.Types.Pair;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+import com.android.timezone.location.data_pipeline.util.IoStats;
 import com.android.timezone.location.data_pipeline.util.NamedFuture;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.converters.FileConverter;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.geometry.S2Cap;
+import com.google.common.geometry.S2Cell;
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2Region;
 import com.google.common.geometry.S2RegionCoverer;
+import com.google.common.hash.HashCode;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,12 +58,52 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * An executable class that takes a set of {@link TzS2Polygons} files and produces
- * {@link TzS2CellUnion} files, one per input file. See {@link #main(String[])} for usage.
+ * {@link TzS2CellUnion} files, one per input file. When a {@link StepCache} is used, the output
+ * for an input file that has not changed since an earlier run is copied from the cache instead of
+ * being created.
+ *
+ * <p>Each zone's output is written to a temporary file that is renamed into place, and recorded
+ * in a {@link StepCheckpoint} manifest in the output directory. A run that was interrupted can be
+ * restarted with --resume to skip the zones it completed. Output files of zones that are not in
+ * the input, e.g. left by an earlier run, are deleted. See {@link #main(String[])} for usage.
  */
 public final class TzS2PolygonsToTzS2CellUnions {
 
     private static final int MAX_CELL_UNION_CELLS = 1000000;
 
+    /**
+     * The number of levels above the maximum S2 level of the boundary level used by
+     * {@link CoveringStrategy#INTERIOR_BOUNDARY}.
+     */
+    private static final int BOUNDARY_LEVEL_OFFSET = 4;
+
+    /**
+     * The number of tasks per thread that the pieces of each polygon are divided into when
+     * covering a time zone in pieces.
+     */
+    private static final int TASKS_PER_THREAD = 8;
+
+    /** The strategies for covering the polygons of a time zone. All produce the same output. */
+    public enum CoveringStrategy {
+        /** Each time zone is covered by a single task. Time zones are covered in parallel. */
+        SEQUENTIAL,
+
+        /**
+         * Time zones are covered one at a time. Each polygon is split into pieces, the cells of a
+         * coarse covering, that are covered in parallel. Faster when a few large time zones
+         * dominate.
+         */
+        SPLIT,
+
+        /**
+         * Time zones are covered one at a time. Each polygon is first covered at a boundary level
+         * a few levels above the maximum S2 level. Cells the polygon contains are used as they
+         * are, and only the remaining cells along the polygon's boundary are refined, in
+         * parallel. This gives many small tasks of similar cost.
+         */
+        INTERIOR_BOUNDARY,
+    }
+
     private final File mInputDir;
 
     private final ExecutorService mExecutorService;
@@ -64,9 +114,18 @@ public final class TzS2PolygonsToTzS2CellUnions {
 
     private final ProtoStorageFormat mProtoStorageFormat;
 
+    private final CoveringStrategy mCoveringStrategy;
+
+    private final int mThreadCount;
+
+    private final StepCache mStepCache;
+
+    private final StepCheckpoint mCheckpoint;
+
     private TzS2PolygonsToTzS2CellUnions(
             File inputDir, ExecutorService executorService, File outputDir, int maxS2Level,
-            ProtoStorageFormat protoStorageFormat) {
+            ProtoStorageFormat protoStorageFormat, CoveringStrategy coveringStrategy,
+            int threadCount, StepCache stepCache, StepCheckpoint checkpoint) {
         this.mInputDir = Objects.requireNonNull(inputDir);
         this.mExecutorService = Objects.requireNonNull(executorService);
         this.mOutputDir = Objects.requireNonNull(outputDir);
@@ -75,9 +134,21 @@ public final class TzS2PolygonsToTzS2CellUnions {
         }
         this.mMaxS2Level = maxS2Level;
         this.mProtoStorageFormat = Objects.requireNonNull(protoStorageFormat);
+        this.mCoveringStrategy = Objects.requireNonNull(coveringStrategy);
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount=" + threadCount);
+        }
+        this.mThreadCount = threadCount;
+        // May be null.
+        this.mStepCache = stepCache;
+        this.mCheckpoint = Objects.requireNonNull(checkpoint);
     }
 
     private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read and write")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
         @Parameter(names = "--input",
                 description = "The input directory containing the TzS2Polygons files",
                 required = true,
@@ -100,6 +171,28 @@ public final class TzS2PolygonsToTzS2CellUnions {
                 required = true)
         int maxS2Level;
 
+        @Parameter(names = "--covering-strategy",
+                description = "How to cover the polygons of each time zone: SEQUENTIAL, SPLIT or"
+                        + " INTERIOR_BOUNDARY. The output is the same")
+        CoveringStrategy coveringStrategy = CoveringStrategy.SEQUENTIAL;
+
+        @Parameter(names = "--cache-dir",
+                description = "A directory to cache the output of each zone in, so that later"
+                        + " runs can skip the zones that have not changed",
+                converter = FileConverter.class)
+        File cacheDir;
+
+        @Parameter(names = "--resume",
+                description = "Skip the zones that an earlier, interrupted run with the same input"
+                        + " and options completed, as recorded in the output dir's checkpoint"
+                        + " manifest. Otherwise the manifest is started again")
+        boolean resume;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts, overall and per zone, to this file",
+                converter = FileConverter.class)
+        File metricsFile;
     }
 
     /**
@@ -116,18 +209,38 @@ public final class TzS2PolygonsToTzS2CellUnions {
         int threads = arguments.numThreads;
         File outputDir = arguments.outputDir;
         int maxS2Level = arguments.maxS2Level;
-        ProtoStorageFormat protoStorageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+        ProtoStorageFormat protoStorageFormat = arguments.storageFormat;
 
         outputDir.mkdirs();
 
+        StepCache stepCache = arguments.cacheDir == null
+                ? null : StepCache.open(arguments.cacheDir, TzS2PolygonsToTzS2CellUnions.class);
+
+        // The covering strategy is not an option of the checkpoint: the output is the same for
+        // every strategy.
+        StepCheckpoint checkpoint = StepCheckpoint.open(outputDir,
+                TzS2PolygonsToTzS2CellUnions.class, arguments.resume, protoStorageFormat,
+                maxS2Level);
+
         ExecutorService executorService = Executors.newFixedThreadPool(threads);
         TzS2PolygonsToTzS2CellUnions converter =
                 new TzS2PolygonsToTzS2CellUnions(inputDir, executorService, outputDir, maxS2Level,
-                        protoStorageFormat);
+                        protoStorageFormat, arguments.coveringStrategy, threads, stepCache,
+                        checkpoint);
 
         try {
+            StepMetrics.startStep(TzS2PolygonsToTzS2CellUnions.class.getSimpleName());
             converter.execute();
+            checkpoint.deleteStaleOutputFiles(TzS2CellUnion.getFileSuffix(protoStorageFormat));
+            StepMetrics.finishStep();
+            System.out.println("Proto I/O: " + IoStats.getSummary());
+            if (stepCache != null) {
+                System.out.println("Step cache: " + stepCache.getSummary());
+            }
+            System.out.println("Checkpoint: " + checkpoint.getSummary());
+            StepMetrics.finishRun(arguments.metricsFile);
         } finally {
+            checkpoint.close();
             System.out.println("Waiting for shutdown");
             executorService.shutdown();
             executorService.awaitTermination(5, TimeUnit.SECONDS);
@@ -138,6 +251,15 @@ public final class TzS2PolygonsToTzS2CellUnions {
         LicenseSupport.copyLicenseFile(mInputDir, mOutputDir);
 
         List<File> inputFiles = TzS2Polygons.listFiles(mInputDir, mProtoStorageFormat);
+        if (mCoveringStrategy != CoveringStrategy.SEQUENTIAL) {
+            executeOneZoneAtATime(inputFiles);
+        } else {
+            executeInParallel(inputFiles);
+        }
+    }
+
+    /** Processes the input files in parallel, covering each time zone's polygons on one thread. */
+    private void executeInParallel(List<File> inputFiles) {
         List<NamedFuture<Pair<String, File>>> futures = new ArrayList<>();
         for (File file : inputFiles) {
             Future<Pair<String, File>> future =
@@ -164,23 +286,130 @@ public final class TzS2PolygonsToTzS2CellUnions {
         }
     }
 
+    /**
+     * Processes the input files one at a time, using all threads to cover each time zone's
+     * polygons.
+     */
+    private void executeOneZoneAtATime(List<File> inputFiles) throws Exception {
+        Set<String> knownTzIds = new HashSet<>();
+        for (File file : inputFiles) {
+            StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+            HashCode inputHash = StepCache.hashFile(file);
+            Pair<String, File> existingOutput = getExistingOutput(file, inputHash);
+            if (existingOutput != null) {
+                if (!knownTzIds.add(existingOutput.a)) {
+                    throw new IllegalStateException(
+                            "Multiple entries found for: " + existingOutput.a);
+                }
+                zoneTimer.finish(existingOutput.a);
+                continue;
+            }
+            TzS2Polygons tzS2Polygons = TzS2Polygons.load(file, mProtoStorageFormat);
+            if (!knownTzIds.add(tzS2Polygons.tzId)) {
+                throw new IllegalStateException("Multiple entries found for: " + tzS2Polygons.tzId);
+            }
+            TzS2CellUnion tzS2CellUnion = createTzS2CellUnion(tzS2Polygons, mMaxS2Level,
+                    mCoveringStrategy, mExecutorService, mThreadCount);
+            storeOutput(tzS2CellUnion, mOutputDir, file, inputHash);
+            // The time is this thread's: the covering's CPU time on the other threads is only in
+            // the step's.
+            zoneTimer.setCellCount(tzS2CellUnion.s2CellUnion.size());
+            zoneTimer.finish(tzS2CellUnion.tzId);
+        }
+    }
+
     private Pair<String, File> processFile(
             File tzS2PolygonFile, int maxS2Level, File outputDir) throws IOException {
+        StepMetrics.sampleQueueDepth(mExecutorService);
+        StepMetrics.ZoneTimer zoneTimer = StepMetrics.startZone();
+        HashCode inputHash = StepCache.hashFile(tzS2PolygonFile);
+        Pair<String, File> existingOutput = getExistingOutput(tzS2PolygonFile, inputHash);
+        if (existingOutput != null) {
+            zoneTimer.finish(existingOutput.a);
+            return existingOutput;
+        }
         TzS2Polygons tzS2Polygons = TzS2Polygons.load(tzS2PolygonFile, mProtoStorageFormat);
         TzS2CellUnion tzS2CellUnion = createTzS2CellUnion(tzS2Polygons, maxS2Level);
+        File outputFile = storeOutput(tzS2CellUnion, outputDir, tzS2PolygonFile, inputHash);
+        zoneTimer.setCellCount(tzS2CellUnion.s2CellUnion.size());
+        zoneTimer.finish(tzS2Polygons.tzId);
+        return new Pair<>(tzS2Polygons.tzId, outputFile);
+    }
+
+    /**
+     * Returns the time zone ID and output file for {@code inputFile}, which has hash
+     * {@code inputHash}, if the output is already in the output dir from an interrupted run or
+     * can be copied from the step cache. Returns {@code null} if the output must be created.
+     */
+    private Pair<String, File> getExistingOutput(File inputFile, HashCode inputHash)
+            throws IOException {
+        Pair<String, File> completedOutput = mCheckpoint.getCompletedZone(inputFile, inputHash);
+        if (completedOutput != null) {
+            return completedOutput;
+        }
+        return restoreFromCache(inputFile, inputHash);
+    }
+
+    /**
+     * Returns the key of the output for an input with hash {@code inputHash} in the step cache, or
+     * {@code null} if there is no step cache. The covering strategy is not part of the key: the
+     * output is the same for every strategy.
+     */
+    private String getCacheKey(HashCode inputHash) {
+        if (mStepCache == null) {
+            return null;
+        }
+        return mStepCache.createKey(inputHash, mProtoStorageFormat, mMaxS2Level);
+    }
+
+    /**
+     * Copies the output for {@code inputFile} from the step cache if it is there. Returns the
+     * time zone ID and output file, or {@code null} if the output must be created.
+     */
+    private Pair<String, File> restoreFromCache(File inputFile, HashCode inputHash)
+            throws IOException {
+        String cacheKey = getCacheKey(inputHash);
+        if (cacheKey == null) {
+            return null;
+        }
+        String tzId = TzS2Polygons.loadTzId(inputFile, mProtoStorageFormat);
+        File outputFile = TzIds.createFile(
+                mOutputDir, tzId, TzS2CellUnion.getFileSuffix(mProtoStorageFormat));
+        File tempFile = StepCheckpoint.createTempFile(outputFile);
+        if (!mStepCache.restore(cacheKey, tempFile)) {
+            return null;
+        }
+        mCheckpoint.commit(inputFile, inputHash, tzId, tempFile, outputFile);
+        System.out.println("Restored " + outputFile + " from the step cache");
+        return new Pair<>(tzId, outputFile);
+    }
+
+    /**
+     * Stores {@code tzS2CellUnion}, the output for {@code inputFile}, and records it in the
+     * checkpoint. Adds it to the step cache if there is one.
+     */
+    private File storeOutput(TzS2CellUnion tzS2CellUnion, File outputDir, File inputFile,
+            HashCode inputHash) throws IOException {
         File outputFile = TzIds.createFile(
                 outputDir, tzS2CellUnion.tzId, TzS2CellUnion.getFileSuffix(mProtoStorageFormat));
-        TzS2CellUnion.store(tzS2CellUnion, outputFile, mProtoStorageFormat, License.ODBL);
-        return new Pair<>(tzS2Polygons.tzId, outputFile);
+        File tempFile = StepCheckpoint.createTempFile(outputFile);
+        TzS2CellUnion.store(tzS2CellUnion, tempFile, mProtoStorageFormat, License.ODBL);
+        mCheckpoint.commit(inputFile, inputHash, tzS2CellUnion.tzId, tempFile, outputFile);
+        String cacheKey = getCacheKey(inputHash);
+        if (cacheKey != null) {
+            mStepCache.store(cacheKey, outputFile);
+        }
+        return outputFile;
     }
 
-    private static TzS2CellUnion createTzS2CellUnion(TzS2Polygons tzPolygons, int maxS2Level) {
+    /**
+     * Creates a {@link TzS2CellUnion} covering {@code tzPolygons} with cells no higher than
+     * {@code maxS2Level}.
+     */
+    static TzS2CellUnion createTzS2CellUnion(TzS2Polygons tzPolygons, int maxS2Level) {
         Stopwatch stopwatch = Stopwatch.createStarted();
 
-        S2RegionCoverer s2RegionCovererQuad = new S2RegionCoverer();
-        s2RegionCovererQuad.setMinLevel(1);
-        s2RegionCovererQuad.setMaxLevel(maxS2Level);
-        s2RegionCovererQuad.setMaxCells(MAX_CELL_UNION_CELLS);
+        S2RegionCoverer s2RegionCovererQuad = createCoverer(maxS2Level, MAX_CELL_UNION_CELLS);
 
         List<S2Polygon> s2Polygons = tzPolygons.s2PolygonList;
         String tzId = tzPolygons.tzId;
@@ -189,15 +418,226 @@ public final class TzS2PolygonsToTzS2CellUnions {
             S2CellUnion covering = s2RegionCovererQuad.getCovering(s2Polygon);
             cellIds.addAll(covering.cellIds());
         }
-        if (cellIds.size() >= (MAX_CELL_UNION_CELLS * 95) / 100) {
-            System.err.println(
-                    "Possible overflow. for " + tzPolygons.tzId + "size=" + cellIds.size() + "...");
-            throw new IllegalStateException();
-        }
+        checkForOverflow(tzId, cellIds.size());
         S2CellUnion combinedCellUnion = new S2CellUnion();
         combinedCellUnion.initFromCellIds(cellIds);
         System.out.printf("Created S2CellUnion for %s containing %s cells at level %S in %s...\n",
                 tzId, cellIds.size(), maxS2Level, stopwatch.elapsed());
         return new TzS2CellUnion(tzId, combinedCellUnion);
     }
+
+    /**
+     * As {@link #createTzS2CellUnion(TzS2Polygons, int)} but covers each polygon in pieces using
+     * {@code executorService}, as described by {@code coveringStrategy}, which must not be
+     * {@link CoveringStrategy#SEQUENTIAL}.
+     *
+     * <p>Each piece is a cell that is covered separately by restricting the polygon to the cell,
+     * see {@link CellRestrictedRegion}. The pieces are disjoint, they include every cell of the
+     * polygon's covering, and the coverer makes the same decisions for the cells inside a piece as
+     * for the whole polygon, so the combined result is identical to covering the whole polygon.
+     * The overflow check applies to each piece rather than to the time zone as a whole.
+     *
+     * <p>Must not be called from a task running on {@code executorService}: it blocks waiting for
+     * tasks submitted to it.
+     */
+    static TzS2CellUnion createTzS2CellUnion(TzS2Polygons tzPolygons, int maxS2Level,
+            CoveringStrategy coveringStrategy, ExecutorService executorService, int threadCount)
+            throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        String tzId = tzPolygons.tzId;
+        ArrayList<S2CellId> cellIds = new ArrayList<>();
+        List<NamedFuture<List<S2CellId>>> futures = new ArrayList<>();
+        int pieceCount = 0;
+        for (S2Polygon s2Polygon : tzPolygons.s2PolygonList) {
+            ThreadConfinedPolygon threadConfinedPolygon = new ThreadConfinedPolygon(s2Polygon);
+            S2Polygon mainThreadPolygon = threadConfinedPolygon.get();
+            List<S2CellId> pieces;
+            switch (coveringStrategy) {
+                case SPLIT: {
+                    int maxPieces = Math.max(8, threadCount * 4);
+                    pieces = createCoverer(maxS2Level, maxPieces)
+                            .getCovering(mainThreadPolygon).cellIds();
+                    break;
+                }
+                case INTERIOR_BOUNDARY: {
+                    int boundaryLevel = Math.max(1, maxS2Level - BOUNDARY_LEVEL_OFFSET);
+                    S2CellUnion boundaryLevelCovering =
+                            createCoverer(boundaryLevel, MAX_CELL_UNION_CELLS)
+                                    .getCovering(mainThreadPolygon);
+                    checkForOverflow(tzId, boundaryLevelCovering.size());
+                    pieces = new ArrayList<>();
+                    for (S2CellId cellId : boundaryLevelCovering.cellIds()) {
+                        if (mainThreadPolygon.contains(new S2Cell(cellId))) {
+                            // Interior cells are part of the final covering as they are.
+                            cellIds.add(cellId);
+                        } else {
+                            pieces.add(cellId);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException(
+                            "Unsupported coveringStrategy=" + coveringStrategy);
+            }
+            pieceCount += pieces.size();
+
+            int piecesPerTask = Math.max(1, pieces.size() / (threadCount * TASKS_PER_THREAD));
+            for (List<S2CellId> taskPieces : Lists.partition(pieces, piecesPerTask)) {
+                Future<List<S2CellId>> future = executorService.submit(() -> coverPieces(
+                        tzId, threadConfinedPolygon, taskPieces, maxS2Level));
+                futures.add(new NamedFuture<>(taskPieces.get(0).toToken(), future));
+            }
+        }
+
+        for (NamedFuture<List<S2CellId>> future : futures) {
+            try {
+                cellIds.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(
+                        "Covering " + tzId + " failed for piece " + future.getName(), e.getCause());
+            }
+        }
+        S2CellUnion combinedCellUnion = new S2CellUnion();
+        combinedCellUnion.initFromCellIds(cellIds);
+        System.out.printf("Created S2CellUnion for %s containing %s cells at level %S from %s"
+                        + " pieces in %s...\n",
+                tzId, cellIds.size(), maxS2Level, pieceCount, stopwatch.elapsed());
+        return new TzS2CellUnion(tzId, combinedCellUnion);
+    }
+
+    private static List<S2CellId> coverPieces(String tzId,
+            ThreadConfinedPolygon threadConfinedPolygon, List<S2CellId> pieces, int maxS2Level) {
+        S2Polygon s2Polygon = threadConfinedPolygon.get();
+        S2RegionCoverer coverer = createCoverer(maxS2Level, MAX_CELL_UNION_CELLS);
+        List<S2CellId> cellIds = new ArrayList<>();
+        for (S2CellId piece : pieces) {
+            S2CellUnion covering =
+                    coverer.getCovering(new CellRestrictedRegion(s2Polygon, piece));
+            checkForOverflow(tzId, covering.size());
+            cellIds.addAll(covering.cellIds());
+        }
+        return cellIds;
+    }
+
+    /**
+     * Returns the cells of the covering of {@code s2Polygon}, with cells no higher than
+     * {@code maxS2Level}, that are inside the cell {@code cellId}. See
+     * {@link CellRestrictedRegion}: covering a polygon cell by cell gives the same cells as
+     * covering it whole. The overflow check applies to the cell's covering.
+     */
+    static List<S2CellId> coverPolygonInCell(
+            String tzId, S2Polygon s2Polygon, S2CellId cellId, int maxS2Level) {
+        S2CellUnion covering = createCoverer(maxS2Level, MAX_CELL_UNION_CELLS)
+                .getCovering(new CellRestrictedRegion(s2Polygon, cellId));
+        checkForOverflow(tzId, covering.size());
+        return covering.cellIds();
+    }
+
+    /** Returns the cells at {@code s2Level} that may intersect {@code s2Polygon}. */
+    static List<S2CellId> getIntersectingCells(S2Polygon s2Polygon, int s2Level) {
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        coverer.setMinLevel(s2Level);
+        coverer.setMaxLevel(s2Level);
+        coverer.setMaxCells(Integer.MAX_VALUE);
+        // The list form is not normalized, which would replace complete sets of children with
+        // their parent.
+        ArrayList<S2CellId> cellIds = new ArrayList<>();
+        coverer.getCovering(s2Polygon, cellIds);
+        return cellIds;
+    }
+
+    private static S2RegionCoverer createCoverer(int maxS2Level, int maxCells) {
+        S2RegionCoverer s2RegionCoverer = new S2RegionCoverer();
+        s2RegionCoverer.setMinLevel(1);
+        s2RegionCoverer.setMaxLevel(maxS2Level);
+        s2RegionCoverer.setMaxCells(maxCells);
+        return s2RegionCoverer;
+    }
+
+    /**
+     * Throws if a covering is close to the coverer's cell limit, in which case the coverer may
+     * have used larger cells than requested.
+     */
+    private static void checkForOverflow(String tzId, int cellCount) {
+        if (cellCount >= (MAX_CELL_UNION_CELLS * 95) / 100) {
+            System.err.println(
+                    "Possible overflow. for " + tzId + "size=" + cellCount + "...");
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Provides each thread with its own copy of a polygon. {@link S2Polygon} is not thread safe:
+     * {@link S2Loop} builds indexes lazily. The original polygon is only read when copying it.
+     */
+    private static final class ThreadConfinedPolygon {
+
+        private final ThreadLocal<S2Polygon> mCopies;
+
+        ThreadConfinedPolygon(S2Polygon s2Polygon) {
+            Objects.requireNonNull(s2Polygon);
+            mCopies = ThreadLocal.withInitial(() -> copyPolygon(s2Polygon));
+        }
+
+        /** Returns the calling thread's copy of the polygon. */
+        S2Polygon get() {
+            return mCopies.get();
+        }
+    }
+
+    /** Returns a copy of {@code s2Polygon} that shares no mutable state with it. */
+    private static S2Polygon copyPolygon(S2Polygon s2Polygon) {
+        List<S2Loop> s2Loops = new ArrayList<>(s2Polygon.numLoops());
+        for (int loopIndex = 0; loopIndex < s2Polygon.numLoops(); loopIndex++) {
+            S2Loop s2Loop = s2Polygon.loop(loopIndex);
+            List<S2Point> vertices = new ArrayList<>(s2Loop.numVertices());
+            for (int vertexIndex = 0; vertexIndex < s2Loop.numVertices(); vertexIndex++) {
+                vertices.add(s2Loop.vertex(vertexIndex));
+            }
+            s2Loops.add(new S2Loop(vertices));
+        }
+        return new S2Polygon(s2Loops);
+    }
+
+    /**
+     * The part of an {@link S2Polygon} inside an S2 cell. Cells inside the S2 cell are contained
+     * by / may intersect the region exactly when they are contained by / may intersect the
+     * polygon, so a covering of the region is the part of the polygon's covering inside the cell.
+     */
+    private static final class CellRestrictedRegion implements S2Region {
+
+        private final S2Polygon mS2Polygon;
+
+        private final S2CellId mCellId;
+
+        private final S2Cell mCell;
+
+        CellRestrictedRegion(S2Polygon s2Polygon, S2CellId cellId) {
+            mS2Polygon = Objects.requireNonNull(s2Polygon);
+            mCellId = Objects.requireNonNull(cellId);
+            mCell = new S2Cell(cellId);
+        }
+
+        @Override
+        public S2Cap getCapBound() {
+            return mCell.getCapBound();
+        }
+
+        @Override
+        public S2LatLngRect getRectBound() {
+            return mCell.getRectBound();
+        }
+
+        @Override
+        public boolean contains(S2Cell cell) {
+            return mCellId.contains(cell.id()) && mS2Polygon.contains(cell);
+        }
+
+        @Override
+        public boolean mayIntersect(S2Cell cell) {
+            return mCellId.intersects(cell.id()) && mS2Polygon.mayIntersect(cell);
+        }
+    }
 }
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps;
+
+import com.android.timezone.location.common.LicenseSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.RepeatedFieldReader;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.steps.proto.S2Protos;
+import com.android.timezone.location.data_pipeline.util.IoStats;
+import com.android.timezone.location.data_pipeline.util.StepMetrics;
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.tools.CreateTzS2File;
+import com.android.timezone.location.tools.proto.GeotzProtos;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
+import com.beust.jcommander.converters.FileConverter;
+import com.google.common.geometry.S2CellId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An executable class that takes a merged {@link TzS2Ranges} file and writes the Android tzs2
+ * data file directly, i.e. it does the work of {@link CreateTzS2ProtoDataFile} followed by
+ * {@link CreateTzS2File} without storing and parsing the {@link GeotzProtos.TimeZones} proto in
+ * between. The output is the same as when the two steps are run individually. The proto can
+ * still be written for debugging.
+ *
+ * <p>The ranges are read from the input file each time they are iterated over, so they are never
+ * all held in memory and the output of an out-of-core {@link MergeTzS2Ranges} can be converted.
+ *
+ * <p>Files for coarser S2 levels can be produced in the same run by coarsening the input ranges,
+ * see {@link PackedTzS2Ranges#coarsen(int)}, which avoids covering the zones again for each
+ * level. Coarsening needs all the ranges, so they are then loaded, about 20 bytes per range. A
+ * size and ambiguity report is printed for every file written.
+ *
+ * <p>See {@link #main(String[])} for usage.
+ */
+public final class TzS2RangesToTzS2File {
+
+    private final File mInputFile;
+
+    private final ProtoStorageFormat mInputProtoFormat;
+
+    private final int mS2Level;
+
+    private final File mOutputFile;
+
+    private final CreateTzS2File.WriterOptions mWriterOptions;
+
+    private final File mDebugProtoFile;
+
+    private final List<Integer> mCoarserS2Levels;
+
+    private final File mReportFile;
+
+    private TzS2RangesToTzS2File(File inputFile, ProtoStorageFormat inputProtoFormat, int s2Level,
+            File outputFile, CreateTzS2File.WriterOptions writerOptions, File debugProtoFile,
+            List<Integer> coarserS2Levels, File reportFile) {
+        this.mInputFile = Objects.requireNonNull(inputFile);
+        this.mInputProtoFormat = Objects.requireNonNull(inputProtoFormat);
+        this.mS2Level = s2Level;
+        this.mOutputFile = Objects.requireNonNull(outputFile);
+        this.mWriterOptions = Objects.requireNonNull(writerOptions);
+        // May be null.
+        this.mDebugProtoFile = debugProtoFile;
+        for (int coarserS2Level : coarserS2Levels) {
+            if (coarserS2Level < 0 || coarserS2Level >= s2Level) {
+                throw new IllegalArgumentException("Bad coarser S2 level=" + coarserS2Level
+                        + ", must be in the range 0 to " + (s2Level - 1));
+            }
+        }
+        this.mCoarserS2Levels = new ArrayList<>(coarserS2Levels);
+        // May be null.
+        this.mReportFile = reportFile;
+    }
+
+    private static class Arguments {
+        @Parameter(names = "--storage-format",
+                description = "The format of the proto files to read")
+        ProtoStorageFormat storageFormat = Types.DEFAULT_PROTO_STORAGE_FORMAT;
+
+        @Parameter(names = "--input-file",
+                description = "The input merged TzS2Ranges file",
+                required = true,
+                converter = FileConverter.class)
+        File inputFile;
+
+        @Parameter(names = "--s2-level",
+                description = "The S2 level of the input ranges",
+                required = true)
+        int s2Level;
+
+        @Parameter(names = "--output-file",
+                description = "The tzs2 data file to produce",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+
+        @Parameter(names = "--debug-proto-file",
+                description = "Also write the text proto that CreateTzS2ProtoDataFile would"
+                        + " produce to this file, for debugging",
+                converter = FileConverter.class)
+        File debugProtoFile;
+
+        @Parameter(names = "--coarser-s2-levels",
+                description = "Comma separated S2 levels, coarser than --s2-level, to also write"
+                        + " tzs2 data files for. Each file is written next to the output file"
+                        + " with the level added to its name, e.g. tzs2_l12.dat")
+        List<Integer> coarserS2Levels = new ArrayList<>();
+
+        @Parameter(names = "--report-file",
+                description = "Also write the size and ambiguity report of each file written to"
+                        + " this file",
+                converter = FileConverter.class)
+        File reportFile;
+
+        @Parameter(names = "--metrics-file",
+                description = "Also write a JSON report of the step's timing, memory, I/O and"
+                        + " counts to this file",
+                converter = FileConverter.class)
+        File metricsFile;
+
+        @ParametersDelegate
+        CreateTzS2File.WriterOptions writerOptions = new CreateTzS2File.WriterOptions();
+    }
+
+    /**
+     * See {@link TzS2RangesToTzS2File} for the purpose of this class.
+     *
+     * <p>Arguments:
+     * <ol>
+     *     <li>The input {@link TzS2Ranges} file to parse</li>
+     *     <li>The S2 level of the input ranges</li>
+     *     <li>The tzs2 data file to produce</li>
+     *     <li>Optionally, --debug-proto-file to also write the intermediate text proto</li>
+     *     <li>Optionally, --coarser-s2-levels to also write files for coarser S2 levels</li>
+     *     <li>Optionally, --report-file to store the size and ambiguity report</li>
+     *     <li>Optionally, --metrics-file to store a JSON report of the step's metrics</li>
+     *     <li>Optionally, any of the tzs2 data file options of {@link CreateTzS2File}</li>
+     * </ol>
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        arguments.outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        if (arguments.debugProtoFile != null) {
+            arguments.debugProtoFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+
+        TzS2RangesToTzS2File converter = new TzS2RangesToTzS2File(arguments.inputFile,
+                arguments.storageFormat, arguments.s2Level, arguments.outputFile,
+                arguments.writerOptions, arguments.debugProtoFile, arguments.coarserS2Levels,
+                arguments.reportFile);
+        StepMetrics.startStep(TzS2RangesToTzS2File.class.getSimpleName());
+        converter.execute();
+        StepMetrics.finishStep();
+        System.out.println("Proto I/O: " + IoStats.getSummary());
+        StepMetrics.finishRun(arguments.metricsFile);
+    }
+
+    private void execute() throws IOException {
+        if (mDebugProtoFile != null) {
+            CreateTzS2ProtoDataFile.convertStreaming(mInputFile, mInputProtoFormat,
+                    mDebugProtoFile, ProtoStorageFormat.TEXT, false /* delimitedOutput */);
+        }
+
+        File inputDir = mInputFile.getAbsoluteFile().getParentFile();
+        LicenseSupport.copyLicenseFile(inputDir, mOutputFile.getAbsoluteFile().getParentFile());
+        List<String> reportLines = new ArrayList<>();
+        // The ranges are read from the input file each time they are iterated over, so they are
+        // never all held in memory.
+        TzIdSets tzIdSets = new TzIdSets();
+        try (RangeInput ranges = new RangeInput(mInputFile, mInputProtoFormat, tzIdSets)) {
+            reportLines.add(writeTzS2File(ranges, mS2Level, mOutputFile, true /* countRanges */));
+        }
+
+        if (!mCoarserS2Levels.isEmpty()) {
+            // Coarsening needs all the ranges.
+            System.out.println("Reading " + mInputFile + " ...");
+            PackedTzS2Ranges coarserRanges =
+                    PackedTzS2Ranges.load(mInputFile, mInputProtoFormat, tzIdSets);
+            // Coarsen from the finest level to the coarsest so that each level is derived from
+            // the smallest input available. The result is the same as coarsening the input
+            // directly.
+            List<Integer> coarserS2Levels = new ArrayList<>(mCoarserS2Levels);
+            coarserS2Levels.sort(Comparator.reverseOrder());
+            for (int coarserS2Level : coarserS2Levels) {
+                System.out.println("Coarsening ranges to level " + coarserS2Level + " ...");
+                coarserRanges = coarserRanges.coarsen(coarserS2Level);
+                reportLines.add(writeTzS2File(asTzS2RangeIterable(coarserRanges), coarserS2Level,
+                        getCoarserOutputFile(mOutputFile, coarserS2Level),
+                        false /* countRanges */));
+            }
+        }
+
+        System.out.println("Report:");
+        reportLines.forEach(System.out::println);
+        if (mReportFile != null) {
+            Files.write(mReportFile.toPath(), reportLines, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Writes a tzs2 data file and returns a report line for it. If {@code countRanges} is
+     * {@code true}, the ranges are added to the step's metrics.
+     */
+    private String writeTzS2File(Iterable<TzS2Range> ranges, int s2Level, File outputFile,
+            boolean countRanges) throws IOException {
+        System.out.println("Writing " + outputFile + " ...");
+        CreateTzS2File.writeTzS2File(ranges, s2Level, outputFile, mWriterOptions);
+        return createReportLine(ranges, s2Level, outputFile, countRanges);
+    }
+
+    /**
+     * Returns the file to write for a coarser S2 level: the output file with "_l{level}" added
+     * before its extension, if any.
+     */
+    static File getCoarserOutputFile(File outputFile, int s2Level) {
+        String name = outputFile.getName();
+        int extensionIndex = name.lastIndexOf('.');
+        if (extensionIndex == -1) {
+            extensionIndex = name.length();
+        }
+        String coarserName = name.substring(0, extensionIndex) + "_l" + s2Level
+                + name.substring(extensionIndex);
+        return new File(outputFile.getAbsoluteFile().getParentFile(), coarserName);
+    }
+
+    /**
+     * Returns a line reporting the size of a tzs2 data file and how ambiguous its ranges are,
+     * i.e. how many ranges and cells are associated with more than one time zone ID.
+     */
+    private static String createReportLine(Iterable<TzS2Range> ranges, int s2Level,
+            File outputFile, boolean countRanges) {
+        long cellSize = S2CellId.lowestOnBitForLevel(s2Level) << 1;
+        long rangeCount = 0;
+        long multiZoneRangeCount = 0;
+        long cellCount = 0;
+        long multiZoneCellCount = 0;
+        for (TzS2Range range : ranges) {
+            long rangeCellCount = Long.divideUnsigned(
+                    range.getEndCellId() - range.getStartCellId(), cellSize);
+            rangeCount++;
+            cellCount += rangeCellCount;
+            if (range.getTzIdSet().size() > 1) {
+                multiZoneRangeCount++;
+                multiZoneCellCount += rangeCellCount;
+            }
+        }
+        if (countRanges) {
+            StepMetrics.addRangeCount(rangeCount);
+        }
+        return String.format(Locale.ROOT, "Level %d: %s, %d bytes, %d ranges, %d multi-zone ranges"
+                        + " (%.3f%%), %d cells, %d multi-zone cells (%.3f%%)",
+                s2Level, outputFile.getName(), outputFile.length(), rangeCount,
+                multiZoneRangeCount, percent(multiZoneRangeCount, rangeCount), cellCount,
+                multiZoneCellCount, percent(multiZoneCellCount, cellCount));
+    }
+
+    private static double percent(long numerator, long denominator) {
+        return denominator == 0 ? 0 : (100.0 * numerator) / denominator;
+    }
+
+    /**
+     * The ranges of a {@link TzS2Ranges} file, read one at a time as they are asked for, like
+     * {@link com.android.timezone.location.tools.CreateTzS2File}'s delimited input. Each call to
+     * {@link #iterator()} reads the file again. Iterators close the file when all the ranges have
+     * been read or reading fails, and {@link #close()} closes the files of the others. Time zone ID
+     * lists are interned in a {@link TzIdSets} so that ranges share them.
+     */
+    private static final class RangeInput implements Iterable<TzS2Range>, Closeable {
+
+        private final File mInputFile;
+
+        private final ProtoStorageFormat mStorageFormat;
+
+        private final TzIdSets mTzIdSets;
+
+        /** The iterators that have not closed their file yet. */
+        private final Set<RangeIterator> mOpenIterators = ConcurrentHashMap.newKeySet();
+
+        RangeInput(File inputFile, ProtoStorageFormat storageFormat, TzIdSets tzIdSets) {
+            mInputFile = Objects.requireNonNull(inputFile);
+            mStorageFormat = Objects.requireNonNull(storageFormat);
+            mTzIdSets = Objects.requireNonNull(tzIdSets);
+        }
+
+        @Override
+        public Iterator<TzS2Range> iterator() {
+            try {
+                return new RangeIterator(TzS2Ranges.openRangeReader(mInputFile, mStorageFormat));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failure while reading " + mInputFile, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RangeIterator rangeIterator : mOpenIterators) {
+                rangeIterator.close();
+            }
+        }
+
+        private final class RangeIterator implements Iterator<TzS2Range> {
+
+            private RepeatedFieldReader mReader;
+
+            private TzS2Range mNext;
+
+            RangeIterator(RepeatedFieldReader reader) {
+                mReader = reader;
+                mOpenIterators.add(this);
+                mNext = readNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public TzS2Range next() {
+                if (mNext == null) {
+                    throw new NoSuchElementException();
+                }
+                TzS2Range next = mNext;
+                mNext = readNext();
+                return next;
+            }
+
+            private TzS2Range readNext() {
+                if (mReader == null) {
+                    return null;
+                }
+                try {
+                    S2Protos.TzS2Range range = (S2Protos.TzS2Range) mReader.next();
+                    if (range == null) {
+                        close();
+                        return null;
+                    }
+                    List<String> tzIds = mTzIdSets.get(mTzIdSets.intern(range.getValuesList()));
+                    return new TzS2Range(range.getStartCellId(), range.getEndCellId(), tzIds);
+                } catch (IOException e) {
+                    closeAfterFailure(e);
+                    throw new UncheckedIOException("Failure while reading " + mInputFile, e);
+                } catch (RuntimeException e) {
+                    closeAfterFailure(e);
+                    throw e;
+                }
+            }
+
+            void close() throws IOException {
+                if (mReader != null) {
+                    mOpenIterators.remove(this);
+                    RepeatedFieldReader reader = mReader;
+                    mReader = null;
+                    reader.close();
+                }
+            }
+
+            private void closeAfterFailure(Exception failure) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a view of {@code ranges} as the {@link TzS2Range}s needed by the tzs2 data file
+     * writer. {@link TzS2Range}s are created as they are iterated over, so they are not all held
+     * in memory at once.
+     */
+    static Iterable<TzS2Range> asTzS2RangeIterable(PackedTzS2Ranges ranges) {
+        return () -> new Iterator<TzS2Range>() {
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < ranges.size();
+            }
+
+            @Override
+            public TzS2Range next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                TzS2Range range = new TzS2Range(ranges.getStartCellId(mIndex),
+                        ranges.getEndCellId(mIndex), ranges.getTzIds(mIndex));
+                mIndex++;
+                return range;
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the time spent loading and storing files in a process so that it can be reported
+ * at the end of a pipeline step. Times are summed across threads, so they can exceed the wall
+ * time of the step when files are read or written concurrently. This class is thread-safe.
+ */
+public final class IoStats {
+
+    private static final LongAdder sReadCount = new LongAdder();
+    private static final LongAdder sReadNanos = new LongAdder();
+    private static final LongAdder sReadBytes = new LongAdder();
+    private static final LongAdder sWriteCount = new LongAdder();
+    private static final LongAdder sWriteNanos = new LongAdder();
+    private static final LongAdder sWriteBytes = new LongAdder();
+
+    private IoStats() {
+    }
+
+    /** Records a file of {@code bytes} being loaded in {@code nanos}. */
+    public static void recordRead(long nanos, long bytes) {
+        sReadCount.increment();
+        sReadNanos.add(nanos);
+        sReadBytes.add(bytes);
+    }
+
+    /** Records a file of {@code bytes} being stored in {@code nanos}. */
+    public static void recordWrite(long nanos, long bytes) {
+        sWriteCount.increment();
+        sWriteNanos.add(nanos);
+        sWriteBytes.add(bytes);
+    }
+
+    /** Returns the number of files loaded so far. */
+    public static long getReadCount() {
+        return sReadCount.sum();
+    }
+
+    /** Returns the time spent loading files so far. */
+    public static long getReadNanos() {
+        return sReadNanos.sum();
+    }
+
+    /** Returns the size of the files loaded so far. */
+    public static long getReadBytes() {
+        return sReadBytes.sum();
+    }
+
+    /** Returns the number of files stored so far. */
+    public static long getWriteCount() {
+        return sWriteCount.sum();
+    }
+
+    /** Returns the time spent storing files so far. */
+    public static long getWriteNanos() {
+        return sWriteNanos.sum();
+    }
+
+    /** Returns the size of the files stored so far. */
+    public static long getWriteBytes() {
+        return sWriteBytes.sum();
+    }
+
+    /** Returns a human-readable summary of the I/O recorded so far. */
+    public static String getSummary() {
+        return "Read " + sReadCount.sum() + " files (" + sReadBytes.sum() + " bytes) in "
+                + Duration.ofNanos(sReadNanos.sum())
+                + ", wrote " + sWriteCount.sum() + " files (" + sWriteBytes.sum() + " bytes) in "
+                + Duration.ofNanos(sWriteNanos.sum());
+    }
+}
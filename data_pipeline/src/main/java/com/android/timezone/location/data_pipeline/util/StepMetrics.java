@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records the wall and CPU time, peak heap, I/O, executor queue depth and cell and range counts
+ * of the pipeline steps run in a process, and of the time zones they process, so that slow steps
+ * and zones can be found without reading logs. Each step and zone is emitted as a JFR event, see
+ * {@link StepEvent} and {@link ZoneEvent}, which costs nothing unless a recording is running,
+ * e.g. with {@code -XX:StartFlightRecording}. A JSON report of the steps can be written at the end
+ * of a run, see {@link #finishRun(File)}.
+ *
+ * <p>Like {@link IoStats}, the metrics are process-wide so that they can be recorded from any
+ * code a step runs. One step is recorded at a time; zones recorded while no step is in progress
+ * are ignored. This class is thread-safe.
+ */
+public final class StepMetrics {
+
+    /** The value of a count that was not recorded. */
+    private static final long NO_COUNT = -1;
+
+    private static final Object sLock = new Object();
+
+    /** The step in progress, if any. Guarded by {@link #sLock}. */
+    private static StepRecord sCurrentStep;
+
+    /** The steps finished since the last call to {@link #finishRun(File)}. Guarded by sLock. */
+    private static final List<StepRecord> sFinishedSteps = new ArrayList<>();
+
+    private StepMetrics() {
+    }
+
+    /**
+     * Starts recording the step with {@code stepName}. A step that is already in progress, e.g.
+     * because it failed, is discarded.
+     */
+    public static void startStep(String stepName) {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.isValid()) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+        StepRecord step = new StepRecord(stepName);
+        synchronized (sLock) {
+            sCurrentStep = step;
+        }
+        step.mEvent.begin();
+    }
+
+    /** Finishes recording the step in progress and emits its {@link StepEvent}. */
+    public static void finishStep() {
+        StepRecord step;
+        synchronized (sLock) {
+            step = sCurrentStep;
+            if (step == null) {
+                throw new IllegalStateException("No step in progress");
+            }
+            sCurrentStep = null;
+        }
+        step.finish();
+        synchronized (sLock) {
+            sFinishedSteps.add(step);
+        }
+        System.out.println("Step metrics: " + step.getSummary());
+    }
+
+    /**
+     * Starts timing the processing of a time zone on the current thread. Call
+     * {@link ZoneTimer#finish(String)} when done.
+     */
+    public static ZoneTimer startZone() {
+        return new ZoneTimer();
+    }
+
+    /**
+     * Samples the number of tasks waiting in {@code executorService}'s queue for the step in
+     * progress, which reports the maximum.
+     */
+    public static void sampleQueueDepth(ExecutorService executorService) {
+        if (!(executorService instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        int queueDepth = ((ThreadPoolExecutor) executorService).getQueue().size();
+        StepRecord step = getCurrentStep();
+        if (step != null) {
+            step.mMaxQueueDepth.accumulateAndGet(queueDepth, Math::max);
+        }
+    }
+
+    /** Adds to the number of cells produced by the step in progress, e.g. in a covering. */
+    public static void addCellCount(long cellCount) {
+        StepRecord step = getCurrentStep();
+        if (step != null) {
+            step.mCellCount.add(cellCount);
+        }
+    }
+
+    /** Adds to the number of ranges produced by the step in progress. */
+    public static void addRangeCount(long rangeCount) {
+        StepRecord step = getCurrentStep();
+        if (step != null) {
+            step.mRangeCount.add(rangeCount);
+        }
+    }
+
+    /**
+     * Ends a run: writes a JSON report of the steps finished since the last run to
+     * {@code reportFile}, if it is not {@code null}, and forgets them. Zones are listed slowest
+     * first.
+     */
+    public static void finishRun(File reportFile) throws IOException {
+        List<StepRecord> steps;
+        synchronized (sLock) {
+            steps = new ArrayList<>(sFinishedSteps);
+            sFinishedSteps.clear();
+        }
+        if (reportFile == null) {
+            return;
+        }
+        try (JsonGenerator generator = new JsonFactory()
+                .createGenerator(reportFile, JsonEncoding.UTF8)
+                .useDefaultPrettyPrinter()) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("steps");
+            for (StepRecord step : steps) {
+                step.writeJson(generator);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        System.out.println("Wrote step metrics to " + reportFile);
+    }
+
+    private static StepRecord getCurrentStep() {
+        synchronized (sLock) {
+            return sCurrentStep;
+        }
+    }
+
+    /** Times the processing of one time zone, see {@link #startZone()}. */
+    public static final class ZoneTimer {
+
+        private final StepRecord mStep;
+
+        private final ZoneEvent mEvent = new ZoneEvent();
+
+        private final long mStartNanos = System.nanoTime();
+
+        private final long mStartCpuNanos = getThreadCpuNanos();
+
+        private long mCellCount = NO_COUNT;
+
+        private long mRangeCount = NO_COUNT;
+
+        private ZoneTimer() {
+            mStep = getCurrentStep();
+            mEvent.begin();
+        }
+
+        /** Sets the number of cells produced for the zone, e.g. in its covering. */
+        public void setCellCount(long cellCount) {
+            mCellCount = cellCount;
+        }
+
+        /** Sets the number of ranges produced for the zone. */
+        public void setRangeCount(long rangeCount) {
+            mRangeCount = rangeCount;
+        }
+
+        /**
+         * Records the zone with {@code tzId} and emits its {@link ZoneEvent}. The CPU time is that
+         * of the current thread, so it excludes work the zone handed to other threads.
+         */
+        public void finish(String tzId) {
+            ZoneRecord zone = new ZoneRecord(tzId, System.nanoTime() - mStartNanos,
+                    getThreadCpuNanos() - mStartCpuNanos, mCellCount, mRangeCount);
+            mEvent.end();
+            if (mEvent.shouldCommit()) {
+                mEvent.step = mStep == null ? null : mStep.mStepName;
+                mEvent.tzId = tzId;
+                mEvent.cpuTime = zone.mCpuNanos;
+                mEvent.cellCount = mCellCount;
+                mEvent.rangeCount = mRangeCount;
+                mEvent.commit();
+            }
+            if (mStep != null) {
+                mStep.addZone(zone);
+                if (mCellCount != NO_COUNT) {
+                    mStep.mCellCount.add(mCellCount);
+                }
+                if (mRangeCount != NO_COUNT) {
+                    mStep.mRangeCount.add(mRangeCount);
+                }
+            }
+        }
+    }
+
+    /** The metrics of a step. */
+    private static final class StepRecord {
+
+        private final String mStepName;
+
+        private final StepEvent mEvent = new StepEvent();
+
+        private final Instant mStartTime = Instant.now();
+
+        private final long mStartNanos = System.nanoTime();
+
+        private final long mStartCpuNanos = getProcessCpuNanos();
+
+        private final long mStartReadCount = IoStats.getReadCount();
+
+        private final long mStartReadBytes = IoStats.getReadBytes();
+
+        private final long mStartReadNanos = IoStats.getReadNanos();
+
+        private final long mStartWriteCount = IoStats.getWriteCount();
+
+        private final long mStartWriteBytes = IoStats.getWriteBytes();
+
+        private final long mStartWriteNanos = IoStats.getWriteNanos();
+
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+        private final LongAdder mCellCount = new LongAdder();
+
+        private final LongAdder mRangeCount = new LongAdder();
+
+        /** Guarded by this. */
+        private final List<ZoneRecord> mZones = new ArrayList<>();
+
+        // Set by finish().
+        private long mWallNanos;
+        private long mCpuNanos;
+        private long mPeakHeapBytes;
+        private long mReadCount;
+        private long mReadBytes;
+        private long mReadNanos;
+        private long mWriteCount;
+        private long mWriteBytes;
+        private long mWriteNanos;
+
+        StepRecord(String stepName) {
+            mStepName = stepName;
+        }
+
+        synchronized void addZone(ZoneRecord zone) {
+            mZones.add(zone);
+        }
+
+        void finish() {
+            mWallNanos = System.nanoTime() - mStartNanos;
+            mCpuNanos = getProcessCpuNanos() - mStartCpuNanos;
+            mPeakHeapBytes = getPeakHeapBytes();
+            mReadCount = IoStats.getReadCount() - mStartReadCount;
+            mReadBytes = IoStats.getReadBytes() - mStartReadBytes;
+            mReadNanos = IoStats.getReadNanos() - mStartReadNanos;
+            mWriteCount = IoStats.getWriteCount() - mStartWriteCount;
+            mWriteBytes = IoStats.getWriteBytes() - mStartWriteBytes;
+            mWriteNanos = IoStats.getWriteNanos() - mStartWriteNanos;
+
+            mEvent.end();
+            if (mEvent.shouldCommit()) {
+                mEvent.step = mStepName;
+                mEvent.cpuTime = mCpuNanos;
+                mEvent.peakHeap = mPeakHeapBytes;
+                mEvent.bytesRead = mReadBytes;
+                mEvent.bytesWritten = mWriteBytes;
+                mEvent.maxQueueDepth = mMaxQueueDepth.get();
+                mEvent.zoneCount = getZones().size();
+                mEvent.cellCount = mCellCount.sum();
+                mEvent.rangeCount = mRangeCount.sum();
+                mEvent.commit();
+            }
+        }
+
+        synchronized List<ZoneRecord> getZones() {
+            return new ArrayList<>(mZones);
+        }
+
+        String getSummary() {
+            return mStepName + ": wall " + mWallNanos / 1_000_000 + " ms, CPU "
+                    + mCpuNanos / 1_000_000 + " ms, peak heap " + mPeakHeapBytes / (1024 * 1024)
+                    + " MB, " + getZones().size() + " zones, " + mCellCount.sum() + " cells, "
+                    + mRangeCount.sum() + " ranges, max queue depth " + mMaxQueueDepth.get();
+        }
+
+        void writeJson(JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("step", mStepName);
+            generator.writeStringField("startTime", mStartTime.toString());
+            generator.writeNumberField("wallNanos", mWallNanos);
+            generator.writeNumberField("cpuNanos", mCpuNanos);
+            generator.writeNumberField("peakHeapBytes", mPeakHeapBytes);
+            generator.writeNumberField("filesRead", mReadCount);
+            generator.writeNumberField("bytesRead", mReadBytes);
+            generator.writeNumberField("readNanos", mReadNanos);
+            generator.writeNumberField("filesWritten", mWriteCount);
+            generator.writeNumberField("bytesWritten", mWriteBytes);
+            generator.writeNumberField("writeNanos", mWriteNanos);
+            generator.writeNumberField("maxExecutorQueueDepth", mMaxQueueDepth.get());
+            generator.writeNumberField("cellCount", mCellCount.sum());
+            generator.writeNumberField("rangeCount", mRangeCount.sum());
+            List<ZoneRecord> zones = getZones();
+            zones.sort(Comparator.comparingLong((ZoneRecord zone) -> zone.mWallNanos).reversed());
+            generator.writeNumberField("zoneCount", zones.size());
+            generator.writeArrayFieldStart("zones");
+            for (ZoneRecord zone : zones) {
+                zone.writeJson(generator);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    /** The metrics of a time zone processed by a step. */
+    private static final class ZoneRecord {
+
+        private final String mTzId;
+        private final long mWallNanos;
+        private final long mCpuNanos;
+        private final long mCellCount;
+        private final long mRangeCount;
+
+        ZoneRecord(String tzId, long wallNanos, long cpuNanos, long cellCount, long rangeCount) {
+            mTzId = tzId;
+            mWallNanos = wallNanos;
+            mCpuNanos = cpuNanos;
+            mCellCount = cellCount;
+            mRangeCount = rangeCount;
+        }
+
+        void writeJson(JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("tzId", mTzId);
+            generator.writeNumberField("wallNanos", mWallNanos);
+            generator.writeNumberField("cpuNanos", mCpuNanos);
+            if (mCellCount != NO_COUNT) {
+                generator.writeNumberField("cellCount", mCellCount);
+            }
+            if (mRangeCount != NO_COUNT) {
+                generator.writeNumberField("rangeCount", mRangeCount);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /** Returns the CPU time used by the process, or 0 if the JVM does not report it. */
+    private static long getProcessCpuNanos() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0,
+                    ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime());
+        }
+        return 0;
+    }
+
+    /** Returns the CPU time used by the current thread, or 0 if the JVM does not report it. */
+    private static long getThreadCpuNanos() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            return Math.max(0, threadBean.getCurrentThreadCpuTime());
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the sum of the peak usage of the heap memory pools since the step started. The pools
+     * peak at different times, so this can exceed the true peak.
+     */
+    private static long getPeakHeapBytes() {
+        long peakHeapBytes = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.isValid()) {
+                peakHeapBytes += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeapBytes;
+    }
+
+    /** A JFR event for a pipeline step. The event's duration is the step's wall time. */
+    @Name("com.android.timezone.location.data_pipeline.Step")
+    @Label("Pipeline Step")
+    @Category("Time Zone Data Pipeline")
+    @Description("A step of the time zone geolocation data pipeline")
+    static final class StepEvent extends Event {
+
+        @Label("Step")
+        String step;
+
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTime;
+
+        @Label("Peak Heap")
+        @DataAmount
+        long peakHeap;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Max Executor Queue Depth")
+        int maxQueueDepth;
+
+        @Label("Zone Count")
+        int zoneCount;
+
+        @Label("Cell Count")
+        long cellCount;
+
+        @Label("Range Count")
+        long rangeCount;
+    }
+
+    /**
+     * A JFR event for a time zone processed by a pipeline step. The event's duration is the zone's
+     * wall time. Counts that were not recorded are -1.
+     */
+    @Name("com.android.timezone.location.data_pipeline.Zone")
+    @Label("Pipeline Zone")
+    @Category("Time Zone Data Pipeline")
+    @Description("A time zone processed by a step of the time zone geolocation data pipeline")
+    static final class ZoneEvent extends Event {
+
+        @Label("Step")
+        String step;
+
+        @Label("Time Zone ID")
+        String tzId;
+
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTime;
+
+        @Label("Cell Count")
+        long cellCount;
+
+        @Label("Range Count")
+        long rangeCount;
+    }
+}
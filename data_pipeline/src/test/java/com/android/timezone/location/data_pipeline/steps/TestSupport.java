@@ -20,6 +20,8 @@ import static com.android.timezone.location.common.LicenseSupport.LICENSE_FILE_N
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileVisitResult;
@@ -83,6 +85,86 @@ public final class TestSupport {
         return targetResourceFile;
     }
 
+    /**
+     * Copies a test resource shared by several tests, and the LICENSE file, to
+     * {@code targetDir}. Shared resources are stored in the {@link #TEST_DATA_RESOURCE_DIR} of
+     * this class.
+     */
+    public static Path copySharedTestResource(String testResource, Path targetDir)
+            throws IOException {
+        return copyTestResource(TestSupport.class, testResource, targetDir);
+    }
+
+    /** As {@link #copySharedTestResource(String, Path)} without the LICENSE file. */
+    public static Path copySharedTestResourceWithoutLicense(String testResource, Path targetDir)
+            throws IOException {
+        return copyTestResourceWithoutLicense(TestSupport.class, testResource, targetDir);
+    }
+
+    /**
+     * Copies the shared LICENSE file to {@code targetDir}, for test resources that are stored
+     * without one or created by the test.
+     */
+    public static Path copySharedLicense(Path targetDir) throws IOException {
+        return copySharedTestResourceWithoutLicense(LICENSE_FILE_NAME, targetDir);
+    }
+
+    /**
+     * Runs steps 1 to 5 of the data pipeline individually, as run-data-pipeline.sh does, writing
+     * the output of each step to the subdirectory of {@code stepsDir} that run-data-pipeline.sh
+     * uses, e.g. "canonicalized_tzs2polygons" or "tzs2cellunions_l12". Returns the merged ranges
+     * file written by step 5.
+     */
+    public static Path runStepsOneToFive(Path geoJsonFile, Path tzIdsFile,
+            String replacementThreshold, int s2Level, ProtoStorageFormat storageFormat,
+            Path stepsDir) throws Exception {
+        String storageFormatName = storageFormat.name();
+        Path polygonsDir = stepsDir.resolve("tzs2polygons");
+        GeoJsonTzToTzS2Polygons.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--geo-json", geoJsonFile.toString(),
+                "--num-threads", "2",
+                "--output", polygonsDir.toString(),
+        });
+        Path canonicalPolygonsDir = stepsDir.resolve("canonicalized_tzs2polygons");
+        Files.createDirectories(canonicalPolygonsDir);
+        CanonicalizeTzS2Polygons.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input", polygonsDir.toString(),
+                "--tz-ids", tzIdsFile.toString(),
+                "--replacement-threshold", replacementThreshold,
+                "--output", canonicalPolygonsDir.toString(),
+        });
+        Path cellUnionsDir = stepsDir.resolve("tzs2cellunions_l" + s2Level);
+        TzS2PolygonsToTzS2CellUnions.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input", canonicalPolygonsDir.toString(),
+                "--num-threads", "2",
+                "--output", cellUnionsDir.toString(),
+                "--max-s2-level", Integer.toString(s2Level),
+        });
+        Path rangesDir = stepsDir.resolve("tzs2ranges_l" + s2Level);
+        TzS2CellUnionsToTzS2Ranges.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input", cellUnionsDir.toString(),
+                "--num-threads", "2",
+                "--output", rangesDir.toString(),
+                "--s2-level", Integer.toString(s2Level),
+        });
+        Path mergeWorkingDir = stepsDir.resolve("mergedtzs2ranges_l" + s2Level);
+        Files.createDirectories(mergeWorkingDir);
+        Path mergedRangesFile = mergeWorkingDir.resolve(
+                "mergedtzs2ranges" + s2Level + storageFormat.getTypeSuffix());
+        MergeTzS2Ranges.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input", rangesDir.toString(),
+                "--num-threads", "2",
+                "--working-dir", mergeWorkingDir.toString(),
+                "--output-file", mergedRangesFile.toString(),
+        });
+        return mergedRangesFile;
+    }
+
     public static Path createTempDir(Class<?> testClass) throws IOException {
         return Files.createTempDirectory(testClass.getSimpleName());
     }
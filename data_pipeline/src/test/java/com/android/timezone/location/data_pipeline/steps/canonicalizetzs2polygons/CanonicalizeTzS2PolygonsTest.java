@@ -18,12 +18,13 @@ package com.android.timezone.location.data_pipeline.steps.canonicalizetzs2polygo
 
 import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResource;
 import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResourceWithoutLicense;
-import static com.android.timezone.location.data_pipeline.steps.Types.DEFAULT_PROTO_STORAGE_FORMAT;
 import static java.time.ZoneOffset.UTC;
 import static org.junit.Assert.assertEquals;
 
+import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.CanonicalizeTzS2Polygons;
 import com.android.timezone.location.data_pipeline.steps.TestSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
 
 import org.junit.After;
@@ -58,6 +59,20 @@ public final class CanonicalizeTzS2PolygonsTest {
      */
     @Test
     public void regressionTest() throws Exception {
+        checkRegression(ProtoStorageFormat.TEXT, 1);
+    }
+
+    /**
+     * As {@link #regressionTest()}, but with binary protos, whose time zone IDs are read without
+     * loading the polygons, and with several threads. The output must be the same.
+     */
+    @Test
+    public void regressionTest_binaryMultipleThreads() throws Exception {
+        checkRegression(ProtoStorageFormat.BINARY, 3);
+    }
+
+    private void checkRegression(ProtoStorageFormat storageFormat, int numThreads)
+            throws Exception {
         String[] inputTzS2PolygonsResources = {
                 "America_Argentina_Cordoba_tzs2polygons.prototxt",
                 "America_Argentina_Ushuaia_tzs2polygons.prototxt",
@@ -65,8 +80,11 @@ public final class CanonicalizeTzS2PolygonsTest {
         };
         Path inputPolysDirPath = mTempDirPath.resolve("input_polygons");
         for (String inputTzS2PolygonResource : inputTzS2PolygonsResources) {
-            copyTestResource(getClass(), "input_polygons/" + inputTzS2PolygonResource,
-                    inputPolysDirPath);
+            Path inputPolyFile = copyTestResource(getClass(),
+                    "input_polygons/" + inputTzS2PolygonResource, inputPolysDirPath);
+            if (storageFormat != ProtoStorageFormat.TEXT) {
+                convertPolyFile(inputPolyFile, storageFormat);
+            }
         }
 
         String inputTzIdsResource = "tzids.prototxt";
@@ -77,16 +95,18 @@ public final class CanonicalizeTzS2PolygonsTest {
         Files.createDirectory(outputDirPath);
 
         String[] args = {
+                "--storage-format", storageFormat.name(),
                 "--input", inputPolysDirPath.toAbsolutePath().toString(),
                 "--tz-ids", tzIdsFile.toAbsolutePath().toString(),
                 "--replacement-threshold",
                 LocalDateTime.of(2020, 1, 1, 0, 0, 0).toInstant(UTC).toString(),
+                "--num-threads", Integer.toString(numThreads),
                 "--output", outputDirPath.toAbsolutePath().toString()
         };
         CanonicalizeTzS2Polygons.main(args);
 
         List<File> outputPolygons =
-                TzS2Polygons.listFiles(outputDirPath.toFile(), DEFAULT_PROTO_STORAGE_FORMAT);
+                TzS2Polygons.listFiles(outputDirPath.toFile(), storageFormat);
         assertEquals(2, outputPolygons.size());
 
         Path expectedDirPath = mTempDirPath.resolve("expected");
@@ -95,21 +115,37 @@ public final class CanonicalizeTzS2PolygonsTest {
                 "America_Argentina_Buenos_Aires_tzs2polygons.prototxt",
         };
         for (String expectedTzS2PolygonsResource : expectedTzS2PolygonsResources) {
-            checkOutputPolyFile(outputDirPath, expectedDirPath, expectedTzS2PolygonsResource);
+            checkOutputPolyFile(outputDirPath, expectedDirPath, expectedTzS2PolygonsResource,
+                    storageFormat);
         }
     }
 
-    private void checkOutputPolyFile(
-            Path outputDirPath, Path expectedDirPath, String expectedTzS2PolygonResource)
+    /** Replaces a text TzS2Polygons file with one in {@code storageFormat}. */
+    private static void convertPolyFile(Path textPolyFile, ProtoStorageFormat storageFormat)
+            throws Exception {
+        TzS2Polygons tzS2Polygons =
+                TzS2Polygons.load(textPolyFile.toFile(), ProtoStorageFormat.TEXT);
+        Files.delete(textPolyFile);
+        String fileName = textPolyFile.getFileName().toString().replace(
+                TzS2Polygons.getFileSuffix(ProtoStorageFormat.TEXT),
+                TzS2Polygons.getFileSuffix(storageFormat));
+        TzS2Polygons.store(tzS2Polygons, textPolyFile.resolveSibling(fileName).toFile(),
+                storageFormat, License.ODBL);
+    }
+
+    private void checkOutputPolyFile(Path outputDirPath, Path expectedDirPath,
+            String expectedTzS2PolygonResource, ProtoStorageFormat storageFormat)
             throws Exception {
         String expectedPolyResource = "output_polygons/" + expectedTzS2PolygonResource;
         Path expectedPolyFile =
                 copyTestResource(getClass(), expectedPolyResource, expectedDirPath);
         TzS2Polygons expectedTzS2Polygons =
-                TzS2Polygons.load(expectedPolyFile.toFile(), DEFAULT_PROTO_STORAGE_FORMAT);
-        File actualTzS2PolygonsFile = new File(outputDirPath.toFile(), expectedTzS2PolygonResource);
-        TzS2Polygons actualTzS2Polygons =
-                TzS2Polygons.load(actualTzS2PolygonsFile, DEFAULT_PROTO_STORAGE_FORMAT);
+                TzS2Polygons.load(expectedPolyFile.toFile(), ProtoStorageFormat.TEXT);
+        String actualTzS2PolygonsFileName = expectedTzS2PolygonResource.replace(
+                TzS2Polygons.getFileSuffix(ProtoStorageFormat.TEXT),
+                TzS2Polygons.getFileSuffix(storageFormat));
+        File actualTzS2PolygonsFile = new File(outputDirPath.toFile(), actualTzS2PolygonsFileName);
+        TzS2Polygons actualTzS2Polygons = TzS2Polygons.load(actualTzS2PolygonsFile, storageFormat);
         assertEquals(expectedPolyFile + " is expected to match " + actualTzS2PolygonsFile,
                 expectedTzS2Polygons, actualTzS2Polygons);
     }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps.compacttzs2ranges;
+
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResourceWithoutLicense;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.timezone.location.common.LicenseSupport.License;
+import com.android.timezone.location.data_pipeline.steps.CompactTzS2Ranges;
+import com.android.timezone.location.data_pipeline.steps.TestSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.google.common.geometry.S2CellId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link CompactTzS2Ranges}.
+ *
+ * <p>The input contains, in order: a Europe/London range of 100 cells, a 2 cell Europe/London and
+ * Europe/Paris sliver, two adjacent Europe/London ranges of 50 and 10 cells, an isolated 1 cell
+ * Europe/Paris sliver, a Europe/Paris range of 30 cells and an adjacent 3 cell Europe/Madrid
+ * sliver.
+ */
+public final class CompactTzS2RangesTest {
+
+    private static final int S2_LEVEL = 10;
+
+    private Path mTempDirPath;
+
+    @Before
+    public void setUp() throws IOException {
+        mTempDirPath = TestSupport.createTempDir(this.getClass());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestSupport.deleteDirectory(mTempDirPath);
+    }
+
+    /** Checks that by default only adjacent ranges with the same time zone IDs are joined. */
+    @Test
+    public void joinsRangesWithSameTzIds() throws Exception {
+        List<String> reportLines = compact("joined_tzs2ranges.prototxt");
+
+        assertEquals(Arrays.asList("Ranges: 7 in, 6 out, 1 joined, 0 slivers absorbed",
+                "Changed cells: 0 of a budget of 0 (0.0 km2), max sliver cells 0"), reportLines);
+    }
+
+    /**
+     * Checks that only the 2 cell sliver fits the error budget. It is absorbed into the larger of
+     * its neighbours, which then joins the other. The smaller isolated sliver is kept.
+     */
+    @Test
+    public void absorbsSliversWithinErrorBudget() throws Exception {
+        List<String> reportLines = compact("compacted_one_sliver_tzs2ranges.prototxt",
+                "--max-sliver-cells", "3",
+                "--error-budget-cells", "2");
+
+        assertEquals(3, reportLines.size());
+        assertEquals("Ranges: 7 in, 4 out, 2 joined, 1 slivers absorbed", reportLines.get(0));
+        assertTrue(reportLines.get(1), reportLines.get(1).startsWith(
+                "Changed cells: 2 of a budget of 2 ("));
+        assertTrue(reportLines.get(2),
+                reportLines.get(2).startsWith("Europe/Paris: lost 2 cells ("));
+        assertTrue(reportLines.get(2), reportLines.get(2).contains(", gained 0 cells ("));
+    }
+
+    /** As {@link #absorbsSliversWithinErrorBudget()} with a budget that fits both slivers. */
+    @Test
+    public void absorbsSliversWithinErrorBudget_larger() throws Exception {
+        List<String> reportLines = compact("compacted_both_slivers_tzs2ranges.prototxt",
+                "--max-sliver-cells", "3",
+                "--error-budget-cells", "10");
+
+        assertEquals(4, reportLines.size());
+        assertEquals("Ranges: 7 in, 3 out, 2 joined, 2 slivers absorbed", reportLines.get(0));
+        assertTrue(reportLines.get(1), reportLines.get(1).startsWith(
+                "Changed cells: 5 of a budget of 10 ("));
+        assertTrue(reportLines.get(2),
+                reportLines.get(2).startsWith("Europe/Madrid: lost 3 cells ("));
+        assertTrue(reportLines.get(3), reportLines.get(3).startsWith("Europe/Paris: lost 2 cells"));
+        assertTrue(reportLines.get(3), reportLines.get(3).contains(", gained 3 cells ("));
+    }
+
+    /**
+     * Checks that a sliver that grows by absorbing another sliver does not stop smaller slivers
+     * being absorbed. The input is a Europe/London range of 3 cells, 1 cell Europe/Paris and
+     * Europe/London slivers, a 3 cell Europe/Paris range, a gap, and Europe/Madrid and Europe/Paris
+     * ranges of 4 cells. All the ranges are slivers.
+     */
+    @Test
+    public void absorbsSliversInSizeOrderWhenSliversGrow() throws Exception {
+        Path inputDirPath = mTempDirPath.resolve("input");
+        Path inputFilePath = inputDirPath.resolve("merged_tzs2ranges.prototxt");
+        TestSupport.copySharedLicense(inputDirPath);
+        storeRanges(inputFilePath, "Europe/London", 3, "Europe/Paris", 1, "Europe/London", 1,
+                "Europe/Paris", 3, null, 1, "Europe/Madrid", 4, "Europe/Paris", 4);
+        Path outputFilePath = mTempDirPath.resolve("output").resolve("compacted.prototxt");
+        Path reportFilePath = mTempDirPath.resolve("report.txt");
+
+        CompactTzS2Ranges.main(new String[] {
+                "--storage-format", ProtoStorageFormat.TEXT.name(),
+                "--input-file", inputFilePath.toAbsolutePath().toString(),
+                "--output-file", outputFilePath.toAbsolutePath().toString(),
+                "--report-file", reportFilePath.toAbsolutePath().toString(),
+                "--max-sliver-cells", "6",
+                "--error-budget-cells", "4",
+        });
+
+        // The 1 cell Europe/Paris sliver is absorbed into the larger Europe/London range, which
+        // joins the other sliver and grows to 5 cells. The 3 cell Europe/Paris range still fits
+        // the budget and is absorbed before the 4 cell ranges are considered.
+        Path expectedFilePath = mTempDirPath.resolve("expected").resolve("expected.prototxt");
+        TestSupport.copySharedLicense(expectedFilePath.getParent());
+        storeRanges(expectedFilePath,
+                "Europe/London", 8, null, 1, "Europe/Madrid", 4, "Europe/Paris", 4);
+        assertEquals(TzS2Ranges.load(expectedFilePath.toFile(), ProtoStorageFormat.TEXT),
+                TzS2Ranges.load(outputFilePath.toFile(), ProtoStorageFormat.TEXT));
+        assertEquals("Ranges: 6 in, 3 out, 1 joined, 2 slivers absorbed",
+                Files.readAllLines(reportFilePath).get(0));
+    }
+
+    /**
+     * Stores contiguous ranges of level {@link #S2_LEVEL} cells, starting at the first cell of the
+     * level. {@code rangeSpecs} are pairs of a time zone ID and a cell count. A {@code null} time
+     * zone ID is a gap.
+     */
+    private static void storeRanges(Path file, Object... rangeSpecs) throws IOException {
+        List<TzS2Range> ranges = new ArrayList<>();
+        S2CellId cellId = S2CellId.begin(S2_LEVEL);
+        for (int i = 0; i < rangeSpecs.length; i += 2) {
+            S2CellId endCellId = cellId;
+            for (int j = 0; j < (Integer) rangeSpecs[i + 1]; j++) {
+                endCellId = endCellId.next();
+            }
+            if (rangeSpecs[i] != null) {
+                ranges.add(new TzS2Range(
+                        Collections.singletonList((String) rangeSpecs[i]), cellId, endCellId));
+            }
+            cellId = endCellId;
+        }
+        TzS2Ranges.store(new TzS2Ranges(ranges), file.toFile(), ProtoStorageFormat.TEXT,
+                License.ODBL);
+    }
+
+    /**
+     * Runs {@link CompactTzS2Ranges} on the input resource with {@code extraArgs}, checks the
+     * output equals {@code expectedResource} and returns the report lines.
+     */
+    private List<String> compact(String expectedResource, String... extraArgs)
+            throws Exception {
+        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        Path inputDirPath = mTempDirPath.resolve("input");
+        TestSupport.copySharedLicense(inputDirPath);
+        Path inputFilePath = copyTestResourceWithoutLicense(
+                getClass(), "merged_tzs2ranges.prototxt", inputDirPath);
+        Path outputDirPath = mTempDirPath.resolve("output");
+        Path outputFilePath = outputDirPath.resolve("compacted_tzs2ranges.prototxt");
+        Path reportFilePath = mTempDirPath.resolve("report.txt");
+
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--storage-format", storageFormat.name(),
+                "--input-file", inputFilePath.toAbsolutePath().toString(),
+                "--output-file", outputFilePath.toAbsolutePath().toString(),
+                "--report-file", reportFilePath.toAbsolutePath().toString()));
+        args.addAll(Arrays.asList(extraArgs));
+        CompactTzS2Ranges.main(args.toArray(new String[0]));
+
+        Path expectedFilePath = copyTestResourceWithoutLicense(
+                getClass(), expectedResource, mTempDirPath.resolve("expected"));
+        assertEquals(TzS2Ranges.load(expectedFilePath.toFile(), storageFormat),
+                TzS2Ranges.load(outputFilePath.toFile(), storageFormat));
+        return Files.readAllLines(reportFilePath);
+    }
+}
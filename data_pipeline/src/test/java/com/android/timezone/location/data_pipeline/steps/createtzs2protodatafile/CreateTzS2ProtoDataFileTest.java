@@ -29,10 +29,16 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /** Tests for {@link CreateTzS2ProtoDataFile}. */
 public final class CreateTzS2ProtoDataFileTest {
@@ -55,23 +61,52 @@ public final class CreateTzS2ProtoDataFileTest {
      */
     @Test
     public void regressionTest() throws Exception {
+        checkRegression(false);
+    }
+
+    /** As {@link #regressionTest()} but for the length-delimited binary output. */
+    @Test
+    public void regressionTest_delimitedOutput() throws Exception {
+        checkRegression(true);
+    }
+
+    /** As {@link #regressionTest()} but reading the input twice instead of holding it. */
+    @Test
+    public void regressionTest_streaming() throws Exception {
+        checkRegression(false, "--streaming");
+    }
+
+    /** As {@link #regressionTest_delimitedOutput()} but reading the input twice. */
+    @Test
+    public void regressionTest_streamingDelimitedOutput() throws Exception {
+        checkRegression(true, "--streaming");
+    }
+
+    private void checkRegression(boolean delimitedOutput, String... extraArgs) throws Exception {
         String inputResource = "merged_tzs2ranges.prototxt";
         Path inputDirPath = mTempDirPath.resolve("input");
         Path inputFilePath = copyTestResource(getClass(), inputResource, inputDirPath);
 
         Path outputDirPath = mTempDirPath.resolve("output");
         Files.createDirectory(outputDirPath);
-        Path outputFilePath = outputDirPath.resolve("tzs2datafile.prototxt");
+        Path outputFilePath = outputDirPath.resolve(
+                delimitedOutput ? "tzs2datafile.bin" : "tzs2datafile.prototxt");
 
-        String[] args = {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--storage-format", "TEXT",
                 "--input-file", inputFilePath.toAbsolutePath().toString(),
-                "--output-file", outputFilePath.toAbsolutePath().toString()
-        };
-        CreateTzS2ProtoDataFile.main(args);
+                "--output-file", outputFilePath.toAbsolutePath().toString()));
+        if (delimitedOutput) {
+            args.add("--delimited-output");
+        }
+        args.addAll(Arrays.asList(extraArgs));
+        CreateTzS2ProtoDataFile.main(args.toArray(new String[0]));
 
         File actualOutputFile = outputFilePath.toFile();
         assertTrue("Expecting " + actualOutputFile + " to exist", actualOutputFile.exists());
-        GeotzProtos.TimeZones actual = loadTzS2ProtoDataFile(actualOutputFile);
+        GeotzProtos.TimeZones actual = delimitedOutput
+                ? loadDelimitedTzS2ProtoDataFile(actualOutputFile)
+                : loadTzS2ProtoDataFile(actualOutputFile);
 
         Path expectedDirPath = mTempDirPath.resolve("expected");
         Path expectedFilePath = copyTestResource(CreateTzS2ProtoDataFileTest.class,
@@ -82,6 +117,19 @@ public final class CreateTzS2ProtoDataFileTest {
         assertEquals(expected, actual);
     }
 
+    private GeotzProtos.TimeZones loadDelimitedTzS2ProtoDataFile(File file) throws Exception {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            GeotzProtos.TimeZones header = GeotzProtos.TimeZones.parseDelimitedFrom(inputStream);
+            assertEquals(0, header.getRangesCount());
+            GeotzProtos.TimeZones.Builder builder = header.toBuilder();
+            GeotzProtos.S2Range range;
+            while ((range = GeotzProtos.S2Range.parseDelimitedFrom(inputStream)) != null) {
+                builder.addRanges(range);
+            }
+            return builder.build();
+        }
+    }
+
     private GeotzProtos.TimeZones loadTzS2ProtoDataFile(File actualOutputFile) throws Exception {
         GeotzProtos.TimeZones.Builder builder = GeotzProtos.TimeZones.newBuilder();
         ProtoStorageFormat.TEXT.load(builder, actualOutputFile);
@@ -17,6 +17,8 @@
 package com.android.timezone.location.data_pipeline.steps.geojsontz_to_tzs2polygons;
 
 import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResource;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -32,7 +34,13 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /** Tests for {@link GeoJsonTzToTzS2Polygons}. */
 public final class GeoJsonTzToTzS2PolygonsTest {
@@ -55,6 +63,16 @@ public final class GeoJsonTzToTzS2PolygonsTest {
      */
     @Test
     public void regressionTest() throws Exception {
+        checkRegression(false /* zipped */);
+    }
+
+    /** As {@link #regressionTest()} but reading the geojson file from a zip file. */
+    @Test
+    public void regressionTest_zippedInput() throws Exception {
+        checkRegression(true /* zipped */);
+    }
+
+    private void checkRegression(boolean zipped) throws Exception {
         // A file containing just the polygons for Europe/London.
         // Created using timezone-boundary-builder:
         // node --max-old-space-size=8192 index.js --included_zones Europe/London
@@ -64,11 +82,15 @@ public final class GeoJsonTzToTzS2PolygonsTest {
 
         Path inputDirPath = mTempDirPath.resolve("input");
         Path inputFilePath = copyTestResource(getClass(), inputResource, inputDirPath);
+        if (zipped) {
+            inputFilePath = zip(inputFilePath, "combined.json");
+        }
 
         final int threads = 1;
         Path outputDirPath = mTempDirPath.resolve("output");
 
         String[] args = {
+                "--storage-format", storageFormat.name(),
                 "--geo-json", inputFilePath.toAbsolutePath().toString(),
                 "--num-threads", Integer.toString(threads),
                 "--output", outputDirPath.toAbsolutePath().toString()
@@ -89,4 +111,62 @@ public final class GeoJsonTzToTzS2PolygonsTest {
 
         assertEquals(expected, actual);
     }
+
+    /**
+     * Checks that the output of a zone whose feature has not changed is copied from the step
+     * cache. The cache entry is replaced after the first run so that its use can be seen.
+     */
+    @Test
+    public void stepCache() throws Exception {
+        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        Path inputFilePath = copyTestResource(
+                getClass(), "Europe_London.geojson", mTempDirPath.resolve("input"));
+        Path cacheDirPath = mTempDirPath.resolve("cache");
+        String outputFileName =
+                TzIds.fileNameSafe("Europe/London") + TzS2Polygons.getFileSuffix(storageFormat);
+
+        Path firstOutputDirPath = mTempDirPath.resolve("output1");
+        runWithCache(inputFilePath, storageFormat, cacheDirPath, firstOutputDirPath);
+        List<Path> cacheEntries = listFilesRecursively(cacheDirPath);
+        assertEquals(1, cacheEntries.size());
+        assertArrayEquals(Files.readAllBytes(firstOutputDirPath.resolve(outputFileName)),
+                Files.readAllBytes(cacheEntries.get(0)));
+
+        byte[] replacementBytes = "replaced".getBytes(UTF_8);
+        Files.write(cacheEntries.get(0), replacementBytes);
+        Path secondOutputDirPath = mTempDirPath.resolve("output2");
+        runWithCache(inputFilePath, storageFormat, cacheDirPath, secondOutputDirPath);
+        assertArrayEquals(replacementBytes,
+                Files.readAllBytes(secondOutputDirPath.resolve(outputFileName)));
+        assertEquals(1, listFilesRecursively(cacheDirPath).size());
+    }
+
+    private static void runWithCache(Path inputFilePath, ProtoStorageFormat storageFormat,
+            Path cacheDirPath, Path outputDirPath) throws Exception {
+        GeoJsonTzToTzS2Polygons.main(new String[] {
+                "--storage-format", storageFormat.name(),
+                "--geo-json", inputFilePath.toAbsolutePath().toString(),
+                "--num-threads", "1",
+                "--output", outputDirPath.toAbsolutePath().toString(),
+                "--cache-dir", cacheDirPath.toAbsolutePath().toString(),
+        });
+    }
+
+    private static List<Path> listFilesRecursively(Path dirPath) throws IOException {
+        try (Stream<Path> paths = Files.walk(dirPath)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    /** Creates a zip file next to {@code file} that holds its contents as {@code entryName}. */
+    private static Path zip(Path file, String entryName) throws IOException {
+        Path zipFile = file.resolveSibling(file.getFileName() + ".zip");
+        try (ZipOutputStream zipOutputStream =
+                new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            zipOutputStream.putNextEntry(new ZipEntry(entryName));
+            Files.copy(file, zipOutputStream);
+            zipOutputStream.closeEntry();
+        }
+        return zipFile;
+    }
 }
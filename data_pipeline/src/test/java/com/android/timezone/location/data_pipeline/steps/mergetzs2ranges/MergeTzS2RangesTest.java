@@ -18,8 +18,10 @@ package com.android.timezone.location.data_pipeline.steps.mergetzs2ranges;
 
 import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResource;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import com.android.timezone.location.common.LicenseSupport.License;
 import com.android.timezone.location.data_pipeline.steps.MergeTzS2Ranges;
 import com.android.timezone.location.data_pipeline.steps.TestSupport;
 import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
@@ -33,6 +35,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /** Tests for {@link MergeTzS2Ranges}. */
 public final class MergeTzS2RangesTest {
@@ -55,6 +60,30 @@ public final class MergeTzS2RangesTest {
      */
     @Test
     public void regressionTest() throws Exception {
+        checkRegression(ProtoStorageFormat.TEXT);
+    }
+
+    /** As {@link #regressionTest()} but with binary input and output files. */
+    @Test
+    public void regressionTest_binary() throws Exception {
+        checkRegression(ProtoStorageFormat.BINARY);
+    }
+
+    /**
+     * As {@link #regressionTest()} but merging out-of-core through run files in the working dir.
+     */
+    @Test
+    public void regressionTest_outOfCore() throws Exception {
+        checkRegression(ProtoStorageFormat.BINARY, "--memory-budget-mb", "1");
+
+        Path runDirPath = mTempDirPath.resolve("working").resolve("runs");
+        String[] runFiles = runDirPath.toFile().list();
+        assertNotNull(runFiles);
+        assertEquals("Expecting run files to be deleted", 0, runFiles.length);
+    }
+
+    private void checkRegression(ProtoStorageFormat storageFormat, String... extraArgs)
+            throws Exception {
         // Resources containing the ranges for Europe/London, Europe/Isle_of_Man and Europe/Paris.
         // Europe/Isle_of_Man and Europe/Paris overlap with Europe/London, but not each other. The
         // ranges for Europe/London, Europe/Isle_of_Man and Europe/Paris will have to be split to
@@ -62,12 +91,16 @@ public final class MergeTzS2RangesTest {
         String inputResource1 = "Europe_London_tzs2ranges.prototxt";
         String inputResource2 = "Europe_Isle_of_Man_tzs2ranges.prototxt";
         String inputResource3 = "Europe_Paris_tzs2ranges.prototxt";
-        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        ProtoStorageFormat resourceStorageFormat = ProtoStorageFormat.TEXT;
 
         Path inputDirPath = mTempDirPath.resolve("input");
-        copyTestResource(getClass(), inputResource1, inputDirPath);
-        copyTestResource(getClass(), inputResource2, inputDirPath);
-        copyTestResource(getClass(), inputResource3, inputDirPath);
+        String[] inputResources = { inputResource1, inputResource2, inputResource3 };
+        for (String inputResource : inputResources) {
+            Path inputFilePath = copyTestResource(getClass(), inputResource, inputDirPath);
+            if (storageFormat != resourceStorageFormat) {
+                convert(inputFilePath, resourceStorageFormat, storageFormat);
+            }
+        }
 
         String outputFileName = "merged" + TzS2Ranges.getFileSuffix(storageFormat);
 
@@ -79,13 +112,14 @@ public final class MergeTzS2RangesTest {
         Files.createDirectory(actualDirPath);
         Path actualFilePath = actualDirPath.resolve(outputFileName);
 
-        String[] args = {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--storage-format", storageFormat.name(),
                 "--input", inputDirPath.toAbsolutePath().toString(),
                 "--num-threads", Integer.toString(threads),
                 "--working-dir", workingDirPath.toAbsolutePath().toString(),
-                "--output-file", actualFilePath.toAbsolutePath().toString(),
-        };
-        MergeTzS2Ranges.main(args);
+                "--output-file", actualFilePath.toAbsolutePath().toString()));
+        args.addAll(Arrays.asList(extraArgs));
+        MergeTzS2Ranges.main(args.toArray(new String[0]));
 
         File actualFile = actualFilePath.toFile();
         assertTrue("Expecting " + actualFile + " to exist", actualFile.exists());
@@ -93,9 +127,22 @@ public final class MergeTzS2RangesTest {
         TzS2Ranges actual = TzS2Ranges.load(actualFile, storageFormat);
 
         Path expectedOutputDirPath = mTempDirPath.resolve("expected");
-        Path expectedOutputFilePath =
-                copyTestResource(getClass(), outputFileName, expectedOutputDirPath);
-        TzS2Ranges expected = TzS2Ranges.load(expectedOutputFilePath.toFile(), storageFormat);
+        Path expectedOutputFilePath = copyTestResource(getClass(),
+                "merged" + TzS2Ranges.getFileSuffix(resourceStorageFormat), expectedOutputDirPath);
+        TzS2Ranges expected =
+                TzS2Ranges.load(expectedOutputFilePath.toFile(), resourceStorageFormat);
         assertEquals(expected, actual);
     }
+
+    /** Stores the ranges in {@code filePath} in {@code toFormat} in the same directory. */
+    private static void convert(Path filePath, ProtoStorageFormat fromFormat,
+            ProtoStorageFormat toFormat) throws IOException {
+        TzS2Ranges ranges = TzS2Ranges.load(filePath.toFile(), fromFormat);
+        String fileName = filePath.getFileName().toString();
+        String baseName = fileName.substring(
+                0, fileName.length() - TzS2Ranges.getFileSuffix(fromFormat).length());
+        String convertedFileName = baseName + TzS2Ranges.getFileSuffix(toFormat);
+        TzS2Ranges.store(ranges, filePath.resolveSibling(convertedFileName).toFile(), toFormat,
+                License.ODBL);
+    }
 }
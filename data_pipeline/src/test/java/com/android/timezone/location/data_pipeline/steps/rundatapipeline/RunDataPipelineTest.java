@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps.rundatapipeline;
+
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResource;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResourceWithoutLicense;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.runStepsOneToFive;
+import static com.android.timezone.location.data_pipeline.steps.Types.DEFAULT_PROTO_STORAGE_FORMAT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.timezone.location.data_pipeline.steps.CreateTzS2ProtoDataFile;
+import com.android.timezone.location.data_pipeline.steps.RunDataPipeline;
+import com.android.timezone.location.data_pipeline.steps.TestSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Polygons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/** Tests for {@link RunDataPipeline}. */
+public final class RunDataPipelineTest {
+
+    private static final String REPLACEMENT_THRESHOLD = "2020-01-01T00:00:00.00Z";
+
+    private static final int S2_LEVEL = 12;
+
+    private Path mTempDirPath;
+
+    @Before
+    public void setUp() throws IOException {
+        mTempDirPath = TestSupport.createTempDir(this.getClass());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestSupport.deleteDirectory(mTempDirPath);
+    }
+
+    /**
+     * Runs the pipeline steps individually, as run-data-pipeline.sh does, and checks the single
+     * JVM pipeline produces the same output and intermediate files. The input contains time zones
+     * that must be combined during canonicalization and time zones that overlap.
+     */
+    @Test
+    public void matchesIndividualSteps() throws Exception {
+        checkMatchesIndividualSteps(DEFAULT_PROTO_STORAGE_FORMAT);
+    }
+
+    /** As {@link #matchesIndividualSteps()} with gzip compressed intermediate files. */
+    @Test
+    public void matchesIndividualSteps_gzip() throws Exception {
+        checkMatchesIndividualSteps(ProtoStorageFormat.BINARY_GZIP);
+    }
+
+    private void checkMatchesIndividualSteps(ProtoStorageFormat storageFormat) throws Exception {
+        String storageFormatName = storageFormat.name();
+        Path inputDirPath = mTempDirPath.resolve("input");
+        Path geoJsonFile = copySharedTestResource("boxes.geojson", inputDirPath);
+        Path tzIdsFile = copySharedTestResourceWithoutLicense(
+                "tzids.prototxt", mTempDirPath.resolve("tzids"));
+
+        // Run the steps individually.
+        Path stepsDirPath = mTempDirPath.resolve("steps");
+        Path mergedRangesFile = runStepsOneToFive(geoJsonFile, tzIdsFile, REPLACEMENT_THRESHOLD,
+                S2_LEVEL, storageFormat, stepsDirPath);
+        Path expectedOutputFile = stepsDirPath.resolve("output").resolve("tzs2fileinput.prototxt");
+        CreateTzS2ProtoDataFile.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input-file", mergedRangesFile.toString(),
+                "--output-file", expectedOutputFile.toString(),
+        });
+
+        // Run the single JVM pipeline.
+        Path intermediatesDirPath = mTempDirPath.resolve("intermediates");
+        Path actualOutputFile = mTempDirPath.resolve("output").resolve("tzs2fileinput.prototxt");
+        RunDataPipeline.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--geo-json", geoJsonFile.toString(),
+                "--tz-ids", tzIdsFile.toString(),
+                "--replacement-threshold", REPLACEMENT_THRESHOLD,
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--num-threads", "3",
+                "--output-file", actualOutputFile.toString(),
+                "--intermediates-dir", intermediatesDirPath.toString(),
+        });
+
+        assertArrayEquals(Files.readAllBytes(expectedOutputFile),
+                Files.readAllBytes(actualOutputFile));
+
+        // Spot check the intermediate files. The merged ranges are where run-data-pipeline.sh
+        // stores the output of step 5.
+        assertArrayEquals(Files.readAllBytes(mergedRangesFile),
+                Files.readAllBytes(intermediatesDirPath.resolve("mergedtzs2ranges_l" + S2_LEVEL)
+                        .resolve("mergedtzs2ranges" + S2_LEVEL + storageFormat.getTypeSuffix())));
+        assertTzS2PolygonsEqual(stepsDirPath.resolve("canonicalized_tzs2polygons"),
+                intermediatesDirPath.resolve("canonicalized_tzs2polygons"), storageFormat);
+        List<File> expectedCellUnionFiles = TzS2CellUnion.listFiles(
+                stepsDirPath.resolve("tzs2cellunions_l" + S2_LEVEL).toFile(), storageFormat);
+        List<File> actualCellUnionFiles = TzS2CellUnion.listFiles(
+                intermediatesDirPath.resolve("tzs2cellunions_l" + S2_LEVEL).toFile(),
+                storageFormat);
+        assertEquals(3, expectedCellUnionFiles.size());
+        assertEquals(expectedCellUnionFiles.size(), actualCellUnionFiles.size());
+        for (int i = 0; i < expectedCellUnionFiles.size(); i++) {
+            assertEquals(
+                    TzS2CellUnion.load(expectedCellUnionFiles.get(i), storageFormat),
+                    TzS2CellUnion.load(actualCellUnionFiles.get(i), storageFormat));
+        }
+    }
+
+    private static void assertTzS2PolygonsEqual(Path expectedDirPath, Path actualDirPath,
+            ProtoStorageFormat storageFormat) throws IOException {
+        List<File> expectedFiles =
+                TzS2Polygons.listFiles(expectedDirPath.toFile(), storageFormat);
+        List<File> actualFiles =
+                TzS2Polygons.listFiles(actualDirPath.toFile(), storageFormat);
+        assertEquals(expectedFiles.size(), actualFiles.size());
+        for (int i = 0; i < expectedFiles.size(); i++) {
+            assertEquals(expectedFiles.get(i).getName(), actualFiles.get(i).getName());
+            assertEquals(TzS2Polygons.load(expectedFiles.get(i), storageFormat),
+                    TzS2Polygons.load(actualFiles.get(i), storageFormat));
+        }
+    }
+}
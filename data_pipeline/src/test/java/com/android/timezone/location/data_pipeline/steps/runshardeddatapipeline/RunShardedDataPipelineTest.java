@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps.runshardeddatapipeline;
+
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResource;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResourceWithoutLicense;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.runStepsOneToFive;
+import static com.android.timezone.location.data_pipeline.steps.Types.DEFAULT_PROTO_STORAGE_FORMAT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.timezone.location.data_pipeline.steps.RunShardedDataPipeline;
+import com.android.timezone.location.data_pipeline.steps.TestSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.steps.TzS2RangesToTzS2File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Tests for {@link RunShardedDataPipeline}. */
+public final class RunShardedDataPipelineTest {
+
+    private static final String REPLACEMENT_THRESHOLD = "2020-01-01T00:00:00.00Z";
+
+    private static final int S2_LEVEL = 12;
+
+    private Path mTempDirPath;
+
+    @Before
+    public void setUp() throws IOException {
+        mTempDirPath = TestSupport.createTempDir(this.getClass());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestSupport.deleteDirectory(mTempDirPath);
+    }
+
+    /**
+     * Runs the steps individually, as run-data-pipeline.sh does, and checks the sharded pipeline
+     * produces the same tzs2 data file from the output of step 2. The shards are small enough that
+     * the time zones' polygons and ranges are split between several shards and both worker
+     * processes.
+     */
+    @Test
+    public void matchesIndividualSteps() throws Exception {
+        String storageFormatName = DEFAULT_PROTO_STORAGE_FORMAT.name();
+        Path inputDirPath = mTempDirPath.resolve("input");
+        Path geoJsonFile = copySharedTestResource("boxes.geojson", inputDirPath);
+        Path tzIdsFile = copySharedTestResourceWithoutLicense(
+                "tzids.prototxt", mTempDirPath.resolve("tzids"));
+
+        // Run the steps individually.
+        Path stepsDirPath = mTempDirPath.resolve("steps");
+        Path mergedRangesFile = runStepsOneToFive(geoJsonFile, tzIdsFile, REPLACEMENT_THRESHOLD,
+                S2_LEVEL, DEFAULT_PROTO_STORAGE_FORMAT, stepsDirPath);
+        Path expectedOutputFile = stepsDirPath.resolve("output").resolve("tzs2.dat");
+        TzS2RangesToTzS2File.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input-file", mergedRangesFile.toString(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", expectedOutputFile.toString(),
+        });
+
+        // Run the sharded pipeline on the output of step 2.
+        Path shardedWorkingDirPath = mTempDirPath.resolve("sharded");
+        Path actualOutputFile = mTempDirPath.resolve("output").resolve("tzs2.dat");
+        RunShardedDataPipeline.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input", stepsDirPath.resolve("canonicalized_tzs2polygons").toString(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--shard-s2-level", "6",
+                "--num-processes", "2",
+                "--working-dir", shardedWorkingDirPath.toString(),
+                "--output-file", actualOutputFile.toString(),
+        });
+
+        int shardFileCount = TzS2Ranges.listFiles(shardedWorkingDirPath.resolve("shards").toFile(),
+                DEFAULT_PROTO_STORAGE_FORMAT).size();
+        assertTrue("shardFileCount=" + shardFileCount, shardFileCount > 2);
+        assertArrayEquals(Files.readAllBytes(expectedOutputFile),
+                Files.readAllBytes(actualOutputFile));
+    }
+}
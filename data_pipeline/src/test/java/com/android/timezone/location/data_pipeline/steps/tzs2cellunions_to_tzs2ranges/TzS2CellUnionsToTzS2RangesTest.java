@@ -68,6 +68,7 @@ public final class TzS2CellUnionsToTzS2RangesTest {
         final int s2Level = 16;
 
         String[] args = {
+                "--storage-format", storageFormat.name(),
                 "--input", inputDirPath.toAbsolutePath().toString(),
                 "--num-threads", Integer.toString(threads),
                 "--output", outputDirPath.toAbsolutePath().toString(),
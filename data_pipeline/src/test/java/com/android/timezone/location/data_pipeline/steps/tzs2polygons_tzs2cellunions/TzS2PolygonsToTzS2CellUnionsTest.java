@@ -17,7 +17,10 @@
 package com.android.timezone.location.data_pipeline.steps.tzs2polygons_tzs2cellunions;
 
 import static com.android.timezone.location.data_pipeline.steps.TestSupport.copyTestResource;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.android.timezone.location.data_pipeline.steps.TestSupport;
@@ -25,6 +28,10 @@ import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageForma
 import com.android.timezone.location.data_pipeline.steps.Types.TzS2CellUnion;
 import com.android.timezone.location.data_pipeline.steps.TzIds;
 import com.android.timezone.location.data_pipeline.steps.TzS2PolygonsToTzS2CellUnions;
+import com.android.timezone.location.data_pipeline.steps.TzS2PolygonsToTzS2CellUnions.CoveringStrategy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.junit.After;
 import org.junit.Before;
@@ -32,7 +39,14 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Tests for {@link TzS2PolygonsToTzS2CellUnions}. */
 public final class TzS2PolygonsToTzS2CellUnionsTest {
@@ -55,6 +69,178 @@ public final class TzS2PolygonsToTzS2CellUnionsTest {
      */
     @Test
     public void regressionTest() throws Exception {
+        checkRegression(1 /* threads */, CoveringStrategy.SEQUENTIAL);
+    }
+
+    /**
+     * As {@link #regressionTest()} but with the covering of each polygon split into pieces, which
+     * must produce the same output.
+     */
+    @Test
+    public void regressionTest_splitCovering() throws Exception {
+        checkRegression(3 /* threads */, CoveringStrategy.SPLIT);
+    }
+
+    /**
+     * As {@link #regressionTest()} but with only the boundary cells of a coarser covering refined,
+     * which must produce the same output.
+     */
+    @Test
+    public void regressionTest_interiorBoundaryCovering() throws Exception {
+        checkRegression(3 /* threads */, CoveringStrategy.INTERIOR_BOUNDARY);
+    }
+
+    /**
+     * Checks that the output for an input file that has not changed is copied from the step
+     * cache. The cache entry is replaced after the first run so that its use can be seen.
+     */
+    @Test
+    public void stepCache() throws Exception {
+        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        Path inputDirPath = mTempDirPath.resolve("input");
+        copyTestResource(getClass(), "Europe_London_tzs2polygons.prototxt", inputDirPath);
+        Path cacheDirPath = mTempDirPath.resolve("cache");
+        String outputFileName =
+                TzIds.fileNameSafe("Europe/London") + TzS2CellUnion.getFileSuffix(storageFormat);
+
+        Path firstOutputDirPath = mTempDirPath.resolve("output1");
+        runWithCache(inputDirPath, storageFormat, cacheDirPath, firstOutputDirPath);
+        List<Path> cacheEntries = listFilesRecursively(cacheDirPath);
+        assertEquals(1, cacheEntries.size());
+        assertArrayEquals(Files.readAllBytes(firstOutputDirPath.resolve(outputFileName)),
+                Files.readAllBytes(cacheEntries.get(0)));
+
+        byte[] replacementBytes = "replaced".getBytes(UTF_8);
+        Files.write(cacheEntries.get(0), replacementBytes);
+        Path secondOutputDirPath = mTempDirPath.resolve("output2");
+        runWithCache(inputDirPath, storageFormat, cacheDirPath, secondOutputDirPath);
+        assertArrayEquals(replacementBytes,
+                Files.readAllBytes(secondOutputDirPath.resolve(outputFileName)));
+        assertEquals(1, listFilesRecursively(cacheDirPath).size());
+    }
+
+    /**
+     * Checks that a run with --resume skips the zones recorded as complete in the checkpoint
+     * manifest, even after a partial manifest line, and processes a zone again if its output has
+     * changed. Whether a zone was covered is seen in the cell count of the step's metrics.
+     */
+    @Test
+    public void resume() throws Exception {
+        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        Path inputDirPath = mTempDirPath.resolve("input");
+        copyTestResource(getClass(), "Europe_London_tzs2polygons.prototxt", inputDirPath);
+        Path outputDirPath = mTempDirPath.resolve("output");
+        Path outputFilePath = outputDirPath.resolve(
+                TzIds.fileNameSafe("Europe/London") + TzS2CellUnion.getFileSuffix(storageFormat));
+        Path manifestFilePath = outputDirPath.resolve("checkpoint_manifest.txt");
+        Path expectedFilePath = copyTestResource(getClass(),
+                "Europe_London_tzs2cellunion.prototxt", mTempDirPath.resolve("expected"));
+
+        assertTrue(runWithResume(inputDirPath, storageFormat, outputDirPath, false) > 0);
+        byte[] outputBytes = Files.readAllBytes(outputFilePath);
+        List<String> manifestLines = Files.readAllLines(manifestFilePath, UTF_8);
+        assertEquals(2, manifestLines.size());
+
+        // A run interrupted while appending to the manifest leaves a partial line.
+        Files.write(manifestFilePath, "Europe_Paris_tzs2polygons.prototxt\t0123".getBytes(UTF_8),
+                StandardOpenOption.APPEND);
+        assertEquals(0, runWithResume(inputDirPath, storageFormat, outputDirPath, true));
+        assertArrayEquals(outputBytes, Files.readAllBytes(outputFilePath));
+        assertEquals(manifestLines, Files.readAllLines(manifestFilePath, UTF_8));
+
+        Files.write(outputFilePath, "partial".getBytes(UTF_8));
+        assertTrue(runWithResume(inputDirPath, storageFormat, outputDirPath, true) > 0);
+        assertEquals(TzS2CellUnion.load(expectedFilePath.toFile(), storageFormat),
+                TzS2CellUnion.load(outputFilePath.toFile(), storageFormat));
+        assertEquals(3, Files.readAllLines(manifestFilePath, UTF_8).size());
+
+        // The output of a zone that is no longer in the input is deleted, so that the next step
+        // does not read it.
+        Path staleFilePath = outputDirPath.resolve(
+                TzIds.fileNameSafe("Europe/Paris") + TzS2CellUnion.getFileSuffix(storageFormat));
+        Files.copy(outputFilePath, staleFilePath);
+        assertEquals(0, runWithResume(inputDirPath, storageFormat, outputDirPath, true));
+        assertFalse(Files.exists(staleFilePath));
+        assertTrue(Files.exists(outputFilePath));
+    }
+
+    /** Runs the step, optionally with --resume, and returns the number of cells it created. */
+    private long runWithResume(Path inputDirPath, ProtoStorageFormat storageFormat,
+            Path outputDirPath, boolean resume) throws Exception {
+        Path metricsFilePath = mTempDirPath.resolve("metrics.json");
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--storage-format", storageFormat.name(),
+                "--input", inputDirPath.toAbsolutePath().toString(),
+                "--num-threads", "1",
+                "--output", outputDirPath.toAbsolutePath().toString(),
+                "--max-s2-level", "16",
+                "--metrics-file", metricsFilePath.toAbsolutePath().toString()));
+        if (resume) {
+            args.add("--resume");
+        }
+        TzS2PolygonsToTzS2CellUnions.main(args.toArray(new String[0]));
+        JsonNode steps = new ObjectMapper().readTree(metricsFilePath.toFile()).get("steps");
+        return steps.get(0).get("cellCount").asLong();
+    }
+
+    /** Checks the JSON report written with --metrics-file. */
+    @Test
+    public void metricsFile() throws Exception {
+        ProtoStorageFormat storageFormat = ProtoStorageFormat.TEXT;
+        Path inputDirPath = mTempDirPath.resolve("input");
+        Path inputFilePath = copyTestResource(
+                getClass(), "Europe_London_tzs2polygons.prototxt", inputDirPath);
+        Path outputDirPath = mTempDirPath.resolve("output");
+        Path metricsFilePath = mTempDirPath.resolve("metrics.json");
+
+        TzS2PolygonsToTzS2CellUnions.main(new String[] {
+                "--storage-format", storageFormat.name(),
+                "--input", inputDirPath.toAbsolutePath().toString(),
+                "--num-threads", "2",
+                "--output", outputDirPath.toAbsolutePath().toString(),
+                "--max-s2-level", "16",
+                "--metrics-file", metricsFilePath.toAbsolutePath().toString(),
+        });
+
+        TzS2CellUnion output = TzS2CellUnion.load(outputDirPath.resolve(
+                TzIds.fileNameSafe("Europe/London") + TzS2CellUnion.getFileSuffix(storageFormat))
+                .toFile(), storageFormat);
+        JsonNode steps = new ObjectMapper().readTree(metricsFilePath.toFile()).get("steps");
+        assertEquals(1, steps.size());
+        JsonNode step = steps.get(0);
+        assertEquals("TzS2PolygonsToTzS2CellUnions", step.get("step").asText());
+        assertTrue(step.get("wallNanos").asLong() > 0);
+        assertEquals(1, step.get("filesRead").asLong());
+        assertEquals(Files.size(inputFilePath), step.get("bytesRead").asLong());
+        assertEquals(1, step.get("filesWritten").asLong());
+        assertEquals(output.s2CellUnion.size(), step.get("cellCount").asLong());
+        assertEquals(1, step.get("zoneCount").asLong());
+
+        JsonNode zone = step.get("zones").get(0);
+        assertEquals("Europe/London", zone.get("tzId").asText());
+        assertEquals(output.s2CellUnion.size(), zone.get("cellCount").asLong());
+        assertFalse(zone.has("rangeCount"));
+    }
+
+    private static void runWithCache(Path inputDirPath, ProtoStorageFormat storageFormat,
+            Path cacheDirPath, Path outputDirPath) throws Exception {
+        TzS2PolygonsToTzS2CellUnions.main(new String[] {
+                "--storage-format", storageFormat.name(),
+                "--input", inputDirPath.toAbsolutePath().toString(),
+                "--num-threads", "1",
+                "--output", outputDirPath.toAbsolutePath().toString(),
+                "--max-s2-level", "16",
+                "--cache-dir", cacheDirPath.toAbsolutePath().toString(),
+        });
+    }
+
+    private static List<Path> listFilesRecursively(Path dirPath) throws IOException {
+        try (Stream<Path> paths = Files.walk(dirPath)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private void checkRegression(int threads, CoveringStrategy coveringStrategy) throws Exception {
         // A file containing just the polygons for Europe/London.
         String inputResource = "Europe_London_tzs2polygons.prototxt";
         String timeZoneId = "Europe/London";
@@ -63,15 +249,16 @@ public final class TzS2PolygonsToTzS2CellUnionsTest {
         Path inputDirPath = mTempDirPath.resolve("input");
         copyTestResource(getClass(), inputResource, inputDirPath);
 
-        final int threads = 1;
         Path outputDirPath = mTempDirPath.resolve("output");
         final int s2Level = 16;
 
         String[] args = {
+                "--storage-format", storageFormat.name(),
                 "--input", inputDirPath.toAbsolutePath().toString(),
                 "--num-threads", Integer.toString(threads),
                 "--output", outputDirPath.toAbsolutePath().toString(),
                 "--max-s2-level", Integer.toString(s2Level),
+                "--covering-strategy", coveringStrategy.name()
         };
         TzS2PolygonsToTzS2CellUnions.main(args);
 
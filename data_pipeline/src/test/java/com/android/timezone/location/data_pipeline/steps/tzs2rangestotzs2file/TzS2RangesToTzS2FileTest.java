@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.data_pipeline.steps.tzs2rangestotzs2file;
+
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResource;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.copySharedTestResourceWithoutLicense;
+import static com.android.timezone.location.data_pipeline.steps.TestSupport.runStepsOneToFive;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.timezone.location.data_pipeline.steps.CreateTzS2ProtoDataFile;
+import com.android.timezone.location.data_pipeline.steps.TestSupport;
+import com.android.timezone.location.data_pipeline.steps.Types.ProtoStorageFormat;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Range;
+import com.android.timezone.location.data_pipeline.steps.Types.TzS2Ranges;
+import com.android.timezone.location.data_pipeline.steps.TzS2RangesToTzS2File;
+import com.android.timezone.location.storage.tzs2range.read.TzS2RangeFileReader;
+import com.android.timezone.location.tools.CreateTzS2File;
+import com.google.common.geometry.S2CellId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/** Tests for {@link TzS2RangesToTzS2File}. */
+public final class TzS2RangesToTzS2FileTest {
+
+    private static final String REPLACEMENT_THRESHOLD = "2020-01-01T00:00:00.00Z";
+
+    private static final int S2_LEVEL = 16;
+
+    private Path mTempDirPath;
+
+    @Before
+    public void setUp() throws IOException {
+        mTempDirPath = TestSupport.createTempDir(this.getClass());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestSupport.deleteDirectory(mTempDirPath);
+    }
+
+    /**
+     * Runs {@link CreateTzS2ProtoDataFile} and {@link CreateTzS2File} individually, as
+     * run-data-pipeline.sh does, and checks the fused step produces the same tzs2 data file and
+     * debug proto.
+     */
+    @Test
+    public void matchesIndividualSteps() throws Exception {
+        checkMatchesIndividualSteps(ProtoStorageFormat.TEXT);
+    }
+
+    /** As {@link #matchesIndividualSteps()} but reading the ranges from a binary file. */
+    @Test
+    public void matchesIndividualSteps_binary() throws Exception {
+        checkMatchesIndividualSteps(ProtoStorageFormat.BINARY);
+    }
+
+    private void checkMatchesIndividualSteps(ProtoStorageFormat storageFormat) throws Exception {
+        String storageFormatName = storageFormat.name();
+        Path inputFilePath = createMergedRanges(storageFormat);
+
+        Path stepsDirPath = mTempDirPath.resolve("steps");
+        Files.createDirectory(stepsDirPath);
+        Path stepsProtoFilePath = stepsDirPath.resolve("tzs2datafile.prototxt");
+        CreateTzS2ProtoDataFile.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input-file", inputFilePath.toAbsolutePath().toString(),
+                "--output-file", stepsProtoFilePath.toAbsolutePath().toString(),
+        });
+        Path stepsTzS2FilePath = stepsDirPath.resolve("tzs2.dat");
+        CreateTzS2File.main(new String[] {
+                "--input-file", stepsProtoFilePath.toAbsolutePath().toString(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", stepsTzS2FilePath.toAbsolutePath().toString(),
+        });
+
+        Path fusedDirPath = mTempDirPath.resolve("fused");
+        Path fusedProtoFilePath = fusedDirPath.resolve("tzs2datafile.prototxt");
+        Path fusedTzS2FilePath = fusedDirPath.resolve("tzs2.dat");
+        TzS2RangesToTzS2File.main(new String[] {
+                "--storage-format", storageFormatName,
+                "--input-file", inputFilePath.toAbsolutePath().toString(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", fusedTzS2FilePath.toAbsolutePath().toString(),
+                "--debug-proto-file", fusedProtoFilePath.toAbsolutePath().toString(),
+        });
+
+        assertArrayEquals(Files.readAllBytes(stepsTzS2FilePath),
+                Files.readAllBytes(fusedTzS2FilePath));
+        assertArrayEquals(Files.readAllBytes(stepsProtoFilePath),
+                Files.readAllBytes(fusedProtoFilePath));
+    }
+
+    /**
+     * Checks files are written for coarser S2 levels and that every cell of a coarser file is
+     * associated with all the time zone IDs of the input ranges that overlap it.
+     */
+    @Test
+    public void coarserS2Levels() throws Exception {
+        Path inputFilePath = createMergedRanges(ProtoStorageFormat.TEXT);
+
+        Path outputDirPath = mTempDirPath.resolve("output");
+        Path outputFilePath = outputDirPath.resolve("tzs2.dat");
+        Path reportFilePath = outputDirPath.resolve("report.txt");
+        TzS2RangesToTzS2File.main(new String[] {
+                "--storage-format", "TEXT",
+                "--input-file", inputFilePath.toAbsolutePath().toString(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", outputFilePath.toAbsolutePath().toString(),
+                "--coarser-s2-levels", "12,14",
+                "--report-file", reportFilePath.toAbsolutePath().toString(),
+        });
+
+        List<String> reportLines = Files.readAllLines(reportFilePath);
+        assertEquals(3, reportLines.size());
+        assertTrue(reportLines.get(0), reportLines.get(0).startsWith("Level 16: tzs2.dat"));
+        assertTrue(reportLines.get(1), reportLines.get(1).startsWith("Level 14: tzs2_l14.dat"));
+        assertTrue(reportLines.get(2), reportLines.get(2).startsWith("Level 12: tzs2_l12.dat"));
+
+        TzS2Ranges inputRanges = TzS2Ranges.load(inputFilePath.toFile(), ProtoStorageFormat.TEXT);
+        for (int s2Level : new int[] { 12, 14 }) {
+            File coarserFile = outputDirPath.resolve("tzs2_l" + s2Level + ".dat").toFile();
+            try (TzS2RangeFileReader reader = TzS2RangeFileReader.open(coarserFile)) {
+                assertEquals(s2Level, reader.getS2Level());
+                for (TzS2Range inputRange : inputRanges.getAll()) {
+                    // Check the cells containing the first and last cells of the input range.
+                    checkCoarserCell(
+                            reader, inputRange.rangeStart.parent(s2Level), inputRange.tzIds);
+                    S2CellId lastCellId = new S2CellId(
+                            inputRange.rangeEnd.id() - inputRange.rangeStart.lowestOnBit() * 2);
+                    checkCoarserCell(reader, lastCellId.parent(s2Level), inputRange.tzIds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the merged ranges for the shared boxes.geojson test resource by running steps 1 to 5
+     * individually, and returns the file they were stored in.
+     */
+    private Path createMergedRanges(ProtoStorageFormat storageFormat) throws Exception {
+        Path inputDirPath = mTempDirPath.resolve("geojson");
+        Path geoJsonFile = copySharedTestResource("boxes.geojson", inputDirPath);
+        Path tzIdsFile = copySharedTestResourceWithoutLicense(
+                "tzids.prototxt", mTempDirPath.resolve("tzids"));
+        return runStepsOneToFive(geoJsonFile, tzIdsFile, REPLACEMENT_THRESHOLD, S2_LEVEL,
+                storageFormat, mTempDirPath.resolve("pipeline"));
+    }
+
+    private static void checkCoarserCell(TzS2RangeFileReader reader, S2CellId cellId,
+            List<String> expectedTzIds) throws IOException {
+        TzS2RangeFileReader.Entry entry = reader.findEntryByCellId(cellId.id());
+        assertNotNull("No entry for " + cellId, entry);
+        List<String> tzIds = entry.getTzS2Range().getTzIdSet();
+        assertTrue(cellId + ": " + tzIds + " does not contain " + expectedTzIds,
+                tzIds.containsAll(expectedTzIds));
+    }
+}
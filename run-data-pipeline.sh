@@ -53,6 +53,67 @@ ALLOW_WORKING_DIR_ROOT_EXISTS=0
 # output files from previous runs, which will then be processed by STEP2.
 STEP1_RESTRICT_TO_ZONES=
 
+# The format of the intermediate files written by steps 1 to 6: BINARY, BINARY_GZIP or TEXT.
+# TEXT is much slower but can be useful for debugging.
+PROTO_STORAGE_FORMAT=BINARY
+
+# Set to 1 to cache the per-zone output of steps 1, 3 and 4 in STEP_CACHE_DIR. Zones whose input,
+# options and step binary have not changed since an earlier run are copied from the cache instead
+# of being processed again, so a boundary release that only changes a few zones is quick to
+# rebuild. The cache is kept in the working dir: rerun with ALLOW_WORKING_DIR_ROOT_EXISTS=1 to use
+# it. The output dirs of steps 1 to 4 are emptied before each of them runs so that no output is
+# left over from zones that no longer exist. The cache can be deleted at any time. Not used when
+# SINGLE_JVM=1.
+USE_STEP_CACHE=1
+STEP_CACHE_DIR=${WORKING_DIR_ROOT}/step_cache
+
+# Set to 1 to run steps 1 to 6 in a single JVM (geotz_run_data_pipeline), passing data between
+# steps in memory. Intermediate files are still written to the working dir for debugging.
+# Ignores SKIP_TO_STEP values between 1 and 6.
+SINGLE_JVM=0
+
+# Set to 0 to run steps 6 and 7 individually. When 1, a single step
+# (geotz_tzs2ranges_to_tzs2file) converts the output of step 5 straight to the tzs2 data file
+# without storing and parsing the step 6 text proto. The output is the same.
+FUSE_STEPS_6_AND_7=1
+
+# Set to 1 to also write the step 6 text proto for debugging when steps 6 and 7 are fused.
+FUSED_STEPS_DEBUG_PROTO=0
+
+# Comma separated S2 levels coarser than S2_LEVEL, e.g. "12,14", to also create tzs2 data files
+# for when steps 6 and 7 are fused. They are derived from the S2_LEVEL ranges instead of running
+# steps 3 to 7 again, and are written next to tzs2.dat as tzs2_l{level}.dat. A size and ambiguity
+# report for every file is written to the working dir.
+COARSER_S2_LEVELS=
+
+# Set to 1 to compact the output of step 5 (geotz_compacttzs2ranges) before steps 6 and 7.
+# Adjacent ranges with the same time zone IDs are joined, and ranges of at most
+# COMPACT_MAX_SLIVER_CELLS cells are absorbed into an adjacent range while no more than
+# COMPACT_ERROR_BUDGET_CELLS cells in total change time zone IDs. This is lossy: the cells and area
+# each time zone ID loses and gains are reported in the working dir. Set COMPACT_MAX_SLIVER_CELLS=0
+# to only join ranges. Cannot be used with SINGLE_JVM=1. Not used when SHARDED=1.
+COMPACT_RANGES=0
+COMPACT_MAX_SLIVER_CELLS=4
+COMPACT_ERROR_BUDGET_CELLS=100000
+
+# Set to 1 to run steps 3 to 7 in SHARDED_PROCESS_COUNT local worker processes
+# (geotz_run_sharded_data_pipeline) for S2 levels where one JVM is not enough. Each worker covers,
+# ranges and merges a share of the S2 cells at SHARDED_SHARD_S2_LEVEL (0 shards by face, higher
+# levels balance better) with a heap of SHARDED_WORKER_HEAP_MB, and the shards are concatenated
+# into tzs2.dat. The output is the same. Ignores SKIP_TO_STEP values between 3 and 7 and does not
+# support COARSER_S2_LEVELS or USE_STEP_CACHE.
+SHARDED=0
+SHARDED_PROCESS_COUNT=4
+SHARDED_SHARD_S2_LEVEL=2
+SHARDED_WORKER_HEAP_MB=8192
+
+# Set to 1 to write a JSON report of each step's wall and CPU time, peak heap, proto I/O, executor
+# queue depth and cell / range counts, overall and per zone, to METRICS_DIR, e.g. step3.json.
+# The same metrics are recorded as JFR events, so a step run with -J-XX:StartFlightRecording can
+# also be inspected with JDK Mission Control.
+WRITE_STEP_METRICS=1
+METRICS_DIR=${WORKING_DIR_ROOT}/metrics
+
 
 if [ -d ${WORKING_DIR_ROOT} ]; then
   echo Working dir ${WORKING_DIR_ROOT} exists...
@@ -69,8 +130,41 @@ if (( ${SKIP_TO_STEP} > ${MAX_STEP_ID} )); then
   exit 1
 fi
 
+# The single JVM driver runs steps 1 to 6 without a point to compact the step 5 output at.
+if (( ${COMPACT_RANGES} == 1 && ${SINGLE_JVM} == 1 )); then
+  echo COMPACT_RANGES=1 cannot be used with SINGLE_JVM=1
+  exit 1
+fi
+
 JAVA_ARGS="-J-Xmx32G"
 
+# When set, steps 5 to 7 merge and convert ranges out-of-core: step 5 spills ranges to run files
+# and keeps its merge buffers within this many MB, step 6 streams its input and writes
+# length-delimited output, and step 7 reads it lazily. Steps 5 and 6 then run with a heap of this
+# many MB plus OUT_OF_CORE_HEAP_HEADROOM_MB instead of JAVA_ARGS. Empty merges in memory.
+# With SINGLE_JVM=1, steps 1 to 6 still run in JAVA_ARGS and in memory, but write the
+# length-delimited step 6 output that step 7 then expects.
+# When steps 6 and 7 are fused (see FUSE_STEPS_6_AND_7), the fused step reads the step 5 output
+# lazily, as step 7 does, whether or not this is set. It only holds all the merged ranges, about 20
+# bytes per range, when COARSER_S2_LEVELS is set.
+OUT_OF_CORE_MEMORY_BUDGET_MB=
+OUT_OF_CORE_HEAP_HEADROOM_MB=256
+if [[ -n "${OUT_OF_CORE_MEMORY_BUDGET_MB}" ]]; then
+  OUT_OF_CORE_JAVA_ARGS="-J-Xmx$(( OUT_OF_CORE_MEMORY_BUDGET_MB + OUT_OF_CORE_HEAP_HEADROOM_MB ))M"
+else
+  OUT_OF_CORE_JAVA_ARGS="${JAVA_ARGS}"
+fi
+
+if (( ${USE_STEP_CACHE} == 1 )); then
+  STEP_CACHE_ARGS="--cache-dir ${STEP_CACHE_DIR}"
+else
+  STEP_CACHE_ARGS=
+fi
+
+if (( ${WRITE_STEP_METRICS} == 0 )); then
+  METRICS_DIR=
+fi
+
 STEP1_TARGET=geotz_geojsontz_to_tzs2polygons
 STEP1_CMD="${STEP1_TARGET} ${JAVA_ARGS}"
 STEP1_THREAD_COUNT=10
@@ -80,12 +174,23 @@ STEP2_TARGET=geotz_canonicalize_tzs2polygons
 STEP2_CMD="${STEP2_TARGET} ${JAVA_ARGS}"
 STEP2_TZIDS_FILE=${SYSTEM_TIMEZONE_DIR}/output_data/android/tzids.prototxt
 STEP2_REPLACEMENT_THREADHOLD=2020-01-01T00:00:00.00Z
+STEP2_THREAD_COUNT=5
 STEP2_WORKING_DIR=${WORKING_DIR_ROOT}/canonicalized_tzs2polygons
 
 STEP3_TARGET=geotz_tzs2polygons_to_tzs2cellunions
 STEP3_CMD="${STEP3_TARGET} ${JAVA_ARGS}"
 STEP3_THREAD_COUNT=5
 STEP3_WORKING_DIR=${WORKING_DIR_ROOT}/tzs2cellunions_l${S2_LEVEL}
+# SEQUENTIAL covers zones in parallel. SPLIT or INTERIOR_BOUNDARY cover one zone at a time
+# using all threads, which is useful with many cores when the largest zones dominate the step's
+# run time. The output is the same.
+STEP3_COVERING_STRATEGY=SEQUENTIAL
+# Set to 1 to resume step 3 after it was interrupted, e.g. by running out of memory or the machine
+# being preempted, with SKIP_TO_STEP=3 and ALLOW_WORKING_DIR_ROOT_EXISTS=1. The zones recorded as
+# complete in the checkpoint manifest in STEP3_WORKING_DIR are kept instead of being covered
+# again, and the outputs of zones no longer in the input are deleted so step 4 does not read them.
+# At most STEP3_THREAD_COUNT zones are covered at once, which bounds the memory used.
+STEP3_RESUME=0
 
 STEP4_TARGET=geotz_tzs2cellunions_to_tzs2ranges
 STEP4_CMD="${STEP4_TARGET} ${JAVA_ARGS}"
@@ -93,32 +198,73 @@ STEP4_THREAD_COUNT=10
 STEP4_WORKING_DIR=${WORKING_DIR_ROOT}/tzs2ranges_l${S2_LEVEL}
 
 STEP5_TARGET=geotz_mergetzs2ranges
-STEP5_CMD="${STEP5_TARGET} ${JAVA_ARGS}"
+STEP5_CMD="${STEP5_TARGET} ${OUT_OF_CORE_JAVA_ARGS}"
 STEP5_THREAD_COUNT=5
 STEP5_WORKING_DIR=${WORKING_DIR_ROOT}/mergedtzs2ranges_l${S2_LEVEL}
-STEP5_OUTPUT_FILE=${STEP5_WORKING_DIR}/mergedtzs2ranges${S2_LEVEL}.prototxt
+case ${PROTO_STORAGE_FORMAT} in
+  TEXT) PROTO_FILE_SUFFIX=.prototxt ;;
+  BINARY) PROTO_FILE_SUFFIX=.proto ;;
+  BINARY_GZIP) PROTO_FILE_SUFFIX=.proto.gz ;;
+  *) echo Unknown PROTO_STORAGE_FORMAT=${PROTO_STORAGE_FORMAT}; exit 1 ;;
+esac
+STEP5_OUTPUT_FILE=${STEP5_WORKING_DIR}/mergedtzs2ranges${S2_LEVEL}${PROTO_FILE_SUFFIX}
+
+COMPACT_TARGET=geotz_compacttzs2ranges
+COMPACT_CMD="${COMPACT_TARGET} ${JAVA_ARGS}"
+COMPACT_WORKING_DIR=${WORKING_DIR_ROOT}/compactedtzs2ranges_l${S2_LEVEL}
+COMPACT_OUTPUT_FILE=${COMPACT_WORKING_DIR}/compactedtzs2ranges${S2_LEVEL}${PROTO_FILE_SUFFIX}
+if (( ${COMPACT_RANGES} == 1 )); then
+  STEP6_INPUT_FILE=${COMPACT_OUTPUT_FILE}
+else
+  STEP6_INPUT_FILE=${STEP5_OUTPUT_FILE}
+fi
 
 STEP6_TARGET=geotz_createtzs2fileinput
-STEP6_CMD="${STEP6_TARGET} ${JAVA_ARGS}"
-STEP6_OUTPUT_FILE=${WORKING_DIR_ROOT}/tzs2fileinput/tzs2fileinput${S2_LEVEL}.prototxt
+STEP6_CMD="${STEP6_TARGET} ${OUT_OF_CORE_JAVA_ARGS}"
+if [[ -n "${OUT_OF_CORE_MEMORY_BUDGET_MB}" ]]; then
+  STEP6_OUTPUT_FILE=${WORKING_DIR_ROOT}/tzs2fileinput/tzs2fileinput${S2_LEVEL}.bin
+else
+  STEP6_OUTPUT_FILE=${WORKING_DIR_ROOT}/tzs2fileinput/tzs2fileinput${S2_LEVEL}.prototxt
+fi
+
+SINGLE_JVM_TARGET=geotz_run_data_pipeline
+SINGLE_JVM_CMD="${SINGLE_JVM_TARGET} ${JAVA_ARGS}"
+SINGLE_JVM_THREAD_COUNT=10
 
 STEP7_TARGET=geotz_createtzs2file
 STEP7_CMD="${STEP7_TARGET} ${JAVA_ARGS}"
 STEP7_OUTPUT_FILE=${OUTPUT_DATA_DIR}/tzs2.dat
 
+SHARDED_TARGET=geotz_run_sharded_data_pipeline
+SHARDED_CMD="${SHARDED_TARGET} ${JAVA_ARGS}"
+SHARDED_WORKING_DIR=${WORKING_DIR_ROOT}/sharded_l${S2_LEVEL}
+
+FUSED_STEPS_6_AND_7_TARGET=geotz_tzs2ranges_to_tzs2file
+FUSED_STEPS_6_AND_7_CMD="${FUSED_STEPS_6_AND_7_TARGET} ${JAVA_ARGS}"
+if (( ${FUSED_STEPS_DEBUG_PROTO} == 1 )); then
+  FUSED_STEPS_DEBUG_PROTO_FILE=${WORKING_DIR_ROOT}/tzs2fileinput/tzs2fileinput${S2_LEVEL}.prototxt
+fi
+
 BUILD_TARGETS=(\
   ${STEP1_TARGET} \
   ${STEP2_TARGET} \
   ${STEP3_TARGET} \
   ${STEP4_TARGET} \
   ${STEP5_TARGET} \
+  ${COMPACT_TARGET} \
   ${STEP6_TARGET} \
   ${STEP7_TARGET} \
+  ${FUSED_STEPS_6_AND_7_TARGET} \
+  ${SHARDED_TARGET} \
+  ${SINGLE_JVM_TARGET} \
 )
 
 echo ${0} starting at $(date --iso-8601=seconds)
 
 mkdir -p ${WORKING_DIR_ROOT}
+if [[ -n "${METRICS_DIR}" ]]; then
+  mkdir -p ${METRICS_DIR}
+fi
 
 # Build all step commands
 if (( ${SKIP_BUILD} == 1 )); then
@@ -132,41 +278,64 @@ else
   } &> ${LOG_FILE}
 fi
 
-# Step 0: Preparation, unpack the geojson file into the working dir.
+# Step 0: Preparation. The geojson file is read straight from the zip file by
+# steps that need it, which avoids unpacking it and holding every feature in
+# memory at once. The zip file has a LICENSE alongside it that will be copied
+# alongside data by subsequent steps.
 ZIPPED_BOUNDARY_FILE=${TZBB_DATA_DIR}/timezones.geojson.zip
 echo Starting step 0
-if (( ${SKIP_TO_STEP} <= 0 )); then
-  mkdir ${WORKING_DIR_ROOT}/dist
-  echo Unpacking ${ZIPPED_BOUNDARY_FILE} to ${WORKING_DIR_ROOT}/dist/...
-  unzip -o ${TZBB_DATA_DIR}/timezones.geojson.zip -d ${WORKING_DIR_ROOT}/dist/
-
-  # Ensure there's a LICENSE next to the boundary file. It will be copied
-  # alongside data by subsequent steps.
-  echo Copying LICENSE file to ${WORKING_DIR_ROOT}/dist/
-  cp ${TZBB_DATA_DIR}/LICENSE ${WORKING_DIR_ROOT}/dist/
-else
-  echo Skipping...
+if [ ! -f ${ZIPPED_BOUNDARY_FILE} ]; then
+  echo "${ZIPPED_BOUNDARY_FILE} not found"
+  exit 1
+fi
+if [ ! -f ${TZBB_DATA_DIR}/LICENSE ]; then
+  echo "${TZBB_DATA_DIR}/LICENSE not found"
+  exit 1
 fi
 echo Completed step 0
 
-UNZIPPED_BOUNDARY_FILE=${WORKING_DIR_ROOT}/dist/combined.json
-if [ ! -f ${UNZIPPED_BOUNDARY_FILE} ]; then
-  echo "${UNZIPPED_BOUNDARY_FILE} not found"
-  exit 1
+# Steps 1 to 6 in a single JVM
+if (( ${SINGLE_JVM} == 1 && ${SKIP_TO_STEP} <= 6 )); then
+  echo Starting steps 1 to 6 in a single JVM
+  LOG_FILE=${WORKING_DIR_ROOT}/steps1to6.log
+  echo Logging to ${LOG_FILE} ...
+  {
+    ${SINGLE_JVM_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
+      --geo-json ${ZIPPED_BOUNDARY_FILE} \
+      --tz-ids ${STEP2_TZIDS_FILE} \
+      --replacement-threshold ${STEP2_REPLACEMENT_THREADHOLD} \
+      --s2-level ${S2_LEVEL} \
+      --num-threads ${SINGLE_JVM_THREAD_COUNT} \
+      --output-file ${STEP6_OUTPUT_FILE} \
+      ${OUT_OF_CORE_MEMORY_BUDGET_MB:+--delimited-output} \
+      --intermediates-dir ${WORKING_DIR_ROOT} \
+      --merged-ranges-file ${STEP5_OUTPUT_FILE} \
+      --restrict-to-tz-ids "${STEP1_RESTRICT_TO_ZONES}" \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/steps1to6.json}
+  } &> ${LOG_FILE}
+  echo Completed steps 1 to 6
+  SKIP_TO_STEP=7
 fi
 
 # Step 1
 echo Starting step 1
 if (( ${SKIP_TO_STEP} <= 1 )); then
+  if (( ${USE_STEP_CACHE} == 1 )); then
+    rm -rf ${STEP1_WORKING_DIR}
+  fi
   mkdir -p ${STEP1_WORKING_DIR}
   LOG_FILE=${WORKING_DIR_ROOT}/step1.log
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP1_CMD} \
-        --geo-json ${UNZIPPED_BOUNDARY_FILE} \
+        --storage-format ${PROTO_STORAGE_FORMAT} \
+        --geo-json ${ZIPPED_BOUNDARY_FILE} \
         --num-threads ${STEP1_THREAD_COUNT} \
         --output ${STEP1_WORKING_DIR} \
-        --tz-ids "${STEP1_RESTRICT_TO_ZONES}"
+        --tz-ids "${STEP1_RESTRICT_TO_ZONES}" \
+        ${STEP_CACHE_ARGS} \
+        ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step1.json}
   } &> ${LOG_FILE}
 else
   echo Skipping...
@@ -176,33 +345,75 @@ echo Completed step 1
 # Step 2
 echo Starting step 2
 if (( ${SKIP_TO_STEP} <= 2 )); then
+  if (( ${USE_STEP_CACHE} == 1 )); then
+    rm -rf ${STEP2_WORKING_DIR}
+  fi
   mkdir -p ${STEP2_WORKING_DIR}
   LOG_FILE=${WORKING_DIR_ROOT}/step2.log
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP2_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
       --input ${STEP1_WORKING_DIR} \
       --tz-ids ${STEP2_TZIDS_FILE} \
       --replacement-threshold ${STEP2_REPLACEMENT_THREADHOLD} \
-      --output ${STEP2_WORKING_DIR}
+      --num-threads ${STEP2_THREAD_COUNT} \
+      --output ${STEP2_WORKING_DIR} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step2.json}
   } &> ${LOG_FILE}
 else
   echo Skipping...
 fi
 echo Completed step 2
 
+# Steps 3 to 7 in sharded worker processes
+if (( ${SHARDED} == 1 && ${SKIP_TO_STEP} <= 7 )); then
+  echo Starting steps 3 to 7 in ${SHARDED_PROCESS_COUNT} worker processes
+  mkdir -p ${SHARDED_WORKING_DIR}
+  mkdir -p $(dirname ${STEP7_OUTPUT_FILE})
+  LOG_FILE=${WORKING_DIR_ROOT}/steps3to7.log
+  echo Logging to ${LOG_FILE} ...
+  {
+    ${SHARDED_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
+      --input ${STEP2_WORKING_DIR} \
+      --s2-level ${S2_LEVEL} \
+      --shard-s2-level ${SHARDED_SHARD_S2_LEVEL} \
+      --num-processes ${SHARDED_PROCESS_COUNT} \
+      --worker-max-heap-mb ${SHARDED_WORKER_HEAP_MB} \
+      --working-dir ${SHARDED_WORKING_DIR} \
+      --output-file ${STEP7_OUTPUT_FILE} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/steps3to7.json}
+  } &> ${LOG_FILE}
+  echo Completed steps 3 to 7
+  SKIP_TO_STEP=8
+fi
+
 # Step 3
 echo Starting step 3
 if (( ${SKIP_TO_STEP} <= 3 )); then
+  if (( ${STEP3_RESUME} == 1 )); then
+    STEP3_RESUME_ARGS=--resume
+  else
+    STEP3_RESUME_ARGS=
+    if (( ${USE_STEP_CACHE} == 1 )); then
+      rm -rf ${STEP3_WORKING_DIR}
+    fi
+  fi
   mkdir -p ${STEP3_WORKING_DIR}
   LOG_FILE=${WORKING_DIR_ROOT}/step3.log
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP3_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
       --input ${STEP2_WORKING_DIR} \
       --num-threads ${STEP3_THREAD_COUNT} \
       --output ${STEP3_WORKING_DIR} \
-      --max-s2-level ${S2_LEVEL}
+      --max-s2-level ${S2_LEVEL} \
+      --covering-strategy ${STEP3_COVERING_STRATEGY} \
+      ${STEP3_RESUME_ARGS} \
+      ${STEP_CACHE_ARGS} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step3.json}
   } &> ${LOG_FILE}
 else
   echo Skipping...
@@ -212,15 +423,21 @@ echo Completed step 3
 # Step 4
 echo Starting step 4
 if (( ${SKIP_TO_STEP} <= 4 )); then
+  if (( ${USE_STEP_CACHE} == 1 )); then
+    rm -rf ${STEP4_WORKING_DIR}
+  fi
   mkdir -p ${STEP4_WORKING_DIR}
   LOG_FILE=${WORKING_DIR_ROOT}/step4.log
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP4_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
       --input ${STEP3_WORKING_DIR} \
       --num-threads ${STEP4_THREAD_COUNT} \
       --output ${STEP4_WORKING_DIR} \
-      --s2-level ${S2_LEVEL}
+      --s2-level ${S2_LEVEL} \
+      ${STEP_CACHE_ARGS} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step4.json}
   } &> ${LOG_FILE}
 else
   echo Skipping...
@@ -235,25 +452,52 @@ if (( ${SKIP_TO_STEP} <= 5 )); then
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP5_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
       --input ${STEP4_WORKING_DIR} \
       --num-threads ${STEP5_THREAD_COUNT} \
       --working-dir ${STEP5_WORKING_DIR} \
-      --output-file ${STEP5_OUTPUT_FILE}
+      --output-file ${STEP5_OUTPUT_FILE} \
+      ${OUT_OF_CORE_MEMORY_BUDGET_MB:+--memory-budget-mb ${OUT_OF_CORE_MEMORY_BUDGET_MB}} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step5.json}
   } &> ${LOG_FILE}
 else
   echo Skipping...
 fi
 echo Completed step 5
 
+# Compaction of the step 5 output
+if (( ${COMPACT_RANGES} == 1 && ${SKIP_TO_STEP} <= 6 )); then
+  echo Starting compaction
+  mkdir -p ${COMPACT_WORKING_DIR}
+  LOG_FILE=${WORKING_DIR_ROOT}/compact.log
+  echo Logging to ${LOG_FILE} ...
+  {
+    ${COMPACT_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
+      --input-file ${STEP5_OUTPUT_FILE} \
+      --output-file ${COMPACT_OUTPUT_FILE} \
+      --max-sliver-cells ${COMPACT_MAX_SLIVER_CELLS} \
+      --error-budget-cells ${COMPACT_ERROR_BUDGET_CELLS} \
+      --report-file ${WORKING_DIR_ROOT}/compact_report.txt \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/compact.json}
+  } &> ${LOG_FILE}
+  echo Completed compaction
+fi
+
 # Step 6
 echo Starting step 6
-if (( ${SKIP_TO_STEP} <= 6 )); then
+if (( ${FUSE_STEPS_6_AND_7} == 1 )); then
+  echo Skipping, step 6 is fused with step 7...
+elif (( ${SKIP_TO_STEP} <= 6 )); then
   LOG_FILE=${WORKING_DIR_ROOT}/step6.log
   echo Logging to ${LOG_FILE} ...
   {
     ${STEP6_CMD} \
-      --input-file ${STEP5_OUTPUT_FILE} \
-      --output-file ${STEP6_OUTPUT_FILE}
+      --storage-format ${PROTO_STORAGE_FORMAT} \
+      --input-file ${STEP6_INPUT_FILE} \
+      --output-file ${STEP6_OUTPUT_FILE} \
+      ${OUT_OF_CORE_MEMORY_BUDGET_MB:+--streaming --delimited-output} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/step6.json}
   } 2>&1 > ${LOG_FILE}
 else
   echo Skipping...
@@ -262,7 +506,22 @@ echo Completed step 6
 
 # Step 7
 echo Starting step 7
-if (( ${SKIP_TO_STEP} <= 7 )); then
+if (( ${FUSE_STEPS_6_AND_7} == 1 && ${SKIP_TO_STEP} <= 7 )); then
+  LOG_FILE=${WORKING_DIR_ROOT}/step7.log
+  echo Running steps 6 and 7 fused. Logging to ${LOG_FILE} ...
+  mkdir -p $(dirname ${STEP7_OUTPUT_FILE})
+  {
+    ${FUSED_STEPS_6_AND_7_CMD} \
+      --storage-format ${PROTO_STORAGE_FORMAT} \
+      --input-file ${STEP6_INPUT_FILE} \
+      --s2-level ${S2_LEVEL} \
+      --output-file ${STEP7_OUTPUT_FILE} \
+      --report-file ${WORKING_DIR_ROOT}/tzs2_report.txt \
+      ${COARSER_S2_LEVELS:+--coarser-s2-levels ${COARSER_S2_LEVELS}} \
+      ${FUSED_STEPS_DEBUG_PROTO_FILE:+--debug-proto-file ${FUSED_STEPS_DEBUG_PROTO_FILE}} \
+      ${METRICS_DIR:+--metrics-file ${METRICS_DIR}/steps6and7.json}
+  } 2>&1 > ${LOG_FILE}
+elif (( ${SKIP_TO_STEP} <= 7 )); then
   LOG_FILE=${WORKING_DIR_ROOT}/step7.log
   echo Logging to ${LOG_FILE} ...
   mkdir -p $(dirname ${STEP7_OUTPUT_FILE})
@@ -270,7 +529,8 @@ if (( ${SKIP_TO_STEP} <= 7 )); then
     ${STEP7_CMD} \
       --input-file ${STEP6_OUTPUT_FILE} \
       --s2-level ${S2_LEVEL} \
-      --output-file ${STEP7_OUTPUT_FILE}
+      --output-file ${STEP7_OUTPUT_FILE} \
+      ${OUT_OF_CORE_MEMORY_BUDGET_MB:+--delimited-input}
   } 2>&1 > ${LOG_FILE}
 else
   echo Skipping...
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.block.read;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Support for optional per-block checksums in block files.
+ *
+ * <p>When the {@link #FILE_FLAG_BLOCK_CHECKSUMS} bit is set in the flags byte of the file header
+ * (the first of the reserved bytes), the last {@link #CHECKSUM_BYTES} of every block info's extra
+ * bytes are a CRC32C of the bytes stored for the block, i.e. the block header and block data. The
+ * checksum bytes are removed by {@link BlockFileReader} before the extra bytes are made available
+ * via {@link BlockInfo#getExtraBytes()}.
+ */
+public final class BlockChecksums {
+
+    /** The file header flag set when block infos contain checksums. */
+    public static final int FILE_FLAG_BLOCK_CHECKSUMS = 0x01;
+
+    /** The number of extra bytes used to store a block's checksum. */
+    public static final int CHECKSUM_BYTES = Integer.BYTES;
+
+    /** The reversed CRC32C (Castagnoli) polynomial. */
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+    /**
+     * The lookup table for {@link #calculate(ByteBuffer...)}. {@code java.util.zip.CRC32C} is not
+     * available at the API level this code targets.
+     */
+    private static final int[] CRC32C_TABLE = createTable();
+
+    private BlockChecksums() {
+    }
+
+    /**
+     * Returns the CRC32C of the remaining bytes in the supplied buffers. The buffers' positions are
+     * not changed.
+     */
+    public static int calculate(ByteBuffer... buffers) {
+        int crc = 0xFFFFFFFF;
+        for (ByteBuffer buffer : buffers) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                crc = CRC32C_TABLE[(crc ^ buffer.get(i)) & 0xFF] ^ (crc >>> 8);
+            }
+        }
+        return ~crc;
+    }
+
+    /** Returns a copy of {@code extraBytes} with {@code checksum} appended. */
+    public static byte[] appendChecksum(byte[] extraBytes, int checksum) {
+        return ByteBuffer.allocate(extraBytes.length + CHECKSUM_BYTES)
+                .put(extraBytes)
+                .putInt(checksum)
+                .array();
+    }
+
+    private static int[] createTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            int value = i;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ CRC32C_POLYNOMIAL : value >>> 1;
+            }
+            table[i] = value;
+        }
+        return table;
+    }
+}
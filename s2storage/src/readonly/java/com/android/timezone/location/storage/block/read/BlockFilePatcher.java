@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.block.read;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Applies a block file patch to a "base" block file to recreate a "target" block file.
+ *
+ * <p>A patch is itself a block file with {@link #PATCH_MAGIC}. Block 0 is a header containing the
+ * sizes and SHA-256 digests of the base and target files. Every other block describes the next
+ * segment of the target file in order: either a range of bytes to copy from the base file
+ * ({@link #BLOCK_TYPE_COPY}: base offset and length as longs), or bytes stored in the patch
+ * itself ({@link #BLOCK_TYPE_DATA}). Patches are usually created by diffing two files at block
+ * granularity so that unchanged blocks are copied from the base file.
+ *
+ * <p>Copies from the base file are made using {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}. The base file is checked before the patch is applied
+ * and the target file is checked afterwards.
+ */
+public final class BlockFilePatcher {
+
+    /** The magic for block file patches. */
+    public static final char PATCH_MAGIC = 0xB1D1;
+
+    /** The current version of the block file patch format. */
+    public static final int PATCH_VERSION = 1;
+
+    /** The block type of the patch header block, which is always block 0. */
+    public static final int BLOCK_TYPE_PATCH_HEADER = 1;
+
+    /** The block type for a segment copied from the base file. */
+    public static final int BLOCK_TYPE_COPY = 2;
+
+    /** The block type for a segment stored in the patch. */
+    public static final int BLOCK_TYPE_DATA = 3;
+
+    /** The size of a SHA-256 digest. */
+    public static final int DIGEST_BYTES = 32;
+
+    /** The size of the patch header block's data. */
+    public static final int PATCH_HEADER_BYTES = 2 * (Long.BYTES + DIGEST_BYTES);
+
+    /** The size of a {@link #BLOCK_TYPE_COPY} block's data. */
+    public static final int COPY_BLOCK_BYTES = 2 * Long.BYTES;
+
+    private BlockFilePatcher() {
+    }
+
+    /**
+     * Applies {@code patchFile} to {@code baseFile}, writing the result to {@code targetFile}.
+     * Throws an {@link IOException} if the base file is not the one the patch was created from,
+     * or the result does not match the expected target file. In the latter case {@code
+     * targetFile} is deleted.
+     */
+    public static void apply(File baseFile, File patchFile, File targetFile) throws IOException {
+        try (BlockFileReader patchReader =
+                     BlockFileReader.open(true, patchFile, PATCH_MAGIC, PATCH_VERSION);
+             FileChannel baseChannel =
+                     FileChannel.open(baseFile.toPath(), StandardOpenOption.READ)) {
+            if (patchReader.getBlockCount() < 1) {
+                throw new IOException("Patch has no header block");
+            }
+            Block headerBlock = patchReader.getBlock(0);
+            if (headerBlock.getType() != BLOCK_TYPE_PATCH_HEADER) {
+                throw new IOException("Bad patch header type=" + headerBlock.getType());
+            }
+            BlockData headerData = headerBlock.getData();
+            long baseFileSize = headerData.getLong(0);
+            byte[] baseDigest = headerData.getBytes(Long.BYTES, DIGEST_BYTES);
+            long targetFileSize = headerData.getLong(Long.BYTES + DIGEST_BYTES);
+            byte[] targetDigest = headerData.getBytes(2 * Long.BYTES + DIGEST_BYTES, DIGEST_BYTES);
+
+            if (baseChannel.size() != baseFileSize
+                    || !Arrays.equals(baseDigest, calculateDigest(baseChannel))) {
+                throw new IOException(baseFile + " is not the base file for the patch");
+            }
+
+            boolean success = false;
+            try {
+                try (FileChannel targetChannel = FileChannel.open(targetFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (int i = 1; i < patchReader.getBlockCount(); i++) {
+                        applySegment(patchReader.getBlock(i), baseChannel, targetChannel);
+                    }
+
+                    if (targetChannel.size() != targetFileSize
+                            || !Arrays.equals(targetDigest, calculateDigest(targetChannel))) {
+                        throw new IOException("Patched file does not match the expected target");
+                    }
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    targetFile.delete();
+                }
+            }
+        }
+    }
+
+    private static void applySegment(Block block, FileChannel baseChannel,
+            FileChannel targetChannel) throws IOException {
+        switch (block.getType()) {
+            case BLOCK_TYPE_COPY: {
+                BlockData data = block.getData();
+                long baseOffset = data.getLong(0);
+                long length = data.getLong(Long.BYTES);
+                long position = targetChannel.position();
+                long transferred = 0;
+                while (transferred < length) {
+                    long count = baseChannel.transferTo(
+                            baseOffset + transferred, length - transferred, targetChannel);
+                    if (count <= 0) {
+                        throw new IOException("Unable to copy " + length + " bytes from offset "
+                                + baseOffset + " of the base file");
+                    }
+                    transferred += count;
+                }
+                // transferTo() does not update the position of the target channel consistently
+                // across platforms.
+                targetChannel.position(position + length);
+                break;
+            }
+            case BLOCK_TYPE_DATA: {
+                ByteBuffer buffer = block.getData().getByteBuffer();
+                while (buffer.hasRemaining()) {
+                    targetChannel.write(buffer);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown patch block type=" + block.getType());
+        }
+    }
+
+    /** Returns the SHA-256 digest of the entire content of {@code channel}. */
+    public static byte[] calculateDigest(FileChannel channel) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int bytesRead;
+        while ((bytesRead = channel.read(buffer, position)) > 0) {
+            buffer.flip();
+            messageDigest.update(buffer);
+            buffer.clear();
+            position += bytesRead;
+        }
+        return messageDigest.digest();
+    }
+}
@@ -22,12 +22,24 @@ import com.android.timezone.location.storage.util.Visitor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The entry point for reading a generic block file. This class is not thread-safe.
+ *
+ * <p>If the file contains per-block checksums (see {@link BlockChecksums}), each block is verified
+ * the first time it is accessed. {@link #verifyAll(int)} can be used to verify the whole file up
+ * front.
  */
 public final class BlockFileReader implements AutoCloseable {
 
@@ -45,6 +57,12 @@ public final class BlockFileReader implements AutoCloseable {
 
     private BlockInfo[] mBlockInfos;
 
+    /** The expected checksum of each block, or {@code null} if the file has no checksums. */
+    private int[] mBlockChecksums;
+
+    /** Whether each block's checksum has been verified, {@code null} if there are no checksums. */
+    private boolean[] mBlockChecksumsVerified;
+
     private FileChannel mFileChannel;
 
     private BlockFileReader(boolean memoryMapBlocks) {
@@ -103,11 +121,17 @@ public final class BlockFileReader implements AutoCloseable {
                         + ", reader requires at least " + mRequiredMinVersion);
             }
 
-            // 10-bytes left for expansion.
-            tis.skipBytes(10);
+            // 10-bytes left for expansion. The first is used for flags.
+            int flags = tis.readUnsignedByte();
+            tis.skipBytes(9);
+            boolean hasChecksums = (flags & BlockChecksums.FILE_FLAG_BLOCK_CHECKSUMS) != 0;
 
             int blockCount = tis.readInt();
             mBlockInfos = new BlockInfo[blockCount];
+            if (hasChecksums) {
+                mBlockChecksums = new int[blockCount];
+                mBlockChecksumsVerified = new boolean[blockCount];
+            }
             for (int i = 0; i < blockCount; i++) {
                 int blockInfoSize = tis.readInt();
                 final int minimumBlockInfoSize =
@@ -120,6 +144,17 @@ public final class BlockFileReader implements AutoCloseable {
                 long blockStartByteOffset = tis.readLong();
                 long blockDataSizeBytes = tis.readLong();
                 byte[] extraBytes = tis.readTinyVarByteArray();
+                if (hasChecksums) {
+                    // The checksum is stored at the end of the extra bytes.
+                    int checksumOffset = extraBytes.length - BlockChecksums.CHECKSUM_BYTES;
+                    if (checksumOffset < 0) {
+                        throw new IOException("Block info for blockId=" + i
+                                + " does not contain a checksum");
+                    }
+                    mBlockChecksums[i] = ByteBuffer.wrap(extraBytes, checksumOffset,
+                            BlockChecksums.CHECKSUM_BYTES).getInt();
+                    extraBytes = Arrays.copyOf(extraBytes, checksumOffset);
+                }
                 mBlockInfos[i] = new BlockInfo(i, blockType, blockStartByteOffset,
                         blockDataSizeBytes, extraBytes);
             }
@@ -179,6 +214,11 @@ public final class BlockFileReader implements AutoCloseable {
             allBlockBuffer = allBlockBuffer.asReadOnlyBuffer();
         }
 
+        if (mBlockChecksums != null && !mBlockChecksumsVerified[blockId]) {
+            verifyChecksum(blockId, allBlockBuffer);
+            mBlockChecksumsVerified[blockId] = true;
+        }
+
         // Read the block header.
         // This information is redundant, but serves as a check that nothing is wrong with reading
         // or writing files.
@@ -197,6 +237,96 @@ public final class BlockFileReader implements AutoCloseable {
         return new Block(actualId, actualType, blockDataBytes);
     }
 
+    /**
+     * Returns {@code true} if the file contains per-block checksums. If it does, each block's
+     * checksum is verified the first time the block is accessed via {@link #getBlock(int)}.
+     */
+    public boolean hasChecksums() {
+        return mBlockChecksums != null;
+    }
+
+    /**
+     * Verifies the checksums of all blocks not already verified using up to {@code parallelism}
+     * threads. Throws an {@link IOException} identifying a corrupt block if any checksum does not
+     * match. Must not be called concurrently with other methods.
+     *
+     * @throws IllegalStateException if the file does not contain checksums
+     */
+    public void verifyAll(int parallelism) throws IOException {
+        checkFileOpen();
+        if (mBlockChecksums == null) {
+            throw new IllegalStateException("The file does not contain checksums");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism=" + parallelism + " must be >= 1");
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            // Each task verifies an interleaved subset of the blocks so that the work is spread
+            // evenly even when block sizes vary with position.
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                int firstBlockId = i;
+                futures.add(executorService.submit(() -> {
+                    for (int blockId = firstBlockId; blockId < mBlockInfos.length;
+                            blockId += parallelism) {
+                        if (!mBlockChecksumsVerified[blockId]) {
+                            verifyChecksum(blockId, readBlockBytes(mBlockInfos[blockId]));
+                            mBlockChecksumsVerified[blockId] = true;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted verifying checksums");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    /** Reads the bytes of a block using a positional read, which is safe to use concurrently. */
+    private ByteBuffer readBlockBytes(BlockInfo blockInfo) throws IOException {
+        long blockSizeBytesLong = blockInfo.getBlockSizeBytes();
+        if (mMemoryMapBlocks || blockSizeBytesLong > Integer.MAX_VALUE) {
+            return mFileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    blockInfo.getBlockStartByteOffset(), blockSizeBytesLong);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) blockSizeBytesLong);
+        long position = blockInfo.getBlockStartByteOffset();
+        while (buffer.hasRemaining()) {
+            int bytesRead = mFileChannel.read(buffer, position + buffer.position());
+            if (bytesRead < 0) {
+                throw new IOException("Unexpected end of file reading blockId="
+                        + blockInfo.getId());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void verifyChecksum(int blockId, ByteBuffer allBlockBuffer) throws IOException {
+        int actualChecksum = BlockChecksums.calculate(allBlockBuffer);
+        if (actualChecksum != mBlockChecksums[blockId]) {
+            throw new IOException("Checksum mismatch for blockId=" + blockId
+                    + ": expected " + Integer.toHexString(mBlockChecksums[blockId])
+                    + " but was " + Integer.toHexString(actualChecksum));
+        }
+    }
+
     /** Returns the number of blocks in the file. */
     public int getBlockCount() {
         checkFileOpen();
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.block;
+
+import static com.android.timezone.location.storage.testing.MoreAsserts.assertThrows;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.timezone.location.storage.block.read.BlockData;
+import com.android.timezone.location.storage.block.read.BlockFilePatcher;
+import com.android.timezone.location.storage.block.write.BlockFileDiffer;
+import com.android.timezone.location.storage.block.write.BlockFileWriter;
+import com.android.timezone.location.storage.block.write.StreamingBlockFileWriter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/** Tests for {@link BlockFileDiffer} and {@link BlockFilePatcher}. */
+public class BlockFilePatchTest {
+
+    private static final char MAGIC = 0xABCD;
+
+    private static final int BLOCK_COUNT = 50;
+
+    private static final int BLOCK_SIZE = 1000;
+
+    @Test
+    public void patchRecreatesTarget() throws Exception {
+        File baseFile = createBlockFile(-1, BLOCK_COUNT);
+        // One changed block and one extra block.
+        File targetFile = createBlockFile(10, BLOCK_COUNT + 1);
+
+        File patchFile = File.createTempFile("test", ".patch");
+        BlockFileDiffer.PatchStats patchStats =
+                BlockFileDiffer.createPatch(baseFile, targetFile, patchFile);
+        assertEquals(2, patchStats.getChangedBlockCount());
+        assertEquals(targetFile.length(),
+                patchStats.getCopiedBytes() + patchStats.getStoredBytes());
+        assertTrue(patchFile.length() < targetFile.length() / 4);
+
+        File patchedFile = File.createTempFile("test", ".dat");
+        BlockFilePatcher.apply(baseFile, patchFile, patchedFile);
+        assertArrayEquals(Files.readAllBytes(targetFile.toPath()),
+                Files.readAllBytes(patchedFile.toPath()));
+    }
+
+    @Test
+    public void patchRecreatesTarget_differentLayout() throws Exception {
+        File baseFile = createBlockFile(-1, BLOCK_COUNT);
+
+        // A file written with StreamingBlockFileWriter, with blocks written in reverse order.
+        File targetFile = File.createTempFile("test", ".dat");
+        try (StreamingBlockFileWriter writer =
+                StreamingBlockFileWriter.open(MAGIC, 1, targetFile, BLOCK_COUNT, 4)) {
+            for (int i = BLOCK_COUNT - 1; i >= 0; i--) {
+                writer.setBlock(i, 1, new byte[0], createBlockData(i, i == 20));
+            }
+        }
+
+        File patchFile = File.createTempFile("test", ".patch");
+        BlockFileDiffer.createPatch(baseFile, targetFile, patchFile);
+
+        File patchedFile = File.createTempFile("test", ".dat");
+        BlockFilePatcher.apply(baseFile, patchFile, patchedFile);
+        assertArrayEquals(Files.readAllBytes(targetFile.toPath()),
+                Files.readAllBytes(patchedFile.toPath()));
+    }
+
+    @Test
+    public void wrongBaseFile() throws Exception {
+        File baseFile = createBlockFile(-1, BLOCK_COUNT);
+        File targetFile = createBlockFile(10, BLOCK_COUNT);
+        File patchFile = File.createTempFile("test", ".patch");
+        BlockFileDiffer.createPatch(baseFile, targetFile, patchFile);
+
+        File otherBaseFile = createBlockFile(30, BLOCK_COUNT);
+        File patchedFile = File.createTempFile("test", ".dat");
+        assertThrows(IOException.class,
+                () -> BlockFilePatcher.apply(otherBaseFile, patchFile, patchedFile));
+    }
+
+    @Test
+    public void corruptPatch() throws Exception {
+        File baseFile = createBlockFile(-1, BLOCK_COUNT);
+        File targetFile = createBlockFile(10, BLOCK_COUNT);
+        File patchFile = File.createTempFile("test", ".patch");
+        BlockFileDiffer.createPatch(baseFile, targetFile, patchFile);
+
+        // Corrupt the last byte of the patch, which is stored target data.
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(patchFile, "rw")) {
+            long lastByteOffset = randomAccessFile.length() - 1;
+            randomAccessFile.seek(lastByteOffset);
+            int lastByte = randomAccessFile.read();
+            randomAccessFile.seek(lastByteOffset);
+            randomAccessFile.write(lastByte ^ 0xFF);
+        }
+
+        File patchedFile = File.createTempFile("test", ".dat");
+        assertThrows(IOException.class,
+                () -> BlockFilePatcher.apply(baseFile, patchFile, patchedFile));
+        assertFalse(patchedFile.exists());
+    }
+
+    /**
+     * Creates a block file with {@code blockCount} blocks. The content of the block with ID
+     * {@code changedBlockId} is different from other files.
+     */
+    private static File createBlockFile(int changedBlockId, int blockCount) throws IOException {
+        File file = File.createTempFile("test", ".dat");
+        try (BlockFileWriter writer = BlockFileWriter.open(MAGIC, 1, file)) {
+            for (int i = 0; i < blockCount; i++) {
+                writer.addBlock(1, new byte[0], createBlockData(i, i == changedBlockId));
+            }
+        }
+        return file;
+    }
+
+    private static BlockData createBlockData(int blockId, boolean changed) {
+        byte[] bytes = new byte[BLOCK_SIZE];
+        Arrays.fill(bytes, (byte) blockId);
+        if (changed) {
+            bytes[BLOCK_SIZE / 2] = (byte) ~blockId;
+        }
+        return new BlockData(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+}
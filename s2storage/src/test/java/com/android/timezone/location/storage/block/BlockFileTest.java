@@ -20,6 +20,8 @@ import static com.android.timezone.location.storage.testing.MoreAsserts.assertTh
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.argThat;
 
 import com.android.timezone.location.storage.block.read.Block;
@@ -28,17 +30,21 @@ import com.android.timezone.location.storage.block.read.BlockFileReader;
 import com.android.timezone.location.storage.block.read.BlockInfo;
 import com.android.timezone.location.storage.block.read.BlockMatcher;
 import com.android.timezone.location.storage.block.write.BlockFileWriter;
+import com.android.timezone.location.storage.block.write.StreamingBlockFileWriter;
 
 import org.junit.Test;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
- * Tests {@link BlockFileReader}, {@link Block}, {@link BlockInfo} and {@link BlockFileWriter}.
+ * Tests {@link BlockFileReader}, {@link Block}, {@link BlockInfo}, {@link BlockFileWriter} and
+ * {@link StreamingBlockFileWriter}.
  */
 public class BlockFileTest {
 
@@ -94,6 +100,62 @@ public class BlockFileTest {
         }
     }
 
+    @Test
+    public void streamingReadWrite() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = File.createTempFile("test", ".tmp");
+        byte[] block0ExtraBytes = "Extra 0".getBytes(StandardCharsets.UTF_8);
+        byte[] block0DataBytes = "Block 0 bytes".getBytes(StandardCharsets.UTF_8);
+        byte[] block2DataBytes = "Block 2 bytes".getBytes(StandardCharsets.UTF_8);
+
+        int blockCount = 3;
+        int maxExtraBytesCount = 10;
+        try (StreamingBlockFileWriter bfw = StreamingBlockFileWriter.open(
+                magic, 1, blockFile, blockCount, maxExtraBytesCount)) {
+            // Blocks can be set out of order.
+            bfw.setBlock(2, 2222, new byte[0], new BlockData(getByteBuffer(block2DataBytes)));
+            bfw.setBlock(1, 1111, new byte[0], new BlockData(getByteBuffer(new byte[0])));
+            bfw.setBlock(0, 1000, block0ExtraBytes,
+                    new BlockData(getByteBuffer(block0DataBytes)));
+
+            // Blocks cannot be set twice, or have too many extra bytes.
+            assertThrows(IllegalStateException.class, () -> bfw.setBlock(
+                    1, 1111, new byte[0], new BlockData(getByteBuffer(new byte[0]))));
+            assertThrows(IllegalArgumentException.class, () -> bfw.setBlock(
+                    3, 1111, new byte[0], new BlockData(getByteBuffer(new byte[0]))));
+        }
+
+        try (BlockFileReader bfr = BlockFileReader.open(false, blockFile, magic, 1)) {
+            assertEquals(blockCount, bfr.getBlockCount());
+
+            BlockInfo block0Info = bfr.getBlockInfo(0);
+            assertEquals(1000, block0Info.getType());
+            assertArrayEquals(block0ExtraBytes, block0Info.getExtraBytes());
+            Block block0 = bfr.getBlock(0);
+            assertArrayEquals(block0DataBytes,
+                    block0.getData().getBytes(0, block0DataBytes.length));
+
+            BlockInfo block1Info = bfr.getBlockInfo(1);
+            assertEquals(1111, block1Info.getType());
+            assertEquals(0, block1Info.getBlockSizeBytes());
+            assertEquals(0, bfr.getBlock(1).getData().getSize());
+
+            Block block2 = bfr.getBlock(2);
+            assertEquals(2222, block2.getType());
+            assertArrayEquals(block2DataBytes,
+                    block2.getData().getBytes(0, block2DataBytes.length));
+        }
+    }
+
+    @Test
+    public void streamingWrite_missingBlock() throws Exception {
+        File blockFile = File.createTempFile("test", ".tmp");
+        StreamingBlockFileWriter bfw = StreamingBlockFileWriter.open(
+                (char) 0xABCD, 1, blockFile, 2, 0);
+        bfw.setBlock(0, 1111, new byte[0], new BlockData(getByteBuffer(new byte[1])));
+        assertThrows(IllegalStateException.class, bfw::close);
+    }
+
     @Test
     public void blockIdBounds() throws Exception {
         char magic = 0xABCD;
@@ -158,6 +220,102 @@ public class BlockFileTest {
         }
     }
 
+    @Test
+    public void checksums_readWrite() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = File.createTempFile("test", ".tmp");
+        byte[] block0ExtraBytes = "Extra bytes 0".getBytes(StandardCharsets.UTF_8);
+        byte[] block0DataBytes = "Block 0 bytes".getBytes(StandardCharsets.UTF_8);
+
+        try (BlockFileWriter bfw = BlockFileWriter.open(magic, 1, blockFile, true)) {
+            bfw.addBlock(1111, block0ExtraBytes, new BlockData(getByteBuffer(block0DataBytes)));
+            bfw.addBlock(2222, new byte[0], new BlockData(getByteBuffer(new byte[0])));
+        }
+
+        try (BlockFileReader bfr = BlockFileReader.open(false, blockFile, magic, 1)) {
+            assertTrue(bfr.hasChecksums());
+            // The checksum is not visible to callers.
+            assertArrayEquals(block0ExtraBytes, bfr.getBlockInfo(0).getExtraBytes());
+            assertArrayEquals(new byte[0], bfr.getBlockInfo(1).getExtraBytes());
+            assertArrayEquals(block0DataBytes,
+                    bfr.getBlock(0).getData().getBytes(0, block0DataBytes.length));
+            assertEquals(0, bfr.getBlock(1).getData().getSize());
+            bfr.verifyAll(2);
+        }
+    }
+
+    @Test
+    public void checksums_streamingReadWrite() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = File.createTempFile("test", ".tmp");
+        byte[] block0ExtraBytes = "Extra bytes 0".getBytes(StandardCharsets.UTF_8);
+        byte[] block1DataBytes = "Block 1 bytes".getBytes(StandardCharsets.UTF_8);
+
+        try (StreamingBlockFileWriter sbfw = StreamingBlockFileWriter.open(
+                magic, 1, blockFile, 2, block0ExtraBytes.length, true)) {
+            sbfw.setBlock(1, 2222, new byte[0], new BlockData(getByteBuffer(block1DataBytes)));
+            sbfw.setBlock(0, 1111, block0ExtraBytes, new BlockData(getByteBuffer(new byte[0])));
+        }
+
+        try (BlockFileReader bfr = BlockFileReader.open(true, blockFile, magic, 1)) {
+            assertTrue(bfr.hasChecksums());
+            assertArrayEquals(block0ExtraBytes, bfr.getBlockInfo(0).getExtraBytes());
+            assertArrayEquals(block1DataBytes,
+                    bfr.getBlock(1).getData().getBytes(0, block1DataBytes.length));
+            bfr.verifyAll(1);
+        }
+    }
+
+    @Test
+    public void checksums_notPresent() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = File.createTempFile("test", ".tmp");
+        try (BlockFileWriter bfw = BlockFileWriter.open(magic, 1, blockFile)) {
+            bfw.addBlock(1111, new byte[0], new BlockData(getByteBuffer(new byte[1])));
+        }
+
+        try (BlockFileReader bfr = BlockFileReader.open(false, blockFile, magic, 1)) {
+            assertFalse(bfr.hasChecksums());
+            assertThrows(IllegalStateException.class, () -> bfr.verifyAll(1));
+        }
+    }
+
+    @Test
+    public void checksums_corruptBlockDetectedOnAccess() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = createCorruptChecksummedFile(magic);
+
+        try (BlockFileReader bfr = BlockFileReader.open(false, blockFile, magic, 1)) {
+            // Block 0 is intact.
+            bfr.getBlock(0);
+            assertThrows(IOException.class, () -> bfr.getBlock(1));
+        }
+    }
+
+    @Test
+    public void checksums_corruptBlockDetectedByVerifyAll() throws Exception {
+        char magic = 0xABCD;
+        File blockFile = createCorruptChecksummedFile(magic);
+
+        try (BlockFileReader bfr = BlockFileReader.open(true, blockFile, magic, 1)) {
+            assertThrows(IOException.class, () -> bfr.verifyAll(4));
+        }
+    }
+
+    /** Creates a checksummed file with two blocks and changes the last byte of block 1's data. */
+    private static File createCorruptChecksummedFile(char magic) throws Exception {
+        File blockFile = File.createTempFile("test", ".tmp");
+        try (BlockFileWriter bfw = BlockFileWriter.open(magic, 1, blockFile, true)) {
+            bfw.addBlock(1111, new byte[0], new BlockData(getByteBuffer(new byte[] { 1, 2 })));
+            bfw.addBlock(2222, new byte[0], new BlockData(getByteBuffer(new byte[] { 3, 4 })));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(blockFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(5);
+        }
+        return blockFile;
+    }
+
     private static ByteBuffer getByteBuffer(byte[] block1DataBytes) {
         return ByteBuffer.wrap(block1DataBytes).asReadOnlyBuffer();
     }
@@ -19,8 +19,10 @@ package com.android.timezone.location.storage.tzs2range;
 import static com.android.timezone.location.storage.s2.S2Support.FACE_BIT_COUNT;
 import static com.android.timezone.location.storage.testing.TestSupport.listOf;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import com.android.timezone.location.storage.s2.S2Support;
 import com.android.timezone.location.storage.tzs2range.read.TzS2RangeFileReader;
 import com.android.timezone.location.storage.tzs2range.write.TzS2RangeFileWriter;
 import com.android.timezone.location.storage.util.BitwiseUtils;
@@ -29,17 +31,35 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class TzS2RangeFileTest {
 
     @Test
     public void findEntryByCellId() throws IOException {
+        boolean streaming = false;
+        findEntryByCellId(streaming);
+    }
+
+    @Test
+    public void findEntryByCellId_streaming() throws IOException {
+        boolean streaming = true;
+        findEntryByCellId(streaming);
+    }
+
+    private void findEntryByCellId(boolean streaming) throws IOException {
         File file = File.createTempFile("test", ".dat");
 
         TzS2RangeFileFormat fileFormat;
         TzS2Range range1, range2, range3;
-        try (TzS2RangeFileWriter tzS2RangeFileWriter =
-                     TzS2RangeFileWriter.open(file, createS2RangeFileFormat())) {
+        try (TzS2RangeFileWriter tzS2RangeFileWriter = streaming
+                ? TzS2RangeFileWriter.openStreaming(file, createS2RangeFileFormat())
+                : TzS2RangeFileWriter.open(file, createS2RangeFileFormat())) {
             fileFormat = tzS2RangeFileWriter.getFileFormat();
 
             // Two ranges that share a prefix.
@@ -74,6 +94,89 @@ public class TzS2RangeFileTest {
         }
     }
 
+    @Test
+    public void processRanges_parallelIsByteIdentical() throws IOException {
+        boolean streaming = false;
+        processRanges_parallelIsByteIdentical(streaming);
+    }
+
+    @Test
+    public void processRanges_parallelIsByteIdentical_streaming() throws IOException {
+        boolean streaming = true;
+        processRanges_parallelIsByteIdentical(streaming);
+    }
+
+    private void processRanges_parallelIsByteIdentical(boolean streaming) throws IOException {
+        TzS2RangeFileFormat fileFormat = createS2RangeFileFormat();
+        List<TzS2Range> ranges = createPseudoRandomRanges(fileFormat);
+
+        File sequentialFile = File.createTempFile("test", ".dat");
+        try (TzS2RangeFileWriter tzS2RangeFileWriter =
+                openWriter(sequentialFile, fileFormat, streaming)) {
+            tzS2RangeFileWriter.processRanges(ranges.iterator());
+        }
+
+        File parallelFile = File.createTempFile("test", ".dat");
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try (TzS2RangeFileWriter tzS2RangeFileWriter =
+                openWriter(parallelFile, fileFormat, streaming)) {
+            tzS2RangeFileWriter.processRanges(ranges.iterator(), executorService);
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertArrayEquals(Files.readAllBytes(sequentialFile.toPath()),
+                Files.readAllBytes(parallelFile.toPath()));
+    }
+
+    @Test
+    public void packTzIdSets() throws IOException {
+        TzS2RangeFileFormat fileFormat = createS2RangeFileFormat();
+        List<TzS2Range> ranges = createPseudoRandomRanges(fileFormat);
+
+        File file = File.createTempFile("test", ".dat");
+        try (TzS2RangeFileWriter tzS2RangeFileWriter = TzS2RangeFileWriter.open(file, fileFormat)) {
+            tzS2RangeFileWriter.packTzIdSets(ranges.iterator());
+            tzS2RangeFileWriter.processRanges(ranges.iterator());
+        }
+
+        try (TzS2RangeFileReader tzS2RangeFileReader = TzS2RangeFileReader.open(file)) {
+            for (TzS2Range range : ranges) {
+                TzS2RangeFileReader.Entry entry =
+                        tzS2RangeFileReader.findEntryByCellId(range.getStartCellId());
+                assertEquals(range.getTzIdSet(), entry.getTzS2Range().getTzIdSet());
+            }
+        }
+    }
+
+    private static TzS2RangeFileWriter openWriter(
+            File file, TzS2RangeFileFormat fileFormat, boolean streaming) throws IOException {
+        return streaming
+                ? TzS2RangeFileWriter.openStreaming(file, fileFormat)
+                : TzS2RangeFileWriter.open(file, fileFormat);
+    }
+
+    /**
+     * Returns ordered, non-overlapping ranges that span many prefixes (more than one parallel
+     * batch), some of which span several prefixes or need splitting to fit into a suffix table.
+     */
+    private static List<TzS2Range> createPseudoRandomRanges(TzS2RangeFileFormat fileFormat) {
+        List<List<String>> tzIdSets = listOf(
+                listOf("One"), listOf("Two"), listOf("Three"), listOf("One", "Two"),
+                listOf("Two", "Three"), listOf("Four"), listOf("Five"), listOf("Four", "Five"));
+        Random random = new Random(1234);
+        List<TzS2Range> ranges = new ArrayList<>();
+        long cellId = cellId(fileFormat, 1, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            long startCellId = S2Support.offsetCellId(cellId, random.nextInt(5000));
+            long endCellId = S2Support.offsetCellId(startCellId, 1 + random.nextInt(20000));
+            List<String> tzIdSet = tzIdSets.get(random.nextInt(tzIdSets.size()));
+            ranges.add(new TzS2Range(startCellId, endCellId, tzIdSet));
+            cellId = endCellId;
+        }
+        return ranges;
+    }
+
     private static long cellId(
             TzS2RangeFileFormat fileFormat, int faceId, int otherPrefixBits, int suffixBits) {
         int prefixBitCount = fileFormat.getPrefixBitCount();
@@ -22,6 +22,7 @@ import static com.android.timezone.location.storage.testing.TestSupport.listOf;
 import static com.android.timezone.location.storage.testing.TestSupport.setOf;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.android.timezone.location.storage.tzs2range.BankedTzIdSets;
 import com.android.timezone.location.storage.tzs2range.TzS2Range;
@@ -107,6 +108,62 @@ public class BankedTzIdSetsPackerTest {
         assertThrows(IllegalArgumentException.class, () -> packer.addTzIdSets(idSet1_1));
     }
 
+    @Test
+    public void addAllTzIdSets_packsBetterThanFirstFit() {
+        List<List<String>> idSet1 = listOf(listOf("One"), listOf("Two"));
+        List<List<String>> idSet2 = listOf(listOf("Three"), listOf("Four"));
+        List<List<String>> idSet3 =
+                listOf(listOf("One"), listOf("Two"), listOf("Five"), listOf("Six"));
+        List<List<String>> idSet4 =
+                listOf(listOf("Three"), listOf("Four"), listOf("Seven"), listOf("Eight"));
+
+        // Adding the sets one chunk at a time, in order, requires three banks.
+        BankedTzIdSetsPacker firstFitPacker = new BankedTzIdSetsPacker(4);
+        for (List<List<String>> idSet : listOf(idSet1, idSet2, idSet3, idSet4)) {
+            firstFitPacker.addTzIdSets(idSet);
+        }
+        assertEquals(3, firstFitPacker.getBankCount());
+        assertEquals(12, firstFitPacker.getStoredTzIdSetCount());
+
+        // Seeing all the sets up front means only two are needed and no sets are duplicated.
+        BankedTzIdSetsPacker packer = new BankedTzIdSetsPacker(4);
+        List<BankedTzIdSetsPacker.BankHelper> bankHelpers =
+                packer.addAllTzIdSets(listOf(idSet1, idSet2, idSet3, idSet4));
+        assertEquals(4, bankHelpers.size());
+        assertEquals(2, packer.getBankCount());
+        assertEquals(8, packer.getStoredTzIdSetCount());
+        assertEquals(8, packer.getDistinctTzIdSetCount());
+        assertEquals(4, packer.getLargestBankSize());
+
+        // Chunks that share sets share banks. The largest chunks are packed first.
+        assertEquals(0, bankHelpers.get(0).getId());
+        assertEquals(1, bankHelpers.get(1).getId());
+        assertEquals(0, bankHelpers.get(2).getId());
+        assertEquals(1, bankHelpers.get(3).getId());
+
+        // Every chunk's sets can be found in its bank.
+        List<List<List<String>>> idSets = listOf(idSet1, idSet2, idSet3, idSet4);
+        for (int i = 0; i < idSets.size(); i++) {
+            for (List<String> idSet : idSets.get(i)) {
+                assertTrue(bankHelpers.get(i).getTzIdSetId(idSet) >= 0);
+            }
+        }
+        assertEquals(2, packer.create().getBankCount());
+    }
+
+    @Test
+    public void addAllTzIdSets_exceedMaxBankSize() {
+        BankedTzIdSetsPacker packer = new BankedTzIdSetsPacker(3);
+        List<List<String>> idSet1 = listOf(listOf("One"));
+        List<List<String>> idSet2 = listOf(
+                listOf("One"),
+                listOf("One", "Two"),
+                listOf("One", "Two", "Three"),
+                listOf("One", "Two", "Three", "Four"));
+        assertThrows(IllegalArgumentException.class,
+                () -> packer.addAllTzIdSets(listOf(idSet1, idSet2)));
+    }
+
     @Test
     public void extractUniqueTzIdSets() {
         List<TzS2Range> ranges = listOf(new TzS2Range(cellId(12, 1, 1), cellId(12, 1, 2),
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.tzs2range.write;
+
+import static com.android.timezone.location.storage.testing.TestSupport.listOf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.timezone.location.storage.s2.S2Support;
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.storage.tzs2range.TzS2RangeFileFormat;
+import com.android.timezone.location.storage.tzs2range.read.TzS2RangeFileReader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link TzS2RangeFileFormatTuner}. */
+public class TzS2RangeFileFormatTunerTest {
+
+    @Test
+    public void tune_avoidsRangeSplitting() throws IOException {
+        int s2Level = 12;
+        List<TzS2Range> ranges = listOf(
+                // A short range.
+                new TzS2Range(cellId(s2Level, 1, 100), cellId(s2Level, 1, 110), listOf("One")),
+                // A long range that will span several prefixes for most formats.
+                new TzS2Range(cellId(s2Level, 1, 200), cellId(s2Level, 1, 300000),
+                        listOf("Two")),
+                new TzS2Range(cellId(s2Level, 1, 300000), cellId(s2Level, 1, 300500),
+                        listOf("One", "Two")),
+                new TzS2Range(cellId(s2Level, 2, 0), cellId(s2Level, 2, 5000), listOf("Three")));
+
+        TzS2RangeFileFormatTuner.Result result = TzS2RangeFileFormatTuner.tune(s2Level, ranges);
+        TzS2RangeFileFormat fileFormat = result.getFileFormat();
+        assertEquals(s2Level, fileFormat.getS2Level());
+        assertTrue(result.getEstimatedFileSizeBytes() > 0);
+
+        // No range, once split at prefix boundaries, should need to be split further.
+        for (TzS2Range range : ranges) {
+            long startCellId = range.getStartCellId();
+            long endCellId = range.getEndCellId();
+            int prefix = fileFormat.extractPrefixValueFromCellId(startCellId);
+            int endPrefix = fileFormat.extractPrefixValueFromCellId(endCellId);
+            while (prefix < endPrefix) {
+                long prefixEndCellId = fileFormat.createCellId(prefix + 1, 0);
+                assertTrue(fileFormat.calculateRangeLength(startCellId, prefixEndCellId)
+                        <= fileFormat.getTableEntryMaxRangeLengthValue());
+                startCellId = prefixEndCellId;
+                prefix++;
+            }
+            if (startCellId != endCellId) {
+                assertTrue(fileFormat.calculateRangeLength(startCellId, endCellId)
+                        <= fileFormat.getTableEntryMaxRangeLengthValue());
+            }
+        }
+
+        // The format must be usable for the ranges.
+        File file = File.createTempFile("test", ".dat");
+        try (TzS2RangeFileWriter writer = TzS2RangeFileWriter.open(file, fileFormat)) {
+            writer.processRanges(ranges.iterator());
+        }
+        try (TzS2RangeFileReader reader = TzS2RangeFileReader.open(file)) {
+            for (TzS2Range range : ranges) {
+                TzS2RangeFileReader.Entry entry =
+                        reader.findEntryByCellId(range.getStartCellId());
+                assertEquals(range.getTzIdSet(), entry.getTzS2Range().getTzIdSet());
+            }
+        }
+    }
+
+    @Test
+    public void tune_tzIdSetIdBitsFitSets() {
+        int s2Level = 12;
+        // Many distinct TZ ID sets in a small area so they share a prefix.
+        List<TzS2Range> ranges = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ranges.add(new TzS2Range(cellId(s2Level, 1, i), cellId(s2Level, 1, i + 1),
+                    listOf("Zone" + i)));
+        }
+
+        TzS2RangeFileFormat fileFormat =
+                TzS2RangeFileFormatTuner.tune(s2Level, ranges).getFileFormat();
+        assertTrue(fileFormat.getMaxTzIdSetIdValue() + 1 >= 100);
+    }
+
+    @Test
+    public void tune_estimatedFileSizeMatchesWriter() throws IOException {
+        int s2Level = 12;
+        List<TzS2Range> ranges = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            long start = cellId(s2Level, 1, i * 1000L);
+            long end = cellId(s2Level, 1, i * 1000L + 7);
+            List<String> tzIdSet = i % 3 == 0 ? listOf("One") : listOf("Two", "Zone" + (i % 5));
+            ranges.add(new TzS2Range(start, end, tzIdSet));
+        }
+
+        TzS2RangeFileFormatTuner.Result result = TzS2RangeFileFormatTuner.tune(s2Level, ranges);
+        File file = File.createTempFile("test", ".dat");
+        try (TzS2RangeFileWriter writer =
+                TzS2RangeFileWriter.open(file, result.getFileFormat())) {
+            writer.packTzIdSets(ranges.iterator());
+            writer.processRanges(ranges.iterator());
+        }
+        assertEquals(file.length(), result.getEstimatedFileSizeBytes());
+    }
+
+    private static long cellId(int s2Level, int faceId, long index) {
+        return S2Support.cellId(s2Level, faceId, index);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.block.write;
+
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.BLOCK_TYPE_COPY;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.BLOCK_TYPE_DATA;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.BLOCK_TYPE_PATCH_HEADER;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.COPY_BLOCK_BYTES;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.PATCH_HEADER_BYTES;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.PATCH_MAGIC;
+import static com.android.timezone.location.storage.block.read.BlockFilePatcher.PATCH_VERSION;
+
+import com.android.timezone.location.storage.block.read.BlockData;
+import com.android.timezone.location.storage.block.read.BlockFilePatcher;
+import com.android.timezone.location.storage.block.read.BlockFileReader;
+import com.android.timezone.location.storage.block.read.BlockInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Creates patches that can be applied with {@link BlockFilePatcher} by comparing two block files
+ * at block granularity. Blocks in the target file that are byte-for-byte identical to the block
+ * with the same ID in the base file are copied from the base file. Everything else, e.g. the file
+ * header, block infos and changed blocks, is stored in the patch.
+ */
+public final class BlockFileDiffer {
+
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
+    /** Statistics about a patch created by {@link #createPatch(File, File, File)}. */
+    public static final class PatchStats {
+
+        private final long mCopiedBytes;
+
+        private final long mStoredBytes;
+
+        private final int mChangedBlockCount;
+
+        PatchStats(long copiedBytes, long storedBytes, int changedBlockCount) {
+            mCopiedBytes = copiedBytes;
+            mStoredBytes = storedBytes;
+            mChangedBlockCount = changedBlockCount;
+        }
+
+        /** Returns the number of target file bytes that are copied from the base file. */
+        public long getCopiedBytes() {
+            return mCopiedBytes;
+        }
+
+        /** Returns the number of target file bytes that are stored in the patch. */
+        public long getStoredBytes() {
+            return mStoredBytes;
+        }
+
+        /** Returns the number of non-empty target blocks that could not be copied. */
+        public int getChangedBlockCount() {
+            return mChangedBlockCount;
+        }
+
+        @Override
+        public String toString() {
+            return "PatchStats{"
+                    + "mCopiedBytes=" + mCopiedBytes
+                    + ", mStoredBytes=" + mStoredBytes
+                    + ", mChangedBlockCount=" + mChangedBlockCount
+                    + '}';
+        }
+    }
+
+    private BlockFileDiffer() {
+    }
+
+    /**
+     * Creates a patch that transforms {@code baseFile} into {@code targetFile} and writes it to
+     * {@code patchFile}.
+     */
+    public static PatchStats createPatch(File baseFile, File targetFile, File patchFile)
+            throws IOException {
+        try (BlockFileReader baseReader = BlockFileReader.open(true, baseFile);
+             BlockFileReader targetReader = BlockFileReader.open(true, targetFile);
+             FileChannel baseChannel =
+                     FileChannel.open(baseFile.toPath(), StandardOpenOption.READ);
+             FileChannel targetChannel =
+                     FileChannel.open(targetFile.toPath(), StandardOpenOption.READ);
+             BlockFileWriter patchWriter =
+                     BlockFileWriter.open(PATCH_MAGIC, PATCH_VERSION, patchFile)) {
+
+            patchWriter.addBlock(BLOCK_TYPE_PATCH_HEADER, EMPTY_BYTE_ARRAY,
+                    createHeaderBlockData(baseChannel, targetChannel));
+
+            // Non-empty target blocks in the order they appear in the file.
+            List<BlockInfo> targetBlockInfos = new ArrayList<>();
+            for (int i = 0; i < targetReader.getBlockCount(); i++) {
+                BlockInfo blockInfo = targetReader.getBlockInfo(i);
+                if (blockInfo.getBlockSizeBytes() > 0) {
+                    targetBlockInfos.add(blockInfo);
+                }
+            }
+            targetBlockInfos.sort(Comparator.comparingLong(BlockInfo::getBlockStartByteOffset));
+
+            SegmentWriter segmentWriter = new SegmentWriter(patchWriter, targetChannel);
+            int changedBlockCount = 0;
+            long targetPosition = 0;
+            for (BlockInfo targetBlockInfo : targetBlockInfos) {
+                long targetBlockStart = targetBlockInfo.getBlockStartByteOffset();
+                long targetBlockSize = targetBlockInfo.getBlockSizeBytes();
+
+                // Store anything between blocks, e.g. the file header and block infos.
+                segmentWriter.store(targetPosition, targetBlockStart - targetPosition);
+
+                int blockId = targetBlockInfo.getId();
+                if (blockId < baseReader.getBlockCount()) {
+                    BlockInfo baseBlockInfo = baseReader.getBlockInfo(blockId);
+                    if (isSameBlock(baseChannel, baseBlockInfo, targetChannel, targetBlockInfo)) {
+                        segmentWriter.copy(
+                                baseBlockInfo.getBlockStartByteOffset(), targetBlockSize);
+                    } else {
+                        segmentWriter.store(targetBlockStart, targetBlockSize);
+                        changedBlockCount++;
+                    }
+                } else {
+                    segmentWriter.store(targetBlockStart, targetBlockSize);
+                    changedBlockCount++;
+                }
+                targetPosition = targetBlockStart + targetBlockSize;
+            }
+            // Store anything after the last block.
+            segmentWriter.store(targetPosition, targetChannel.size() - targetPosition);
+            segmentWriter.flush();
+
+            return new PatchStats(segmentWriter.mCopiedBytes, segmentWriter.mStoredBytes,
+                    changedBlockCount);
+        }
+    }
+
+    private static BlockData createHeaderBlockData(FileChannel baseChannel,
+            FileChannel targetChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PATCH_HEADER_BYTES);
+        buffer.putLong(baseChannel.size());
+        buffer.put(BlockFilePatcher.calculateDigest(baseChannel));
+        buffer.putLong(targetChannel.size());
+        buffer.put(BlockFilePatcher.calculateDigest(targetChannel));
+        buffer.flip();
+        return new BlockData(buffer.asReadOnlyBuffer());
+    }
+
+    private static boolean isSameBlock(FileChannel baseChannel, BlockInfo baseBlockInfo,
+            FileChannel targetChannel, BlockInfo targetBlockInfo) throws IOException {
+        if (baseBlockInfo.getBlockSizeBytes() != targetBlockInfo.getBlockSizeBytes()) {
+            return false;
+        }
+        ByteBuffer baseBytes = baseChannel.map(FileChannel.MapMode.READ_ONLY,
+                baseBlockInfo.getBlockStartByteOffset(), baseBlockInfo.getBlockSizeBytes());
+        ByteBuffer targetBytes = targetChannel.map(FileChannel.MapMode.READ_ONLY,
+                targetBlockInfo.getBlockStartByteOffset(), targetBlockInfo.getBlockSizeBytes());
+        return baseBytes.equals(targetBytes);
+    }
+
+    /**
+     * Accumulates segments of the target file, merging adjacent segments of the same kind, and
+     * adds them to the patch as blocks.
+     */
+    private static final class SegmentWriter {
+
+        private final BlockFileWriter mPatchWriter;
+
+        private final FileChannel mTargetChannel;
+
+        /** The type of the pending segment, or -1 if there isn't one. */
+        private int mPendingType = -1;
+
+        /** The base offset for a pending copy, or the target offset for pending stored bytes. */
+        private long mPendingOffset;
+
+        private long mPendingLength;
+
+        long mCopiedBytes;
+
+        long mStoredBytes;
+
+        SegmentWriter(BlockFileWriter patchWriter, FileChannel targetChannel) {
+            mPatchWriter = patchWriter;
+            mTargetChannel = targetChannel;
+        }
+
+        void copy(long baseOffset, long length) throws IOException {
+            append(BLOCK_TYPE_COPY, baseOffset, length);
+            mCopiedBytes += length;
+        }
+
+        void store(long targetOffset, long length) throws IOException {
+            append(BLOCK_TYPE_DATA, targetOffset, length);
+            mStoredBytes += length;
+        }
+
+        private void append(int type, long offset, long length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            if (mPendingType == type && mPendingOffset + mPendingLength == offset) {
+                mPendingLength += length;
+                return;
+            }
+            flush();
+            mPendingType = type;
+            mPendingOffset = offset;
+            mPendingLength = length;
+        }
+
+        void flush() throws IOException {
+            if (mPendingType == BLOCK_TYPE_COPY) {
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BLOCK_BYTES);
+                buffer.putLong(mPendingOffset);
+                buffer.putLong(mPendingLength);
+                buffer.flip();
+                mPatchWriter.addBlock(BLOCK_TYPE_COPY, EMPTY_BYTE_ARRAY,
+                        new BlockData(buffer.asReadOnlyBuffer()));
+            } else if (mPendingType == BLOCK_TYPE_DATA) {
+                ByteBuffer buffer = mTargetChannel.map(
+                        FileChannel.MapMode.READ_ONLY, mPendingOffset, mPendingLength);
+                mPatchWriter.addBlock(BLOCK_TYPE_DATA, EMPTY_BYTE_ARRAY, new BlockData(buffer));
+            }
+            mPendingType = -1;
+        }
+    }
+}
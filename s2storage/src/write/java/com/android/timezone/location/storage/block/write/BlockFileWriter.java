@@ -16,42 +16,73 @@
 
 package com.android.timezone.location.storage.block.write;
 
+import com.android.timezone.location.storage.block.read.BlockChecksums;
 import com.android.timezone.location.storage.block.read.BlockData;
 import com.android.timezone.location.storage.block.read.BlockInfo;
-import com.android.timezone.location.storage.io.write.TypedOutputStream;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
-/** Writes a block file. */
+/**
+ * Writes a block file.
+ *
+ * <p>Block data is appended to a temporary file as it is added and copied after the file header
+ * and block infos when the writer is closed. Blocks are written using gathering writes and the
+ * temporary file is appended using {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} so block data is not copied through intermediate
+ * Java buffers.
+ *
+ * <p>Optionally, a checksum of each block can be stored in the block infos so that readers can
+ * detect corruption. See {@link BlockChecksums}.
+ */
 public final class BlockFileWriter implements AutoCloseable {
 
+    /** The size of the file header, excluding the block infos. */
+    public static final int FILE_HEADER_BYTES =
+            Character.BYTES /* magic */
+                    + Integer.BYTES /* version */
+                    + (10 * Byte.BYTES) /* reserved */
+                    + Integer.BYTES /* blockCount */;
+
+    /** The size of a block info, excluding its extra bytes. */
+    public static final int BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES =
+            Integer.BYTES /* blockInfoSize */
+                    + Integer.BYTES /* blockType */
+                    + Long.BYTES /* blockOffset */
+                    + Long.BYTES /* blockSizeBytes */
+                    + Byte.BYTES /* extraBytesLength */;
+
+    /** The size of the header written at the start of each non-empty block: ID and type. */
+    public static final int BLOCK_HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
     private final char mMagic;
 
     private final int mVersion;
 
+    private final boolean mWriteChecksums;
+
     private final List<BlockInfo> mBlockInfos = new ArrayList<>();
 
     private File mOutputFile;
 
     private File mTempFile;
 
-    private TypedOutputStream mTempFileOutputStream;
+    private FileChannel mTempFileChannel;
 
     private long mCurrentBlockByteCount = 0;
 
     private int mBlockInfoExtraBytesCount;
 
-    private BlockFileWriter(char magic, int version) {
+    private BlockFileWriter(char magic, int version, boolean writeChecksums) {
         mMagic = magic;
         mVersion = version;
+        mWriteChecksums = writeChecksums;
     }
 
     /**
@@ -59,7 +90,17 @@ public final class BlockFileWriter implements AutoCloseable {
      * the specified magic and version.
      */
     public static BlockFileWriter open(char magic, int version, File file) throws IOException {
-        BlockFileWriter writer = new BlockFileWriter(magic, version);
+        return open(magic, version, file, false /* writeChecksums */);
+    }
+
+    /**
+     * Creates a {@link BlockFileWriter} ready for adding block to. The block file is created with
+     * the specified magic and version. When {@code writeChecksums} is {@code true}, a checksum of
+     * each block is stored in its block info.
+     */
+    public static BlockFileWriter open(char magic, int version, File file, boolean writeChecksums)
+            throws IOException {
+        BlockFileWriter writer = new BlockFileWriter(magic, version, writeChecksums);
         writer.open(file);
         return writer;
     }
@@ -67,7 +108,8 @@ public final class BlockFileWriter implements AutoCloseable {
     private void open(File file) throws IOException {
         mOutputFile = file;
         mTempFile = File.createTempFile("block", "temp");
-        mTempFileOutputStream = new TypedOutputStream(new FileOutputStream(mTempFile));
+        mTempFileChannel = FileChannel.open(mTempFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     /**
@@ -78,20 +120,32 @@ public final class BlockFileWriter implements AutoCloseable {
             throws IOException {
         Objects.requireNonNull(blockInfoExtraBytes);
         Objects.requireNonNull(blockData);
+        if (mWriteChecksums
+                && blockInfoExtraBytes.length > 255 - BlockChecksums.CHECKSUM_BYTES) {
+            throw new IllegalArgumentException("blockInfoExtraBytes.length="
+                    + blockInfoExtraBytes.length + " leaves no space for a checksum");
+        }
 
         int blockId = mBlockInfos.size();
         long startOfBlock = mCurrentBlockByteCount;
 
+        // The checksum of an empty block is the checksum of no bytes.
+        int checksum = BlockChecksums.calculate();
         // Don't write anything for empty blocks.
         if (blockData.getSize() != 0) {
-            // Write the block's header.
-            mTempFileOutputStream.writeInt(blockId);
-            mCurrentBlockByteCount += Integer.BYTES;
-            mTempFileOutputStream.writeInt(blockType);
-            mCurrentBlockByteCount += Integer.BYTES;
-
-            // Write the block's data.
-            mCurrentBlockByteCount += copyAll(blockData, mTempFileOutputStream);
+            // Write the block's header and data with a single gathering write.
+            ByteBuffer blockHeaderBuffer = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            blockHeaderBuffer.putInt(blockId);
+            blockHeaderBuffer.putInt(blockType);
+            blockHeaderBuffer.flip();
+            ByteBuffer dataBuffer = blockData.getByteBuffer();
+            if (mWriteChecksums) {
+                checksum = BlockChecksums.calculate(blockHeaderBuffer, dataBuffer);
+            }
+            mCurrentBlockByteCount += writeFully(mTempFileChannel, blockHeaderBuffer, dataBuffer);
+        }
+        if (mWriteChecksums) {
+            blockInfoExtraBytes = BlockChecksums.appendChecksum(blockInfoExtraBytes, checksum);
         }
         long endOfBlock = mCurrentBlockByteCount;
         long blockSizeBytes = endOfBlock - startOfBlock;
@@ -104,73 +158,62 @@ public final class BlockFileWriter implements AutoCloseable {
     /** Finishes writing the file. Signals no more blocks are to be added. */
     @Override
     public void close() throws IOException {
-        mTempFileOutputStream.close();
-        writeHeaderAndAppendTempFile();
+        try {
+            writeHeaderAndAppendTempFile();
+        } finally {
+            mTempFileChannel.close();
+            mTempFile.delete();
+        }
     }
 
     private void writeHeaderAndAppendTempFile() throws IOException {
-        try (TypedOutputStream bos = new TypedOutputStream(new FileOutputStream(mOutputFile))) {
-            // File header
-            bos.writeChar(mMagic);
-            bos.writeInt(mVersion);
-            bos.writeBytes(new byte[10]); // Reserved
-            bos.writeInt(mBlockInfos.size());
-
-            int blockInfoLengthWithoutExtraBytes =
-                    Integer.BYTES /* blockInfoSize */
-                            + Integer.BYTES /* blockType */
-                            + Long.BYTES /* blockOffset */
-                            + Long.BYTES /* blockSizeBytes */
-                            + Byte.BYTES /* extraBytesLength */;
-            int headerBytesAdjustment =
-                    Character.BYTES /* magic */
-                            + Integer.BYTES /* version */
-                            + (10 * Byte.BYTES) /* reserved */
-                            + Integer.BYTES /* blockInfos.size() */
-                            + (mBlockInfos.size() * blockInfoLengthWithoutExtraBytes)
-                            + mBlockInfoExtraBytesCount;
-
-            // Write block info to the TypedOutputStream.
-            for (BlockInfo blockInfo : mBlockInfos) {
-                byte[] extraBytes = blockInfo.getExtraBytes();
-                int blockInfoSize = blockInfoLengthWithoutExtraBytes + extraBytes.length;
-                bos.writeInt(blockInfoSize);
-                bos.writeInt(blockInfo.getType());
-                bos.writeLong(blockInfo.getBlockStartByteOffset() + headerBytesAdjustment);
-                bos.writeLong(blockInfo.getBlockSizeBytes());
-                bos.writeTinyByteArray(extraBytes);
-            }
+        int headerBytesAdjustment = FILE_HEADER_BYTES
+                + (mBlockInfos.size() * BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES)
+                + mBlockInfoExtraBytesCount;
+
+        ByteBuffer headerBuffer = ByteBuffer.allocate(headerBytesAdjustment);
+        // File header
+        headerBuffer.putChar(mMagic);
+        headerBuffer.putInt(mVersion);
+        // Reserved, the first byte is used for flags.
+        headerBuffer.put((byte) (mWriteChecksums ? BlockChecksums.FILE_FLAG_BLOCK_CHECKSUMS : 0));
+        headerBuffer.put(new byte[9]);
+        headerBuffer.putInt(mBlockInfos.size());
+
+        // Block infos
+        for (BlockInfo blockInfo : mBlockInfos) {
+            byte[] extraBytes = blockInfo.getExtraBytes();
+            int blockInfoSize = BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES + extraBytes.length;
+            headerBuffer.putInt(blockInfoSize);
+            headerBuffer.putInt(blockInfo.getType());
+            headerBuffer.putLong(blockInfo.getBlockStartByteOffset() + headerBytesAdjustment);
+            headerBuffer.putLong(blockInfo.getBlockSizeBytes());
+            headerBuffer.put((byte) extraBytes.length);
+            headerBuffer.put(extraBytes);
+        }
+        headerBuffer.flip();
+
+        try (FileChannel outputChannel = FileChannel.open(mOutputFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(outputChannel, headerBuffer);
 
             // Copy the block data from the temp file.
-            try (FileInputStream fis = new FileInputStream(mTempFile)) {
-                copyAll(fis, bos);
+            long tempFileSize = mTempFileChannel.size();
+            long position = 0;
+            while (position < tempFileSize) {
+                position += mTempFileChannel.transferTo(
+                        position, tempFileSize - position, outputChannel);
             }
         }
     }
 
-    private static int copyAll(InputStream inputStream, TypedOutputStream outputStream)
-            throws IOException {
-        byte[] buffer = new byte[8192];
-        int totalByteCount = 0;
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer)) >= 0) {
-            outputStream.writeBytes(buffer, 0, bytesRead);
-            totalByteCount += bytesRead;
-        }
-        inputStream.close();
-        return totalByteCount;
-    }
-
-    private static int copyAll(BlockData blockData, TypedOutputStream outputStream)
+    private static long writeFully(FileChannel channel, ByteBuffer... buffers)
             throws IOException {
-        byte[] buffer = new byte[8192];
-        ByteBuffer byteBuffer = blockData.getByteBuffer();
-        int totalByteCount = 0;
-        while (byteBuffer.remaining() > 0) {
-            int byteCount = Math.min(buffer.length, byteBuffer.remaining());
-            byteBuffer.get(buffer, 0, byteCount);
-            outputStream.writeBytes(buffer, 0, byteCount);
-            totalByteCount += byteCount;
+        long totalByteCount = 0;
+        ByteBuffer lastBuffer = buffers[buffers.length - 1];
+        while (lastBuffer.hasRemaining()) {
+            totalByteCount += channel.write(buffers);
         }
         return totalByteCount;
     }
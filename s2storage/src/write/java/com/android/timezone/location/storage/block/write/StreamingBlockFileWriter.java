@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.block.write;
+
+import com.android.timezone.location.storage.block.read.BlockChecksums;
+import com.android.timezone.location.storage.block.read.BlockData;
+import com.android.timezone.location.storage.block.read.BlockInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Writes a block file in a single pass without a temporary file. Unlike {@link BlockFileWriter},
+ * the number of blocks must be known up front and blocks can be set in any order: space for the
+ * file header and all block infos is reserved at the start of the file and each block's data is
+ * written directly to its final position as soon as it is set. Only the (small) block infos are
+ * held in memory until {@link #close()}.
+ *
+ * <p>Because block data is written in the order blocks are set, block data is not necessarily
+ * stored in block ID order. Also, because the space reserved for block infos is calculated
+ * using {@code maxExtraBytesCount}, there may be unused bytes between the block infos and the
+ * first block.
+ *
+ * <p>Optionally, a checksum of each block can be stored in the block infos so that readers can
+ * detect corruption. See {@link BlockChecksums}.
+ */
+public final class StreamingBlockFileWriter implements AutoCloseable {
+
+    /** The file layout is the same as {@link BlockFileWriter}'s. */
+    private static final int FILE_HEADER_BYTES = BlockFileWriter.FILE_HEADER_BYTES;
+
+    private static final int BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES =
+            BlockFileWriter.BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES;
+
+    private static final int BLOCK_HEADER_BYTES = BlockFileWriter.BLOCK_HEADER_BYTES;
+
+    private final char mMagic;
+
+    private final int mVersion;
+
+    private final int mMaxExtraBytesCount;
+
+    private final boolean mWriteChecksums;
+
+    private final BlockInfo[] mBlockInfos;
+
+    private FileChannel mFileChannel;
+
+    private long mNextBlockByteOffset;
+
+    private StreamingBlockFileWriter(char magic, int version, int blockCount,
+            int maxExtraBytesCount, boolean writeChecksums) {
+        if (blockCount < 0) {
+            throw new IllegalArgumentException("blockCount=" + blockCount + " must be >= 0");
+        }
+        int maxAllowedExtraBytesCount =
+                writeChecksums ? 255 - BlockChecksums.CHECKSUM_BYTES : 255;
+        if (maxExtraBytesCount < 0 || maxExtraBytesCount > maxAllowedExtraBytesCount) {
+            throw new IllegalArgumentException("maxExtraBytesCount=" + maxExtraBytesCount
+                    + " must be between 0 and " + maxAllowedExtraBytesCount);
+        }
+        mMagic = magic;
+        mVersion = version;
+        mMaxExtraBytesCount = maxExtraBytesCount;
+        mWriteChecksums = writeChecksums;
+        mBlockInfos = new BlockInfo[blockCount];
+    }
+
+    /**
+     * Creates a {@link StreamingBlockFileWriter} ready for setting blocks. The block file is
+     * created with the specified magic and version, and will contain exactly {@code blockCount}
+     * blocks, none of which may have more than {@code maxExtraBytesCount} block info extra bytes.
+     */
+    public static StreamingBlockFileWriter open(char magic, int version, File file,
+            int blockCount, int maxExtraBytesCount) throws IOException {
+        return open(magic, version, file, blockCount, maxExtraBytesCount,
+                false /* writeChecksums */);
+    }
+
+    /**
+     * Creates a {@link StreamingBlockFileWriter} as {@link #open(char, int, File, int, int)}. When
+     * {@code writeChecksums} is {@code true}, a checksum of each block is stored in its block info
+     * in addition to the {@code maxExtraBytesCount} extra bytes.
+     */
+    public static StreamingBlockFileWriter open(char magic, int version, File file,
+            int blockCount, int maxExtraBytesCount, boolean writeChecksums) throws IOException {
+        StreamingBlockFileWriter writer = new StreamingBlockFileWriter(
+                magic, version, blockCount, maxExtraBytesCount, writeChecksums);
+        writer.open(file);
+        return writer;
+    }
+
+    private void open(File file) throws IOException {
+        mFileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        int maxStoredExtraBytesCount = mMaxExtraBytesCount
+                + (mWriteChecksums ? BlockChecksums.CHECKSUM_BYTES : 0);
+        mNextBlockByteOffset = FILE_HEADER_BYTES
+                + (long) mBlockInfos.length
+                        * (BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES + maxStoredExtraBytesCount);
+    }
+
+    /** Returns the number of blocks the file will contain. */
+    public int getBlockCount() {
+        return mBlockInfos.length;
+    }
+
+    /**
+     * Sets the block info / block with the specified ID and writes the block data to the file.
+     * Each block must be set exactly once before {@link #close()} is called.
+     */
+    public void setBlock(int blockId, int blockType, byte[] blockInfoExtraBytes,
+            BlockData blockData) throws IOException {
+        Objects.requireNonNull(blockInfoExtraBytes);
+        Objects.requireNonNull(blockData);
+        checkIsOpen();
+
+        if (blockId < 0 || blockId >= mBlockInfos.length) {
+            throw new IllegalArgumentException("blockId=" + blockId + " must be >= 0 and < "
+                    + mBlockInfos.length);
+        }
+        if (mBlockInfos[blockId] != null) {
+            throw new IllegalStateException("blockId=" + blockId + " has already been set");
+        }
+        if (blockInfoExtraBytes.length > mMaxExtraBytesCount) {
+            throw new IllegalArgumentException("blockInfoExtraBytes.length="
+                    + blockInfoExtraBytes.length + " exceeds " + mMaxExtraBytesCount);
+        }
+
+        long startOfBlock = mNextBlockByteOffset;
+        long blockSizeBytes = 0;
+
+        // The checksum of an empty block is the checksum of no bytes.
+        int checksum = BlockChecksums.calculate();
+        // Don't write anything for empty blocks.
+        ByteBuffer dataBuffer = blockData.getByteBuffer();
+        if (dataBuffer.remaining() != 0) {
+            ByteBuffer blockHeaderBuffer = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            blockHeaderBuffer.putInt(blockId);
+            blockHeaderBuffer.putInt(blockType);
+            blockHeaderBuffer.flip();
+            if (mWriteChecksums) {
+                checksum = BlockChecksums.calculate(blockHeaderBuffer, dataBuffer);
+            }
+            blockSizeBytes += writeFully(blockHeaderBuffer, startOfBlock);
+            blockSizeBytes += writeFully(dataBuffer, startOfBlock + blockSizeBytes);
+            mNextBlockByteOffset += blockSizeBytes;
+        }
+        if (mWriteChecksums) {
+            blockInfoExtraBytes = BlockChecksums.appendChecksum(blockInfoExtraBytes, checksum);
+        }
+        mBlockInfos[blockId] = new BlockInfo(
+                blockId, blockType, startOfBlock, blockSizeBytes, blockInfoExtraBytes);
+    }
+
+    /**
+     * Finishes writing the file by writing the file header and block infos into the space reserved
+     * at the start of the file. All blocks must have been set.
+     */
+    @Override
+    public void close() throws IOException {
+        checkIsOpen();
+        try {
+            for (int i = 0; i < mBlockInfos.length; i++) {
+                if (mBlockInfos[i] == null) {
+                    throw new IllegalStateException("blockId=" + i + " has not been set");
+                }
+            }
+            writeHeaderAndBlockInfos();
+        } finally {
+            mFileChannel.close();
+        }
+    }
+
+    private void writeHeaderAndBlockInfos() throws IOException {
+        int bufferSize = FILE_HEADER_BYTES;
+        for (BlockInfo blockInfo : mBlockInfos) {
+            bufferSize += BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES + blockInfo.getExtraBytes().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        // File header
+        buffer.putChar(mMagic);
+        buffer.putInt(mVersion);
+        // Reserved, the first byte is used for flags.
+        buffer.put((byte) (mWriteChecksums ? BlockChecksums.FILE_FLAG_BLOCK_CHECKSUMS : 0));
+        buffer.put(new byte[9]);
+        buffer.putInt(mBlockInfos.length);
+
+        // Block infos
+        for (BlockInfo blockInfo : mBlockInfos) {
+            byte[] extraBytes = blockInfo.getExtraBytes();
+            buffer.putInt(BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES + extraBytes.length);
+            buffer.putInt(blockInfo.getType());
+            buffer.putLong(blockInfo.getBlockStartByteOffset());
+            buffer.putLong(blockInfo.getBlockSizeBytes());
+            buffer.put((byte) extraBytes.length);
+            buffer.put(extraBytes);
+        }
+        buffer.flip();
+        writeFully(buffer, 0);
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int totalByteCount = 0;
+        while (buffer.hasRemaining()) {
+            totalByteCount += mFileChannel.write(buffer, position + totalByteCount);
+        }
+        return totalByteCount;
+    }
+
+    private void checkIsOpen() {
+        if (mFileChannel == null || !mFileChannel.isOpen()) {
+            throw new IllegalStateException("Writer is closed.");
+        }
+    }
+}
@@ -35,6 +35,12 @@ public final class PackedTableWriter implements AutoCloseable {
 
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+    /**
+     * The size of the table header excluding the shared data: the shared data length, the bit
+     * field, the entry size and the key size.
+     */
+    public static final int HEADER_BYTES_WITHOUT_SHARED_DATA = 4 * Byte.BYTES;
+
     private final TypedOutputStream mBlockDataOutputStream;
 
     private final int mEntrySizeBitCount;
@@ -20,7 +20,9 @@ import com.android.timezone.location.storage.tzs2range.BankedTzIdSets;
 import com.android.timezone.location.storage.tzs2range.TzS2Range;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,7 +30,9 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- * A simple generator of {@link BankedTzIdSets}.
+ * A simple generator of {@link BankedTzIdSets}. Sets can be added a chunk at a time via
+ * {@link #addTzIdSets(List)}, or all at once via {@link #addAllTzIdSets(List)}, which packs them
+ * more efficiently.
  */
 public final class BankedTzIdSetsPacker {
 
@@ -67,15 +71,7 @@ public final class BankedTzIdSetsPacker {
                     "uniqueIdSets.size()=" + uniqueIdSets.size() + " < 1 or > " + mMaxBankSize);
         }
 
-        // Add new strings to the string pool.
-        for (List<String> stringSets : uniqueIdSets) {
-            for (String string : stringSets) {
-                if (!mStringToStringId.containsKey(string)) {
-                    mStringToStringId.put(string, mNextStringId++);
-                    mStringIdToString.add(string);
-                }
-            }
-        }
+        addStrings(uniqueIdSets);
 
         // Packing could be better, but it doesn't need to be optimal.
         for (BankHelper bankHelper : mBankHelpers) {
@@ -95,6 +91,114 @@ public final class BankedTzIdSetsPacker {
         return bankHelper;
     }
 
+    /**
+     * Adds the TZ ID sets for many chunks of time zone geo data at once. Each element of
+     * {@code uniqueIdSetsList} is treated as for {@link #addTzIdSets(List)}. Because all the sets
+     * are known up front the packing can be better than when chunks are added one at a time: chunks
+     * are packed largest first and each is put in the existing bank that requires the fewest new
+     * sets to be added ("best fit decreasing"). This tends to reduce the number of banks and the
+     * number of sets that are stored in more than one bank, which reduces the size of the header.
+     *
+     * <p>The returned list contains the {@link BankHelper} for each chunk, in the same order as
+     * {@code uniqueIdSetsList}. The result is deterministic for a given input.
+     */
+    public List<BankHelper> addAllTzIdSets(List<List<List<String>>> uniqueIdSetsList) {
+        for (List<List<String>> uniqueIdSets : uniqueIdSetsList) {
+            if (uniqueIdSets.size() < 1 || uniqueIdSets.size() > mMaxBankSize) {
+                throw new IllegalArgumentException("uniqueIdSets.size()=" + uniqueIdSets.size()
+                        + " < 1 or > " + mMaxBankSize);
+            }
+            addStrings(uniqueIdSets);
+        }
+
+        // Pack the largest chunks first. Ties are broken by position so the result is stable.
+        List<Integer> packingOrder = new ArrayList<>(uniqueIdSetsList.size());
+        for (int i = 0; i < uniqueIdSetsList.size(); i++) {
+            packingOrder.add(i);
+        }
+        packingOrder.sort(Comparator
+                .comparingInt((Integer i) -> uniqueIdSetsList.get(i).size()).reversed()
+                .thenComparingInt(i -> i));
+
+        BankHelper[] bankHelpers = new BankHelper[uniqueIdSetsList.size()];
+        for (int chunkIndex : packingOrder) {
+            List<List<String>> uniqueIdSets = uniqueIdSetsList.get(chunkIndex);
+
+            BankHelper bestBankHelper = null;
+            int bestNewSetCount = Integer.MAX_VALUE;
+            for (BankHelper bankHelper : mBankHelpers) {
+                int newSetCount = bankHelper.getNewSets(uniqueIdSets).size();
+                if (bankHelper.getTzIdSetCount() + newSetCount <= mMaxBankSize
+                        && newSetCount < bestNewSetCount) {
+                    bestBankHelper = bankHelper;
+                    bestNewSetCount = newSetCount;
+                }
+            }
+            if (bestBankHelper == null) {
+                bestBankHelper = new BankHelper(mNextBankId++);
+                mBankHelpers.add(bestBankHelper);
+            }
+            if (!bestBankHelper.offer(uniqueIdSets)) {
+                throw new IllegalStateException(
+                        "uniqueIdSets=" + uniqueIdSets + " cannot be stored in the chosen bank");
+            }
+            bankHelpers[chunkIndex] = bestBankHelper;
+        }
+        return Arrays.asList(bankHelpers);
+    }
+
+    private void addStrings(List<List<String>> uniqueIdSets) {
+        // Add new strings to the string pool.
+        for (List<String> stringSets : uniqueIdSets) {
+            for (String string : stringSets) {
+                if (!mStringToStringId.containsKey(string)) {
+                    mStringToStringId.put(string, mNextStringId++);
+                    mStringIdToString.add(string);
+                }
+            }
+        }
+    }
+
+    /** Returns the maximum number of TZ ID sets that can be stored in a bank. */
+    public int getMaxBankSize() {
+        return mMaxBankSize;
+    }
+
+    /** Returns the number of banks created so far. */
+    public int getBankCount() {
+        return mBankHelpers.size();
+    }
+
+    /**
+     * Returns the total number of TZ ID sets stored across all banks. Sets stored in more than one
+     * bank are counted once per bank.
+     */
+    public int getStoredTzIdSetCount() {
+        int count = 0;
+        for (BankHelper bankHelper : mBankHelpers) {
+            count += bankHelper.getTzIdSetCount();
+        }
+        return count;
+    }
+
+    /** Returns the number of distinct TZ ID sets stored across all banks. */
+    public int getDistinctTzIdSetCount() {
+        Set<List<Integer>> distinctSets = new HashSet<>();
+        for (BankHelper bankHelper : mBankHelpers) {
+            distinctSets.addAll(bankHelper.mSetIdToSet);
+        }
+        return distinctSets.size();
+    }
+
+    /** Returns the number of TZ ID sets in the largest bank, or zero if there are no banks. */
+    public int getLargestBankSize() {
+        int largestBankSize = 0;
+        for (BankHelper bankHelper : mBankHelpers) {
+            largestBankSize = Math.max(largestBankSize, bankHelper.getTzIdSetCount());
+        }
+        return largestBankSize;
+    }
+
     /**
      * Creates the {@link BankedTzIdSets}.
      */
@@ -175,11 +279,25 @@ public final class BankedTzIdSetsPacker {
             return setId;
         }
 
+        int getTzIdSetCount() {
+            return mSetIdToSet.size();
+        }
+
         List<List<Integer>> getTzIdSets() {
             return Collections.unmodifiableList(new ArrayList<>(mSetIdToSet));
         }
 
         boolean offer(List<List<String>> uniqueIdSets) {
+            List<List<String>> newSets = getNewSets(uniqueIdSets);
+            if (mSetToSetId.size() + newSets.size() > mMaxBankSize) {
+                return false;
+            }
+            addAll(newSets);
+            return true;
+        }
+
+        /** Returns the sets from {@code uniqueIdSets} that are not already in this bank. */
+        private List<List<String>> getNewSets(List<List<String>> uniqueIdSets) {
             List<List<String>> newSets = new ArrayList<>();
             for (List<String> uniqueIdSet : uniqueIdSets) {
                 List<Integer> uniqueIdSetIntegers = getStringIdList(uniqueIdSet);
@@ -187,11 +305,7 @@ public final class BankedTzIdSetsPacker {
                     newSets.add(uniqueIdSet);
                 }
             }
-            if (mSetToSetId.size() + newSets.size() > mMaxBankSize) {
-                return false;
-            }
-            addAll(newSets);
-            return true;
+            return newSets;
         }
     }
 
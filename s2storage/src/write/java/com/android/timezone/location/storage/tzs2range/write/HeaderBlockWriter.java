@@ -36,6 +36,19 @@ public final class HeaderBlockWriter implements BlockWriter {
 
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+    /** The maximum number of banks, which is stored as an unsigned byte. */
+    public static final int MAX_BANK_COUNT = 255;
+
+    /** The maximum number of TZ ID sets in a bank, which is stored as an unsigned byte. */
+    public static final int MAX_BANK_SIZE = 255;
+
+    /**
+     * The size of the file format information at the start of the block: the S2 level, prefix
+     * bit count, suffix bit count, table entry bit count, range length bit count and suffix table
+     * block ID offset.
+     */
+    public static final int FORMAT_INFO_BYTES = 6 * Byte.BYTES;
+
     private final BankedTzIdSetsPacker mBankedTzIdSetsPacker;
 
     private final File mFile;
@@ -46,7 +59,8 @@ public final class HeaderBlockWriter implements BlockWriter {
 
     private HeaderBlockWriter(TzS2RangeFileFormat fileFormat, File file) {
         mFileFormat = fileFormat;
-        mBankedTzIdSetsPacker = new BankedTzIdSetsPacker(fileFormat.getMaxTzIdSetIdValue() + 1);
+        int maxBankSize = Math.min(fileFormat.getMaxTzIdSetIdValue() + 1, MAX_BANK_SIZE);
+        mBankedTzIdSetsPacker = new BankedTzIdSetsPacker(maxBankSize);
         mFile = file;
     }
 
@@ -63,6 +77,32 @@ public final class HeaderBlockWriter implements BlockWriter {
         return mBankedTzIdSetsPacker;
     }
 
+    /**
+     * Returns the size of the block data that {@link #close()} writes for
+     * {@code bankedTzIdSets}.
+     */
+    public static long calculateBlockDataByteCount(BankedTzIdSets bankedTzIdSets) {
+        long byteCount = FORMAT_INFO_BYTES;
+
+        // Strings: a char count, then each as a tiny byte array.
+        byteCount += Character.BYTES;
+        for (String string : bankedTzIdSets.getStringsByIndex()) {
+            byteCount += Byte.BYTES + string.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        // Banks: an unsigned byte count, then each bank's sets as tiny char arrays.
+        byteCount += Byte.BYTES;
+        for (int bankIndex = 0; bankIndex < bankedTzIdSets.getBankCount(); bankIndex++) {
+            BankedTzIdSets.Bank bank = bankedTzIdSets.getBank(bankIndex);
+            byteCount += Byte.BYTES;
+            for (int setIndex = 0; setIndex < bank.getTzIdSetCount(); setIndex++) {
+                byteCount += Byte.BYTES
+                        + Character.BYTES * bank.getTzIdSet(setIndex).getStringIds().size();
+            }
+        }
+        return byteCount;
+    }
+
     @Override
     public ReadBack close() throws IOException {
         checkIsOpen();
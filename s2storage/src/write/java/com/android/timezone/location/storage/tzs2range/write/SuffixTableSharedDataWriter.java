@@ -28,6 +28,9 @@ import java.io.IOException;
  */
 public final class SuffixTableSharedDataWriter {
 
+    /** The size of the shared data: the table prefix and the TZ ID set bank. */
+    public static final int SHARED_DATA_BYTES = Integer.BYTES + Integer.BYTES;
+
     private SuffixTableSharedDataWriter() {
     }
 
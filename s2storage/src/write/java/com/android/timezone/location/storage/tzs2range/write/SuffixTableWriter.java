@@ -46,6 +46,14 @@ import java.nio.file.StandardOpenOption;
  */
 public final class SuffixTableWriter implements BlockWriter {
 
+    /** The size of a populated table's block data before its entries. */
+    public static final int POPULATED_TABLE_HEADER_BYTES =
+            PackedTableWriter.HEADER_BYTES_WITHOUT_SHARED_DATA
+                    + SuffixTableSharedDataWriter.SHARED_DATA_BYTES;
+
+    /** The size of a populated table's block info extra bytes: the entry count. */
+    public static final int POPULATED_TABLE_BLOCK_INFO_EXTRA_BYTES = Integer.BYTES;
+
     private final SuffixTableSharedData mSharedData;
 
     private final TzS2RangeFileFormat mFileFormat;
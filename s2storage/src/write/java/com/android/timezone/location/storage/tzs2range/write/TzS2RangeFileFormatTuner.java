@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.storage.tzs2range.write;
+
+import com.android.timezone.location.storage.block.write.BlockFileWriter;
+import com.android.timezone.location.storage.s2.S2Support;
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.storage.tzs2range.TzS2RangeFileFormat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Chooses {@link TzS2RangeFileFormat} parameters for a specific set of ranges.
+ *
+ * <p>Each candidate prefix bit count is evaluated by analyzing the ranges as they would be stored:
+ * ranges are split at prefix boundaries, the range length bit count is chosen so that no further
+ * splitting is needed, and the TZ ID set ID bit count is chosen so the sets of every prefix fit
+ * into banks (see {@link BankedTzIdSetsPacker#addAllTzIdSets(List)}). The estimates assume the
+ * sets are packed up front, i.e. that {@link TzS2RangeFileWriter#packTzIdSets(java.util.Iterator)}
+ * is used. The remaining parameters follow from those choices. The file size of each candidate is
+ * then estimated and the smallest is chosen. Candidates whose size is within
+ * {@link #SIZE_TOLERANCE} of the smallest are considered equivalent and the one with the lowest
+ * expected lookup cost is chosen instead.
+ */
+public final class TzS2RangeFileFormatTuner {
+
+    /** Candidates this close in size to the smallest are chosen between using lookup cost. */
+    private static final double SIZE_TOLERANCE = 0.01;
+
+    /**
+     * The largest prefix bit count considered. Larger values mean a very large number of mostly
+     * empty suffix tables.
+     */
+    private static final int MAX_PREFIX_BIT_COUNT = 16;
+
+    /** The header block must be stored in block 0. Suffix tables can follow immediately. */
+    private static final int SUFFIX_TABLE_BLOCK_ID_OFFSET = 1;
+
+    /** The fixed size of a populated suffix table, including its block info extra bytes. */
+    private static final int POPULATED_SUFFIX_TABLE_OVERHEAD_BYTES =
+            BlockFileWriter.BLOCK_HEADER_BYTES
+                    + SuffixTableWriter.POPULATED_TABLE_HEADER_BYTES
+                    + SuffixTableWriter.POPULATED_TABLE_BLOCK_INFO_EXTRA_BYTES;
+
+    private TzS2RangeFileFormatTuner() {
+    }
+
+    /** The result of tuning: the chosen format and some information about why it was chosen. */
+    public static final class Result {
+
+        private final TzS2RangeFileFormat mFileFormat;
+
+        private final long mEstimatedFileSizeBytes;
+
+        private final double mExpectedLookupSteps;
+
+        private final int mBankCount;
+
+        private Result(TzS2RangeFileFormat fileFormat, long estimatedFileSizeBytes,
+                double expectedLookupSteps, int bankCount) {
+            mFileFormat = fileFormat;
+            mEstimatedFileSizeBytes = estimatedFileSizeBytes;
+            mExpectedLookupSteps = expectedLookupSteps;
+            mBankCount = bankCount;
+        }
+
+        /** Returns the chosen file format. */
+        public TzS2RangeFileFormat getFileFormat() {
+            return mFileFormat;
+        }
+
+        /** Returns the estimated size of a file written with {@link #getFileFormat()}. */
+        public long getEstimatedFileSizeBytes() {
+            return mEstimatedFileSizeBytes;
+        }
+
+        /**
+         * Returns the expected number of binary search steps needed to find an entry in a suffix
+         * table, assuming every entry is equally likely to be looked up.
+         */
+        public double getExpectedLookupSteps() {
+            return mExpectedLookupSteps;
+        }
+
+        /** Returns the number of TZ ID set banks expected. */
+        public int getBankCount() {
+            return mBankCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{"
+                    + "mFileFormat=" + mFileFormat
+                    + ", mEstimatedFileSizeBytes=" + mEstimatedFileSizeBytes
+                    + ", mExpectedLookupSteps=" + mExpectedLookupSteps
+                    + ", mBankCount=" + mBankCount
+                    + '}';
+        }
+    }
+
+    /**
+     * Returns the best {@link TzS2RangeFileFormat} for the supplied ranges. The ranges must be of
+     * the specified S2 level, ordered and non-overlapping. {@code ranges} is iterated once for
+     * each candidate prefix bit count.
+     */
+    public static Result tune(int s2Level, Iterable<TzS2Range> ranges) {
+        int storageBitCount = S2Support.storageBitCountForLevel(s2Level);
+
+        // The prefix must include the face bits and one more. The suffix is stored as the key of
+        // table entries and range lengths are calculated as ints, so a whole prefix's worth of
+        // cells must be countable with an int.
+        int minPrefixBitCount = Math.max(S2Support.FACE_BIT_COUNT + 1, storageBitCount - 30);
+        int maxPrefixBitCount = Math.min(MAX_PREFIX_BIT_COUNT, storageBitCount - 1);
+
+        List<Result> candidates = new ArrayList<>();
+        for (int prefixBitCount = minPrefixBitCount;
+                prefixBitCount <= maxPrefixBitCount;
+                prefixBitCount++) {
+            Result candidate = evaluate(s2Level, prefixBitCount, ranges);
+            if (candidate != null) {
+                candidates.add(candidate);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No valid file format for s2Level=" + s2Level);
+        }
+
+        long smallestSize = Long.MAX_VALUE;
+        for (Result candidate : candidates) {
+            smallestSize = Math.min(smallestSize, candidate.getEstimatedFileSizeBytes());
+        }
+        Result best = null;
+        for (Result candidate : candidates) {
+            if (candidate.getEstimatedFileSizeBytes() > smallestSize * (1 + SIZE_TOLERANCE)) {
+                continue;
+            }
+            if (best == null
+                    || candidate.getExpectedLookupSteps() < best.getExpectedLookupSteps()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Evaluates the format with the specified prefix bit count. Returns {@code null} if no valid
+     * format exists.
+     */
+    private static Result evaluate(int s2Level, int prefixBitCount, Iterable<TzS2Range> ranges) {
+        int storageBitCount = S2Support.storageBitCountForLevel(s2Level);
+        int suffixBitCount = storageBitCount - prefixBitCount;
+        int unusedCellIdBitCount = Long.SIZE - storageBitCount;
+
+        // Split the ranges at prefix boundaries as TzS2RangeFileWriter does, recording the number
+        // of entries and unique TZ ID sets for each prefix, and the longest range.
+        Map<Integer, Set<List<String>>> uniqueIdSetsByPrefix = new TreeMap<>();
+        Map<Integer, Integer> entryCountByPrefix = new TreeMap<>();
+        long maxRangeLength = 0;
+        for (TzS2Range range : ranges) {
+            long start = range.getStartCellId() >>> unusedCellIdBitCount;
+            long end = range.getEndCellId() >>> unusedCellIdBitCount;
+            while (start < end) {
+                int prefix = (int) (start >>> suffixBitCount);
+                long prefixEnd = ((long) prefix + 1) << suffixBitCount;
+                long pieceEnd = Math.min(end, prefixEnd);
+                maxRangeLength = Math.max(maxRangeLength, pieceEnd - start);
+                uniqueIdSetsByPrefix.computeIfAbsent(prefix, x -> new HashSet<>())
+                        .add(range.getTzIdSet());
+                entryCountByPrefix.merge(prefix, 1, Integer::sum);
+                start = pieceEnd;
+            }
+        }
+
+        // Choose the smallest range length bit count that avoids splitting ranges.
+        int rangeLengthBitCount = Math.max(2, bitCountForValue(maxRangeLength));
+
+        // Choose the smallest TZ ID set ID bit count that allows all the sets to be stored.
+        List<List<List<String>>> uniqueIdSetsList = new ArrayList<>();
+        int maxUniqueIdSetCount = 1;
+        for (Set<List<String>> uniqueIdSets : uniqueIdSetsByPrefix.values()) {
+            uniqueIdSetsList.add(new ArrayList<>(uniqueIdSets));
+            maxUniqueIdSetCount = Math.max(maxUniqueIdSetCount, uniqueIdSets.size());
+        }
+        if (maxUniqueIdSetCount > HeaderBlockWriter.MAX_BANK_SIZE) {
+            return null;
+        }
+        int tzIdSetIdBitCount = Math.max(1, bitCountForValue(maxUniqueIdSetCount - 1));
+        BankedTzIdSetsPacker packer;
+        while (true) {
+            int maxBankSize = Math.min(1 << tzIdSetIdBitCount, HeaderBlockWriter.MAX_BANK_SIZE);
+            packer = new BankedTzIdSetsPacker(maxBankSize);
+            packer.addAllTzIdSets(uniqueIdSetsList);
+            if (packer.getBankCount() <= HeaderBlockWriter.MAX_BANK_COUNT) {
+                break;
+            }
+            if (maxBankSize == HeaderBlockWriter.MAX_BANK_SIZE) {
+                return null;
+            }
+            tzIdSetIdBitCount++;
+        }
+
+        // Entries are a whole number of bytes. Any spare bits are used for TZ ID set IDs.
+        int tableEntryBitCount =
+                roundUpToByte(suffixBitCount + rangeLengthBitCount + tzIdSetIdBitCount);
+        if (tableEntryBitCount > Long.SIZE
+                || tableEntryBitCount - suffixBitCount > Integer.SIZE
+                || rangeLengthBitCount > Math.min(tableEntryBitCount - 2, Integer.SIZE - 1)) {
+            return null;
+        }
+        TzS2RangeFileFormat fileFormat = new TzS2RangeFileFormat(s2Level, prefixBitCount,
+                suffixBitCount, SUFFIX_TABLE_BLOCK_ID_OFFSET, tableEntryBitCount,
+                rangeLengthBitCount);
+
+        // Estimate the file size.
+        int tableEntryByteCount = tableEntryBitCount / Byte.SIZE;
+        long blockCount = SUFFIX_TABLE_BLOCK_ID_OFFSET + fileFormat.getMaxPrefixValue() + 1L;
+        long fileSizeBytes = BlockFileWriter.FILE_HEADER_BYTES
+                + blockCount * BlockFileWriter.BLOCK_INFO_BYTES_WITHOUT_EXTRA_BYTES
+                + BlockFileWriter.BLOCK_HEADER_BYTES
+                + HeaderBlockWriter.calculateBlockDataByteCount(packer.create());
+        long totalEntryCount = 0;
+        double weightedLookupSteps = 0;
+        for (int entryCount : entryCountByPrefix.values()) {
+            fileSizeBytes += POPULATED_SUFFIX_TABLE_OVERHEAD_BYTES
+                    + (long) entryCount * tableEntryByteCount;
+            totalEntryCount += entryCount;
+            weightedLookupSteps += entryCount * (Math.log(entryCount + 1) / Math.log(2));
+        }
+        double expectedLookupSteps =
+                totalEntryCount == 0 ? 0 : weightedLookupSteps / totalEntryCount;
+        return new Result(fileFormat, fileSizeBytes, expectedLookupSteps, packer.getBankCount());
+    }
+
+    /** Returns the number of bits needed to store {@code value} as an unsigned value. */
+    private static int bitCountForValue(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    private static int roundUpToByte(int bitCount) {
+        return ((bitCount + Byte.SIZE - 1) / Byte.SIZE) * Byte.SIZE;
+    }
+}
@@ -19,6 +19,7 @@ package com.android.timezone.location.storage.tzs2range.write;
 import com.android.timezone.location.storage.block.write.BlockFileWriter;
 import com.android.timezone.location.storage.block.write.BlockWriter;
 import com.android.timezone.location.storage.block.write.EmptyBlockWriter;
+import com.android.timezone.location.storage.block.write.StreamingBlockFileWriter;
 import com.android.timezone.location.storage.s2.S2Support;
 import com.android.timezone.location.storage.tzs2range.SuffixTableRange;
 import com.android.timezone.location.storage.tzs2range.SuffixTableSharedData;
@@ -27,40 +28,147 @@ import com.android.timezone.location.storage.tzs2range.TzS2RangeFileFormat;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /** Writes a TZ S2 data file. */
 public final class TzS2RangeFileWriter implements AutoCloseable {
 
+    /**
+     * The maximum number of block info extra bytes used by any block in the file. Only populated
+     * suffix tables use extra bytes, see {@link SuffixTableWriter}.
+     */
+    private static final int MAX_BLOCK_INFO_EXTRA_BYTES_COUNT = Integer.BYTES;
+
+    /**
+     * The number of prefixes whose ranges are collected before suffix tables are encoded
+     * concurrently by {@link #processRanges(Iterator, ExecutorService)}. This bounds the number of
+     * ranges held in memory at once.
+     */
+    private static final int PARALLEL_BATCH_PREFIX_COUNT = 256;
+
     private final HeaderBlockWriter mHeaderBlockWriter;
 
     private final List<BlockWriter> mSuffixTableBlockWriters = new ArrayList<>();
 
+    /** The writer used in buffered mode, {@code null} in streaming mode. */
     private final BlockFileWriter mBlockFileWriter;
 
+    /** The writer used in streaming mode, {@code null} in buffered mode. */
+    private final StreamingBlockFileWriter mStreamingBlockFileWriter;
+
     private final BankedTzIdSetsPacker mBankedTzIdSetsPacker;
 
     private final TzS2RangeFileFormat mFileFormat;
 
-    private TzS2RangeFileWriter(TzS2RangeFileFormat fileFormat, BlockFileWriter blockFileWriter)
-            throws IOException {
+    /**
+     * The bank to use for each prefix when TZ ID sets have been packed up front by
+     * {@link #packTzIdSets(Iterator)}, {@code null} otherwise. Elements are {@code null} for
+     * prefixes with no ranges.
+     */
+    private List<BankedTzIdSetsPacker.BankHelper> mPackedBankHelpers;
+
+    private TzS2RangeFileWriter(TzS2RangeFileFormat fileFormat, BlockFileWriter blockFileWriter,
+            StreamingBlockFileWriter streamingBlockFileWriter) throws IOException {
         mBlockFileWriter = blockFileWriter;
+        mStreamingBlockFileWriter = streamingBlockFileWriter;
         mFileFormat = fileFormat;
 
         mHeaderBlockWriter = HeaderBlockWriter.create(fileFormat);
         mBankedTzIdSetsPacker = mHeaderBlockWriter.getBankedTzIdSetsPacker();
     }
 
-    /** Opens a file for writing with the specified format. */
+    /**
+     * Opens a file for writing with the specified format. Suffix tables are held until
+     * {@link #close()} and then copied into the file after the header block.
+     */
     public static TzS2RangeFileWriter open(File outFile, TzS2RangeFileFormat fileFormat)
             throws IOException {
+        return open(outFile, fileFormat, false /* writeChecksums */);
+    }
+
+    /**
+     * Opens a file for writing as {@link #open(File, TzS2RangeFileFormat)}, optionally storing a
+     * checksum for every block in the file.
+     */
+    public static TzS2RangeFileWriter open(File outFile, TzS2RangeFileFormat fileFormat,
+            boolean writeChecksums) throws IOException {
         BlockFileWriter writer = BlockFileWriter.open(
-                TzS2RangeFileFormat.MAGIC, TzS2RangeFileFormat.VERSION, outFile);
-        return new TzS2RangeFileWriter(fileFormat, writer);
+                TzS2RangeFileFormat.MAGIC, TzS2RangeFileFormat.VERSION, outFile, writeChecksums);
+        return new TzS2RangeFileWriter(fileFormat, writer, null);
+    }
+
+    /**
+     * Opens a file for writing with the specified format in streaming mode. Each suffix table is
+     * written to its final position in the file as soon as it is complete, so only one suffix
+     * table is held at a time. The header block is written last. The file produced is logically
+     * equivalent to one produced via {@link #open(File, TzS2RangeFileFormat)} but the physical
+     * layout of blocks differs. See {@link StreamingBlockFileWriter} for details.
+     */
+    public static TzS2RangeFileWriter openStreaming(File outFile, TzS2RangeFileFormat fileFormat)
+            throws IOException {
+        return openStreaming(outFile, fileFormat, false /* writeChecksums */);
+    }
+
+    /**
+     * Opens a file for writing as {@link #openStreaming(File, TzS2RangeFileFormat)}, optionally
+     * storing a checksum for every block in the file.
+     */
+    public static TzS2RangeFileWriter openStreaming(File outFile, TzS2RangeFileFormat fileFormat,
+            boolean writeChecksums) throws IOException {
+        int blockCount = fileFormat.getSuffixTableBlockIdOffset()
+                + fileFormat.getMaxPrefixValue() + 1;
+        StreamingBlockFileWriter writer = StreamingBlockFileWriter.open(
+                TzS2RangeFileFormat.MAGIC, TzS2RangeFileFormat.VERSION, outFile, blockCount,
+                MAX_BLOCK_INFO_EXTRA_BYTES_COUNT, writeChecksums);
+        return new TzS2RangeFileWriter(fileFormat, null, writer);
+    }
+
+    /**
+     * Optionally makes a first pass over the ranges to be stored in the file, packing all the TZ ID
+     * sets into banks before any suffix tables are written. This can reduce the number of banks and
+     * the size of the header compared to packing sets prefix by prefix, see
+     * {@link BankedTzIdSetsPacker#addAllTzIdSets(List)}. If used, this method must be called once,
+     * before {@link #processRanges(Iterator)}, and with the same ranges.
+     */
+    public void packTzIdSets(Iterator<TzS2Range> ranges) {
+        if (mPackedBankHelpers != null) {
+            throw new IllegalStateException("TZ ID sets have already been packed");
+        }
+        PushBackIterator<TzS2Range> pushBackIterator = new PushBackIterator<>(ranges);
+
+        List<List<List<String>>> uniqueIdSetsList = new ArrayList<>();
+        List<Integer> populatedPrefixes = new ArrayList<>();
+        for (int currentPrefix = 0;
+                currentPrefix <= mFileFormat.getMaxPrefixValue();
+                currentPrefix++) {
+            List<TzS2Range> samePrefixRanges =
+                    collectSamePrefixRanges(pushBackIterator, currentPrefix);
+            if (!samePrefixRanges.isEmpty()) {
+                uniqueIdSetsList.add(BankedTzIdSetsPacker.extractUniqueTzIdSets(samePrefixRanges));
+                populatedPrefixes.add(currentPrefix);
+            }
+        }
+        if (pushBackIterator.hasNext()) {
+            throw new IllegalStateException("Unexpected ranges left at the end.");
+        }
+
+        List<BankedTzIdSetsPacker.BankHelper> bankHelpers =
+                mBankedTzIdSetsPacker.addAllTzIdSets(uniqueIdSetsList);
+        mPackedBankHelpers = new ArrayList<>(
+                Collections.nCopies(mFileFormat.getMaxPrefixValue() + 1, null));
+        for (int i = 0; i < populatedPrefixes.size(); i++) {
+            mPackedBankHelpers.set(populatedPrefixes.get(i), bankHelpers.get(i));
+        }
     }
 
     /**
@@ -82,7 +190,7 @@ public final class TzS2RangeFileWriter implements AutoCloseable {
 
             // Step 2: Write samePrefixRanges to a suffix table.
             BlockWriter blockWriter = writeSamePrefixRanges(currentPrefix, samePrefixRanges);
-            mSuffixTableBlockWriters.add(blockWriter);
+            addSuffixTableBlockWriter(currentPrefix, blockWriter);
         }
 
         // At this point there should be no data left.
@@ -91,6 +199,110 @@ public final class TzS2RangeFileWriter implements AutoCloseable {
         }
     }
 
+    /**
+     * As {@link #processRanges(Iterator)} but suffix tables are encoded concurrently using the
+     * supplied {@link ExecutorService}. The ranges are consumed in batches of prefixes: within a
+     * batch, TZ ID sets are assigned to banks sequentially in prefix order (bank assignment
+     * depends on the order sets are seen) and then each prefix's suffix table is encoded as a
+     * separate task. Blocks are added in prefix order, so the file produced is byte-identical to
+     * the one produced by {@link #processRanges(Iterator)}.
+     */
+    public void processRanges(Iterator<TzS2Range> ranges, ExecutorService executorService)
+            throws IOException {
+        Objects.requireNonNull(executorService);
+        PushBackIterator<TzS2Range> pushBackIterator = new PushBackIterator<>(ranges);
+
+        int maxPrefixValue = mFileFormat.getMaxPrefixValue();
+        for (int batchStartPrefix = 0;
+                batchStartPrefix <= maxPrefixValue;
+                batchStartPrefix += PARALLEL_BATCH_PREFIX_COUNT) {
+            int batchEndPrefix =
+                    Math.min(batchStartPrefix + PARALLEL_BATCH_PREFIX_COUNT, maxPrefixValue + 1);
+
+            // Step 1: Collect the ranges for each prefix in the batch. The input is sequential so
+            // this cannot be done concurrently.
+            List<List<TzS2Range>> batchRanges = new ArrayList<>();
+            for (int prefix = batchStartPrefix; prefix < batchEndPrefix; prefix++) {
+                batchRanges.add(collectSamePrefixRanges(pushBackIterator, prefix));
+            }
+
+            // Step 2: Extract the unique TZ ID sets for each prefix concurrently.
+            List<Future<List<List<String>>>> uniqueIdSetsFutures = new ArrayList<>();
+            for (List<TzS2Range> samePrefixRanges : batchRanges) {
+                uniqueIdSetsFutures.add(samePrefixRanges.isEmpty() || mPackedBankHelpers != null
+                        ? null
+                        : executorService.submit(() ->
+                                BankedTzIdSetsPacker.extractUniqueTzIdSets(samePrefixRanges)));
+            }
+
+            // Step 3: Assign banks in prefix order. The packer is only modified here, never while
+            // suffix tables are being encoded.
+            List<BankedTzIdSetsPacker.BankHelper> bankHelpers = new ArrayList<>();
+            for (int i = 0; i < uniqueIdSetsFutures.size(); i++) {
+                Future<List<List<String>>> uniqueIdSetsFuture = uniqueIdSetsFutures.get(i);
+                if (mPackedBankHelpers != null) {
+                    bankHelpers.add(mPackedBankHelpers.get(batchStartPrefix + i));
+                } else {
+                    bankHelpers.add(uniqueIdSetsFuture == null ? null
+                            : mBankedTzIdSetsPacker.addTzIdSets(getResult(uniqueIdSetsFuture)));
+                }
+            }
+
+            // Step 4: Encode the suffix tables concurrently.
+            List<Future<BlockWriter>> blockWriterFutures = new ArrayList<>();
+            for (int i = 0; i < batchRanges.size(); i++) {
+                int prefix = batchStartPrefix + i;
+                List<TzS2Range> samePrefixRanges = batchRanges.get(i);
+                BankedTzIdSetsPacker.BankHelper bankHelper = bankHelpers.get(i);
+                blockWriterFutures.add(executorService.submit(
+                        () -> encodeSuffixTable(prefix, samePrefixRanges, bankHelper)));
+            }
+
+            // Step 5: Add the suffix tables in prefix order.
+            for (int i = 0; i < blockWriterFutures.size(); i++) {
+                addSuffixTableBlockWriter(
+                        batchStartPrefix + i, getResult(blockWriterFutures.get(i)));
+            }
+        }
+
+        // At this point there should be no data left.
+        if (pushBackIterator.hasNext()) {
+            throw new IllegalStateException("Unexpected ranges left at the end.");
+        }
+    }
+
+    private static <V> V getResult(Future<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for suffix table encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void addSuffixTableBlockWriter(int prefix, BlockWriter blockWriter)
+            throws IOException {
+        if (mStreamingBlockFileWriter != null) {
+            // Write the suffix table immediately so it doesn't need to be retained.
+            int blockId = prefix + mFileFormat.getSuffixTableBlockIdOffset();
+            BlockWriter.ReadBack readBack = blockWriter.close();
+            mStreamingBlockFileWriter.setBlock(blockId, readBack.getType(),
+                    readBack.getExtraBytes(), readBack.getBlockData());
+        } else {
+            mSuffixTableBlockWriters.add(blockWriter);
+        }
+    }
+
     private List<TzS2Range> collectSamePrefixRanges(
             PushBackIterator<TzS2Range> pushBackIterator, int currentPrefix) {
 
@@ -169,59 +381,85 @@ public final class TzS2RangeFileWriter implements AutoCloseable {
 
     private BlockWriter writeSamePrefixRanges(int currentPrefix, List<TzS2Range> samePrefixRanges)
             throws IOException {
-        BlockWriter blockWriter;
-        if (samePrefixRanges.size() == 0) {
-            // Add an empty block.
-            blockWriter = SuffixTableWriter.createEmptyBlockWriter();
-        } else {
-            // Create a suffix table block.
+        if (mPackedBankHelpers != null) {
+            return encodeSuffixTable(
+                    currentPrefix, samePrefixRanges, mPackedBankHelpers.get(currentPrefix));
+        }
 
+        BankedTzIdSetsPacker.BankHelper bankHelper = null;
+        if (!samePrefixRanges.isEmpty()) {
             // Handle the TZ IDs sets to store.
             List<List<String>> uniqueIdSets =
                     BankedTzIdSetsPacker.extractUniqueTzIdSets(samePrefixRanges);
-            BankedTzIdSetsPacker.BankHelper bankHelper =
-                    mBankedTzIdSetsPacker.addTzIdSets(uniqueIdSets);
-
-            SuffixTableSharedData sharedData =
-                    new SuffixTableSharedData(currentPrefix, bankHelper.getId());
-            SuffixTableWriter suffixTableWriter =
-                    SuffixTableWriter.createPopulated(mFileFormat, sharedData);
-            TzS2Range lastRange = null;
-            for (TzS2Range currentRange : samePrefixRanges) {
-                // Validate ranges don't overlap.
-                if (lastRange != null) {
-                    if (lastRange.overlaps(currentRange)) {
-                        throw new IllegalStateException("lastRange=" + lastRange + " overlaps"
-                                + " currentRange=" + currentRange);
-                    }
-                }
-                lastRange = currentRange;
-                int tzIdSetId = bankHelper.getTzIdSetId(currentRange.getTzIdSet());
-
-                // Split the range so it fits.
-                final int maxRangeLength = mFileFormat.getTableEntryMaxRangeLengthValue();
-                long startCellId = currentRange.getStartCellId();
-                long endCellId = currentRange.getEndCellId();
-                int rangeLength = mFileFormat.calculateRangeLength(startCellId, endCellId);
-                while (rangeLength > maxRangeLength) {
-                    long newEndCellId = S2Support.offsetCellId(startCellId, maxRangeLength);
-                    SuffixTableRange suffixTableRange =
-                            new SuffixTableRange(startCellId, newEndCellId, tzIdSetId);
-                    suffixTableWriter.addRange(suffixTableRange);
-                    startCellId = newEndCellId;
-                    rangeLength = mFileFormat.calculateRangeLength(startCellId, endCellId);
+            bankHelper = mBankedTzIdSetsPacker.addTzIdSets(uniqueIdSets);
+        }
+        return encodeSuffixTable(currentPrefix, samePrefixRanges, bankHelper);
+    }
+
+    /**
+     * Encodes the ranges for a single prefix as a suffix table. {@code bankHelper} must be
+     * {@code null} if, and only if, {@code samePrefixRanges} is empty. This method does not modify
+     * the writer's state so it can be called concurrently for different prefixes.
+     */
+    private BlockWriter encodeSuffixTable(int currentPrefix, List<TzS2Range> samePrefixRanges,
+            BankedTzIdSetsPacker.BankHelper bankHelper) throws IOException {
+        if (samePrefixRanges.isEmpty()) {
+            // Add an empty block.
+            return SuffixTableWriter.createEmptyBlockWriter();
+        }
+        if (bankHelper == null) {
+            // This can happen if packTzIdSets() was called with different ranges.
+            throw new IllegalStateException("No bank for prefix=" + currentPrefix);
+        }
+
+        // Create a suffix table block.
+        SuffixTableSharedData sharedData =
+                new SuffixTableSharedData(currentPrefix, bankHelper.getId());
+        SuffixTableWriter suffixTableWriter =
+                SuffixTableWriter.createPopulated(mFileFormat, sharedData);
+        TzS2Range lastRange = null;
+        for (TzS2Range currentRange : samePrefixRanges) {
+            // Validate ranges don't overlap.
+            if (lastRange != null) {
+                if (lastRange.overlaps(currentRange)) {
+                    throw new IllegalStateException("lastRange=" + lastRange + " overlaps"
+                            + " currentRange=" + currentRange);
                 }
+            }
+            lastRange = currentRange;
+            int tzIdSetId = bankHelper.getTzIdSetId(currentRange.getTzIdSet());
+            if (tzIdSetId < 0) {
+                throw new IllegalStateException("bank=" + bankHelper.getId()
+                        + " does not contain tzIdSet=" + currentRange.getTzIdSet());
+            }
+
+            // Split the range so it fits.
+            final int maxRangeLength = mFileFormat.getTableEntryMaxRangeLengthValue();
+            long startCellId = currentRange.getStartCellId();
+            long endCellId = currentRange.getEndCellId();
+            int rangeLength = mFileFormat.calculateRangeLength(startCellId, endCellId);
+            while (rangeLength > maxRangeLength) {
+                long newEndCellId = S2Support.offsetCellId(startCellId, maxRangeLength);
                 SuffixTableRange suffixTableRange =
-                        new SuffixTableRange(startCellId, endCellId, tzIdSetId);
+                        new SuffixTableRange(startCellId, newEndCellId, tzIdSetId);
                 suffixTableWriter.addRange(suffixTableRange);
+                startCellId = newEndCellId;
+                rangeLength = mFileFormat.calculateRangeLength(startCellId, endCellId);
             }
-            blockWriter = suffixTableWriter;
+            SuffixTableRange suffixTableRange =
+                    new SuffixTableRange(startCellId, endCellId, tzIdSetId);
+            suffixTableWriter.addRange(suffixTableRange);
         }
-        return blockWriter;
+        return suffixTableWriter;
     }
 
     @Override
     public void close() throws IOException {
+        if (mStreamingBlockFileWriter != null) {
+            closeStreaming();
+            return;
+        }
+
         try {
             BlockWriter.ReadBack headerReadBack = mHeaderBlockWriter.close();
             mBlockFileWriter.addBlock(headerReadBack.getType(), headerReadBack.getExtraBytes(),
@@ -249,6 +487,37 @@ public final class TzS2RangeFileWriter implements AutoCloseable {
         }
     }
 
+    private void closeStreaming() throws IOException {
+        try {
+            // The header block can only be written now: the TZ ID sets it contains are only known
+            // after all the suffix tables have been written.
+            BlockWriter.ReadBack headerReadBack = mHeaderBlockWriter.close();
+            int headerBlockId = 0;
+            mStreamingBlockFileWriter.setBlock(headerBlockId, headerReadBack.getType(),
+                    headerReadBack.getExtraBytes(), headerReadBack.getBlockData());
+
+            // Add empty blocks padding.
+            EmptyBlockWriter emptyBlockWriterHelper =
+                    new EmptyBlockWriter(TzS2RangeFileFormat.BLOCK_TYPE_PADDING);
+            BlockWriter.ReadBack emptyBlockReadBack = emptyBlockWriterHelper.close();
+            for (int i = 1; i < mFileFormat.getSuffixTableBlockIdOffset(); i++) {
+                mStreamingBlockFileWriter.setBlock(i,
+                        emptyBlockReadBack.getType(), emptyBlockReadBack.getExtraBytes(),
+                        emptyBlockReadBack.getBlockData());
+            }
+        } finally {
+            mStreamingBlockFileWriter.close();
+        }
+    }
+
+    /**
+     * Returns the {@link BankedTzIdSetsPacker} used to pack TZ ID sets into banks. Useful for
+     * reporting packing efficiency.
+     */
+    public BankedTzIdSetsPacker getBankedTzIdSetsPacker() {
+        return mBankedTzIdSetsPacker;
+    }
+
     /** Returns the{@link TzS2RangeFileFormat} for the file being written. */
     public TzS2RangeFileFormat getFileFormat() {
         return mFileFormat;
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.tools;
+
+import com.android.timezone.location.storage.block.read.BlockFilePatcher;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+
+import java.io.File;
+
+/** Applies a patch created with {@link CreateBlockFilePatch} to a block file. */
+public final class ApplyBlockFilePatch {
+
+    private static class Arguments {
+
+        @Parameter(names = "--base-file",
+                description = "The block file to apply the patch to",
+                required = true,
+                converter = FileConverter.class)
+        File baseFile;
+
+        @Parameter(names = "--patch-file",
+                description = "The patch file",
+                required = true,
+                converter = FileConverter.class)
+        File patchFile;
+
+        @Parameter(names = "--output-file",
+                description = "The block file to create",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+    }
+
+    /*
+     * Usage:
+     * ApplyBlockFilePatch --base-file <[input] block file> --patch-file <[input] patch file>
+     *     --output-file <[output] block file>
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        BlockFilePatcher.apply(arguments.baseFile, arguments.patchFile, arguments.outputFile);
+        System.out.println("Created " + arguments.outputFile);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.tools;
+
+import com.android.timezone.location.storage.block.read.BlockData;
+import com.android.timezone.location.storage.block.write.BlockFileWriter;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link BlockFileWriter} by writing a large, synthetic block file and
+ * reporting bytes / second for adding blocks and for assembling the final file.
+ */
+public final class BlockFileWriterBenchmark {
+
+    private static final char MAGIC = 'B';
+
+    private static final int VERSION = 1;
+
+    private static final int BLOCK_TYPE = 1;
+
+    private static class Arguments {
+
+        @Parameter(names = "--output-file",
+                description = "The block file to write. It is deleted afterwards unless --keep is"
+                        + " specified",
+                required = true,
+                converter = FileConverter.class)
+        File outputFile;
+
+        @Parameter(names = "--total-mb",
+                description = "The total size of block data to write, in MiB")
+        int totalMb = 512;
+
+        @Parameter(names = "--block-kb",
+                description = "The size of each block, in KiB")
+        int blockKb = 1024;
+
+        @Parameter(names = "--iterations",
+                description = "The number of times to write the file")
+        int iterations = 3;
+
+        @Parameter(names = "--keep",
+                description = "Keep the output file")
+        boolean keep;
+    }
+
+    /*
+     * Usage:
+     * BlockFileWriterBenchmark --output-file <[output] block file> [--total-mb <n>]
+     *     [--block-kb <n>] [--iterations <n>] [--keep]
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        int blockSizeBytes = arguments.blockKb * 1024;
+        long totalBytes = arguments.totalMb * 1024L * 1024L;
+        int blockCount = (int) ((totalBytes + blockSizeBytes - 1) / blockSizeBytes);
+
+        // A single block's worth of pseudo-random data is reused for every block: the content of
+        // the data does not affect the cost of writing it.
+        byte[] blockBytes = new byte[blockSizeBytes];
+        new Random(1234).nextBytes(blockBytes);
+        ByteBuffer blockBuffer = ByteBuffer.allocateDirect(blockSizeBytes);
+        blockBuffer.put(blockBytes);
+        blockBuffer.flip();
+        BlockData blockData = new BlockData(blockBuffer.asReadOnlyBuffer());
+
+        System.out.println("Writing " + blockCount + " blocks of " + blockSizeBytes + " bytes to "
+                + arguments.outputFile);
+        for (int i = 0; i < arguments.iterations; i++) {
+            long startNanos = System.nanoTime();
+            long addEndNanos;
+            try (BlockFileWriter writer =
+                    BlockFileWriter.open(MAGIC, VERSION, arguments.outputFile)) {
+                for (int j = 0; j < blockCount; j++) {
+                    writer.addBlock(BLOCK_TYPE, new byte[0], blockData);
+                }
+                addEndNanos = System.nanoTime();
+            }
+            long endNanos = System.nanoTime();
+
+            long fileSizeBytes = arguments.outputFile.length();
+            System.out.println("Iteration " + i + ":"
+                    + " fileSize=" + fileSizeBytes
+                    + ", addBlocks=" + formatThroughput(fileSizeBytes, addEndNanos - startNanos)
+                    + ", close=" + formatThroughput(fileSizeBytes, endNanos - addEndNanos)
+                    + ", total=" + formatThroughput(fileSizeBytes, endNanos - startNanos));
+        }
+
+        if (!arguments.keep) {
+            arguments.outputFile.delete();
+        }
+    }
+
+    private static String formatThroughput(long bytes, long nanos) {
+        double seconds = nanos / 1_000_000_000.0;
+        double mbPerSecond = (bytes / (1024.0 * 1024.0)) / seconds;
+        return String.format("%.3fs (%.1f MiB/s, %d bytes/s)",
+                seconds, mbPerSecond, (long) (bytes / seconds));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.tools;
+
+import com.android.timezone.location.storage.block.write.BlockFileDiffer;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.converters.FileConverter;
+
+import java.io.File;
+
+/**
+ * Creates a patch that transforms one block file (e.g. a tzs2.dat file) into another. The patch
+ * can be applied with {@link ApplyBlockFilePatch}.
+ */
+public final class CreateBlockFilePatch {
+
+    private static class Arguments {
+
+        @Parameter(names = "--base-file",
+                description = "The block file the patch will be applied to",
+                required = true,
+                converter = FileConverter.class)
+        File baseFile;
+
+        @Parameter(names = "--target-file",
+                description = "The block file the patch will create",
+                required = true,
+                converter = FileConverter.class)
+        File targetFile;
+
+        @Parameter(names = "--patch-file",
+                description = "The patch file to write",
+                required = true,
+                converter = FileConverter.class)
+        File patchFile;
+    }
+
+    /*
+     * Usage:
+     * CreateBlockFilePatch --base-file <[input] block file> --target-file <[input] block file>
+     *     --patch-file <[output] patch file>
+     */
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander.newBuilder()
+                .addObject(arguments)
+                .build()
+                .parse(args);
+
+        BlockFileDiffer.PatchStats patchStats = BlockFileDiffer.createPatch(
+                arguments.baseFile, arguments.targetFile, arguments.patchFile);
+        System.out.println("Target file size: " + arguments.targetFile.length());
+        System.out.println("Patch file size: " + arguments.patchFile.length());
+        System.out.println("Changed blocks: " + patchStats.getChangedBlockCount());
+        System.out.println("Bytes copied from base: " + patchStats.getCopiedBytes());
+        System.out.println("Bytes stored in patch: " + patchStats.getStoredBytes());
+    }
+}
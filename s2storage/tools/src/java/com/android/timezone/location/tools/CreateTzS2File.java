@@ -19,18 +19,24 @@ package com.android.timezone.location.tools;
 import com.android.timezone.location.common.LicenseSupport;
 import com.android.timezone.location.storage.tzs2range.TzS2Range;
 import com.android.timezone.location.storage.tzs2range.TzS2RangeFileFormat;
+import com.android.timezone.location.storage.tzs2range.write.BankedTzIdSetsPacker;
+import com.android.timezone.location.storage.tzs2range.write.TzS2RangeFileFormatTuner;
 import com.android.timezone.location.storage.tzs2range.write.TzS2RangeFileWriter;
 import com.android.timezone.location.tools.proto.GeotzProtos;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.FileConverter;
 import com.google.protobuf.TextFormat;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Creates a TZ S2 file from a text proto file. */
 public final class CreateTzS2File {
@@ -39,7 +45,7 @@ public final class CreateTzS2File {
     private static class Arguments {
 
         @Parameter(names = "--input-file",
-                description = "Proto file",
+                description = "Proto file. A text proto unless --delimited-input is specified",
                 required = true,
                 converter = FileConverter.class)
         File inputFile;
@@ -55,13 +61,63 @@ public final class CreateTzS2File {
                 converter = FileConverter.class)
         File outputFile;
 
+        @Parameter(names = "--delimited-input",
+                description = "The input file contains length-delimited binary protos. Ranges are"
+                        + " read as they are needed instead of being held in memory")
+        boolean delimitedInput;
+
+        @ParametersDelegate
+        WriterOptions writerOptions = new WriterOptions();
+    }
+
+    /**
+     * Options that control how a TZ S2 file is written, see
+     * {@link #writeTzS2File(Iterable, int, File, WriterOptions)}. Can be added to other tools'
+     * arguments with {@link ParametersDelegate}.
+     */
+    public static final class WriterOptions {
+
+        @Parameter(names = "--streaming",
+                description = "Write suffix tables straight to the output file as they are"
+                        + " generated. Reduces memory / temp file usage for high S2 levels")
+        boolean streaming;
+
+        @Parameter(names = "--num-threads",
+                description = "Number of threads used to encode suffix tables. The output is the"
+                        + " same regardless of the number of threads")
+        int numThreads = 1;
+
+        @Parameter(names = "--optimize-packing",
+                description = "Pack TZ ID sets into banks using all the input data up front."
+                        + " Usually produces fewer banks and a smaller header. Always used with"
+                        + " --tune-format")
+        boolean optimizePacking;
+
+        @Parameter(names = "--tune-format",
+                description = "Use a file format tuned for the input data instead of the"
+                        + " predefined file format for the S2 level. Usually produces a smaller"
+                        + " file, but the format and TZ ID set banks change with the data, so"
+                        + " block IDs move between data releases and block file patches between"
+                        + " tuned files are large")
+        boolean tuneFormat;
+
+        @Parameter(names = "--checksums",
+                description = "Store a checksum for every block so that readers can detect"
+                        + " corruption")
+        boolean checksums;
     }
 
     /*
      * Usage:
      * CreateTzS2File <[input] proto file> <[input] s2 level of input data> <[output] tz s2 file>
+     *     [--streaming] [--num-threads <n>] [--optimize-packing] [--tune-format]
+     *     [--delimited-input] [--checksums]
      *
-     * The proto file is defined in geotz_protos.proto. The data must be ordered correctly.
+     * The proto file is defined in geotz_protos.proto, which also describes the length-delimited
+     * format. The data must be ordered correctly. By default, the predefined file format for the
+     * S2 level is used, see {@link FileFormats}. With --tune-format, the file format is tuned for
+     * the input data using {@link TzS2RangeFileFormatTuner}. Tuned files do not patch well: see
+     * {@link WriterOptions#tuneFormat}.
      */
     public static void main(String[] args) throws Exception {
         Arguments arguments = new Arguments();
@@ -77,22 +133,102 @@ public final class CreateTzS2File {
         // directory.
         LicenseSupport.copyLicenseFile(inputFile.getParentFile(), outputFile.getParentFile());
 
+        if (arguments.delimitedInput) {
+            // Ranges are read lazily from the file each time they are iterated over. Closing the
+            // input closes any file left open by a write that failed.
+            try (DelimitedTzS2RangeInput tzS2Ranges = DelimitedTzS2RangeInput.open(inputFile)) {
+                writeTzS2File(tzS2Ranges, s2Level, outputFile, arguments.writerOptions);
+            }
+            return;
+        }
+
         GeotzProtos.TimeZones timeZonesInput;
         try (FileReader reader = new FileReader(inputFile)) {
             GeotzProtos.TimeZones.Builder builder = GeotzProtos.TimeZones.newBuilder();
             TextFormat.getParser().merge(reader, builder);
             timeZonesInput = builder.build();
         }
+        List<GeotzProtos.TimeZoneIdSet> timeZoneIdSets = timeZonesInput.getTimeZoneIdSetsList();
+        Iterable<TzS2Range> tzS2Ranges = () -> timeZonesInput.getRangesList()
+                .stream()
+                .map(x -> createTzS2Range(timeZoneIdSets, x))
+                .iterator();
+        writeTzS2File(tzS2Ranges, s2Level, outputFile, arguments.writerOptions);
+    }
+
+    /**
+     * Writes {@code tzS2Ranges}, which must be ordered correctly and all at {@code s2Level}, to
+     * {@code outputFile} as a TZ S2 file. The ranges are iterated over several times.
+     */
+    public static void writeTzS2File(Iterable<TzS2Range> tzS2Ranges, int s2Level,
+            File outputFile, WriterOptions options) throws IOException {
+        TzS2RangeFileFormat fileFormat;
+        if (options.tuneFormat) {
+            TzS2RangeFileFormatTuner.Result result =
+                    TzS2RangeFileFormatTuner.tune(s2Level, tzS2Ranges);
+            System.out.println("Tuned file format: " + result);
+            fileFormat = result.getFileFormat();
+        } else {
+            fileFormat = FileFormats.getFileFormatForLevel(s2Level);
+        }
+
+        try (TzS2RangeFileWriter writer = options.streaming
+                ? TzS2RangeFileWriter.openStreaming(outputFile, fileFormat, options.checksums)
+                : TzS2RangeFileWriter.open(outputFile, fileFormat, options.checksums)) {
+            // The tuned format assumes the TZ ID sets are packed up front.
+            if (options.optimizePacking || options.tuneFormat) {
+                writer.packTzIdSets(tzS2Ranges.iterator());
+            }
+            Iterator<TzS2Range> tzS2RangeIterator = tzS2Ranges.iterator();
+            if (options.numThreads > 1) {
+                ExecutorService executorService =
+                        Executors.newFixedThreadPool(options.numThreads);
+                try {
+                    writer.processRanges(tzS2RangeIterator, executorService);
+                } finally {
+                    executorService.shutdown();
+                }
+            } else {
+                writer.processRanges(tzS2RangeIterator);
+            }
+            printPackingReport(writer.getBankedTzIdSetsPacker());
+        }
+    }
+
+    private static void printPackingReport(BankedTzIdSetsPacker packer) {
+        int bankCount = packer.getBankCount();
+        int storedSetCount = packer.getStoredTzIdSetCount();
+        int distinctSetCount = packer.getDistinctTzIdSetCount();
+        int largestBankSize = packer.getLargestBankSize();
+        // The number of bits needed to store set IDs for the largest bank. Banks must be at least
+        // this large.
+        int requiredTzIdSetIdBitCount = Math.max(1, getIdBitCount(largestBankSize));
+        int availableTzIdSetIdBitCount = getIdBitCount(packer.getMaxBankSize());
+        System.out.println("TZ ID set packing:");
+        System.out.println("  Banks: " + bankCount);
+        System.out.println("  Distinct sets: " + distinctSetCount);
+        System.out.println("  Stored sets: " + storedSetCount + " ("
+                + percent(distinctSetCount, storedSetCount) + " efficiency)");
+        System.out.println("  Bank fill: "
+                + percent(storedSetCount, (long) bankCount * packer.getMaxBankSize()));
+        System.out.println("  Largest bank: " + largestBankSize + " sets, requires "
+                + requiredTzIdSetIdBitCount + " of " + availableTzIdSetIdBitCount
+                + " available tzIdSetId bits");
+    }
+
+    /**
+     * Returns the number of bits needed to store IDs from 0 to {@code idCount - 1}: 0 when
+     * {@code idCount} is 0 or 1.
+     */
+    private static int getIdBitCount(int idCount) {
+        return Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(idCount, 1) - 1);
+    }
 
-        TzS2RangeFileFormat fileFormat = FileFormats.getFileFormatForLevel(s2Level);
-        try (TzS2RangeFileWriter writer = TzS2RangeFileWriter.open(outputFile, fileFormat)) {
-            List<GeotzProtos.TimeZoneIdSet> timeZoneIdSets = timeZonesInput.getTimeZoneIdSetsList();
-            Iterator<TzS2Range> tzS2RangeIterator = timeZonesInput.getRangesList()
-                    .stream()
-                    .map(x -> createTzS2Range(timeZoneIdSets, x))
-                    .iterator();
-            writer.processRanges(tzS2RangeIterator);
+    private static String percent(long numerator, long denominator) {
+        if (denominator == 0) {
+            return "n/a";
         }
+        return String.format("%.1f%%", (100.0 * numerator) / denominator);
     }
 
     private static TzS2Range createTzS2Range(List<GeotzProtos.TimeZoneIdSet> tzIdStrings,
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.tools;
+
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.tools.proto.GeotzProtos;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads {@link TzS2Range}s from a file containing length-delimited binary protos: a
+ * {@link GeotzProtos.TimeZones} containing only the time zone ID sets, followed by
+ * {@link GeotzProtos.S2Range}s until the end of the file. See geotz_protos.proto.
+ *
+ * <p>Only the time zone ID sets are held in memory. Each call to {@link #iterator()} re-reads the
+ * ranges from the file so the ranges can be iterated over multiple times. Iterators close the file
+ * when all the ranges have been read or reading fails. {@link #close()} closes the files of
+ * iterators that were not read to the end.
+ */
+final class DelimitedTzS2RangeInput implements Iterable<TzS2Range>, Closeable {
+
+    private final File mFile;
+
+    private final List<List<String>> mTzIdSets;
+
+    /** The iterators that have not closed their file yet. */
+    private final Set<RangeIterator> mOpenIterators = ConcurrentHashMap.newKeySet();
+
+    private DelimitedTzS2RangeInput(File file, List<List<String>> tzIdSets) {
+        mFile = file;
+        mTzIdSets = tzIdSets;
+    }
+
+    /** Opens the file and reads the time zone ID sets. */
+    static DelimitedTzS2RangeInput open(File file) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            GeotzProtos.TimeZones header = readHeader(inputStream, file);
+            List<List<String>> tzIdSets = new ArrayList<>();
+            for (GeotzProtos.TimeZoneIdSet timeZoneIdSet : header.getTimeZoneIdSetsList()) {
+                tzIdSets.add(Collections.unmodifiableList(
+                        new ArrayList<>(timeZoneIdSet.getTimeZoneIdsList())));
+            }
+            return new DelimitedTzS2RangeInput(file, Collections.unmodifiableList(tzIdSets));
+        }
+    }
+
+    private static GeotzProtos.TimeZones readHeader(InputStream inputStream, File file)
+            throws IOException {
+        GeotzProtos.TimeZones header = GeotzProtos.TimeZones.parseDelimitedFrom(inputStream);
+        if (header == null) {
+            throw new IOException(file + " is empty");
+        }
+        if (header.getRangesCount() != 0) {
+            throw new IOException(file + " header must not contain ranges");
+        }
+        return header;
+    }
+
+    @Override
+    public Iterator<TzS2Range> iterator() {
+        try {
+            InputStream inputStream = new BufferedInputStream(new FileInputStream(mFile));
+            try {
+                // Skip the header, it has already been read.
+                readHeader(inputStream, mFile);
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
+            }
+            return new RangeIterator(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes the files of the iterators that have not read all the ranges, e.g. because the caller
+     * stopped early. Those iterators then have no more ranges.
+     */
+    @Override
+    public void close() throws IOException {
+        for (RangeIterator rangeIterator : mOpenIterators) {
+            rangeIterator.close();
+        }
+    }
+
+    private final class RangeIterator implements Iterator<TzS2Range> {
+
+        private InputStream mInputStream;
+
+        private TzS2Range mNext;
+
+        RangeIterator(InputStream inputStream) {
+            mInputStream = inputStream;
+            mOpenIterators.add(this);
+            mNext = readNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public TzS2Range next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
+            }
+            TzS2Range next = mNext;
+            mNext = readNext();
+            return next;
+        }
+
+        private TzS2Range readNext() {
+            if (mInputStream == null) {
+                return null;
+            }
+            try {
+                GeotzProtos.S2Range range = GeotzProtos.S2Range.parseDelimitedFrom(mInputStream);
+                if (range == null) {
+                    close();
+                    return null;
+                }
+                List<String> tzIdSet = mTzIdSets.get(range.getTimeZoneIdSetIndex());
+                return new TzS2Range(range.getStartCellId(), range.getEndCellId(), tzIdSet);
+            } catch (IOException e) {
+                closeAfterFailure(e);
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                // E.g. a bad time zone ID set index.
+                closeAfterFailure(e);
+                throw e;
+            }
+        }
+
+        void close() throws IOException {
+            if (mInputStream != null) {
+                mOpenIterators.remove(this);
+                InputStream inputStream = mInputStream;
+                mInputStream = null;
+                inputStream.close();
+            }
+        }
+
+        private void closeAfterFailure(Exception failure) {
+            try {
+                close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+}
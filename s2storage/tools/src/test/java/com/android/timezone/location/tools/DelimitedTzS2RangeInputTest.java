@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.timezone.location.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+
+import com.android.timezone.location.storage.s2.S2Support;
+import com.android.timezone.location.storage.tzs2range.TzS2Range;
+import com.android.timezone.location.tools.proto.GeotzProtos;
+
+import com.google.protobuf.TextFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Tests for {@link DelimitedTzS2RangeInput} and its use by {@link CreateTzS2File}. */
+public class DelimitedTzS2RangeInputTest {
+
+    private static final int S2_LEVEL = 12;
+
+    private File mTempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mTempDir = Files.createTempDirectory("DelimitedTzS2RangeInputTest").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(mTempDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void createTzS2File_textAndDelimitedInputGiveIdenticalFiles() throws Exception {
+        GeotzProtos.TimeZones timeZones = createTimeZones();
+
+        File textDir = createDirWithLicense("text");
+        File textInputFile = new File(textDir, "tzs2ranges.prototxt");
+        Files.write(textInputFile.toPath(),
+                TextFormat.printer().printToString(timeZones).getBytes(StandardCharsets.UTF_8));
+        File textOutputFile = new File(textDir, "tzs2.dat");
+        CreateTzS2File.main(new String[] {
+                "--input-file", textInputFile.getPath(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", textOutputFile.getPath(),
+        });
+
+        File delimitedDir = createDirWithLicense("delimited");
+        File delimitedInputFile = new File(delimitedDir, "tzs2ranges.delimited");
+        writeDelimited(timeZones, delimitedInputFile);
+        File delimitedOutputFile = new File(delimitedDir, "tzs2.dat");
+        CreateTzS2File.main(new String[] {
+                "--input-file", delimitedInputFile.getPath(),
+                "--s2-level", Integer.toString(S2_LEVEL),
+                "--output-file", delimitedOutputFile.getPath(),
+                "--delimited-input",
+        });
+
+        assertArrayEquals(Files.readAllBytes(textOutputFile.toPath()),
+                Files.readAllBytes(delimitedOutputFile.toPath()));
+    }
+
+    @Test
+    public void iterator_canBeRepeated() throws IOException {
+        File inputFile = new File(mTempDir, "tzs2ranges.delimited");
+        writeDelimited(createTimeZones(), inputFile);
+
+        DelimitedTzS2RangeInput input = DelimitedTzS2RangeInput.open(inputFile);
+        List<TzS2Range> expected = Arrays.asList(
+                new TzS2Range(cellId(1, 0), cellId(1, 10), Arrays.asList("Europe/London")),
+                new TzS2Range(cellId(1, 10), cellId(1, 30),
+                        Arrays.asList("Europe/London", "Europe/Paris")),
+                new TzS2Range(cellId(2, 5), cellId(2, 7000), Arrays.asList("Europe/Paris")));
+        for (int i = 0; i < 2; i++) {
+            Iterator<TzS2Range> iterator = input.iterator();
+            for (TzS2Range expectedRange : expected) {
+                assertEquals(expectedRange, iterator.next());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    public void iterator_truncatedRangeFails() throws IOException {
+        File inputFile = new File(mTempDir, "tzs2ranges.delimited");
+        writeDelimited(createTimeZones(), inputFile);
+        // Cut the file part-way through the last range.
+        try (RandomAccessFile file = new RandomAccessFile(inputFile, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        DelimitedTzS2RangeInput input = DelimitedTzS2RangeInput.open(inputFile);
+        assertThrows(UncheckedIOException.class, () -> input.forEach(range -> { }));
+    }
+
+    @Test
+    public void close_endsIteratorsNotReadToTheEnd() throws IOException {
+        File inputFile = new File(mTempDir, "tzs2ranges.delimited");
+        writeDelimited(createTimeZones(), inputFile);
+
+        DelimitedTzS2RangeInput input = DelimitedTzS2RangeInput.open(inputFile);
+        Iterator<TzS2Range> iterator = input.iterator();
+        iterator.next();
+        input.close();
+        // The range read ahead before the file was closed is still returned.
+        iterator.next();
+        assertFalse(iterator.hasNext());
+    }
+
+    private File createDirWithLicense(String name) throws IOException {
+        File dir = new File(mTempDir, name);
+        Files.createDirectory(dir.toPath());
+        Files.write(new File(dir, "LICENSE").toPath(),
+                "Test license".getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+
+    private static GeotzProtos.TimeZones createTimeZones() {
+        return GeotzProtos.TimeZones.newBuilder()
+                .addTimeZoneIdSets(createTimeZoneIdSet("Europe/London"))
+                .addTimeZoneIdSets(createTimeZoneIdSet("Europe/London", "Europe/Paris"))
+                .addTimeZoneIdSets(createTimeZoneIdSet("Europe/Paris"))
+                .addRanges(createRange(cellId(1, 0), cellId(1, 10), 0))
+                .addRanges(createRange(cellId(1, 10), cellId(1, 30), 1))
+                .addRanges(createRange(cellId(2, 5), cellId(2, 7000), 2))
+                .build();
+    }
+
+    /** Writes {@code timeZones} in the format read by {@link DelimitedTzS2RangeInput}. */
+    private static void writeDelimited(GeotzProtos.TimeZones timeZones, File file)
+            throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            timeZones.toBuilder().clearRanges().build().writeDelimitedTo(outputStream);
+            for (GeotzProtos.S2Range range : timeZones.getRangesList()) {
+                range.writeDelimitedTo(outputStream);
+            }
+        }
+    }
+
+    private static GeotzProtos.TimeZoneIdSet createTimeZoneIdSet(String... tzIds) {
+        return GeotzProtos.TimeZoneIdSet.newBuilder()
+                .addAllTimeZoneIds(Arrays.asList(tzIds))
+                .build();
+    }
+
+    private static GeotzProtos.S2Range createRange(long startCellId, long endCellId,
+            int tzIdSetIndex) {
+        return GeotzProtos.S2Range.newBuilder()
+                .setStartCellId(startCellId)
+                .setEndCellId(endCellId)
+                .setTimeZoneIdSetIndex(tzIdSetIndex)
+                .build();
+    }
+
+    private static long cellId(int faceId, long index) {
+        return S2Support.cellId(S2_LEVEL, faceId, index);
+    }
+}